@@ -0,0 +1,532 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adherence statistics per dispenser and medication: how many doses were taken, abused and
+ * forgotten per day and per week. A dispenser belongs to one patient, so these are the
+ * statistics of that patient.
+ * <p>
+ * The counts are kept up to date as events are appended to the {@link EventJournal}, by adding
+ * each event to its day and week bucket. Buckets are kept in a sorted map by their start time,
+ * so a range query only visits the buckets in the range, and {@link #getTotal} adds up whole
+ * weeks and only the days at either end.
+ * <p>
+ * Besides one series per medication, each dispenser has a series for all medications together,
+ * which is the one returned for a null medication.
+ * <p>
+ * The rollups can be saved together with the journal sequence number they include; when they
+ * are loaded again only the events appended since are replayed from the journal. The rollups
+ * of the app are loaded and caught up on a background thread, and saved again a while after
+ * new events came in, so that a killed process doesn't have to replay much.
+ */
+public class AdherenceRollups implements EventJournal.Listener {
+
+    private static final String TAG = "AdherenceRollups";
+
+    private static final String FILE_NAME = "adherence_rollups";
+    private static final int FILE_VERSION = 1;
+
+    // How long after an event the rollups of the app are saved, events in between share a save
+    private static final long SAVE_DELAY_MS = 10 * 60 * 1000L;
+
+    /**
+     * Counts of one day or week, starting at {@link #start} in local time.
+     */
+    public static class Bucket {
+        public final long start;
+        public int taken;
+        public int abused;
+        public int forgotten;
+
+        Bucket(long start) {
+            this.start = start;
+        }
+
+        void add(Bucket other) {
+            taken += other.taken;
+            abused += other.abused;
+            forgotten += other.forgotten;
+        }
+
+        Bucket copy() {
+            Bucket copy = new Bucket(start);
+            copy.add(this);
+            return copy;
+        }
+    }
+
+    private static class Series {
+        final TreeMap<Long, Bucket> mDays = new TreeMap<Long, Bucket>();
+        final TreeMap<Long, Bucket> mWeeks = new TreeMap<Long, Bucket>();
+    }
+
+    private static AdherenceRollups sInstance;
+
+    // Series by dispenser and medication, the null medication is all medications together
+    private final Map<String, Map<String, Series>> mSeries =
+            new HashMap<String, Map<String, Series>>();
+
+    // Sequence number of the last journal event included
+    private long mLastSequence;
+    // The same when last saved or loaded, the journal up to it isn't needed to rebuild them
+    private long mSavedSequence;
+    // Events compacted out of the journal before they were included, since the app started
+    private long mMissingEvents;
+
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    // Day of the last event, events mostly arrive on the same day
+    private long mCachedDayStart = Long.MAX_VALUE;
+    private long mCachedDayEnd = Long.MIN_VALUE;
+    private long mCachedWeekStart;
+
+    // Where the rollups of the app are saved in the background, null for other rollups
+    private File mFile;
+    private ScheduledExecutorService mExecutor;
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AdherenceRollups.this) {
+                mSaveScheduled = false;
+                try {
+                    save(mFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save rollups", e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Return the rollups of this app. The first time they are loaded and caught up with the
+     * journal on a background thread, until then they are empty, see {@link #isLoaded()}.
+     */
+    public static synchronized AdherenceRollups getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            final AdherenceRollups rollups = new AdherenceRollups();
+            rollups.mFile = new File(appContext.getFilesDir(), FILE_NAME);
+            rollups.mExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, TAG);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            rollups.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rollups.loadAndReplay(appContext);
+                }
+            });
+            sInstance = rollups;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Loads the saved rollups and replays the journal since, then saves them if that took any
+     * events.
+     */
+    private void loadAndReplay(Context context) {
+        long start = System.nanoTime();
+        try {
+            load(mFile);
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet, everything comes from the journal
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load rollups, rebuilding them from the journal", e);
+            clear();
+        }
+        try {
+            replay(EventJournal.getInstance(context));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not replay the journal", e);
+        }
+        synchronized (this) {
+            mLoaded = true;
+            Log.d(TAG, "Loaded up to event " + mLastSequence + " in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            if (mLastSequence != mSavedSequence) {
+                mSave.run();
+            }
+        }
+    }
+
+    /**
+     * Catches up with the journal and follows it from then on. Events that already left the
+     * journal, because it was compacted before the rollups were rebuilt from scratch, are
+     * logged and counted as missing.
+     */
+    void replay(EventJournal journal) throws IOException {
+        long from = getLastSequence() + 1;
+        List<EventJournal.Entry> first = journal.read(from, 1);
+        if (!first.isEmpty() && first.get(0).sequence > from) {
+            long missing = first.get(0).sequence - from;
+            synchronized (this) {
+                mMissingEvents += missing;
+            }
+            Log.at(Log.WARN, TAG).with("from", from).with("to", first.get(0).sequence - 1)
+                    .log("Events left the journal before the rollups had them");
+        }
+        journal.addListener(this, from);
+    }
+
+    /**
+     * Return how many events the rollups are missing because the journal no longer had them.
+     */
+    public synchronized long getMissingEvents() {
+        return mMissingEvents;
+    }
+
+    /**
+     * Return whether the rollups have caught up with the journal.
+     */
+    public synchronized boolean isLoaded() {
+        return mFile == null || mLoaded;
+    }
+
+    @Override
+    public synchronized void onEventAppended(EventJournal.Entry entry) {
+        if (entry.sequence <= mLastSequence) {
+            return;
+        }
+        mLastSequence = entry.sequence;
+        DispenserEvent event = entry.event;
+        Map<String, Series> byMedication = mSeries.get(event.dispenser);
+        if (byMedication == null) {
+            byMedication = new HashMap<String, Series>();
+            mSeries.put(event.dispenser, byMedication);
+        }
+        if (event.time < mCachedDayStart || event.time >= mCachedDayEnd) {
+            mCachedDayStart = dayStart(event.time);
+            mCalendar.add(Calendar.DAY_OF_YEAR, 1);
+            mCachedDayEnd = mCalendar.getTimeInMillis();
+            mCachedWeekStart = weekStart(event.time);
+        }
+        add(series(byMedication, null), mCachedDayStart, mCachedWeekStart, event.type);
+        if (event.medication != null) {
+            add(series(byMedication, event.medication), mCachedDayStart, mCachedWeekStart,
+                    event.type);
+        }
+        // Not while catching up, that ends in a save anyway
+        if (mExecutor != null && mLoaded && !mSaveScheduled) {
+            mSaveScheduled = true;
+            mExecutor.schedule(mSave, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Return the sequence number of the last journal event included.
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * Return the sequence number of the last journal event included in the saved rollups.
+     */
+    public synchronized long getSavedSequence() {
+        return mSavedSequence;
+    }
+
+    /**
+     * Return the dispensers that reported events.
+     */
+    public synchronized List<String> getDispensers() {
+        return new ArrayList<String>(mSeries.keySet());
+    }
+
+    /**
+     * Return the medications a dispenser reported events about.
+     */
+    public synchronized List<String> getMedications(String dispenser) {
+        List<String> medications = new ArrayList<String>();
+        Map<String, Series> byMedication = mSeries.get(dispenser);
+        if (byMedication != null) {
+            for (String medication : byMedication.keySet()) {
+                if (medication != null) {
+                    medications.add(medication);
+                }
+            }
+        }
+        return medications;
+    }
+
+    /**
+     * Return the days with events that start in the given range, earliest first.
+     *
+     * @param dispenser  The dispenser
+     * @param medication The medication, or null for all medications
+     * @param from       Start of the range, inclusive
+     * @param to         End of the range, exclusive
+     */
+    public synchronized List<Bucket> getDays(String dispenser, String medication, long from,
+            long to) {
+        Series series = find(dispenser, medication);
+        return series == null ? new ArrayList<Bucket>() : copy(series.mDays, from, to);
+    }
+
+    /**
+     * Return the weeks with events that start in the given range, earliest first.
+     *
+     * @see #getDays
+     */
+    public synchronized List<Bucket> getWeeks(String dispenser, String medication, long from,
+            long to) {
+        Series series = find(dispenser, medication);
+        return series == null ? new ArrayList<Bucket>() : copy(series.mWeeks, from, to);
+    }
+
+    /**
+     * Return the counts of all days that start in the given range, as one bucket starting at
+     * {@code from}.
+     *
+     * @see #getDays
+     */
+    public synchronized Bucket getTotal(String dispenser, String medication, long from,
+            long to) {
+        Bucket total = new Bucket(from);
+        Series series = find(dispenser, medication);
+        if (series == null || from >= to) {
+            return total;
+        }
+        // Whole weeks from the week buckets, the days before and after from the day buckets
+        long firstWeek = weekStart(from);
+        if (firstWeek < dayStart(from)) {
+            firstWeek = nextWeek(firstWeek);
+        }
+        long lastWeek = weekStart(to);
+        if (firstWeek >= lastWeek) {
+            sum(series.mDays, from, to, total);
+        } else {
+            sum(series.mDays, from, firstWeek, total);
+            sum(series.mWeeks, firstWeek, lastWeek, total);
+            sum(series.mDays, lastWeek, to, total);
+        }
+        return total;
+    }
+
+    /**
+     * Has the rollups of the app saved on their background thread, if they changed since they
+     * were last saved. Safe to call on the UI thread.
+     */
+    public void saveInBackground() {
+        if (mExecutor == null) {
+            return;
+        }
+        // Runs after the loading, which is queued first
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AdherenceRollups.this) {
+                    if (mLastSequence != mSavedSequence) {
+                        mSave.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the rollups together with the journal sequence number they include. The file is
+     * replaced atomically.
+     */
+    synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeLong(mLastSequence);
+            out.writeInt(mSeries.size());
+            for (Map.Entry<String, Map<String, Series>> dispenser : mSeries.entrySet()) {
+                out.writeUTF(dispenser.getKey());
+                out.writeInt(dispenser.getValue().size());
+                for (Map.Entry<String, Series> medication : dispenser.getValue().entrySet()) {
+                    out.writeBoolean(medication.getKey() != null);
+                    if (medication.getKey() != null) {
+                        out.writeUTF(medication.getKey());
+                    }
+                    writeBuckets(out, medication.getValue().mDays);
+                    writeBuckets(out, medication.getValue().mWeeks);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        mSavedSequence = mLastSequence;
+    }
+
+    private synchronized void clear() {
+        mSeries.clear();
+        mLastSequence = 0;
+        mSavedSequence = 0;
+    }
+
+    synchronized void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown rollups version");
+            }
+            mLastSequence = in.readLong();
+            mSavedSequence = mLastSequence;
+            int dispensers = in.readInt();
+            for (int i = 0; i < dispensers; i++) {
+                Map<String, Series> byMedication = new HashMap<String, Series>();
+                mSeries.put(in.readUTF(), byMedication);
+                int medications = in.readInt();
+                for (int j = 0; j < medications; j++) {
+                    String medication = in.readBoolean() ? in.readUTF() : null;
+                    Series series = new Series();
+                    readBuckets(in, series.mDays);
+                    readBuckets(in, series.mWeeks);
+                    byMedication.put(medication, series);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Series find(String dispenser, String medication) {
+        Map<String, Series> byMedication = mSeries.get(dispenser);
+        return byMedication == null ? null : byMedication.get(medication);
+    }
+
+    private static Series series(Map<String, Series> byMedication, String medication) {
+        Series series = byMedication.get(medication);
+        if (series == null) {
+            series = new Series();
+            byMedication.put(medication, series);
+        }
+        return series;
+    }
+
+    private static void add(Series series, long day, long week, int type) {
+        count(bucket(series.mDays, day), type);
+        count(bucket(series.mWeeks, week), type);
+    }
+
+    private static Bucket bucket(TreeMap<Long, Bucket> buckets, long start) {
+        Bucket bucket = buckets.get(start);
+        if (bucket == null) {
+            bucket = new Bucket(start);
+            buckets.put(start, bucket);
+        }
+        return bucket;
+    }
+
+    private static void count(Bucket bucket, int type) {
+        switch (type) {
+            case DispenserEvent.TYPE_TAKEN:
+                bucket.taken++;
+                break;
+            case DispenserEvent.TYPE_ABUSED:
+                bucket.abused++;
+                break;
+            case DispenserEvent.TYPE_FORGOTTEN:
+                bucket.forgotten++;
+                break;
+        }
+    }
+
+    private static List<Bucket> copy(TreeMap<Long, Bucket> buckets, long from, long to) {
+        List<Bucket> copies = new ArrayList<Bucket>();
+        if (from < to) {
+            for (Bucket bucket : buckets.subMap(from, true, to, false).values()) {
+                copies.add(bucket.copy());
+            }
+        }
+        return copies;
+    }
+
+    private static void sum(TreeMap<Long, Bucket> buckets, long from, long to, Bucket total) {
+        if (from >= to) {
+            return;
+        }
+        NavigableMap<Long, Bucket> range = buckets.subMap(from, true, to, false);
+        for (Bucket bucket : range.values()) {
+            total.add(bucket);
+        }
+    }
+
+    private long dayStart(long time) {
+        mCalendar.setTimeInMillis(time);
+        mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+        mCalendar.set(Calendar.MINUTE, 0);
+        mCalendar.set(Calendar.SECOND, 0);
+        mCalendar.set(Calendar.MILLISECOND, 0);
+        return mCalendar.getTimeInMillis();
+    }
+
+    private long weekStart(long time) {
+        mCalendar.setTimeInMillis(dayStart(time));
+        int days = (mCalendar.get(Calendar.DAY_OF_WEEK) - mCalendar.getFirstDayOfWeek() + 7) % 7;
+        mCalendar.add(Calendar.DAY_OF_YEAR, -days);
+        return mCalendar.getTimeInMillis();
+    }
+
+    private long nextWeek(long weekStart) {
+        mCalendar.setTimeInMillis(weekStart);
+        mCalendar.add(Calendar.WEEK_OF_YEAR, 1);
+        return mCalendar.getTimeInMillis();
+    }
+
+    private static void writeBuckets(DataOutputStream out, TreeMap<Long, Bucket> buckets)
+            throws IOException {
+        out.writeInt(buckets.size());
+        for (Bucket bucket : buckets.values()) {
+            out.writeLong(bucket.start);
+            out.writeInt(bucket.taken);
+            out.writeInt(bucket.abused);
+            out.writeInt(bucket.forgotten);
+        }
+    }
+
+    private static void readBuckets(DataInputStream in, TreeMap<Long, Bucket> buckets)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Bucket bucket = new Bucket(in.readLong());
+            bucket.taken = in.readInt();
+            bucket.abused = in.readInt();
+            bucket.forgotten = in.readInt();
+            buckets.put(bucket.start, bucket);
+        }
+    }
+}
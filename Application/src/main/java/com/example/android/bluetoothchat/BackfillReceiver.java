@@ -0,0 +1,287 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Recovers the events a dispenser reported while the app was out of range. On every connection
+ * the app asks for the events after the last one it has, and the dispenser streams them in
+ * chunks of many events each, see {@link DispenserEvent}.
+ * <p>
+ * Chunks are decoded and handed to the event listeners on a thread of their own, so that the
+ * connection thread keeps reading and live events are not stuck behind days of history.
+ * <p>
+ * The last event each dispenser is known to have delivered is saved, so a backfill cut short
+ * resumes where it stopped on the next connection. Events that arrive out of order, live ones
+ * during a backfill, only move it once the events before them are in. A chunk may therefore
+ * repeat events the app already has.
+ */
+public class BackfillReceiver {
+
+    private static final String TAG = "BackfillReceiver";
+
+    private static final String FILE_NAME = "backfill_cursors";
+    private static final int FILE_VERSION = 1;
+
+    // Bounds the out of order events kept per dispenser
+    private static final int MAX_AHEAD = 4096;
+
+    /**
+     * The position of a dispenser's event stream.
+     */
+    private static class Cursor {
+        // All events up to this one were received, -1 if none
+        long contiguous = -1;
+        final TreeSet<Long> ahead = new TreeSet<Long>();
+        long highest = -1;
+        // Backfill statistics of the current connection
+        long backfilled;
+        long startedAt;
+    }
+
+    private static BackfillReceiver sInstance;
+
+    private final File mFile;
+    private final ExecutorService mExecutor;
+    // Guarded by this
+    private final Map<String, Cursor> mCursors = new HashMap<String, Cursor>();
+    private boolean mSaveScheduled;
+
+    // Saves on the backfill thread, so the connection thread never waits for the file
+    private final Runnable mSaver = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Long> positions = new HashMap<String, Long>();
+            synchronized (BackfillReceiver.this) {
+                mSaveScheduled = false;
+                for (Map.Entry<String, Cursor> entry : mCursors.entrySet()) {
+                    positions.put(entry.getKey(), entry.getValue().contiguous);
+                }
+            }
+            save(positions);
+        }
+    };
+
+    /**
+     * Return the backfill receiver of this app.
+     */
+    public static synchronized BackfillReceiver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BackfillReceiver(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a receiver that saves its cursors to the given file.
+     */
+    public BackfillReceiver(File file) {
+        mFile = file;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        load();
+    }
+
+    /**
+     * Return the request to send to a dispenser that just connected, without sequence number
+     * and terminator.
+     */
+    public synchronized String getRequest(String dispenser) {
+        Cursor cursor = getCursor(dispenser);
+        cursor.backfilled = 0;
+        cursor.startedAt = System.nanoTime();
+        return Constants.MESSAGE_BACKFILL + Constants.MESSAGE_DELIMITER + cursor.contiguous;
+    }
+
+    /**
+     * Return the sequence number up to which all events of a dispenser were received, or -1.
+     */
+    public synchronized long getLastSequence(String dispenser) {
+        return getCursor(dispenser).contiguous;
+    }
+
+    /**
+     * Takes a message read from a dispenser if it is a chunk of backfilled events. The chunk is
+     * decoded and its events are handed to the listener later, on the backfill thread.
+     *
+     * @param clock Corrects the ages of the events, may be null
+     * @return Whether the message was a chunk
+     */
+    public boolean offer(final String dispenser, final String message, final long receivedAt,
+            final DispenserEvent.Clock clock, final DispenserEvent.Listener listener) {
+        if (!message.startsWith(Constants.MESSAGE_EVENTS + Constants.MESSAGE_DELIMITER)) {
+            return false;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<DispenserEvent> events = new ArrayList<DispenserEvent>();
+                int remaining = DispenserEvent.parseChunk(dispenser, message, receivedAt,
+                        clock, events);
+                if (remaining < 0) {
+                    Log.w(TAG, "Dropping a damaged chunk from " + dispenser);
+                    return;
+                }
+                for (DispenserEvent event : events) {
+                    listener.onDispenserEvent(event);
+                }
+                onChunk(dispenser, events, remaining == 0);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits until the chunks offered so far are taken in and the cursors are saved.
+     */
+    public void sync() throws InterruptedException {
+        try {
+            mExecutor.submit(mSaver).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Records a live event. Call for every event that is not backfilled.
+     */
+    public synchronized void onEvent(DispenserEvent event) {
+        if (event.sequence != DispenserEvent.NO_SEQUENCE
+                && advance(getCursor(event.dispenser), event.sequence)) {
+            scheduleSave();
+        }
+    }
+
+    private synchronized void onChunk(String dispenser, List<DispenserEvent> events,
+            boolean last) {
+        Cursor cursor = getCursor(dispenser);
+        for (DispenserEvent event : events) {
+            advance(cursor, event.sequence);
+        }
+        cursor.backfilled += events.size();
+        if (last) {
+            // Whatever is still missing, the dispenser no longer has
+            cursor.contiguous = Math.max(cursor.contiguous, cursor.highest);
+            cursor.ahead.clear();
+            long ms = (System.nanoTime() - cursor.startedAt) / 1000000;
+            Log.i(TAG, "Backfilled " + cursor.backfilled + " events from " + dispenser
+                    + " in " + ms + "ms");
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (!mSaveScheduled) {
+            mSaveScheduled = true;
+            mExecutor.execute(mSaver);
+        }
+    }
+
+    /**
+     * Moves a cursor past an event.
+     *
+     * @return Whether the cursor changed
+     */
+    private static boolean advance(Cursor cursor, long sequence) {
+        if (sequence <= cursor.contiguous) {
+            return false;
+        }
+        cursor.highest = Math.max(cursor.highest, sequence);
+        if (sequence == cursor.contiguous + 1) {
+            cursor.contiguous = sequence;
+        } else {
+            cursor.ahead.add(sequence);
+            if (cursor.ahead.size() <= MAX_AHEAD) {
+                return false;
+            }
+            // Give up on the gap, the dispenser evidently no longer has it
+            cursor.contiguous = cursor.ahead.pollFirst();
+        }
+        while (!cursor.ahead.isEmpty() && cursor.ahead.first() <= cursor.contiguous + 1) {
+            cursor.contiguous = Math.max(cursor.contiguous, cursor.ahead.pollFirst());
+        }
+        return true;
+    }
+
+    private Cursor getCursor(String dispenser) {
+        Cursor cursor = mCursors.get(dispenser);
+        if (cursor == null) {
+            cursor = new Cursor();
+            mCursors.put(dispenser, cursor);
+        }
+        return cursor;
+    }
+
+    private void load() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Cursor cursor = getCursor(in.readUTF());
+                    cursor.contiguous = in.readLong();
+                    cursor.highest = cursor.contiguous;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing received yet
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + mFile + ", backfilling everything", e);
+        }
+    }
+
+    private void save(Map<String, Long> positions) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(positions.size());
+                for (Map.Entry<String, Long> entry : positions.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Could not replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the backfill cursors", e);
+        }
+    }
+}
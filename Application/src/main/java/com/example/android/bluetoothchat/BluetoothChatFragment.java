@@ -20,9 +20,13 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -44,8 +48,10 @@ import android.widget.Toast;
 
 import com.example.android.common.logger.Log;
 
+
 /**
- * This fragment controls Bluetooth to communicate with other devices.
+ * This fragment controls Bluetooth to communicate with other devices. The connection itself
+ * lives in the {@link DispenserConnectionService}, which the fragment binds to while it exists.
  */
 public class BluetoothChatFragment extends Fragment {
 
@@ -56,14 +62,14 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
 
-    // Patient data as loaded from the server and passed to the fragment
-    private Bundle pendingBundle;
-
     // Layout Views
     private ListView mConversationView;
     private EditText mOutEditText;
     private Button mSendButton;
 
+    // The last state of the link, from BluetoothChatService
+    private int mLinkState = BluetoothChatService.STATE_NONE;
+
     /**
      * Name of the connected device
      */
@@ -85,17 +91,25 @@ public class BluetoothChatFragment extends Fragment {
     private BluetoothAdapter mBluetoothAdapter = null;
 
     /**
-     * Member object for the chat services
+     * Member object for the chat services, owned by the connection service and null until it
+     * is bound
      */
     private BluetoothChatService mChatService = null;
 
+    /**
+     * The connection service, null until it is bound
+     */
+    private DispenserConnectionService mConnectionService = null;
+
+    // Set from the time the fragment asks to bind to the connection service
+    private boolean mBound = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        pendingBundle = getArguments();
 
         // If the adapter is null, then Bluetooth is not supported
         if (mBluetoothAdapter == null) {
@@ -115,7 +129,7 @@ public class BluetoothChatFragment extends Fragment {
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
             // Otherwise, setup the chat session
-        } else if (mChatService == null) {
+        } else if (!mBound) {
             setupChat();
         }
     }
@@ -123,8 +137,23 @@ public class BluetoothChatFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mChatService != null) {
-            mChatService.stop();
+        // The connection stays up in the service, for the next fragment to attach to
+        unbindConnectionService();
+        AdherenceRollups.getInstance(getActivity()).saveInBackground();
+    }
+
+    /**
+     * Detaches from the connection service and lets it go, it stops once no client is bound.
+     */
+    private void unbindConnectionService() {
+        if (mConnectionService != null) {
+            mConnectionService.detach(mHandler);
+            mConnectionService = null;
+            mChatService = null;
+        }
+        if (mBound) {
+            getActivity().unbindService(mConnection);
+            mBound = false;
         }
     }
 
@@ -135,6 +164,10 @@ public class BluetoothChatFragment extends Fragment {
         // Performing this check in onResume() covers the case in which BT was
         // not enabled during onStart(), so we were paused to enable it...
         // onResume() will be called when ACTION_REQUEST_ENABLE activity returns.
+        startChatServiceIfIdle();
+    }
+
+    private void startChatServiceIfIdle() {
         if (mChatService != null) {
             // Only if the state is STATE_NONE, do we know that we haven't started already
             if (mChatService.getState() == BluetoothChatService.STATE_NONE) {
@@ -144,16 +177,35 @@ public class BluetoothChatFragment extends Fragment {
         }
     }
 
+    /**
+     * Attaches to the chat service of the connection service once it is bound.
+     */
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mConnectionService =
+                    ((DispenserConnectionService.LocalBinder) service).getService();
+            mChatService = mConnectionService.getChatService();
+            mConnectedDeviceName = mConnectionService.getConnectedDeviceName();
+            mConnectionService.attach(mHandler);
+            startChatServiceIfIdle();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mConnectionService = null;
+            mChatService = null;
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container,
                              @Nullable Bundle savedInstanceState) {
-        pendingBundle = getArguments();
         return inflater.inflate(R.layout.fragment_bluetooth_chat, container, false);
     }
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
-        pendingBundle = getArguments();
         mConversationView = (ListView) view.findViewById(R.id.in);
         mOutEditText = (EditText) view.findViewById(R.id.edit_text_out);
         mSendButton = (Button) view.findViewById(R.id.button_send);
@@ -186,8 +238,12 @@ public class BluetoothChatFragment extends Fragment {
             }
         });
 
-        // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(getActivity(), mHandler);
+        // Bind to the service that keeps the Bluetooth connection, starting it first so that
+        // it outlives this fragment
+        FragmentActivity activity = getActivity();
+        DispenserConnectionService.start(activity);
+        mBound = activity.bindService(new Intent(activity, DispenserConnectionService.class),
+                mConnection, Context.BIND_AUTO_CREATE);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -211,17 +267,20 @@ public class BluetoothChatFragment extends Fragment {
      * @param message A string of text to send.
      */
     private void sendMessage(String message) {
-        // Check that we're actually connected before trying anything
-        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
-            return;
-        }
-
         // Check that there's actually something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
-            mChatService.write(send);
+            if (mChatService == null) {
+                Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Tell the BluetoothChatService to send it, it is queued while not connected
+            CommandFuture future = mChatService.send(message);
+            if (future.getState() == CommandFuture.STATE_QUEUED) {
+                Toast.makeText(getActivity(), R.string.command_queued, Toast.LENGTH_SHORT).show();
+            }
+            future.addListener(mCommandListener);
+            // Only what was typed here shows in the conversation, not what the service sends
+            mConversationArrayAdapter.add("Me:  " + message);
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -229,6 +288,42 @@ public class BluetoothChatFragment extends Fragment {
         }
     }
 
+    /**
+     * Reports commands the dispenser did not confirm, and the acknowledgement latencies.
+     * Called on the connection or timeout thread, so the toast is posted to the UI thread.
+     */
+    private final CommandFuture.Listener mCommandListener = new CommandFuture.Listener() {
+        @Override
+        public void onCommandDone(final CommandFuture future) {
+            if (future.isAcknowledged()) {
+                // The percentiles take a sort, only worth it when they are logged
+                BluetoothChatService chatService = mChatService;
+                if (chatService != null && Log.isLoggable(TAG, Log.DEBUG)) {
+                    CommandTracker tracker = chatService.getCommandTracker();
+                    Log.d(TAG, "Command #" + future.getSequence() + " acknowledged after "
+                            + future.getLatencyMs() + "ms, p50 "
+                            + tracker.getLatencyPercentileMicros(50) / 1000 + "ms, p99 "
+                            + tracker.getLatencyPercentileMicros(99) / 1000 + "ms");
+                }
+                return;
+            }
+            if (future.getState() == CommandFuture.STATE_SUPERSEDED) {
+                return;
+            }
+            Log.w(TAG, "Command " + future + " not confirmed");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Activity activity = getActivity();
+                    if (activity != null) {
+                        Toast.makeText(activity, R.string.command_not_confirmed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
+        }
+    };
+
     /**
      * The action listener for the EditText widget, to listen for the return key
      */
@@ -287,17 +382,26 @@ public class BluetoothChatFragment extends Fragment {
             FragmentActivity activity = getActivity();
             switch (msg.what) {
                 case Constants.MESSAGE_STATE_CHANGE:
+                    int previousState = mLinkState;
+                    mLinkState = msg.arg1;
                     switch (msg.arg1) {
                         case BluetoothChatService.STATE_CONNECTED:
                             setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            String PATIENT_DATA = pendingBundle.getString("PATIENT_DATA");
-
-                            String message = Constants.MESSAGE_CONFIGURE + Constants.MESSAGE_DELIMITER + PATIENT_DATA;
-                            BluetoothChatFragment.this.sendMessage(message);
-                            mConversationArrayAdapter.clear();
+                            // A link coming back from suspension continues the conversation
+                            if (previousState != BluetoothChatService.STATE_SUSPENDED) {
+                                mConversationArrayAdapter.clear();
+                            }
                             break;
                         case BluetoothChatService.STATE_CONNECTING:
-                            setStatus(R.string.title_connecting);
+                            if (previousState != BluetoothChatService.STATE_SUSPENDED) {
+                                setStatus(R.string.title_connecting);
+                            } else {
+                                // Still coming back from suspension
+                                mLinkState = previousState;
+                            }
+                            break;
+                        case BluetoothChatService.STATE_SUSPENDED:
+                            setStatus(R.string.title_suspended);
                             break;
                         case BluetoothChatService.STATE_LISTEN:
                         case BluetoothChatService.STATE_NONE:
@@ -305,24 +409,20 @@ public class BluetoothChatFragment extends Fragment {
                             break;
                     }
                     break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
-                    break;
                 case Constants.MESSAGE_READ:
                     byte[] readBuf = (byte[]) msg.obj;
                     // construct a string from the valid bytes in the buffer
                     String readMessage = new String(readBuf, 0, msg.arg1);
-                    switch (readMessage) {
-                        case Constants.MESSAGE_TAKEN:
+                    // Events may carry a sequence number and medication after the name
+                    switch (DispenserEvent.typeOf(
+                            readMessage.split(Constants.MESSAGE_DELIMITER)[0])) {
+                        case DispenserEvent.TYPE_TAKEN:
                             Toast.makeText(activity, "You took your medicine, good!", Toast.LENGTH_SHORT).show();
                             break;
-                        case Constants.MESSAGE_ABUSED:
+                        case DispenserEvent.TYPE_ABUSED:
                             Toast.makeText(activity, "You want too much medicine, naughty!", Toast.LENGTH_SHORT).show();
                             break;
-                        case Constants.MESSAGE_FORGOTTEN:
+                        case DispenserEvent.TYPE_FORGOTTEN:
                             Toast.makeText(activity, "You forgot your medicine, bad!", Toast.LENGTH_SHORT).show();
                             break;
                         default:
@@ -338,6 +438,11 @@ public class BluetoothChatFragment extends Fragment {
                                 + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                     }
                     break;
+                case Constants.MESSAGE_SERVICE_STOPPED:
+                    // Set up again the next time the fragment starts
+                    unbindConnectionService();
+                    setStatus(R.string.title_not_connected);
+                    break;
                 case Constants.MESSAGE_TOAST:
                     if (null != activity) {
                         Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
@@ -366,7 +471,9 @@ public class BluetoothChatFragment extends Fragment {
                 // When the request to enable Bluetooth returns
                 if (resultCode == Activity.RESULT_OK) {
                     // Bluetooth is now enabled, so set up a chat session
-                    setupChat();
+                    if (!mBound) {
+                        setupChat();
+                    }
                 } else {
                     // User did not enable Bluetooth or an error occurred
                     Log.d(TAG, "BT not enabled");
@@ -390,7 +497,9 @@ public class BluetoothChatFragment extends Fragment {
         // Get the BluetoothDevice object
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         // Attempt to connect to the device
-        mChatService.connect(device, secure);
+        if (mChatService != null) {
+            mChatService.connect(device, secure);
+        }
     }
 
     @Override
@@ -428,6 +537,14 @@ public class BluetoothChatFragment extends Fragment {
                 }
                 return true;
             }
+            case R.id.update_firmware: {
+                // Progress shows in the connection's notification
+                if (mConnectionService == null || !mConnectionService.updateFirmware()) {
+                    Toast.makeText(getActivity(), R.string.firmware_unavailable,
+                            Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            }
 
         }
         return false;
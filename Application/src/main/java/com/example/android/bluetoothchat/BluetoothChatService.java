@@ -24,19 +24,37 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ * <p>
+ * A connected link that stays idle is suspended, see {@link LinkIdlePolicy}. It is brought
+ * back to the same dispenser when a command is sent, or shortly before the next dose.
  */
 public class BluetoothChatService {
     // Debugging
@@ -61,12 +79,94 @@ public class BluetoothChatService {
     private ConnectedThread mConnectedThread;
     private int mState;
     private int mNewState;
+    private final CommandQueue mCommandQueue;
+    private final CommandTracker mCommandTracker = new CommandTracker();
+    // Futures of the queued commands by command id, lost when the app restarts
+    private final Map<Long, CommandFuture> mQueuedFutures = new HashMap<Long, CommandFuture>();
+    // Set while the commands queued for a new connection are written, new ones queue behind
+    private boolean mFlushing;
+    private final List<DispenserEvent.Listener> mEventListeners =
+            new CopyOnWriteArrayList<DispenserEvent.Listener>();
+    private final BackfillReceiver mBackfillReceiver;
+    private final EventDeduplicator mDeduplicator = new EventDeduplicator();
+    private final ClockSync mClockSync = new ClockSync(new ClockSync.Transport() {
+        @Override
+        public boolean sendNow(String dispenser, String command) {
+            ConnectedThread r;
+            synchronized (BluetoothChatService.this) {
+                if (mState != STATE_CONNECTED || mConnectedThread == null
+                        || !mConnectedThread.mmAddress.equals(dispenser)) {
+                    return false;
+                }
+                r = mConnectedThread;
+            }
+            return sendOn(r, command);
+        }
+    });
+
+    // The firmware update started last, null if there was none
+    private volatile FirmwareUpdater mFirmwareUpdater;
+    private final FirmwareUpdater.Transport mFirmwareTransport = new FirmwareUpdater.Transport() {
+        @Override
+        public boolean sendNow(String command) {
+            ConnectedThread r;
+            synchronized (BluetoothChatService.this) {
+                if (mState != STATE_CONNECTED || mConnectedThread == null) {
+                    return false;
+                }
+                r = mConnectedThread;
+            }
+            return sendOn(r, command);
+        }
+    };
+
+    private final Context mContext;
+    // Decides when the link is suspended, and keeps the numbers of what that saved and cost
+    private final LinkIdlePolicy mIdlePolicy = new LinkIdlePolicy();
+    private final ScheduledExecutorService mIdleTimer;
+    // The idle check while connected
+    private ScheduledFuture<?> mIdleTask;
+    // The dispenser of the suspended link, and whether it was connected securely. Kept until
+    // the link is back, so that a failed attempt can be retried
+    private BluetoothDevice mSuspendedDevice;
+    private boolean mSuspendedSecure;
+    // Failed attempts to bring the suspended link back since the last wake
+    private int mResumeRetries;
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    private final Runnable mResumeRetry = new Runnable() {
+        @Override
+        public void run() {
+            resume();
+        }
+    };
+
+    // Hands backfilled events to the event listeners
+    private final DispenserEvent.Listener mEventDispatcher = new DispenserEvent.Listener() {
+        @Override
+        public void onDispenserEvent(DispenserEvent event) {
+            dispatch(event, false);
+        }
+    };
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_SUSPENDED = 4;  // link suspended while idle, comes back on demand
+
+    // How long to wait before bringing the suspended link back again after an attempt failed,
+    // doubled for every further attempt
+    private static final long RESUME_RETRY_MS = 5 * 1000L;
+    // Attempts after which the link waits for the next dose alarm or command
+    private static final int MAX_RESUME_RETRIES = 4;
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -79,6 +179,17 @@ public class BluetoothChatService {
         mState = STATE_NONE;
         mNewState = mState;
         mHandler = handler;
+        mContext = context.getApplicationContext();
+        mCommandQueue = CommandQueue.getInstance(context);
+        mBackfillReceiver = BackfillReceiver.getInstance(context);
+        mIdleTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LinkIdle");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -86,13 +197,27 @@ public class BluetoothChatService {
      */
     private synchronized void updateUserInterfaceTitle() {
         mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
+        Log.d(TAG, "updateUserInterfaceTitle() {} -> {}", mNewState, mState);
         mNewState = mState;
 
         // Give the new state to the Handler so the UI Activity can update
         mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
     }
 
+    /**
+     * Adds a listener for events received from the connected dispenser. Listeners are called on
+     * the connection thread, before the message is handed to the UI Handler, and for
+     * backfilled events on the backfill thread, without the UI Handler hearing of them. Events
+     * the dispenser delivered before reach neither.
+     */
+    public void addEventListener(DispenserEvent.Listener listener) {
+        mEventListeners.add(listener);
+    }
+
+    public void removeEventListener(DispenserEvent.Listener listener) {
+        mEventListeners.remove(listener);
+    }
+
     /**
      * Return the current connection state.
      */
@@ -106,6 +231,7 @@ public class BluetoothChatService {
      */
     public synchronized void start() {
         Log.d(TAG, "start");
+        endSuspension();
 
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
@@ -114,10 +240,7 @@ public class BluetoothChatService {
         }
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnectedThread();
 
         // Start the thread to listen on a BluetoothServerSocket
         if (mSecureAcceptThread == null) {
@@ -139,7 +262,8 @@ public class BluetoothChatService {
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
     public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+        Log.d(TAG, "connect to: {}", device);
+        endSuspension();
 
         // Cancel any thread attempting to make a connection
         if (mState == STATE_CONNECTING) {
@@ -150,10 +274,7 @@ public class BluetoothChatService {
         }
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnectedThread();
 
         // Start the thread to connect with the given device
         mConnectThread = new ConnectThread(device, secure);
@@ -170,7 +291,7 @@ public class BluetoothChatService {
      */
     public synchronized void connected(BluetoothSocket socket, BluetoothDevice
             device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+        Log.d(TAG, "connected, Socket Type:{}", socketType);
 
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {
@@ -179,10 +300,7 @@ public class BluetoothChatService {
         }
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnectedThread();
 
         // Cancel the accept thread because we only want to connect to one device
         if (mSecureAcceptThread != null) {
@@ -194,16 +312,40 @@ public class BluetoothChatService {
             mInsecureAcceptThread = null;
         }
 
+        // The suspended link, if it was one, is back
+        mSuspendedDevice = null;
+        mResumeRetries = 0;
+
         // Start the thread to manage the connection and perform transmissions
+        mFlushing = true;
         mConnectedThread = new ConnectedThread(socket, socketType);
         mConnectedThread.start();
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        FirmwareUpdater updater = mFirmwareUpdater;
+        if (updater != null) {
+            updater.onConnected();
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long reconnectMs = mIdlePolicy.onConnected(now);
+        // Right away, it works out when the link can be suspended
+        scheduleIdleTask(mIdleCheck, 0);
+        if (reconnectMs >= 0) {
+            // The UI still knows the device from before the link was suspended
+            Log.at(Log.INFO, TAG).with("device", device.getAddress())
+                    .with("reconnectMs", reconnectMs)
+                    .with("meanReconnectMs", mIdlePolicy.getMeanReconnectMs())
+                    .with("suspendedMs", mIdlePolicy.getSuspendedMs(now))
+                    .with("savedMas", (long) mIdlePolicy.getEstimatedSavingMas(now))
+                    .log("Link resumed");
+        } else {
+            // Send the name of the connected device back to the UI Activity
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, device.getName());
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
         // Update UI title
         updateUserInterfaceTitle();
     }
@@ -213,16 +355,18 @@ public class BluetoothChatService {
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
+        endSuspension();
+        if (mFirmwareUpdater != null) {
+            // The dispenser keeps what it got, updating again carries on from there
+            mFirmwareUpdater.cancel();
+        }
 
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnectedThread();
 
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
@@ -234,32 +378,452 @@ public class BluetoothChatService {
             mInsecureAcceptThread = null;
         }
         mState = STATE_NONE;
+        mCommandTracker.failAll();
         // Update UI title
         updateUserInterfaceTitle();
     }
 
+    /**
+     * Stops all threads for good, including the timers, once the service is no longer used.
+     */
+    public synchronized void close() {
+        stop();
+        mIdleTimer.shutdownNow();
+        mClockSync.close();
+        mCommandTracker.close();
+    }
+
+    /**
+     * Sets how long the link has to be idle before it is suspended, 0 to never suspend it.
+     */
+    public synchronized void setIdleTimeout(long idleTimeoutMs) {
+        mIdlePolicy.setIdleTimeout(idleTimeoutMs);
+        if (mState == STATE_CONNECTED) {
+            scheduleIdleTask(mIdleCheck, 0);
+        }
+    }
+
+    /**
+     * Return the idle policy, for the connection time and energy statistics.
+     */
+    public LinkIdlePolicy getIdlePolicy() {
+        return mIdlePolicy;
+    }
+
+    /**
+     * Return the tracker of the commands sent, for acknowledgement statistics.
+     */
+    public CommandTracker getCommandTracker() {
+        return mCommandTracker;
+    }
+
     /**
      * Write to the ConnectedThread in an unsynchronized manner
      *
      * @param out The bytes to write
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
+    public void write(final byte[] out) {
         // Create temporary object
-        ConnectedThread r;
+        final ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
             if (mState != STATE_CONNECTED) return;
             r = mConnectedThread;
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        // Perform the write unsynchronized, on the connection's writer thread
+        r.writeLater(new Runnable() {
+            @Override
+            public void run() {
+                r.write(out);
+            }
+        });
+    }
+
+    /**
+     * Sends a command to the dispenser, waiting {@link CommandTracker#DEFAULT_TIMEOUT_MS} for
+     * its acknowledgement.
+     *
+     * @see #send(String, long)
+     */
+    public CommandFuture send(String command) {
+        return send(command, CommandTracker.DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Sends a command to the dispenser without waiting for earlier commands to be acknowledged.
+     * While no dispenser is connected, or the commands queued for the one that just connected
+     * are still being written, the command is queued in the {@link CommandQueue} for the
+     * dispenser that was connected last. Returns right away, the command is written on the
+     * connection's writer thread.
+     *
+     * @param command   The command, without sequence number and frame terminator
+     * @param timeoutMs How long to wait for the acknowledgement once the command is written
+     * @return The outcome of the command, in {@link CommandFuture#STATE_QUEUED} if it was queued
+     */
+    public CommandFuture send(String command, long timeoutMs) {
+        final CommandFuture future = new CommandFuture(command, timeoutMs);
+        final ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mFlushing) {
+                String dispenser = mCommandQueue.getLastDispenser();
+                if (mConnectedThread != null) {
+                    dispenser = mConnectedThread.mmAddress;
+                }
+                List<CommandQueue.Command> superseded = new ArrayList<CommandQueue.Command>();
+                CommandQueue.Command queued = mCommandQueue.enqueue(dispenser, command,
+                        superseded);
+                completeCollapsed(superseded);
+                if (queued == null) {
+                    future.complete(CommandFuture.STATE_SUPERSEDED, System.nanoTime());
+                } else {
+                    mQueuedFutures.put(queued.id, future);
+                }
+                // The command goes out once the link is back
+                resume();
+                return future;
+            }
+            r = mConnectedThread;
+        }
+        mIdlePolicy.onActivity(SystemClock.elapsedRealtime());
+        long sequence = mCommandTracker.sent(future);
+        final byte[] frame = encode(CommandTracker.frame(command, sequence));
+        boolean accepted = r.writeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (r.write(frame)) {
+                    mCommandTracker.written(future);
+                } else {
+                    writeFailed(future);
+                }
+            }
+        });
+        if (!accepted) {
+            writeFailed(future);
+        }
+        return future;
+    }
+
+    private void writeFailed(CommandFuture future) {
+        mCommandTracker.unsent(future);
+        future.complete(CommandFuture.STATE_FAILED, System.nanoTime());
+    }
+
+    /**
+     * Writes the commands queued for a dispenser that just connected in a single write, each
+     * with its own sequence number. Loops until no new commands were queued in the meantime.
+     */
+    private void flushCommands(ConnectedThread r) {
+        try {
+            while (true) {
+                List<CommandQueue.Command> commands;
+                List<CommandFuture> futures = new ArrayList<CommandFuture>();
+                synchronized (this) {
+                    if (mConnectedThread != r) {
+                        return;
+                    }
+                    List<CommandQueue.Command> collapsed = new ArrayList<CommandQueue.Command>();
+                    commands = mCommandQueue.peek(r.mmAddress, collapsed);
+                    completeCollapsed(collapsed);
+                    if (commands.isEmpty()) {
+                        return;
+                    }
+                    for (CommandQueue.Command command : commands) {
+                        CommandFuture future = mQueuedFutures.get(command.id);
+                        if (future == null) {
+                            // Queued before the app restarted, nobody is waiting for it
+                            future = new CommandFuture(command.text,
+                                    CommandTracker.DEFAULT_TIMEOUT_MS);
+                        }
+                        futures.add(future);
+                    }
+                }
+                StringBuilder frames = new StringBuilder();
+                for (int i = 0; i < commands.size(); i++) {
+                    long sequence = mCommandTracker.sent(futures.get(i));
+                    frames.append(CommandTracker.frame(commands.get(i).text, sequence));
+                }
+                Log.d(TAG, "Flushing {} queued commands", commands.size());
+                if (!r.write(encode(frames.toString()))) {
+                    // They stay queued for the next connection
+                    for (CommandFuture future : futures) {
+                        mCommandTracker.unsent(future);
+                    }
+                    return;
+                }
+                for (CommandFuture future : futures) {
+                    mCommandTracker.written(future);
+                }
+                mIdlePolicy.onActivity(SystemClock.elapsedRealtime());
+                synchronized (this) {
+                    mCommandQueue.remove(r.mmAddress, commands);
+                    for (CommandQueue.Command command : commands) {
+                        mQueuedFutures.remove(command.id);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                // Whatever ended the flush, commands are no longer held back for it, unless a
+                // new connection is flushing already
+                if (mConnectedThread == r || mConnectedThread == null) {
+                    mFlushing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands an event to the event listeners, unless the dispenser delivered it before.
+     *
+     * @param live Whether the event came as it happened, rather than backfilled
+     * @return Whether the event was new
+     */
+    private boolean dispatch(DispenserEvent event, boolean live) {
+        if (!mDeduplicator.accept(event, live)) {
+            Log.d(TAG, "Dropping duplicate {}", event);
+            return false;
+        }
+        for (DispenserEvent.Listener listener : mEventListeners) {
+            listener.onDispenserEvent(event);
+        }
+        return true;
+    }
+
+    /**
+     * Asks a dispenser that just connected for the events the app missed.
+     */
+    private void requestBackfill(ConnectedThread r) {
+        // The events up to the saved position are in, whatever the dispenser sends again
+        mDeduplicator.advanceFloor(r.mmAddress, mBackfillReceiver.getLastSequence(r.mmAddress));
+        sendOn(r, mBackfillReceiver.getRequest(r.mmAddress));
+    }
+
+    /**
+     * Writes a command on a connection right away, for the commands the service sends itself.
+     * Their answers are what they wait for, so they are not tracked.
+     *
+     * @return Whether the command was written
+     */
+    private boolean sendOn(ConnectedThread r, String command) {
+        return r.write(encode(CommandTracker.frame(command, mCommandTracker.nextSequence())));
+    }
+
+    /**
+     * Completes the futures of queued commands that were collapsed with another command.
+     */
+    private void completeCollapsed(List<CommandQueue.Command> commands) {
+        for (CommandQueue.Command command : commands) {
+            CommandFuture future = mQueuedFutures.remove(command.id);
+            if (future != null) {
+                future.complete(CommandFuture.STATE_SUPERSEDED, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Cancels the thread running the connection, if there is one. Called locked.
+     */
+    private void cancelConnectedThread() {
+        if (mConnectedThread != null) {
+            mConnectedThread.cancel();
+            mConnectedThread = null;
+            mIdlePolicy.onDisconnected(SystemClock.elapsedRealtime());
+        }
+        cancelIdleTask();
+    }
+
+    /**
+     * Suspends the link if it is still idle, or checks again once it could be.
+     */
+    private void checkIdle() {
+        // Not locked, the dose alarms have a lock of their own that may be held a while
+        long untilDose = untilNextDose();
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || mConnectedThread == null) {
+                return;
+            }
+            boolean busy = mFlushing || mCommandTracker.getInFlightCount() > 0
+                    || isUpdatingFirmware();
+            long delay = mIdlePolicy.getSuspendDelay(SystemClock.elapsedRealtime(), busy,
+                    untilDose);
+            if (delay > 0) {
+                scheduleIdleTask(mIdleCheck, delay);
+            } else if (delay == 0) {
+                suspend();
+            }
+        }
+    }
+
+    /**
+     * Takes the idle link down, remembering the dispenser to bring it back to. Called locked.
+     */
+    private void suspend() {
+        ConnectedThread r = mConnectedThread;
+        mConnectedThread = null;
+        mSuspendedDevice = r.mmDevice;
+        mSuspendedSecure = r.mmSecure;
+        r.suspendLink();
+
+        long now = SystemClock.elapsedRealtime();
+        mIdlePolicy.onDisconnected(now);
+        mIdlePolicy.onSuspended(now);
+        mState = STATE_SUSPENDED;
+        Log.at(Log.INFO, TAG).with("device", r.mmAddress)
+                .with("connectedMs", mIdlePolicy.getConnectedMs(now))
+                .with("suspends", mIdlePolicy.getSuspendCount())
+                .with("chargeMas", (long) mIdlePolicy.getEstimatedChargeMas(now))
+                .log("Link suspended while idle");
+
+        // The dose alarm brings it back, see resumeForDose()
+        cancelIdleTask();
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Streams a firmware image to the dispenser, see {@link FirmwareUpdater}. Whenever the link
+     * comes back the update carries on from where the dispenser left off, and until it is over
+     * the link isn't suspended.
+     *
+     * @param listener Learns how the update goes, on the updater's thread
+     * @return The update, which can be cancelled
+     * @throws IOException           If the image can't be read
+     * @throws IllegalStateException If an update is already running
+     */
+    public synchronized FirmwareUpdater updateFirmware(File image,
+            FirmwareUpdater.Listener listener) throws IOException {
+        if (isUpdatingFirmware()) {
+            throw new IllegalStateException("A firmware update is already running");
+        }
+        FirmwareUpdater updater = new FirmwareUpdater(image, FirmwareUpdater.DEFAULT_CHUNK_SIZE,
+                FirmwareUpdater.DEFAULT_WINDOW, mFirmwareTransport, listener);
+        mFirmwareUpdater = updater;
+        Log.at(Log.INFO, TAG).with("bytes", updater.getSize()).with("state", mState)
+                .log("Starting firmware update");
+        updater.start();
+        resume();
+        return updater;
+    }
+
+    public boolean isUpdatingFirmware() {
+        FirmwareUpdater updater = mFirmwareUpdater;
+        return updater != null && !updater.isFinished();
+    }
+
+    /**
+     * Brings a suspended link back ahead of the next dose. Called from an alarm, which unlike
+     * a timer goes off while the phone sleeps.
+     */
+    public synchronized void resumeForDose() {
+        if (mState == STATE_SUSPENDED) {
+            Log.i(TAG, "Bringing the link back for the next dose");
+            resume();
+        }
+    }
+
+    /**
+     * Brings a suspended link back, does nothing if it isn't suspended.
+     */
+    private synchronized void resume() {
+        if (mState != STATE_SUSPENDED) {
+            return;
+        }
+        Log.d(TAG, "resume {}", mSuspendedDevice);
+        // A retry that was still waiting
+        cancelIdleTask();
+        mIdlePolicy.onResuming(SystemClock.elapsedRealtime());
+
+        // Unlike connect(), this keeps the suspended device until the link is back
+        mConnectThread = new ConnectThread(mSuspendedDevice, mSuspendedSecure);
+        mConnectThread.start();
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Returns to the suspended state after the link couldn't be brought back, and tries again
+     * later. Called locked.
+     */
+    private void resumeFailed() {
+        mConnectThread = null;
+        mIdlePolicy.onResumeFailed(SystemClock.elapsedRealtime());
+        mState = STATE_SUSPENDED;
+        if (mResumeRetries < MAX_RESUME_RETRIES) {
+            long delayMs = RESUME_RETRY_MS << mResumeRetries;
+            mResumeRetries++;
+            scheduleIdleTask(mResumeRetry, delayMs);
+            Log.at(Log.WARN, TAG).with("device", mSuspendedDevice.getAddress())
+                    .with("failures", mIdlePolicy.getResumeFailureCount())
+                    .with("retryMs", delayMs).log("Could not bring the link back");
+        } else {
+            // The next dose alarm or command tries again, with retries of its own
+            mResumeRetries = 0;
+            Log.at(Log.WARN, TAG).with("device", mSuspendedDevice.getAddress())
+                    .with("failures", mIdlePolicy.getResumeFailureCount())
+                    .log("Could not bring the link back, waiting for the next dose or command");
+        }
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Leaves the suspended state, if the link is in it or coming back from it, without bringing
+     * the link back. Called locked.
+     */
+    private void endSuspension() {
+        if (mState == STATE_SUSPENDED) {
+            mIdlePolicy.onSuspendEnded(SystemClock.elapsedRealtime());
+        }
+        mSuspendedDevice = null;
+        mResumeRetries = 0;
+        cancelIdleTask();
+    }
+
+    private void scheduleIdleTask(Runnable task, long delayMs) {
+        cancelIdleTask();
+        if (mIdleTimer.isShutdown()) {
+            // Closed
+            return;
+        }
+        mIdleTask = mIdleTimer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelIdleTask() {
+        if (mIdleTask != null) {
+            mIdleTask.cancel(false);
+            mIdleTask = null;
+        }
+    }
+
+    /**
+     * Return the time until the next dose, {@link LinkIdlePolicy#NO_DOSE} if there is none.
+     */
+    private long untilNextDose() {
+        long next = DoseAlarmReceiver.getNextDoseTime(mContext);
+        return next < 0 ? LinkIdlePolicy.NO_DOSE : next - System.currentTimeMillis();
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
     private void connectionFailed() {
+        synchronized (this) {
+            if (mSuspendedDevice != null) {
+                // Bringing the suspended link back, its commands are still queued for it
+                resumeFailed();
+                return;
+            }
+        }
+        mIdlePolicy.onConnectFailed();
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -287,6 +851,7 @@ public class BluetoothChatService {
         mHandler.sendMessage(msg);
 
         mState = STATE_NONE;
+        mCommandTracker.failAll();
         // Update UI title
         updateUserInterfaceTitle();
 
@@ -318,15 +883,14 @@ public class BluetoothChatService {
                             NAME_INSECURE, MY_UUID_INSECURE);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
+                Log.at(Log.ERROR, TAG).with("socketType", mSocketType).log("listen() failed", e);
             }
             mmServerSocket = tmp;
             mState = STATE_LISTEN;
         }
 
         public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
+            Log.d(TAG, "Socket Type: {}BEGIN mAcceptThread{}", mSocketType, this);
             setName("AcceptThread" + mSocketType);
 
             BluetoothSocket socket = null;
@@ -338,7 +902,8 @@ public class BluetoothChatService {
                     // successful connection or an exception
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    Log.at(Log.ERROR, TAG).with("socketType", mSocketType).with("state", mState)
+                            .log("accept() failed", e);
                     break;
                 }
 
@@ -358,23 +923,26 @@ public class BluetoothChatService {
                                 try {
                                     socket.close();
                                 } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
+                                    Log.at(Log.ERROR, TAG).with("socketType", mSocketType)
+                                            .with("state", mState)
+                                            .log("Could not close unwanted socket", e);
                                 }
                                 break;
                         }
                     }
                 }
             }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
+            Log.i(TAG, "END mAcceptThread, socket Type: {}", mSocketType);
 
         }
 
         public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            Log.d(TAG, "Socket Type{}cancel {}", mSocketType, this);
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
+                Log.at(Log.ERROR, TAG).with("socketType", mSocketType)
+                        .log("close() of server failed", e);
             }
         }
     }
@@ -406,14 +974,15 @@ public class BluetoothChatService {
                             MY_UUID_INSECURE);
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+                Log.at(Log.ERROR, TAG).with("socketType", mSocketType)
+                        .with("device", device.getAddress()).log("create() failed", e);
             }
             mmSocket = tmp;
             mState = STATE_CONNECTING;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
+            Log.i(TAG, "BEGIN mConnectThread SocketType:{}", mSocketType);
             setName("ConnectThread" + mSocketType);
 
             // Always cancel discovery because it will slow down a connection
@@ -429,8 +998,9 @@ public class BluetoothChatService {
                 try {
                     mmSocket.close();
                 } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                    Log.at(Log.ERROR, TAG).with("socketType", mSocketType)
+                            .with("device", mmDevice.getAddress())
+                            .log("unable to close() socket during connection failure", e2);
                 }
                 connectionFailed();
                 return;
@@ -449,7 +1019,9 @@ public class BluetoothChatService {
             try {
                 mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.at(Log.ERROR, TAG).with("socketType", mSocketType)
+                        .with("device", mmDevice.getAddress())
+                        .log("close() of connect socket failed", e);
             }
         }
     }
@@ -462,10 +1034,31 @@ public class BluetoothChatService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final String mmAddress;
+        private final BluetoothDevice mmDevice;
+        private final boolean mmSecure;
+        private final CreditGate mmCredit = new CreditGate();
+        // Set when the link is suspended, so that losing it isn't reported
+        private volatile boolean mmSuspending;
+        // Keeps the frames of concurrent writers from interleaving
+        private final Object mmWriteLock = new Object();
+        // Writes what send() hands over, so that waiting for credit doesn't block its caller
+        private final ExecutorService mmWriter = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ConnectedWriter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
 
         public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
+            Log.d(TAG, "create ConnectedThread: {}", socketType);
             mmSocket = socket;
+            mmDevice = socket.getRemoteDevice();
+            mmAddress = mmDevice.getAddress();
+            mmSecure = "Secure".equals(socketType);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -474,7 +1067,8 @@ public class BluetoothChatService {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
             } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+                Log.at(Log.ERROR, TAG).with("socketType", socketType).with("device", mmAddress)
+                        .log("temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
@@ -484,48 +1078,159 @@ public class BluetoothChatService {
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
+            // Written once the loop below is reading the credit the dispenser grants for them
+            writeLater(new Runnable() {
+                @Override
+                public void run() {
+                    flushCommands(ConnectedThread.this);
+                    requestBackfill(ConnectedThread.this);
+                    mClockSync.start(mmAddress);
+                }
+            });
             byte[] buffer = new byte[1024];
             int bytes;
+            FrameDecoder decoder = new FrameDecoder();
+            List<String> frames = new ArrayList<String>();
 
             // Keep listening to the InputStream while connected
             while (mState == STATE_CONNECTED) {
                 try {
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
+                    long readAt = SystemClock.elapsedRealtime();
+                    if (bytes < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    frames.clear();
+                    decoder.decode(buffer, bytes, frames);
+                    for (String frame : frames) {
+                        long ack = CommandTracker.parseAck(frame);
+                        if (ack >= 0) {
+                            mCommandTracker.onAck(ack);
+                            continue;
+                        }
+                        int credit = CreditGate.parseCredit(frame);
+                        if (credit >= 0) {
+                            mmCredit.grant(credit);
+                            continue;
+                        }
+                        if (mClockSync.onReply(mmAddress, frame, readAt)) {
+                            continue;
+                        }
+                        // Anything but housekeeping keeps the link from being suspended
+                        mIdlePolicy.onActivity(readAt);
+                        FirmwareUpdater updater = mFirmwareUpdater;
+                        if (updater != null && updater.onReply(frame)) {
+                            continue;
+                        }
+                        if (mBackfillReceiver.offer(mmAddress, frame, System.currentTimeMillis(),
+                                mClockSync, mEventDispatcher)) {
+                            continue;
+                        }
+                        if (!dispatchEvent(frame)) {
+                            continue;
+                        }
 
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                        // Send the message to the UI Activity
+                        byte[] message = encode(frame);
+                        mHandler.obtainMessage(Constants.MESSAGE_READ, message.length, -1,
+                                message).sendToTarget();
+                    }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
+                    if (mmSuspending) {
+                        break;
+                    }
+                    Log.at(Log.ERROR, TAG).with("device", mmAddress).with("state", mState)
+                            .log("disconnected", e);
                     connectionLost();
                     break;
                 }
             }
+            mClockSync.stop(mmAddress);
         }
 
         /**
-         * Write to the connected OutStream.
+         * Hands the message to the event listeners if it is an event.
+         *
+         * @return False if the message is an event that was delivered before
+         */
+        private boolean dispatchEvent(String message) {
+            DispenserEvent event = DispenserEvent.parse(mmAddress, message,
+                    System.currentTimeMillis(), mClockSync);
+            if (event == null) {
+                return true;
+            }
+            mBackfillReceiver.onEvent(event);
+            return dispatch(event, true);
+        }
+
+        /**
+         * Write to the connected OutStream, no faster than the dispenser grants credit for.
+         * A dispenser that stops granting credit is disconnected.
          *
          * @param buffer The bytes to write
+         * @return Whether the bytes were written
          */
-        public void write(byte[] buffer) {
+        public boolean write(byte[] buffer) {
             try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+                synchronized (mmWriteLock) {
+                    int offset = 0;
+                    while (offset < buffer.length) {
+                        int bytes = mmCredit.acquire(buffer.length - offset,
+                                CommandTracker.DEFAULT_TIMEOUT_MS);
+                        if (bytes == 0) {
+                            Log.at(Log.ERROR, TAG).with("device", mmAddress)
+                                    .with("bytes", buffer.length).with("sent", offset)
+                                    .log("No credit from the dispenser, disconnecting");
+                            cancel();
+                            return false;
+                        }
+                        mmOutStream.write(buffer, offset, bytes);
+                        offset += bytes;
+                    }
+                }
+                return true;
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.at(Log.ERROR, TAG).with("device", mmAddress).with("bytes", buffer.length)
+                        .log("Exception during write", e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Runs a write on the writer thread, after the writes handed over before it.
+         *
+         * @return False if the connection is already closed
+         */
+        public boolean writeLater(Runnable write) {
+            try {
+                mmWriter.execute(write);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
             }
         }
 
+        /**
+         * Closes the connection without it being reported as lost.
+         */
+        public void suspendLink() {
+            mmSuspending = true;
+            cancel();
+        }
+
         public void cancel() {
+            mmCredit.close();
+            // Writes already handed over still run, and fail on the closed socket
+            mmWriter.shutdown();
             try {
                 mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.at(Log.ERROR, TAG).with("device", mmAddress)
+                        .log("close() of connect socket failed", e);
             }
         }
     }
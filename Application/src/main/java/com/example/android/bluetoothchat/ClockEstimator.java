@@ -0,0 +1,203 @@
+package com.example.android.bluetoothchat;
+
+/**
+ * Estimates how a dispenser's clock relates to the phone's from NTP-style exchanges. An
+ * exchange records when the request left the phone (t1), when the dispenser received it (t2)
+ * and answered (t3), all in the dispenser's clock for t2 and t3, and when the answer arrived
+ * (t4). Its offset is ((t2 - t1) + (t3 - t4)) / 2, good to within half its round trip.
+ * <p>
+ * Exchanges come in short bursts, of which only the one with the shortest round trip counts;
+ * the others were held up somewhere on the link. The offsets of the last bursts are fitted to
+ * a line, whose slope is the drift between the two clocks. How well the line predicted each
+ * new burst decides when the next one is due: the interval doubles while the prediction holds
+ * and halves when it doesn't.
+ * <p>
+ * Phone times are those of a monotonic clock, in milliseconds. Not thread safe.
+ */
+public class ClockEstimator {
+
+    public static final long MIN_INTERVAL_MS = 60 * 1000;
+    public static final long MAX_INTERVAL_MS = 60 * 60 * 1000;
+
+    // A prediction this close lets the interval grow, one further off shrinks it
+    private static final long TARGET_ERROR_MS = 10;
+    // A prediction further off than this means the dispenser restarted its clock
+    private static final long RESET_ERROR_MS = 10 * 1000;
+    // Bursts whose best round trip is longer than this say little, they don't move the interval
+    private static final long MAX_USEFUL_DELAY_MS = 200;
+    // The drift is only estimated over at least this long, shorter spans are mostly noise
+    private static final long MIN_DRIFT_SPAN_MS = 10 * 60 * 1000;
+    private static final double MAX_DRIFT = 500e-6;
+    private static final int MAX_POINTS = 8;
+
+    // The best exchange of the current burst
+    private long mBestDelay = Long.MAX_VALUE;
+    private double mBestOffset;
+    private long mBestTime;
+
+    // Offsets of the last bursts, by phone time, oldest first
+    private final long[] mTimes = new long[MAX_POINTS];
+    private final double[] mOffsets = new double[MAX_POINTS];
+    private final long[] mDelays = new long[MAX_POINTS];
+    private int mPoints;
+
+    // offset(t) = mOffset + mDrift * (t - mReference)
+    private double mOffset;
+    private double mDrift;
+    private long mReference;
+
+    private long mInterval = MIN_INTERVAL_MS;
+    private long mLastError = -1;
+
+    /**
+     * Adds an exchange of the current burst.
+     */
+    public void addExchange(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0 || delay >= mBestDelay) {
+            return;
+        }
+        mBestDelay = delay;
+        mBestOffset = ((t2 - t1) + (t3 - t4)) / 2.0;
+        mBestTime = t1 + (t4 - t1) / 2;
+    }
+
+    /**
+     * Ends the current burst and updates the estimate with its best exchange.
+     *
+     * @return Whether the burst had an exchange
+     */
+    public boolean endBurst() {
+        if (mBestDelay == Long.MAX_VALUE) {
+            return false;
+        }
+        long delay = mBestDelay;
+        double offset = mBestOffset;
+        long time = mBestTime;
+        mBestDelay = Long.MAX_VALUE;
+
+        if (mPoints > 0) {
+            long error = Math.round(Math.abs(offset - getOffset(time)));
+            mLastError = error;
+            if (error > RESET_ERROR_MS) {
+                mPoints = 0;
+                mInterval = MIN_INTERVAL_MS;
+            } else if (delay <= MAX_USEFUL_DELAY_MS) {
+                // The measurement itself is only good to half its round trip
+                long tolerance = TARGET_ERROR_MS + delay / 2;
+                if (error <= tolerance / 2) {
+                    mInterval = Math.min(mInterval * 2, MAX_INTERVAL_MS);
+                } else if (error > tolerance) {
+                    mInterval = Math.max(mInterval / 2, MIN_INTERVAL_MS);
+                }
+            }
+        }
+        addPoint(time, offset, delay);
+        fit();
+        return true;
+    }
+
+    /**
+     * Return whether at least one burst got through.
+     */
+    public boolean isSynced() {
+        return mPoints > 0;
+    }
+
+    /**
+     * Return the dispenser clock minus the phone clock at the given phone time.
+     */
+    public double getOffset(long phoneTime) {
+        return mOffset + mDrift * (phoneTime - mReference);
+    }
+
+    /**
+     * Return how much faster the dispenser clock runs than the phone's, in parts per million.
+     */
+    public double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Return the phone time of a dispenser clock reading.
+     */
+    public long toPhoneTime(long dispenserTime) {
+        // The offset changes so slowly that one refinement is plenty
+        long estimate = Math.round(dispenserTime - mOffset);
+        return Math.round(dispenserTime - getOffset(estimate));
+    }
+
+    /**
+     * Return the phone duration of a duration measured by the dispenser.
+     */
+    public long toPhoneDuration(long dispenserDuration) {
+        return Math.round(dispenserDuration / (1 + mDrift));
+    }
+
+    /**
+     * Return how long to wait before the next burst.
+     */
+    public long getIntervalMs() {
+        return mInterval;
+    }
+
+    /**
+     * Return how far the estimate was off at the last burst, or -1 before the second one.
+     */
+    public long getLastErrorMs() {
+        return mLastError;
+    }
+
+    private void addPoint(long time, double offset, long delay) {
+        if (mPoints == MAX_POINTS) {
+            System.arraycopy(mTimes, 1, mTimes, 0, MAX_POINTS - 1);
+            System.arraycopy(mOffsets, 1, mOffsets, 0, MAX_POINTS - 1);
+            System.arraycopy(mDelays, 1, mDelays, 0, MAX_POINTS - 1);
+            mPoints--;
+        }
+        mTimes[mPoints] = time;
+        mOffsets[mPoints] = offset;
+        mDelays[mPoints] = delay;
+        mPoints++;
+    }
+
+    /**
+     * Fits the line through the points, weighting each by how precise its round trip made it.
+     */
+    private void fit() {
+        mReference = mTimes[mPoints - 1];
+        double sw = 0;
+        double st = 0;
+        double so = 0;
+        for (int i = 0; i < mPoints; i++) {
+            double w = weight(i);
+            sw += w;
+            st += w * (mTimes[i] - mReference);
+            so += w * mOffsets[i];
+        }
+        double meanT = st / sw;
+        double meanO = so / sw;
+        double drift = 0;
+        if (mTimes[mPoints - 1] - mTimes[0] >= MIN_DRIFT_SPAN_MS) {
+            double stt = 0;
+            double sto = 0;
+            for (int i = 0; i < mPoints; i++) {
+                double w = weight(i);
+                double dt = mTimes[i] - mReference - meanT;
+                stt += w * dt * dt;
+                sto += w * dt * (mOffsets[i] - meanO);
+            }
+            drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sto / stt));
+        } else if (mPoints > 1) {
+            // Too short to tell the drift, keep the last estimate of it
+            drift = mDrift;
+        }
+        mDrift = drift;
+        mOffset = meanO + drift * (0 - meanT);
+    }
+
+    private double weight(int point) {
+        double error = 1 + mDelays[point] / 2.0;
+        return 1 / (error * error);
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.android.bluetoothchat;
+
+import android.os.SystemClock;
+
+import com.example.android.common.logger.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the clock of each connected dispenser synchronized with the phone's, so that the
+ * times dispensers put on their events can be turned into phone times. While a dispenser is
+ * connected a burst of time requests is sent right away and then whenever its
+ * {@link ClockEstimator} asks for the next one, which is rarely once the clocks are known.
+ * <p>
+ * The app sends {@code TIME_DISPEZZZER█<id>} like any other command, and the dispenser answers
+ * {@code TIME_DISPEZZZER█<id>█<received>█<sent>} with the times in its own clock. Estimates
+ * are kept for as long as the app runs, so a reconnecting dispenser starts out synchronized.
+ */
+public class ClockSync implements DispenserEvent.Clock {
+
+    private static final String TAG = "ClockSync";
+
+    private static final int BURST_SIZE = 4;
+    private static final long BURST_SPACING_MS = 250;
+    // Answers later than this don't count for the burst
+    private static final long REPLY_TIMEOUT_MS = 2000;
+
+    /**
+     * Writes time requests to a dispenser.
+     */
+    public interface Transport {
+        /**
+         * Writes a command to a dispenser right away.
+         *
+         * @return Whether the dispenser is connected and the command was written
+         */
+        boolean sendNow(String dispenser, String command);
+    }
+
+    /**
+     * The synchronization of one dispenser.
+     */
+    private static class Session {
+        final ClockEstimator estimator = new ClockEstimator();
+        // Send times of the requests of the current burst, by id, 0 once answered
+        final long[] sentAt = new long[BURST_SIZE];
+        long firstId;
+        ScheduledFuture<?> next;
+        // Changes on every start() and stop(), so that an ongoing burst can tell it is stale
+        int generation;
+        // Backs off from dispensers that don't answer time requests
+        long silentInterval;
+    }
+
+    private final Transport mTransport;
+    private final ScheduledExecutorService mExecutor;
+    // Guarded by this
+    private final Map<String, Session> mSessions = new HashMap<String, Session>();
+    private long mNextId = 1;
+
+    public ClockSync(Transport transport) {
+        mTransport = transport;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts synchronizing a dispenser that just connected.
+     */
+    public synchronized void start(String dispenser) {
+        Session session = getSession(dispenser);
+        if (session.next != null) {
+            session.next.cancel(false);
+        }
+        session.generation++;
+        schedule(dispenser, session, 0);
+    }
+
+    /**
+     * Stops synchronizing a dispenser that disconnected, keeping what is known of its clock.
+     */
+    public synchronized void stop(String dispenser) {
+        Session session = mSessions.get(dispenser);
+        if (session != null) {
+            session.generation++;
+            if (session.next != null) {
+                session.next.cancel(false);
+                session.next = null;
+            }
+        }
+    }
+
+    /**
+     * Stops all synchronizing for good and lets the sync thread end.
+     */
+    public synchronized void close() {
+        mExecutor.shutdownNow();
+        for (Session session : mSessions.values()) {
+            session.generation++;
+            session.next = null;
+        }
+    }
+
+    /**
+     * Takes a message read from a dispenser if it is an answer to a time request.
+     *
+     * @param receivedAt {@link SystemClock#elapsedRealtime()} when the message was read
+     * @return Whether the message was an answer
+     */
+    public boolean onReply(String dispenser, String message, long receivedAt) {
+        if (!message.startsWith(Constants.MESSAGE_TIME + Constants.MESSAGE_DELIMITER)) {
+            return false;
+        }
+        String[] fields = message.split(Constants.MESSAGE_DELIMITER);
+        try {
+            long id = Long.parseLong(fields[1]);
+            long received = Long.parseLong(fields[2]);
+            long sent = Long.parseLong(fields[3]);
+            synchronized (this) {
+                Session session = mSessions.get(dispenser);
+                if (session == null || id < session.firstId
+                        || id >= session.firstId + BURST_SIZE) {
+                    // Answer to an earlier burst
+                    return true;
+                }
+                int index = (int) (id - session.firstId);
+                long sentAt = session.sentAt[index];
+                if (sentAt != 0) {
+                    session.sentAt[index] = 0;
+                    session.estimator.addExchange(sentAt, received, sent, receivedAt);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Malformed time answer from " + dispenser + ": " + message);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long toPhoneTime(String dispenser, long dispenserTime) {
+        Session session = mSessions.get(dispenser);
+        if (session == null || !session.estimator.isSynced()) {
+            return -1;
+        }
+        long elapsed = session.estimator.toPhoneTime(dispenserTime);
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime() + elapsed;
+    }
+
+    @Override
+    public synchronized long toPhoneDuration(String dispenser, long dispenserDuration) {
+        Session session = mSessions.get(dispenser);
+        if (session == null || !session.estimator.isSynced()) {
+            return dispenserDuration;
+        }
+        return session.estimator.toPhoneDuration(dispenserDuration);
+    }
+
+    private Session getSession(String dispenser) {
+        Session session = mSessions.get(dispenser);
+        if (session == null) {
+            session = new Session();
+            mSessions.put(dispenser, session);
+        }
+        return session;
+    }
+
+    private void schedule(final String dispenser, final Session session, long delayMs) {
+        if (mExecutor.isShutdown()) {
+            // Closed
+            return;
+        }
+        final int generation = session.generation;
+        session.next = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                burst(dispenser, session, generation);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the requests of a burst one after the other, then waits for the last answer and
+     * schedules the next burst. Runs on the sync thread.
+     */
+    private void burst(String dispenser, Session session, int generation) {
+        synchronized (this) {
+            session.firstId = mNextId;
+            mNextId += BURST_SIZE;
+        }
+        for (int i = 0; i < BURST_SIZE; i++) {
+            long id = session.firstId + i;
+            synchronized (this) {
+                session.sentAt[i] = SystemClock.elapsedRealtime();
+            }
+            if (!mTransport.sendNow(dispenser,
+                    Constants.MESSAGE_TIME + Constants.MESSAGE_DELIMITER + id)) {
+                // Disconnected, start() begins again on the next connection
+                return;
+            }
+            SystemClock.sleep(BURST_SPACING_MS);
+        }
+        SystemClock.sleep(REPLY_TIMEOUT_MS);
+        synchronized (this) {
+            // Late answers don't count
+            session.firstId = mNextId;
+            if (session.generation != generation) {
+                return;
+            }
+            ClockEstimator estimator = session.estimator;
+            if (estimator.endBurst()) {
+                session.silentInterval = 0;
+                Log.d(TAG, dispenser + " offset " + Math.round(estimator.getOffset(
+                        SystemClock.elapsedRealtime())) + "ms, drift "
+                        + Math.round(estimator.getDriftPpm()) + "ppm, error "
+                        + estimator.getLastErrorMs() + "ms, next in "
+                        + estimator.getIntervalMs() / 1000 + "s");
+                schedule(dispenser, session, estimator.getIntervalMs());
+            } else {
+                // Probably a dispenser that predates time requests
+                session.silentInterval = Math.min(ClockEstimator.MAX_INTERVAL_MS,
+                        Math.max(ClockEstimator.MIN_INTERVAL_MS, session.silentInterval * 2));
+                Log.w(TAG, "No time answers from " + dispenser + ", trying again in "
+                        + session.silentInterval / 1000 + "s");
+                schedule(dispenser, session, session.silentInterval);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pending outcome of a command sent to a dispenser. The command is done once the
+ * dispenser acknowledged it, it timed out, its connection was lost, or it was collapsed with
+ * another command while it was queued (see {@link CommandQueue}).
+ * <p>
+ * Listeners are called on the thread that completed the command, which is the connection or
+ * timeout thread, so they must be quick and post anything else elsewhere.
+ */
+public class CommandFuture {
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_SENT = 1;
+    public static final int STATE_ACKNOWLEDGED = 2;
+    public static final int STATE_TIMED_OUT = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_SUPERSEDED = 5;
+
+    /**
+     * Called once when the command is done.
+     */
+    public interface Listener {
+        void onCommandDone(CommandFuture future);
+    }
+
+    private final String mCommand;
+    private final long mTimeoutMs;
+    private int mState = STATE_QUEUED;
+    private long mSequence = -1;
+    private long mSentAt;
+    private long mLatencyNanos = -1;
+    private List<Listener> mListeners = new ArrayList<Listener>();
+
+    CommandFuture(String command, long timeoutMs) {
+        mCommand = command;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Return the command text.
+     */
+    public String getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Return how long to wait for the acknowledgement once the command is written.
+     */
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * Return one of the STATE_ constants.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Return the sequence number the command was sent with, or -1 while it is queued.
+     */
+    public synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Return the time from writing the command to its acknowledgement, or -1 if it was not
+     * acknowledged.
+     */
+    public synchronized long getLatencyMs() {
+        return mLatencyNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mLatencyNanos);
+    }
+
+    synchronized long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    public synchronized boolean isDone() {
+        return mState >= STATE_ACKNOWLEDGED;
+    }
+
+    public synchronized boolean isAcknowledged() {
+        return mState == STATE_ACKNOWLEDGED;
+    }
+
+    /**
+     * Adds a listener, which is called right away if the command is already done.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCommandDone(this);
+    }
+
+    /**
+     * Blocks until the command is done or the given time has passed.
+     *
+     * @return Whether the command is done
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDone()) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    synchronized void sent(long sequence, long sentAtNanos) {
+        mSequence = sequence;
+        mSentAt = sentAtNanos;
+        mState = STATE_SENT;
+    }
+
+    /**
+     * Puts the command back to queued after writing it failed.
+     */
+    synchronized void requeued() {
+        if (!isDone()) {
+            mSequence = -1;
+            mState = STATE_QUEUED;
+        }
+    }
+
+    /**
+     * Completes the command, unless it is already done.
+     *
+     * @return Whether this call completed it
+     */
+    boolean complete(int state, long nowNanos) {
+        List<Listener> listeners;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mState = state;
+            if (state == STATE_ACKNOWLEDGED) {
+                mLatencyNanos = nowNanos - mSentAt;
+            }
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Listener listener : listeners) {
+            listener.onCommandDone(this);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "#" + mSequence + " state " + mState;
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds commands for dispensers that are not connected, so that they are delivered when the
+ * dispenser comes back instead of being dropped. Each dispenser has its own queue, saved to a
+ * file whenever it changes, so queued commands also survive a restart of the app. Files are
+ * written on a thread of their own, so that queueing a command from the UI thread, or with the
+ * chat service locked, doesn't wait for the disk. Changes that pile up meanwhile share a write.
+ * <p>
+ * Commands that a later one makes pointless are collapsed when the later one is queued: a new
+ * configuration replaces any queued configuration, and a ring request is dropped if one is
+ * already waiting. On reconnect the whole queue is written in one go.
+ * <p>
+ * Commands queued before any dispenser is known are held for whichever dispenser connects
+ * next.
+ * <p>
+ * The saved queues are read on the writer thread too, calls made before that finished wait
+ * for it.
+ */
+public class CommandQueue {
+
+    private static final String TAG = "CommandQueue";
+
+    private static final String DIRECTORY_NAME = "commands";
+    private static final String UNBOUND_FILE_NAME = "unbound";
+    private static final String QUEUE_FILE_PREFIX = "queue_";
+    private static final String LAST_DISPENSER_FILE_NAME = "last_dispenser";
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * A queued command.
+     */
+    public static class Command {
+        /** Identifies the command within its queue */
+        public final long id;
+        /** The command text, without frame terminator */
+        public final String text;
+
+        Command(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+
+        boolean isConfigure() {
+            return text.startsWith(Constants.MESSAGE_CONFIGURE);
+        }
+
+        boolean isRing() {
+            return text.equals(Constants.MESSAGE_RING);
+        }
+    }
+
+    private static CommandQueue sInstance;
+
+    private final File mDirectory;
+
+    // Queues by dispenser address, the null address holds commands for the next dispenser
+    private final Map<String, List<Command>> mQueues = new HashMap<String, List<Command>>();
+
+    private String mLastDispenser;
+    // Continues from the highest id saved, so that new commands never share one with old ones
+    private long mNextId = 1;
+    private boolean mLoaded;
+
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // Contents of the queues that changed since they were last written, by dispenser
+    private final Map<String, List<Command>> mUnsaved = new HashMap<String, List<Command>>();
+
+    /**
+     * Return the command queue of this app.
+     */
+    public static synchronized CommandQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CommandQueue(new File(context.getFilesDir(), DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue that keeps its files in the given directory.
+     */
+    public CommandQueue(File directory) {
+        mDirectory = directory;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    /**
+     * Return the address of the dispenser that was connected last, or null if none ever was.
+     */
+    public synchronized String getLastDispenser() {
+        awaitLoaded();
+        return mLastDispenser;
+    }
+
+    /**
+     * Queues a command, collapsing it with the commands already queued.
+     *
+     * @param dispenser  The dispenser address, or null for the next dispenser that connects
+     * @param text       The command text
+     * @param superseded Receives the queued commands the new one replaced
+     * @return The queued command, or null if an equivalent one already was queued
+     */
+    public synchronized Command enqueue(String dispenser, String text,
+            List<Command> superseded) {
+        awaitLoaded();
+        List<Command> queue = getQueue(dispenser);
+        Command command = new Command(mNextId++, text);
+        if (!add(queue, command, superseded)) {
+            return null;
+        }
+        save(dispenser, queue);
+        return command;
+    }
+
+    /**
+     * Return the commands waiting for a dispenser that just connected, oldest first. Commands
+     * held for the next dispenser are moved to its queue first. The commands stay queued until
+     * they are {@link #remove removed} after being written.
+     *
+     * @param dispenser The dispenser
+     * @param collapsed Receives the commands held for the next dispenser that were collapsed
+     *                  with the dispenser's own
+     */
+    public synchronized List<Command> peek(String dispenser, List<Command> collapsed) {
+        awaitLoaded();
+        if (!dispenser.equals(mLastDispenser)) {
+            mLastDispenser = dispenser;
+            final String lastDispenser = dispenser;
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeLastDispenser(lastDispenser);
+                }
+            });
+        }
+        List<Command> queue = getQueue(dispenser);
+        List<Command> unbound = getQueue(null);
+        if (!unbound.isEmpty()) {
+            for (Command command : unbound) {
+                if (!add(queue, command, collapsed)) {
+                    collapsed.add(command);
+                }
+            }
+            unbound.clear();
+            save(dispenser, queue);
+            save(null, unbound);
+        }
+        return new ArrayList<Command>(queue);
+    }
+
+    /**
+     * Removes commands that were written to a dispenser. Commands that were collapsed with a
+     * newer one in the meantime are already gone.
+     */
+    public synchronized void remove(String dispenser, List<Command> written) {
+        awaitLoaded();
+        List<Command> queue = getQueue(dispenser);
+        boolean changed = false;
+        for (Command command : written) {
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().id == command.id) {
+                    it.remove();
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed) {
+            save(dispenser, queue);
+        }
+    }
+
+    /**
+     * Waits until the changes made so far are saved, for tests.
+     */
+    void sync() throws InterruptedException {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Appends a command to a queue unless a queued command covers it, and removes the queued
+     * commands it supersedes.
+     */
+    private static boolean add(List<Command> queue, Command command,
+            List<Command> superseded) {
+        if (command.isRing()) {
+            for (Command queued : queue) {
+                if (queued.isRing()) {
+                    return false;
+                }
+            }
+        } else if (command.isConfigure()) {
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                Command queued = it.next();
+                if (queued.isConfigure()) {
+                    it.remove();
+                    superseded.add(queued);
+                }
+            }
+        }
+        queue.add(command);
+        return true;
+    }
+
+    private List<Command> getQueue(String dispenser) {
+        List<Command> queue = mQueues.get(dispenser);
+        if (queue == null) {
+            queue = new ArrayList<Command>();
+            mQueues.put(dispenser, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Waits until the saved queues are read. Called locked.
+     */
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The queues are needed either way, and reading them doesn't take long
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the saved queues and the last dispenser. Runs on the writer thread.
+     */
+    private void loadAll() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory + ", commands won't survive a restart");
+        }
+        String lastDispenser = readLastDispenser();
+        Map<String, List<Command>> queues = new HashMap<String, List<Command>>();
+        long maxId = 0;
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                String dispenser;
+                if (name.equals(UNBOUND_FILE_NAME)) {
+                    dispenser = null;
+                } else if (name.startsWith(QUEUE_FILE_PREFIX) && !name.endsWith(".tmp")) {
+                    dispenser = name.substring(QUEUE_FILE_PREFIX.length()).replace('_', ':');
+                } else {
+                    continue;
+                }
+                List<Command> queue = load(dispenser);
+                for (Command command : queue) {
+                    maxId = Math.max(maxId, command.id);
+                }
+                queues.put(dispenser, queue);
+            }
+        }
+        synchronized (this) {
+            mLastDispenser = lastDispenser;
+            mQueues.putAll(queues);
+            mNextId = maxId + 1;
+            mLoaded = true;
+            notifyAll();
+        }
+    }
+
+    private File file(String dispenser) {
+        // Addresses contain colons, which not every file system likes
+        return new File(mDirectory, dispenser == null ? UNBOUND_FILE_NAME
+                : QUEUE_FILE_PREFIX + dispenser.replace(':', '_'));
+    }
+
+    private List<Command> load(String dispenser) {
+        List<Command> queue = new ArrayList<Command>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file(dispenser))));
+            try {
+                if (in.readInt() == FILE_VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        long id = in.readLong();
+                        byte[] text = new byte[in.readInt()];
+                        in.readFully(text);
+                        queue.add(new Command(id, new String(text, "UTF-8")));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing queued
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the queue of " + dispenser, e);
+        }
+        return queue;
+    }
+
+    /**
+     * Has a queue written in the background. Called locked.
+     */
+    private void save(final String dispenser, List<Command> queue) {
+        boolean pending = mUnsaved.containsKey(dispenser);
+        mUnsaved.put(dispenser, new ArrayList<Command>(queue));
+        if (pending) {
+            // The write still to come takes these contents
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Command> unsaved;
+                synchronized (CommandQueue.this) {
+                    unsaved = mUnsaved.remove(dispenser);
+                }
+                write(dispenser, unsaved);
+            }
+        });
+    }
+
+    private void write(String dispenser, List<Command> queue) {
+        File file = file(dispenser);
+        if (queue.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(queue.size());
+                for (Command command : queue) {
+                    // Configurations can exceed what writeUTF takes
+                    byte[] text = command.text.getBytes("UTF-8");
+                    out.writeLong(command.id);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the queue of " + dispenser, e);
+        }
+    }
+
+    private String readLastDispenser() {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(
+                    new File(mDirectory, LAST_DISPENSER_FILE_NAME)));
+            try {
+                return in.readUTF();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeLastDispenser(String dispenser) {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                    new File(mDirectory, LAST_DISPENSER_FILE_NAME)));
+            try {
+                out.writeUTF(dispenser);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the last dispenser", e);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.android.bluetoothchat;
+
+import android.os.Build;
+
+import com.example.android.common.logger.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates the commands written to a dispenser with its acknowledgements. Every command is
+ * written with a sequence number as its last field, and the dispenser answers
+ * {@code ACK_DISPEZZZER█<sequence>} once it applied it. Any number of commands can be waiting
+ * for their acknowledgement at once; each times out on its own, counted from when it was
+ * written. Only the commands of the service's clients are tracked, those the service sends
+ * itself get a sequence number from {@link #nextSequence()} and nothing else.
+ * <p>
+ * The latencies of the most recent acknowledgements are kept for
+ * {@link #getLatencyPercentileMicros(double)}.
+ */
+public class CommandTracker {
+
+    private static final String TAG = "CommandTracker";
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final int LATENCY_SAMPLES = 1024;
+
+    // Before Lollipop cancelled timeouts stay queued until purged, every this many
+    private static final int PURGE_INTERVAL = 256;
+
+    private final AtomicLong mNextSequence = new AtomicLong(1);
+    private final ConcurrentMap<Long, InFlight> mInFlight = new ConcurrentHashMap<Long, InFlight>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final boolean mRemoveOnCancel;
+    private final AtomicInteger mCancelled = new AtomicInteger();
+
+    // Ring of the latest acknowledgement latencies
+    private final long[] mLatenciesMicros = new long[LATENCY_SAMPLES];
+    private int mLatencyCount;
+
+    private final AtomicLong mAcknowledged = new AtomicLong();
+    private final AtomicLong mTimedOut = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    public CommandTracker() {
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mRemoveOnCancel = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        if (mRemoveOnCancel) {
+            mTimer.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Return the sequence number of an acknowledgement, or -1 if the message is not one.
+     */
+    public static long parseAck(String message) {
+        if (!message.startsWith(Constants.MESSAGE_ACK + Constants.MESSAGE_DELIMITER)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(message.substring(Constants.MESSAGE_ACK.length()
+                    + Constants.MESSAGE_DELIMITER.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Return the text to write for a command with the given sequence number.
+     */
+    public static String frame(String command, long sequence) {
+        return command + Constants.MESSAGE_DELIMITER + sequence + Constants.MESSAGE_TERMINATOR;
+    }
+
+    /**
+     * Return a sequence number for a command that is not tracked, such as the ones the service
+     * sends itself. Its acknowledgement is ignored.
+     */
+    public long nextSequence() {
+        return mNextSequence.getAndIncrement();
+    }
+
+    /**
+     * Assigns the next sequence number to a command that is about to be written, and starts
+     * waiting for its acknowledgement. Call before writing, an acknowledgement may arrive
+     * before the write returns. The command only times out once {@link #written} says it is
+     * out, not while it waits for the writer thread or for credit.
+     *
+     * @return The sequence number to write the command with
+     */
+    public long sent(CommandFuture future) {
+        long sequence = mNextSequence.getAndIncrement();
+        future.sent(sequence, System.nanoTime());
+        mInFlight.put(sequence, new InFlight(future));
+        return sequence;
+    }
+
+    /**
+     * Starts the timeout of a command once it is written, unless it was already acknowledged.
+     */
+    public void written(final CommandFuture future) {
+        final long sequence = future.getSequence();
+        final InFlight entry = mInFlight.get(sequence);
+        if (entry == null || entry.future != future) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.done || mTimer.isShutdown()) {
+                // Acknowledged meanwhile, or closed
+                return;
+            }
+            entry.timeout = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mInFlight.remove(sequence, entry)
+                            && future.complete(CommandFuture.STATE_TIMED_OUT, System.nanoTime())) {
+                        mTimedOut.incrementAndGet();
+                        Log.w(TAG, "No acknowledgement for " + future);
+                    }
+                }
+            }, future.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops waiting for a command that could not be written after all, and puts it back to
+     * queued.
+     */
+    public void unsent(CommandFuture future) {
+        cancelTimeout(mInFlight.remove(future.getSequence()));
+        future.requeued();
+    }
+
+    /**
+     * Completes the command with the given sequence number.
+     */
+    public void onAck(long sequence) {
+        InFlight entry = mInFlight.remove(sequence);
+        if (entry == null) {
+            // Late, after the command timed out
+            return;
+        }
+        cancelTimeout(entry);
+        CommandFuture future = entry.future;
+        if (!future.complete(CommandFuture.STATE_ACKNOWLEDGED, System.nanoTime())) {
+            return;
+        }
+        mAcknowledged.incrementAndGet();
+        synchronized (mLatenciesMicros) {
+            mLatenciesMicros[mLatencyCount % LATENCY_SAMPLES] = future.getLatencyNanos() / 1000;
+            mLatencyCount++;
+        }
+    }
+
+    /**
+     * Fails all commands waiting for an acknowledgement, when the connection is gone.
+     */
+    public void failAll() {
+        for (Long sequence : mInFlight.keySet()) {
+            InFlight entry = mInFlight.remove(sequence);
+            if (entry == null) {
+                continue;
+            }
+            cancelTimeout(entry);
+            if (entry.future.complete(CommandFuture.STATE_FAILED, System.nanoTime())) {
+                mFailed.incrementAndGet();
+            }
+        }
+    }
+
+    private void cancelTimeout(InFlight entry) {
+        if (entry == null) {
+            return;
+        }
+        ScheduledFuture<?> timeout;
+        synchronized (entry) {
+            entry.done = true;
+            timeout = entry.timeout;
+        }
+        if (timeout == null || !timeout.cancel(false)) {
+            return;
+        }
+        if (!mRemoveOnCancel && mCancelled.incrementAndGet() % PURGE_INTERVAL == 0) {
+            mTimer.purge();
+        }
+    }
+
+    /**
+     * Lets the timeout thread end, once the tracker is no longer used. Commands written after
+     * this don't time out.
+     */
+    public void close() {
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Return the number of commands waiting for their acknowledgement.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public long getAcknowledgedCount() {
+        return mAcknowledged.get();
+    }
+
+    public long getTimedOutCount() {
+        return mTimedOut.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * Return a percentile of the latest acknowledgement latencies, or -1 if there are none.
+     *
+     * @param percentile Between 0 and 100
+     */
+    public long getLatencyPercentileMicros(double percentile) {
+        long[] samples;
+        synchronized (mLatenciesMicros) {
+            samples = Arrays.copyOf(mLatenciesMicros, Math.min(mLatencyCount, LATENCY_SAMPLES));
+        }
+        if (samples.length == 0) {
+            return -1;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return samples[Math.max(0, Math.min(samples.length - 1, index))];
+    }
+
+    /**
+     * A command waiting for its acknowledgement, and its timeout.
+     */
+    private static class InFlight {
+        final CommandFuture future;
+        // Guarded by this. Null until written, and if written after the tracker was closed
+        ScheduledFuture<?> timeout;
+        // Guarded by this. Set once it no longer waits, so that no timeout is started after
+        boolean done;
+
+        InFlight(CommandFuture future) {
+            this.future = future;
+        }
+    }
+}
@@ -24,16 +24,34 @@ public interface Constants {
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    // The connection service was stopped from its notification, clients unbind
+    public static final int MESSAGE_SERVICE_STOPPED = 6;
 
     public static final String MESSAGE_DELIMITER = "█";
+    // Ends every command, so that several can be written at once
+    public static final String MESSAGE_TERMINATOR = "\n";
     public static final String MESSAGE_CONFIGURE = "CONFIGURE_DISPEZZZER";
     public static final String MESSAGE_RING = "RING_DISPEZZZER";
     public static final String MESSAGE_TAKEN = "TAKEN_DISPEZZZER";
     public static final String MESSAGE_ABUSED = "ABUSED_DISPEZZZER";
     public static final String MESSAGE_FORGOTTEN = "FORGOTTEN_DISPEZZZER";
+    public static final String MESSAGE_ACK = "ACK_DISPEZZZER";
+    // Grants the bytes the dispenser has room for, see CreditGate
+    public static final String MESSAGE_CREDIT = "CREDIT_DISPEZZZER";
+    // Asks for the events after a sequence number, answered with EVENTS chunks
+    public static final String MESSAGE_BACKFILL = "BACKFILL_DISPEZZZER";
+    public static final String MESSAGE_EVENTS = "EVENTS_DISPEZZZER";
+    // Time request and answer, see ClockSync
+    public static final String MESSAGE_TIME = "TIME_DISPEZZZER";
+    // Firmware update commands and answers, see FirmwareUpdater
+    public static final String MESSAGE_FW_BEGIN = "FW_BEGIN_DISPEZZZER";
+    public static final String MESSAGE_FW_CHUNK = "FW_CHUNK_DISPEZZZER";
+    public static final String MESSAGE_FW_COMMIT = "FW_COMMIT_DISPEZZZER";
+    public static final String MESSAGE_FW_ACK = "FW_ACK_DISPEZZZER";
+    public static final String MESSAGE_FW_NAK = "FW_NAK_DISPEZZZER";
+    public static final String MESSAGE_FW_RESULT = "FW_RESULT_DISPEZZZER";
 
 //    public static final String MESSAGE_DELIMITER = ":";
 //    public static final String MESSAGE_CONFIGURE = "CONF";
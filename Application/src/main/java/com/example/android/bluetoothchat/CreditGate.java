@@ -0,0 +1,141 @@
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps writes to a dispenser within the free space of its receive buffer. The dispenser
+ * announces that space with {@code CREDIT_DISPEZZZER█<bytes>}: first the size of its whole
+ * buffer once connected, then the bytes it consumed since, as it consumes them. Each written
+ * byte uses up one byte of credit, and writers wait while there is none.
+ * <p>
+ * Until the first grant arrives {@link #INITIAL_CREDIT} bytes may be written, which any
+ * dispenser can buffer. A dispenser that grants nothing within {@link #LEGACY_TIMEOUT_MS} of a
+ * writer waiting for it predates credits and is written to without limit, as before.
+ */
+public class CreditGate {
+
+    private static final String TAG = "CreditGate";
+
+    /** Bytes that may be written before the dispenser granted any */
+    public static final int INITIAL_CREDIT = 64;
+
+    public static final long LEGACY_TIMEOUT_MS = 1000;
+
+    private int mAvailable = INITIAL_CREDIT;
+    private boolean mGranted;
+    private boolean mLegacy;
+    private boolean mClosed;
+
+    private long mWaits;
+    private long mWaitNanos;
+
+    /**
+     * Return the bytes granted by a credit message, or -1 if the message is not one.
+     */
+    public static int parseCredit(String message) {
+        if (!message.startsWith(Constants.MESSAGE_CREDIT + Constants.MESSAGE_DELIMITER)) {
+            return -1;
+        }
+        try {
+            int bytes = Integer.parseInt(message.substring(Constants.MESSAGE_CREDIT.length()
+                    + Constants.MESSAGE_DELIMITER.length()));
+            return bytes < 0 ? -1 : bytes;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the bytes the dispenser made room for.
+     */
+    public synchronized void grant(int bytes) {
+        if (!mGranted) {
+            // The first grant is the whole buffer, which also holds what was written on the
+            // initial credit
+            mGranted = true;
+            mAvailable -= INITIAL_CREDIT;
+        }
+        mAvailable += bytes;
+        notifyAll();
+    }
+
+    /**
+     * Waits until some of the given bytes may be written, and uses up their credit.
+     *
+     * @param wanted    The bytes the caller would like to write
+     * @param timeoutMs How long to wait for credit once the dispenser is known to grant any
+     * @return The bytes that may be written now, between 1 and wanted, or 0 if the dispenser
+     * granted nothing in time or the gate was closed
+     */
+    public synchronized int acquire(int wanted, long timeoutMs) throws InterruptedException {
+        if (mAvailable <= 0 && !mLegacy && !mClosed) {
+            mWaits++;
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            long legacyDeadline = start + TimeUnit.MILLISECONDS.toNanos(LEGACY_TIMEOUT_MS);
+            while (mAvailable <= 0 && !mLegacy && !mClosed) {
+                long now = System.nanoTime();
+                if (!mGranted && now - legacyDeadline >= 0) {
+                    Log.i(TAG, "No credit granted, writing without flow control");
+                    mLegacy = true;
+                    break;
+                }
+                if (now - deadline >= 0) {
+                    mWaitNanos += now - start;
+                    return 0;
+                }
+                long untilMs = TimeUnit.NANOSECONDS.toMillis(
+                        (mGranted ? deadline : Math.min(deadline, legacyDeadline)) - now);
+                wait(Math.max(1, untilMs));
+            }
+            mWaitNanos += System.nanoTime() - start;
+        }
+        if (mClosed) {
+            return 0;
+        }
+        if (mLegacy) {
+            return wanted;
+        }
+        int bytes = Math.min(wanted, mAvailable);
+        mAvailable -= bytes;
+        return bytes;
+    }
+
+    /**
+     * Wakes up and fails the waiting writers, for when the connection is gone.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Return whether the dispenser turned out not to grant credit.
+     */
+    public synchronized boolean isLegacy() {
+        return mLegacy;
+    }
+
+    /**
+     * Return the bytes that may be written without waiting.
+     */
+    public synchronized int getAvailable() {
+        return mLegacy ? Integer.MAX_VALUE : mAvailable;
+    }
+
+    /**
+     * Return how often a writer had to wait for credit.
+     */
+    public synchronized long getWaitCount() {
+        return mWaits;
+    }
+
+    /**
+     * Return the total time writers waited for credit.
+     */
+    public synchronized long getWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mWaitNanos);
+    }
+}
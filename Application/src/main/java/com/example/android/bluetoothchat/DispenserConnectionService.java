@@ -0,0 +1,390 @@
+package com.example.android.bluetoothchat;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Foreground service that owns the {@link BluetoothChatService}, so the link to the dispenser
+ * lives as long as the process instead of as long as a fragment. A rotation or leaving the
+ * screen no longer drops the connection; the UI binds to the service and attaches a Handler,
+ * which gets the messages the chat service used to send to the fragment directly.
+ *
+ * <p>Configuring the dispenser once both the link and the patient data are ready is done here
+ * too, as it belongs to the session and not to whatever screen happens to be showing. The
+ * service runs until it is stopped from its notification.</p>
+ */
+public class DispenserConnectionService extends Service {
+
+    private static final String TAG = "DispenserConnection";
+
+    private static final String ACTION_STOP =
+            "com.example.android.bluetoothchat.action.STOP_CONNECTION";
+    private static final String ACTION_WAKE_LINK =
+            "com.example.android.bluetoothchat.action.WAKE_LINK";
+
+    // Where a firmware image for the dispenser is put, in the app's external files
+    private static final String FIRMWARE_IMAGE = "dispenser-firmware.bin";
+
+    private static final int NOTIFICATION_ID = 2;
+    private static final String CHANNEL_ID = "dispenser_connection";
+
+    /**
+     * Returned by {@link #onBind(Intent)}, the service is only bound from this process.
+     */
+    public class LocalBinder extends Binder {
+        public DispenserConnectionService getService() {
+            return DispenserConnectionService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    // Set while the service is created, for the dose alarm
+    private static volatile boolean sRunning;
+
+    // Handlers of the attached UI, called on the main thread
+    private final List<Handler> mClients = new CopyOnWriteArrayList<Handler>();
+
+    private BluetoothChatService mChatService;
+    private PatientDataSource mPatientDataSource;
+
+    // Name of the connected device, null while not connected
+    private String mConnectedDeviceName;
+
+    // Time at which the link reached STATE_CONNECTED, 0 while not connected
+    private long mLinkReadyAt = 0;
+
+    // Patient data last sent or queued for the dispenser, null until it is configured
+    private String mConfiguredPatientData = null;
+
+    /**
+     * Starts the service, if it isn't running yet, so that it outlives the clients that bind to
+     * it.
+     */
+    public static void start(Context context) {
+        context.startService(new Intent(context, DispenserConnectionService.class));
+    }
+
+    /**
+     * Brings a suspended link back ahead of a dose, if the service is running. Called from the
+     * dose alarm, which keeps the CPU awake for it.
+     */
+    public static void wakeLink(Context context) {
+        if (!sRunning) {
+            return;
+        }
+        Intent intent = new Intent(context, DispenserConnectionService.class);
+        intent.setAction(ACTION_WAKE_LINK);
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate()");
+        sRunning = true;
+        mChatService = new BluetoothChatService(this, mHandler);
+        mChatService.addEventListener(EventJournal.getInstance(this));
+        AdherenceRollups.getInstance(this);
+        EventOutbox.getInstance(this);
+
+        mPatientDataSource = PatientDataSource.getInstance();
+        mPatientDataSource.subscribe(mPatientDataListener);
+
+        startForeground(NOTIFICATION_ID,
+                buildNotification(getString(R.string.title_not_connected)));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Restarted after the process was killed, there is no UI yet to start listening
+            Log.i(TAG, "Restarted, listening for the dispenser");
+            if (mChatService.getState() == BluetoothChatService.STATE_NONE) {
+                mChatService.start();
+            }
+            return START_STICKY;
+        }
+        if (ACTION_STOP.equals(intent.getAction())) {
+            mChatService.stop();
+            stopForeground(true);
+            // Bound clients would keep the service alive, they unbind once told
+            mHandler.obtainMessage(Constants.MESSAGE_SERVICE_STOPPED).sendToTarget();
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (ACTION_WAKE_LINK.equals(intent.getAction())) {
+            mChatService.resumeForDose();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "onDestroy()");
+        sRunning = false;
+        mPatientDataSource.unsubscribe(mPatientDataListener);
+        mChatService.close();
+        AdherenceRollups.getInstance(this).saveInBackground();
+        stopForeground(true);
+    }
+
+    /**
+     * Return the chat service, which stays the same for the life of this service.
+     */
+    public BluetoothChatService getChatService() {
+        return mChatService;
+    }
+
+    /**
+     * Return the name of the connected device, null while not connected.
+     */
+    public String getConnectedDeviceName() {
+        return mConnectedDeviceName;
+    }
+
+    /**
+     * Attaches a Handler of the UI, which from now on gets the {@link Constants} messages of the
+     * chat service. It first gets the current state, so it can show the link as it is. Call on
+     * the main thread.
+     */
+    public void attach(Handler client) {
+        mClients.add(client);
+        client.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mChatService.getState(), -1)
+                .sendToTarget();
+    }
+
+    /**
+     * Detaches a Handler, before the UI it belongs to goes away.
+     */
+    public void detach(Handler client) {
+        mClients.remove(client);
+    }
+
+    /**
+     * Starts updating the dispenser's firmware from the image in the app's external files,
+     * showing how it goes in the notification. Call on the main thread.
+     *
+     * @return False if there is no image or an update is already running
+     */
+    public boolean updateFirmware() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null || mChatService.isUpdatingFirmware()) {
+            return false;
+        }
+        File image = new File(directory, FIRMWARE_IMAGE);
+        if (!image.isFile()) {
+            Log.w(TAG, "No firmware image at {}", image);
+            return false;
+        }
+        try {
+            mChatService.updateFirmware(image, mFirmwareListener);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the firmware image", e);
+            return false;
+        }
+        updateNotification(getString(R.string.firmware_progress, 0));
+        return true;
+    }
+
+    /**
+     * Shows the progress of the firmware update, whole percents only to keep notifications
+     * down.
+     */
+    private final FirmwareUpdater.Listener mFirmwareListener = new FirmwareUpdater.Listener() {
+        private int mPercent;
+
+        @Override
+        public void onProgress(long offset, long size) {
+            final int percent = (int) (offset * 100 / size);
+            if (percent == mPercent) {
+                return;
+            }
+            mPercent = percent;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateNotification(getString(R.string.firmware_progress, percent));
+                }
+            });
+        }
+
+        @Override
+        public void onFinished(final boolean installed, final String detail) {
+            mPercent = 0;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateNotification(installed ? getString(R.string.firmware_installed)
+                            : getString(R.string.firmware_failed, detail));
+                }
+            });
+        }
+    };
+
+    /**
+     * Keeps track of the link for the session, then hands the message on to the clients.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case Constants.MESSAGE_STATE_CHANGE:
+                    onStateChange(msg.arg1);
+                    break;
+                case Constants.MESSAGE_DEVICE_NAME:
+                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                    break;
+            }
+            for (Handler client : mClients) {
+                client.dispatchMessage(msg);
+            }
+        }
+    };
+
+    private void onStateChange(int state) {
+        switch (state) {
+            case BluetoothChatService.STATE_CONNECTED:
+                updateNotification(getString(R.string.title_connected_to,
+                        mConnectedDeviceName));
+                mLinkReadyAt = SystemClock.elapsedRealtime();
+                configureDispenserIfReady();
+                break;
+            case BluetoothChatService.STATE_CONNECTING:
+                updateNotification(getString(R.string.title_connecting));
+                break;
+            case BluetoothChatService.STATE_SUSPENDED:
+                // Same dispenser and configuration once the link is back
+                updateNotification(getString(R.string.title_suspended));
+                break;
+            case BluetoothChatService.STATE_LISTEN:
+            case BluetoothChatService.STATE_NONE:
+                updateNotification(getString(R.string.title_not_connected));
+                mConnectedDeviceName = null;
+                if (mLinkReadyAt != 0) {
+                    // Configure again on the next connection
+                    mLinkReadyAt = 0;
+                    mConfiguredPatientData = null;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Sends the configuration frame once the patient data has arrived, again on every new
+     * connection and whenever the patient data changes. While the dispenser is not connected
+     * the frame is queued, replacing any configuration queued before. Called on the main
+     * thread.
+     */
+    private void configureDispenserIfReady() {
+        String patientData = mPatientDataSource.getPatientData();
+        if (patientData == null) {
+            Log.d(TAG, "Waiting for patient data");
+            return;
+        }
+        if (patientData.equals(mConfiguredPatientData)) {
+            return;
+        }
+        mConfiguredPatientData = patientData;
+
+        String message = Constants.MESSAGE_CONFIGURE + Constants.MESSAGE_DELIMITER + patientData;
+        CommandFuture future = mChatService.send(message);
+        future.addListener(mConfigureListener);
+        if (future.getState() == CommandFuture.STATE_QUEUED) {
+            Log.d(TAG, "Dispenser configuration queued");
+            return;
+        }
+        if (mLinkReadyAt == 0) {
+            // Connected, but the state change has not reached us yet
+            return;
+        }
+
+        // Measure how long the frame lagged behind the later of the two readiness events
+        long now = SystemClock.elapsedRealtime();
+        long readyAt = Math.max(mLinkReadyAt, mPatientDataSource.getPublishedAt());
+        Log.i(TAG, "Dispenser configured {}ms after ready, {}ms after connect", now - readyAt,
+                now - mLinkReadyAt);
+    }
+
+    private final CommandFuture.Listener mConfigureListener = new CommandFuture.Listener() {
+        @Override
+        public void onCommandDone(CommandFuture future) {
+            if (!future.isAcknowledged()
+                    && future.getState() != CommandFuture.STATE_SUPERSEDED) {
+                Log.w(TAG, "Configuration {} not confirmed", future);
+            }
+        }
+    };
+
+    /**
+     * Listens for patient data and configures the dispenser, or queues the configuration.
+     */
+    private final PatientDataSource.Listener mPatientDataListener
+            = new PatientDataSource.Listener() {
+        @Override
+        public void onPatientData(String patientData) {
+            // Data may be published from any thread, the link state lives on the main thread
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    configureDispenserIfReady();
+                }
+            });
+        }
+    };
+
+    private void updateNotification(String text) {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(NOTIFICATION_ID, buildNotification(text));
+    }
+
+    private Notification buildNotification(String text) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.connection_channel_name),
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+        Intent open = new Intent(this, MainActivity.class);
+        Intent stop = new Intent(this, DispenserConnectionService.class);
+        stop.setAction(ACTION_STOP);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.connection_notification_title))
+                .setContentText(text)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, 0))
+                .addAction(0, getString(R.string.disconnect),
+                        PendingIntent.getService(this, 0, stop, 0))
+                .build();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.bluetoothchat;
+
+import java.util.List;
+
+/**
+ * An adherence event reported by a dispenser: a dose was taken, requested too early (abused)
+ * or not taken in time (forgotten).
+ * <p>
+ * On the wire an event is the event name, optionally followed by the dispenser's sequence
+ * number for it, the medication and the dispenser's clock when it happened, separated by
+ * {@link Constants#MESSAGE_DELIMITER}, for example {@code TAKEN_DISPEZZZER█42█Paracetamol}.
+ * <p>
+ * Events the app missed while out of range are backfilled in chunks of
+ * {@code EVENTS_DISPEZZZER█remaining█count} followed by four fields per event: name,
+ * sequence number, age in milliseconds when the chunk was sent, and medication, which may be
+ * empty. Remaining is the number of events the dispenser still has to send after the chunk.
+ */
+public class DispenserEvent {
+
+    public static final int TYPE_TAKEN = 1;
+    public static final int TYPE_ABUSED = 2;
+    public static final int TYPE_FORGOTTEN = 3;
+
+    // Sequence number of events from dispensers that don't send one
+    public static final long NO_SEQUENCE = -1;
+
+    // Name, sequence number, age and medication
+    private static final int CHUNK_EVENT_FIELDS = 4;
+
+    /**
+     * Converts dispenser clock readings to phone times, see {@link ClockSync}.
+     */
+    public interface Clock {
+        /**
+         * Return the phone time of a dispenser clock reading, in milliseconds since the epoch,
+         * or -1 if the dispenser's clock is not known yet.
+         */
+        long toPhoneTime(String dispenser, long dispenserTime);
+
+        /**
+         * Return the phone duration of a duration measured by the dispenser.
+         */
+        long toPhoneDuration(String dispenser, long dispenserDuration);
+    }
+
+    /**
+     * Receives decoded events. Called on the thread that decoded them, which for events from
+     * a dispenser is its connection thread, so implementations must not block.
+     */
+    public interface Listener {
+        void onDispenserEvent(DispenserEvent event);
+    }
+
+    /** One of the TYPE_ constants */
+    public final int type;
+    /** Bluetooth address of the dispenser */
+    public final String dispenser;
+    /**
+     * Time the event happened, in milliseconds since the epoch. That is the time it was received
+     * when the dispenser's clock is not known.
+     */
+    public final long time;
+    /** The dispenser's sequence number for the event, or {@link #NO_SEQUENCE} */
+    public final long sequence;
+    /** The medication the event is about, or null if the dispenser didn't say */
+    public final String medication;
+
+    public DispenserEvent(int type, String dispenser, long time, long sequence,
+            String medication) {
+        this.type = type;
+        this.dispenser = dispenser;
+        this.time = time;
+        this.sequence = sequence;
+        this.medication = medication;
+    }
+
+    /**
+     * Decodes a message received from a dispenser, dating the event by when it was received.
+     *
+     * @see #parse(String, String, long, Clock)
+     */
+    public static DispenserEvent parse(String dispenser, String message, long receivedAt) {
+        return parse(dispenser, message, receivedAt, null);
+    }
+
+    /**
+     * Decodes a message received from a dispenser.
+     *
+     * @param dispenser  Bluetooth address of the dispenser
+     * @param message    The message text
+     * @param receivedAt Time the message was received
+     * @param clock      Dates the event by the dispenser's clock if it sent one, may be null
+     * @return The event, or null if the message is not an event
+     */
+    public static DispenserEvent parse(String dispenser, String message, long receivedAt,
+            Clock clock) {
+        String[] fields = message.split(Constants.MESSAGE_DELIMITER, -1);
+        int type = typeOf(fields[0]);
+        if (type == 0) {
+            return null;
+        }
+        long sequence = NO_SEQUENCE;
+        if (fields.length > 1 && fields[1].length() > 0) {
+            try {
+                sequence = Long.parseLong(fields[1]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        String medication = fields.length > 2 && fields[2].length() > 0 ? fields[2] : null;
+        long time = receivedAt;
+        if (clock != null && fields.length > 3 && fields[3].length() > 0) {
+            try {
+                long phoneTime = clock.toPhoneTime(dispenser, Long.parseLong(fields[3]));
+                if (phoneTime >= 0) {
+                    time = phoneTime;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return new DispenserEvent(type, dispenser, time, sequence, medication);
+    }
+
+    /**
+     * Decodes a chunk of backfilled events.
+     *
+     * @param dispenser  Bluetooth address of the dispenser
+     * @param message    The message text
+     * @param receivedAt Time the message was received
+     * @param clock      Corrects the ages for the dispenser's clock running fast or slow, may be
+     *                   null
+     * @param events     Receives the events of the chunk
+     * @return The number of events the dispenser still has to send, or -1 if the message is
+     * not a chunk or is damaged, in which case no events are added
+     */
+    public static int parseChunk(String dispenser, String message, long receivedAt,
+            Clock clock, List<DispenserEvent> events) {
+        if (!message.startsWith(Constants.MESSAGE_EVENTS + Constants.MESSAGE_DELIMITER)) {
+            return -1;
+        }
+        String[] fields = message.split(Constants.MESSAGE_DELIMITER, -1);
+        int added = events.size();
+        try {
+            int remaining = Integer.parseInt(fields[1]);
+            int count = Integer.parseInt(fields[2]);
+            if (remaining < 0 || fields.length != 3 + count * CHUNK_EVENT_FIELDS) {
+                return -1;
+            }
+            for (int i = 3; i < fields.length; i += CHUNK_EVENT_FIELDS) {
+                int type = typeOf(fields[i]);
+                if (type == 0) {
+                    throw new NumberFormatException("Unknown event " + fields[i]);
+                }
+                String medication = fields[i + 3].length() > 0 ? fields[i + 3] : null;
+                long age = Long.parseLong(fields[i + 2]);
+                if (clock != null) {
+                    age = clock.toPhoneDuration(dispenser, age);
+                }
+                events.add(new DispenserEvent(type, dispenser, receivedAt - age,
+                        Long.parseLong(fields[i + 1]), medication));
+            }
+            return remaining;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            events.subList(added, events.size()).clear();
+            return -1;
+        }
+    }
+
+    /**
+     * Return the TYPE_ constant for an event name, or 0 if it is not an event.
+     */
+    public static int typeOf(String name) {
+        switch (name) {
+            case Constants.MESSAGE_TAKEN:
+                return TYPE_TAKEN;
+            case Constants.MESSAGE_ABUSED:
+                return TYPE_ABUSED;
+            case Constants.MESSAGE_FORGOTTEN:
+                return TYPE_FORGOTTEN;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Return the event name of a TYPE_ constant.
+     */
+    public static String nameOf(int type) {
+        switch (type) {
+            case TYPE_TAKEN:
+                return Constants.MESSAGE_TAKEN;
+            case TYPE_ABUSED:
+                return Constants.MESSAGE_ABUSED;
+            case TYPE_FORGOTTEN:
+                return Constants.MESSAGE_FORGOTTEN;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nameOf(type) + " from " + dispenser + " #" + sequence
+                + (medication != null ? " (" + medication + ")" : "");
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.android.bluetoothchat;
+
+import android.app.AlarmManager;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+
+import com.example.android.common.logger.Log;
+
+import org.json.JSONException;
+
+import java.util.List;
+
+/**
+ * Reminds about doses on the phone, driven by a process-wide {@link DoseScheduler} built from
+ * the schedules in the {@link PatientRegistry}. Only one reminder alarm is ever set, for the
+ * next batch of doses, with a window of {@link DoseScheduler#BATCH_WINDOW_MS} so the system can
+ * also align it with other wakeups. When it fires, every dose of the batch is reminded about in
+ * a single notification and the alarm moves on to the next batch.
+ * <p>
+ * A second alarm goes off {@link LinkIdlePolicy#DEFAULT_WAKE_LEAD_MS} before the batch and
+ * brings a suspended dispenser link back, see {@link DispenserConnectionService#wakeLink}.
+ * <p>
+ * The receiver isn't exported, only the alarm's own PendingIntent reaches it. The alarm is set
+ * again after a reboot by {@link DoseBootReceiver}.
+ */
+public class DoseAlarmReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "DoseAlarmReceiver";
+
+    private static final String ACTION_REMIND =
+            "com.example.android.bluetoothchat.action.REMIND_DOSES";
+    private static final String ACTION_WAKE_LINK =
+            "com.example.android.bluetoothchat.action.WAKE_LINK";
+
+    // The link alarm may go off this much early, it must not go off after the dose
+    private static final long WAKE_LINK_WINDOW_MS = 60 * 1000L;
+    // Long enough for the service to start paging the dispenser
+    private static final long WAKE_LINK_LOCK_MS = 10 * 1000L;
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "dose_reminders";
+
+    private static final String PREFS_NAME = "dose_alarms";
+    private static final String KEY_LAST_REMINDED_AT = "last_reminded_at";
+
+    private static DoseScheduler sScheduler;
+
+    /**
+     * Updates the doses of one patient after its data changed, and moves the alarm if the next
+     * batch changed with it.
+     */
+    public static synchronized void onPatientDataChanged(Context context, String patientId,
+            String patientData) {
+        PatientRegistry registry = new PatientRegistry(context);
+        setSchedule(getScheduler(context), patientId, patientData,
+                registry.getDataStoredAt(patientId), System.currentTimeMillis());
+        scheduleNextAlarm(context);
+    }
+
+    /**
+     * Sets the alarms for the next batch of doses, or cancels them if there are none.
+     */
+    public static synchronized void scheduleNextAlarm(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent remind = alarmIntent(context, ACTION_REMIND);
+        PendingIntent wakeLink = alarmIntent(context, ACTION_WAKE_LINK);
+        long next = getScheduler(context).getNextDoseTime();
+        if (next < 0) {
+            alarmManager.cancel(remind);
+            alarmManager.cancel(wakeLink);
+            return;
+        }
+        setAlarm(alarmManager, next, DoseScheduler.BATCH_WINDOW_MS, remind);
+        setAlarm(alarmManager,
+                next - LinkIdlePolicy.DEFAULT_WAKE_LEAD_MS - WAKE_LINK_WINDOW_MS,
+                WAKE_LINK_WINDOW_MS, wakeLink);
+    }
+
+    private static void setAlarm(AlarmManager alarmManager, long at, long windowMs,
+            PendingIntent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setWindow(AlarmManager.RTC_WAKEUP, at, windowMs, intent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, at, intent);
+        }
+    }
+
+    /**
+     * Return the time of the next dose that hasn't been reminded about, -1 if there is none.
+     */
+    public static synchronized long getNextDoseTime(Context context) {
+        return getScheduler(context).getNextDoseTime();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_REMIND.equals(intent.getAction())) {
+            remindDueDoses(context);
+            scheduleNextAlarm(context);
+        } else if (ACTION_WAKE_LINK.equals(intent.getAction())) {
+            // The CPU may sleep again as soon as this returns, before the service got the intent
+            PowerManager powerManager =
+                    (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG)
+                    .acquire(WAKE_LINK_LOCK_MS);
+            DispenserConnectionService.wakeLink(context);
+        }
+    }
+
+    private static synchronized void remindDueDoses(Context context) {
+        long now = System.currentTimeMillis();
+        List<DoseScheduler.Dose> due =
+                getScheduler(context).pollDue(now + DoseScheduler.BATCH_WINDOW_MS);
+        if (due.isEmpty()) {
+            return;
+        }
+        long lastDose = due.get(due.size() - 1).time;
+        prefs(context).edit().putLong(KEY_LAST_REMINDED_AT, lastDose).apply();
+
+        StringBuilder text = new StringBuilder();
+        for (DoseScheduler.Dose dose : due) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(dose.medication);
+        }
+        Log.i(TAG, "Reminding about " + due.size() + " doses");
+        NotificationManager notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Reminders have to be noticed, unlike the connection's notification
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    context.getString(R.string.dose_reminder_channel_name),
+                    NotificationManager.IMPORTANCE_HIGH));
+        }
+        notificationManager.notify(NOTIFICATION_ID,
+                new NotificationCompat.Builder(context, CHANNEL_ID)
+                        .setSmallIcon(R.drawable.ic_launcher)
+                        .setContentTitle(context.getString(R.string.dose_reminder_title))
+                        .setContentText(text)
+                        .setPriority(NotificationCompat.PRIORITY_HIGH)
+                        .build());
+    }
+
+    /**
+     * Return the scheduler, building it from the registry the first time. Doses up to the last
+     * reminded one are left out, so that an alarm delivered late into a fresh process still
+     * reminds about the doses it was set for.
+     */
+    private static DoseScheduler getScheduler(Context context) {
+        if (sScheduler == null) {
+            SharedPreferences prefs = prefs(context);
+            long notBefore = prefs.getLong(KEY_LAST_REMINDED_AT, 0);
+            if (notBefore == 0) {
+                notBefore = System.currentTimeMillis();
+                prefs.edit().putLong(KEY_LAST_REMINDED_AT, notBefore).apply();
+            }
+
+            sScheduler = new DoseScheduler();
+            PatientRegistry registry = new PatientRegistry(context);
+            for (String patientId : registry.getPatientIds()) {
+                String patientData = registry.getPatientData(patientId);
+                if (patientData != null) {
+                    setSchedule(sScheduler, patientId, patientData,
+                            registry.getDataStoredAt(patientId), notBefore);
+                }
+            }
+            Log.d(TAG, "Scheduled " + sScheduler.size() + " doses");
+        }
+        return sScheduler;
+    }
+
+    private static void setSchedule(DoseScheduler scheduler, String patientId,
+            String patientData, long courseStart, long notBefore) {
+        try {
+            scheduler.setSchedule(patientId, patientData, courseStart, notBefore);
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not read the timetable of patient " + patientId, e);
+            scheduler.removePatient(patientId);
+        }
+    }
+
+    private static PendingIntent alarmIntent(Context context, String action) {
+        Intent intent = new Intent(context, DoseAlarmReceiver.class);
+        intent.setAction(action);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.android.bluetoothchat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Sets the dose alarm again after a reboot, which alarms don't survive. Kept apart from
+ * {@link DoseAlarmReceiver}, which only its own alarms may reach: the boot broadcast needs an
+ * exported receiver, and any app could send an exported receiver a reminder.
+ */
+public class DoseBootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            DoseAlarmReceiver.scheduleNextAlarm(context);
+        }
+    }
+}
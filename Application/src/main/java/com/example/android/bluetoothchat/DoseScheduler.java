@@ -0,0 +1,229 @@
+package com.example.android.bluetoothchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands the medication timetables of any number of patients into individual dose instants
+ * and keeps them ordered in an indexed binary heap. Adding or removing a dose is O(log n), and
+ * replacing a patient's schedule only touches that patient's doses.
+ * <p>
+ * Doses that fall close together can be handled by one alarm: set it for
+ * {@link #getNextDoseTime()} and, when it fires, {@link #pollDue(long)} everything up to
+ * {@link #BATCH_WINDOW_MS} ahead.
+ * <p>
+ * A medication taken {@code timesPerDay} times is spread evenly between {@link #DAY_START_HOUR}
+ * and {@link #DAY_END_HOUR}, for {@code numberOfDays} days starting on the day the course
+ * started. This class is not thread safe.
+ */
+public class DoseScheduler {
+
+    public static final int DAY_START_HOUR = 8;
+    public static final int DAY_END_HOUR = 22;
+
+    /**
+     * Doses within this time of the first due dose share one alarm.
+     */
+    public static final long BATCH_WINDOW_MS = 10 * 60 * 1000L;
+
+    /**
+     * One dose of one medication for one patient.
+     */
+    public static class Dose {
+        public final String patientId;
+        public final String medication;
+        public final long time;
+
+        // Position in the heap, -1 once removed
+        private int mHeapIndex = -1;
+
+        Dose(String patientId, String medication, long time) {
+            this.patientId = patientId;
+            this.medication = medication;
+            this.time = time;
+        }
+    }
+
+    private Dose[] mHeap = new Dose[64];
+    private int mSize = 0;
+    private final Map<String, List<Dose>> mDosesByPatient = new HashMap<String, List<Dose>>();
+
+    /**
+     * Replaces all doses of a patient with the ones in the given data.
+     *
+     * @param patientId   The patient
+     * @param patientData The patient JSON as returned by the server
+     * @param courseStart Time at which the course started, day one is the day containing it
+     * @param notBefore   Doses at or before this time are left out
+     * @throws JSONException If the data has no medication list
+     */
+    public void setSchedule(String patientId, String patientData, long courseStart,
+            long notBefore) throws JSONException {
+        removePatient(patientId);
+
+        JSONArray meds = new JSONObject(patientData).getJSONObject("message")
+                .getJSONArray("meds");
+        List<Dose> doses = new ArrayList<Dose>();
+        Calendar day = Calendar.getInstance();
+        for (int i = 0; i < meds.length(); i++) {
+            JSONObject med = meds.getJSONObject(i);
+            JSONObject timeTable = med.optJSONObject("timeTable");
+            if (timeTable == null) {
+                continue;
+            }
+            String name = med.optString("name", "");
+            int timesPerDay = timeTable.optInt("timesPerDay", 0);
+            int numberOfDays = timeTable.optInt("numberOfDays", 0);
+
+            day.setTimeInMillis(courseStart);
+            for (int d = 0; d < numberOfDays; d++) {
+                for (int n = 0; n < timesPerDay; n++) {
+                    long time = doseTime(day, n, timesPerDay);
+                    if (time > notBefore) {
+                        Dose dose = new Dose(patientId, name, time);
+                        doses.add(dose);
+                        add(dose);
+                    }
+                }
+                day.add(Calendar.DAY_OF_YEAR, 1);
+            }
+        }
+        mDosesByPatient.put(patientId, doses);
+    }
+
+    /**
+     * Removes all pending doses of a patient.
+     */
+    public void removePatient(String patientId) {
+        List<Dose> doses = mDosesByPatient.remove(patientId);
+        if (doses == null) {
+            return;
+        }
+        for (Dose dose : doses) {
+            remove(dose);
+        }
+    }
+
+    /**
+     * Return the number of pending doses.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the time of the earliest pending dose, or -1 if there is none.
+     */
+    public long getNextDoseTime() {
+        return mSize == 0 ? -1 : mHeap[0].time;
+    }
+
+    /**
+     * Removes and returns all doses due at or before the given time, earliest first.
+     */
+    public List<Dose> pollDue(long until) {
+        List<Dose> due = new ArrayList<Dose>();
+        while (mSize > 0 && mHeap[0].time <= until) {
+            // The dose stays in its patient's list, removing it again later is a no-op
+            Dose dose = mHeap[0];
+            remove(dose);
+            due.add(dose);
+        }
+        return due;
+    }
+
+    /**
+     * Return the time of dose {@code n} of {@code timesPerDay} on the given day.
+     */
+    private static long doseTime(Calendar day, int n, int timesPerDay) {
+        int startMinute = DAY_START_HOUR * 60;
+        int minute;
+        if (timesPerDay == 1) {
+            minute = startMinute;
+        } else {
+            minute = startMinute + n * (DAY_END_HOUR - DAY_START_HOUR) * 60 / (timesPerDay - 1);
+        }
+        Calendar time = (Calendar) day.clone();
+        time.set(Calendar.HOUR_OF_DAY, minute / 60);
+        time.set(Calendar.MINUTE, minute % 60);
+        time.set(Calendar.SECOND, 0);
+        time.set(Calendar.MILLISECOND, 0);
+        return time.getTimeInMillis();
+    }
+
+    private void add(Dose dose) {
+        if (mSize == mHeap.length) {
+            Dose[] grown = new Dose[mHeap.length * 2];
+            System.arraycopy(mHeap, 0, grown, 0, mSize);
+            mHeap = grown;
+        }
+        mHeap[mSize] = dose;
+        dose.mHeapIndex = mSize;
+        mSize++;
+        siftUp(dose.mHeapIndex);
+    }
+
+    private void remove(Dose dose) {
+        int index = dose.mHeapIndex;
+        if (index < 0) {
+            return;
+        }
+        dose.mHeapIndex = -1;
+        mSize--;
+        if (index == mSize) {
+            mHeap[mSize] = null;
+            return;
+        }
+        // Move the last dose into the hole and restore the heap in whichever direction it needs
+        Dose last = mHeap[mSize];
+        mHeap[mSize] = null;
+        mHeap[index] = last;
+        last.mHeapIndex = index;
+        siftDown(index);
+        if (last.mHeapIndex == index) {
+            siftUp(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        Dose dose = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (mHeap[parent].time <= dose.time) {
+                break;
+            }
+            mHeap[index] = mHeap[parent];
+            mHeap[index].mHeapIndex = index;
+            index = parent;
+        }
+        mHeap[index] = dose;
+        dose.mHeapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Dose dose = mHeap[index];
+        int half = mSize / 2;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && mHeap[right].time < mHeap[child].time) {
+                child = right;
+            }
+            if (dose.time <= mHeap[child].time) {
+                break;
+            }
+            mHeap[index] = mHeap[child];
+            mHeap[index].mHeapIndex = index;
+            index = child;
+        }
+        mHeap[index] = dose;
+        dose.mHeapIndex = index;
+    }
+}
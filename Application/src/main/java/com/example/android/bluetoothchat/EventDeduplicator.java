@@ -0,0 +1,164 @@
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drops events a dispenser delivers more than once, after reconnects or a repeated backfill.
+ * Each dispenser has a window of the last {@link #WINDOW_SIZE} sequence numbers below the
+ * highest one seen, one bit each, plus a floor below which every event was seen. Checking an
+ * event is O(1) and takes no more memory however long the app runs.
+ * <p>
+ * Events older than the window are only recognized once the floor has passed them. The floor
+ * follows in-order events, which is how a backfill streams history below live events, and
+ * starts at what {@link BackfillReceiver} saved. An older event above the floor that does not
+ * continue it can't be checked and is let through. So are events without a sequence number.
+ * <p>
+ * A live event a whole window below the highest one, and below the floor, means the dispenser
+ * started counting again, after a reset or a new firmware. Its window starts over rather than
+ * dropping everything the dispenser sends until it is back where it was. Backfilled events jump
+ * back like that all the time, so they never start it over.
+ */
+public class EventDeduplicator {
+
+    private static final String TAG = "EventDeduplicator";
+
+    public static final int WINDOW_SIZE = 4096;
+
+    /**
+     * The sequence numbers seen from one dispenser.
+     */
+    private static class Window {
+        // Bit i % WINDOW_SIZE of sequence number i, for those within WINDOW_SIZE of highest
+        final long[] bits = new long[WINDOW_SIZE / 64];
+        long highest = -1;
+        // Every event up to here was seen
+        long floor = -1;
+        // The dispenser started counting again since the app started
+        boolean restarted;
+
+        boolean isSet(long sequence) {
+            int index = (int) (sequence % WINDOW_SIZE);
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void set(long sequence) {
+            int index = (int) (sequence % WINDOW_SIZE);
+            bits[index >>> 6] |= 1L << index;
+        }
+
+        void clear(long sequence) {
+            int index = (int) (sequence % WINDOW_SIZE);
+            bits[index >>> 6] &= ~(1L << index);
+        }
+
+        boolean inWindow(long sequence) {
+            return sequence <= highest && sequence > highest - WINDOW_SIZE;
+        }
+
+        boolean isRestart(long sequence) {
+            return sequence <= floor && highest - sequence >= WINDOW_SIZE;
+        }
+
+        void reset() {
+            Arrays.fill(bits, 0);
+            highest = -1;
+            floor = -1;
+            restarted = true;
+        }
+
+        /**
+         * Records an event, returning false if it was seen before.
+         */
+        boolean accept(long sequence) {
+            if (sequence <= floor) {
+                return false;
+            }
+            if (sequence > highest) {
+                // Slide the window, forgetting the bits that fall out of it
+                long from = Math.max(highest + 1, sequence - WINDOW_SIZE + 1);
+                for (long s = from; s < sequence; s++) {
+                    clear(s);
+                }
+                highest = sequence;
+            } else if (inWindow(sequence)) {
+                if (isSet(sequence)) {
+                    return false;
+                }
+            } else if (sequence == floor + 1) {
+                // A backfill streaming up from the floor
+                floor = sequence;
+                return true;
+            } else {
+                // Too old to tell
+                return true;
+            }
+            set(sequence);
+            // Every set bit is passed once, so this is O(1) amortized
+            while (floor < highest && inWindow(floor + 1) && isSet(floor + 1)) {
+                floor++;
+            }
+            return true;
+        }
+    }
+
+    // Guarded by this
+    private final Map<String, Window> mWindows = new HashMap<String, Window>();
+    private long mDuplicates;
+
+    /**
+     * Records an event.
+     *
+     * @param live Whether the dispenser sent the event as it happened, rather than backfilled
+     * @return Whether the event is new, false if it was seen before
+     */
+    public synchronized boolean accept(DispenserEvent event, boolean live) {
+        if (event.sequence == DispenserEvent.NO_SEQUENCE) {
+            return true;
+        }
+        Window window = getWindow(event.dispenser);
+        if (live && window.isRestart(event.sequence)) {
+            Log.at(Log.WARN, TAG).with("device", event.dispenser)
+                    .with("highest", window.highest).with("sequence", event.sequence)
+                    .log("Dispenser started counting again, forgetting its events");
+            window.reset();
+        }
+        if (window.accept(event.sequence)) {
+            return true;
+        }
+        mDuplicates++;
+        return false;
+    }
+
+    /**
+     * Marks every event of a dispenser up to the given sequence number as seen, for events
+     * known to be in from an earlier run of the app. Ignored once the dispenser started counting
+     * again, the saved position is from before.
+     */
+    public synchronized void advanceFloor(String dispenser, long sequence) {
+        Window window = getWindow(dispenser);
+        if (window.restarted) {
+            return;
+        }
+        window.floor = Math.max(window.floor, sequence);
+    }
+
+    /**
+     * Return the number of duplicates dropped.
+     */
+    public synchronized long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    private Window getWindow(String dispenser) {
+        Window window = mWindows.get(dispenser);
+        if (window == null) {
+            window = new Window();
+            mWindows.put(dispenser, window);
+        }
+        return window;
+    }
+}
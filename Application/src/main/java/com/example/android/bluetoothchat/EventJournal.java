@@ -0,0 +1,584 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only journal of {@link DispenserEvent}s, so that no adherence event is lost
+ * between the dispenser reporting it and the server storing it.
+ * <p>
+ * The journal is a directory of segment files of {@link #SEGMENT_SIZE} bytes, named after the
+ * journal sequence number of their first record. The segment being written is memory mapped, so
+ * an append is a copy into the page cache and never waits for the disk: it is safe to call from
+ * a connection thread. A flusher thread forces the appended records to disk every
+ * {@link #FLUSH_INTERVAL_MS}, which commits all records appended in between with one sync.
+ * Callers that need a record on disk before they go on can wait for it with
+ * {@link #awaitDurable(long)}.
+ * <p>
+ * When a record does not fit in the active segment, a new segment is mapped and the flusher
+ * forces and closes the full one. Segments are never truncated, a record length of zero marks
+ * the end of one. {@link #compact(long, long)} deletes full segments that are no longer needed.
+ * <p>
+ * {@link Listener}s see every appended event in journal order, and can pick up from the
+ * sequence number they have seen up to.
+ * <p>
+ * Every record carries its length and a CRC32 of its contents. When the journal is opened the
+ * last segment is scanned, and a record that was torn by a crash ends the journal.
+ */
+public class EventJournal implements DispenserEvent.Listener {
+
+    private static final String TAG = "EventJournal";
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    public static final long FLUSH_INTERVAL_MS = 50;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Segment header: magic, version, sequence of the first record
+    private static final int MAGIC = 0x505a4a4c;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // Record: length and CRC32 of the body, then the body
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_STRING_BYTES = 254;
+    private static final int MAX_BODY_SIZE = 8 + 8 + 8 + 1 + 2 * (1 + MAX_STRING_BYTES);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * An event together with its position in the journal.
+     */
+    public static class Entry {
+        public final long sequence;
+        public final DispenserEvent event;
+
+        public Entry(long sequence, DispenserEvent event) {
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+
+    /**
+     * Receives events as they are appended. Called in journal order while the journal is
+     * locked, so implementations must be quick and must not append themselves.
+     */
+    public interface Listener {
+        void onEventAppended(Entry entry);
+    }
+
+    private static EventJournal sInstance;
+
+    private final File mDirectory;
+
+    // Segment files by the sequence of their first record, including the active one
+    private final TreeMap<Long, File> mSegments = new TreeMap<Long, File>();
+
+    private RandomAccessFile mActiveFile;
+    private MappedByteBuffer mActiveBuffer;
+    private long mNextSequence;
+
+    // Sequence of the last record that is known to be on disk
+    private long mDurableSequence;
+
+    // Full segments waiting for the flusher to force and close them
+    private final List<RandomAccessFile> mSealing = new ArrayList<RandomAccessFile>();
+    private final List<MappedByteBuffer> mSealingBuffers = new ArrayList<MappedByteBuffer>();
+
+    private final ByteBuffer mBody = ByteBuffer.allocate(MAX_BODY_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    private final Thread mFlusher;
+    private boolean mClosed;
+
+    private long mFlushCount;
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Return the journal of this app, opening it the first time.
+     */
+    public static synchronized EventJournal getInstance(Context context) {
+        if (sInstance == null) {
+            try {
+                sInstance = new EventJournal(new File(context.getFilesDir(), "journal"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open the event journal", e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens the journal in the given directory, recovering what was appended before.
+     */
+    public EventJournal(File directory) throws IOException {
+        mDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        recover();
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, TAG);
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    @Override
+    public void onDispenserEvent(DispenserEvent event) {
+        try {
+            append(event);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not journal " + event, e);
+        }
+    }
+
+    /**
+     * Appends an event. The event is on disk after at most {@link #FLUSH_INTERVAL_MS}, or once
+     * {@link #awaitDurable(long)} returns for the returned sequence.
+     *
+     * @return The journal sequence number of the event
+     */
+    public synchronized long append(DispenserEvent event) throws IOException {
+        if (mClosed) {
+            throw new IOException("Journal is closed");
+        }
+        mBody.clear();
+        long sequence = mNextSequence;
+        mBody.putLong(sequence);
+        mBody.putLong(event.time);
+        mBody.putLong(event.sequence);
+        mBody.put((byte) event.type);
+        putString(mBody, event.dispenser);
+        putString(mBody, event.medication);
+        mBody.flip();
+
+        int length = mBody.remaining();
+        if (mActiveBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+            roll();
+        }
+        mCrc.reset();
+        mCrc.update(mBody.array(), 0, length);
+        mActiveBuffer.putInt(length);
+        mActiveBuffer.putInt((int) mCrc.getValue());
+        mActiveBuffer.put(mBody);
+        mNextSequence++;
+        notifyAll();
+
+        if (!mListeners.isEmpty()) {
+            Entry entry = new Entry(sequence, event);
+            for (Listener listener : mListeners) {
+                listener.onEventAppended(entry);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Adds a listener, first handing it the events it has not seen yet.
+     *
+     * @param fromSequence The first sequence number the listener has not seen
+     */
+    public synchronized void addListener(Listener listener, long fromSequence)
+            throws IOException {
+        while (fromSequence < mNextSequence) {
+            List<Entry> entries = read(fromSequence, 1024);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (Entry entry : entries) {
+                listener.onEventAppended(entry);
+            }
+            fromSequence = entries.get(entries.size() - 1).sequence + 1;
+        }
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Blocks until the event with the given sequence number has been forced to disk.
+     */
+    public synchronized void awaitDurable(long sequence) throws InterruptedException {
+        while (mDurableSequence < sequence && !mClosed) {
+            wait();
+        }
+    }
+
+    /**
+     * Return the sequence number the next appended event will get.
+     */
+    public synchronized long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Return how many times the journal has been forced to disk.
+     */
+    public synchronized long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Return the number of segment files, including the one being written.
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Reads events in journal order.
+     *
+     * @param fromSequence The first sequence number to return
+     * @param maxEntries   The maximum number of events to return
+     * @return The events, empty if there are none from that sequence number on
+     */
+    public List<Entry> read(long fromSequence, int maxEntries) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        List<Map.Entry<Long, File>> segments;
+        ByteBuffer active;
+        synchronized (this) {
+            Long first = mSegments.floorKey(fromSequence);
+            if (first == null) {
+                first = mSegments.firstKey();
+            }
+            segments = new ArrayList<Map.Entry<Long, File>>(
+                    mSegments.tailMap(first, true).entrySet());
+            active = mActiveBuffer.duplicate();
+            active.flip();
+            active.position(HEADER_SIZE);
+        }
+
+        for (int i = 0; i < segments.size() && entries.size() < maxEntries; i++) {
+            ByteBuffer buffer;
+            if (i == segments.size() - 1) {
+                buffer = active;
+            } else {
+                buffer = mapForReading(segments.get(i).getValue());
+            }
+            if (buffer != null) {
+                readRecords(buffer, fromSequence, maxEntries, entries);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes full segments whose records all precede {@code beforeSequence} and which were
+     * last written before {@code olderThan}.
+     * {@code beforeSequence} should be no later than what every listener that replays the
+     * journal on start up has saved.
+     *
+     * @return The number of segments deleted
+     */
+    public synchronized int compact(long beforeSequence, long olderThan) {
+        int deleted = 0;
+        Long[] firsts = mSegments.keySet().toArray(new Long[mSegments.size()]);
+        for (int i = 0; i < firsts.length - 1; i++) {
+            // The last record of a segment precedes the first one of the next
+            File file = mSegments.get(firsts[i]);
+            if (firsts[i + 1] > beforeSequence || file.lastModified() >= olderThan) {
+                break;
+            }
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+                break;
+            }
+            mSegments.remove(firsts[i]);
+            deleted++;
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "Compacted " + deleted + " segments");
+        }
+        return deleted;
+    }
+
+    /**
+     * Forces everything appended so far to disk and stops the flusher. Appending afterwards
+     * fails.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (int i = 0; i < mSealing.size(); i++) {
+                seal(mSealing.get(i), mSealingBuffers.get(i));
+            }
+            mSealing.clear();
+            mSealingBuffers.clear();
+            mActiveBuffer.force();
+            mActiveFile.close();
+            mDurableSequence = mNextSequence - 1;
+        }
+    }
+
+    /**
+     * Forces appended records to disk once per interval, and closes full segments.
+     */
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                while (mDurableSequence == mNextSequence - 1 && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+            }
+
+            // Let appends accumulate so that one sync commits all of them
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            MappedByteBuffer buffer;
+            List<RandomAccessFile> sealing;
+            List<MappedByteBuffer> sealingBuffers;
+            long sequence;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                buffer = mActiveBuffer;
+                sequence = mNextSequence - 1;
+                sealing = new ArrayList<RandomAccessFile>(mSealing);
+                sealingBuffers = new ArrayList<MappedByteBuffer>(mSealingBuffers);
+                mSealing.clear();
+                mSealingBuffers.clear();
+            }
+
+            for (int i = 0; i < sealing.size(); i++) {
+                seal(sealing.get(i), sealingBuffers.get(i));
+            }
+            buffer.force();
+
+            synchronized (this) {
+                mDurableSequence = Math.max(mDurableSequence, sequence);
+                mFlushCount++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces a full segment and closes it.
+     */
+    private static void seal(RandomAccessFile file, MappedByteBuffer buffer) {
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close full segment", e);
+        }
+    }
+
+    /**
+     * Hands the active segment to the flusher and maps a new one.
+     */
+    private void roll() throws IOException {
+        mSealing.add(mActiveFile);
+        mSealingBuffers.add(mActiveBuffer);
+        openSegment(mNextSequence, true);
+    }
+
+    private void openSegment(long firstSequence, boolean create) throws IOException {
+        File file = new File(mDirectory, String.format("%s%020d%s", SEGMENT_PREFIX,
+                firstSequence, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < SEGMENT_SIZE) {
+            raf.setLength(SEGMENT_SIZE);
+        }
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                SEGMENT_SIZE);
+        if (create) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(firstSequence);
+        } else {
+            buffer.position(HEADER_SIZE);
+        }
+        mActiveFile = raf;
+        mActiveBuffer = buffer;
+        mSegments.put(firstSequence, file);
+    }
+
+    /**
+     * Finds the segments and the end of the journal, and opens the segment to append to.
+     */
+    private void recover() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    mSegments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            }
+        }
+        if (mSegments.isEmpty()) {
+            mNextSequence = 1;
+            mDurableSequence = 0;
+            openSegment(mNextSequence, true);
+            return;
+        }
+
+        Map.Entry<Long, File> last = mSegments.lastEntry();
+        ByteBuffer buffer = mapForReading(last.getValue());
+        if (buffer == null) {
+            // Header never made it to disk, start the segment over
+            mSegments.remove(last.getKey());
+            mNextSequence = last.getKey();
+            mDurableSequence = mNextSequence - 1;
+            openSegment(mNextSequence, true);
+            return;
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        readRecords(buffer, 0, Integer.MAX_VALUE, entries);
+        mNextSequence = entries.isEmpty() ? last.getKey()
+                : entries.get(entries.size() - 1).sequence + 1;
+        mDurableSequence = mNextSequence - 1;
+
+        openSegment(last.getKey(), false);
+        int end = buffer.position();
+        if (end + 4 <= SEGMENT_SIZE && mActiveBuffer.getInt(end) != 0) {
+            // Clear whatever a crash left behind the last good record
+            mActiveBuffer.position(end);
+            while (mActiveBuffer.hasRemaining()) {
+                mActiveBuffer.put((byte) 0);
+            }
+        }
+        mActiveBuffer.position(end);
+        Log.d(TAG, "Recovered " + mSegments.size() + " segments, next sequence " + mNextSequence);
+    }
+
+    /**
+     * Return a read-only mapping of a segment, positioned after its header, or null if the
+     * header is not valid.
+     */
+    private static ByteBuffer mapForReading(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            buffer.getLong();
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Decodes records from the buffer's position up to the first one that is missing or torn,
+     * leaving the buffer positioned after the last good record.
+     */
+    private static void readRecords(ByteBuffer buffer, long fromSequence, int maxEntries,
+            List<Entry> entries) {
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[MAX_BODY_SIZE];
+        while (entries.size() < maxEntries && buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_BODY_SIZE || length > buffer.remaining()) {
+                buffer.position(start);
+                return;
+            }
+            buffer.get(body, 0, length);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                buffer.position(start);
+                return;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            try {
+                long sequence = record.getLong();
+                if (sequence < fromSequence) {
+                    continue;
+                }
+                long time = record.getLong();
+                long deviceSequence = record.getLong();
+                int type = record.get();
+                String dispenser = getString(record);
+                String medication = getString(record);
+                entries.add(new Entry(sequence, new DispenserEvent(type, dispenser, time,
+                        deviceSequence, medication)));
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                return;
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        buffer.put((byte) (length + 1));
+        buffer.put(bytes, 0, length);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = (buffer.get() & 0xff) - 1;
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads the events in the {@link EventJournal} to the backend in batches. The journal is the
+ * outbox: the sequence number of the last uploaded event is kept in a small state file, so
+ * uploading picks up where it left off after the process is restarted.
+ * <p>
+ * Events are held back for a linger time so that one request, and one radio wakeup, carries
+ * many of them. A batch is sent early once it is full. Both adapt to the event rate: when the
+ * backlog outgrows a batch the batch size doubles, when a batch is sent nearly empty the linger
+ * time doubles, and when batches fill up before the linger time is over it halves again.
+ * <p>
+ * The range of the batch being sent is saved before the request, and its idempotency key is
+ * derived from it, so a retry after a failure or a restart sends the same events with the same
+ * key and the server applies them only once. Failed requests are retried with exponential
+ * backoff.
+ */
+public class EventOutbox implements EventJournal.Listener {
+
+    private static final String TAG = "EventOutbox";
+
+    private static final String PATH_EVENTS = "/api/events";
+
+    private static final String STATE_FILE_NAME = "event_outbox";
+    private static final int STATE_VERSION = 1;
+
+    private static final int MIN_BATCH_SIZE = 32;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final long MIN_LINGER_MS = 1000;
+    private static final long MAX_LINGER_MS = 15 * 60 * 1000L;
+    private static final long INITIAL_LINGER_MS = 10 * 1000L;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 10 * 60 * 1000L;
+
+    private static EventOutbox sInstance;
+
+    private final EventJournal mJournal;
+    private final MedsApiClient mClient;
+    private final File mStateFile;
+    private final ScheduledExecutorService mExecutor;
+    private final Random mRandom = new Random();
+
+    // Persisted state, only touched on the executor
+    private String mInstallId;
+    private long mUploadedSequence;
+    private long mInFlightFirst;
+    private long mInFlightLast;
+
+    // Adaptive parameters, only touched on the executor
+    private int mBatchSize = MIN_BATCH_SIZE;
+    private long mLingerMs = INITIAL_LINGER_MS;
+    private long mBackoffMs;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    // Last appended sequence, written by the appending thread
+    private final AtomicLong mAppendedSequence = new AtomicLong();
+    private final AtomicBoolean mAppendPending = new AtomicBoolean();
+
+    private final AtomicLong mBatchesSent = new AtomicLong();
+    private final AtomicLong mEventsSent = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private volatile long mUploadedSnapshot;
+
+    private final Runnable mOnAppended = new Runnable() {
+        @Override
+        public void run() {
+            mAppendPending.set(false);
+            onAppended();
+        }
+    };
+
+    /**
+     * Return the outbox of this app, which starts uploading any backlog right away.
+     */
+    public static synchronized EventOutbox getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EventOutbox(EventJournal.getInstance(context),
+                    MedsApiClient.getInstance(context),
+                    new File(context.getFilesDir(), STATE_FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates an outbox uploading the events of a journal.
+     *
+     * @param journal   The journal to upload
+     * @param client    The client to upload with
+     * @param stateFile Where to keep the upload position
+     */
+    public EventOutbox(EventJournal journal, MedsApiClient client, File stateFile) {
+        mJournal = journal;
+        mClient = client;
+        mStateFile = stateFile;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadState();
+                mUploadedSnapshot = mUploadedSequence;
+                try {
+                    mJournal.addListener(EventOutbox.this, mJournal.getNextSequence());
+                } catch (IOException e) {
+                    // Nothing is replayed from the next sequence on
+                    Log.e(TAG, "Could not listen to the journal", e);
+                }
+                mAppendedSequence.compareAndSet(0, mJournal.getNextSequence() - 1);
+                onAppended();
+            }
+        });
+    }
+
+    @Override
+    public void onEventAppended(EventJournal.Entry entry) {
+        mAppendedSequence.set(entry.sequence);
+        if (mAppendPending.compareAndSet(false, true)) {
+            mExecutor.execute(mOnAppended);
+        }
+    }
+
+    /**
+     * Uploads whatever is waiting now instead of after the linger time, for example while the
+     * radio is up anyway.
+     */
+    public void flush() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mBackoffMs == 0) {
+                    flushNow(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the sequence number of the last event the server acknowledged.
+     */
+    public long getUploadedSequence() {
+        return mUploadedSnapshot;
+    }
+
+    public long getBatchesSent() {
+        return mBatchesSent.get();
+    }
+
+    public long getEventsSent() {
+        return mEventsSent.get();
+    }
+
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    /**
+     * Decides whether to send now or later after events were appended.
+     */
+    private void onAppended() {
+        if (mBackoffMs > 0 && mScheduledFlush != null) {
+            // Waiting to retry, the retry picks up new events too
+            return;
+        }
+        long backlog = mAppendedSequence.get() - mUploadedSequence;
+        if (backlog <= 0 && mInFlightLast == 0) {
+            return;
+        }
+        if (backlog >= mBatchSize || mInFlightLast != 0) {
+            flushNow(false);
+        } else if (mScheduledFlush == null) {
+            schedule(mLingerMs, true);
+        }
+    }
+
+    private void schedule(long delayMs, final boolean lingered) {
+        mScheduledFlush = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mScheduledFlush = null;
+                flushNow(lingered);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends batches until the backlog is smaller than a batch, or a request fails.
+     *
+     * @param lingered Whether the flush happens because the linger time is over
+     */
+    private void flushNow(boolean lingered) {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        while (true) {
+            List<EventJournal.Entry> entries;
+            try {
+                entries = nextBatch();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read the journal", e);
+                retryLater();
+                return;
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            String key = mInstallId + "-" + mInFlightFirst + "-" + mInFlightLast;
+            try {
+                mClient.post(PATH_EVENTS, toJson(entries), key);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not upload " + entries.size() + " events", e);
+                mFailures.incrementAndGet();
+                retryLater();
+                return;
+            }
+            mUploadedSequence = mInFlightLast;
+            mInFlightFirst = 0;
+            mInFlightLast = 0;
+            saveState();
+            mUploadedSnapshot = mUploadedSequence;
+            mBackoffMs = 0;
+            mBatchesSent.incrementAndGet();
+            mEventsSent.addAndGet(entries.size());
+
+            long backlog = mAppendedSequence.get() - mUploadedSequence;
+            adapt(entries.size(), backlog, lingered);
+            if (backlog <= 0) {
+                return;
+            }
+            if (backlog < mBatchSize) {
+                schedule(mLingerMs, true);
+                return;
+            }
+            lingered = false;
+        }
+    }
+
+    /**
+     * Return the batch in flight, or starts a new one from the events after the uploaded ones.
+     */
+    private List<EventJournal.Entry> nextBatch() throws IOException {
+        if (mInFlightLast != 0) {
+            List<EventJournal.Entry> entries = mJournal.read(mInFlightFirst,
+                    (int) (mInFlightLast - mInFlightFirst + 1));
+            if (!entries.isEmpty() && entries.get(0).sequence == mInFlightFirst) {
+                return entries;
+            }
+            Log.w(TAG, "Events " + mInFlightFirst + "-" + mInFlightLast + " left the journal");
+            mUploadedSequence = mInFlightLast;
+            mInFlightFirst = 0;
+            mInFlightLast = 0;
+        }
+        List<EventJournal.Entry> entries = mJournal.read(mUploadedSequence + 1, mBatchSize);
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        mInFlightFirst = entries.get(0).sequence;
+        mInFlightLast = entries.get(entries.size() - 1).sequence;
+        if (mInFlightFirst != mUploadedSequence + 1) {
+            Log.w(TAG, "Events " + (mUploadedSequence + 1) + "-" + (mInFlightFirst - 1)
+                    + " left the journal before they were uploaded");
+        }
+        // The key has to be the same if this batch is sent again after a restart
+        saveState();
+        return entries;
+    }
+
+    private void adapt(int sent, long backlog, boolean lingered) {
+        if (backlog >= mBatchSize && sent == mBatchSize) {
+            // Falling behind, move more events per request
+            mBatchSize = Math.min(MAX_BATCH_SIZE, mBatchSize * 2);
+        } else if (backlog == 0 && sent < mBatchSize / 4) {
+            mBatchSize = Math.max(MIN_BATCH_SIZE, mBatchSize / 2);
+        }
+        if (lingered && sent < mBatchSize / 4) {
+            // Events are sparse, wait longer so each wakeup carries more of them
+            mLingerMs = Math.min(MAX_LINGER_MS, mLingerMs * 2);
+        } else if (!lingered) {
+            mLingerMs = Math.max(MIN_LINGER_MS, mLingerMs / 2);
+        }
+    }
+
+    private void retryLater() {
+        mBackoffMs = mBackoffMs == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, mBackoffMs * 2);
+        // Jitter, so that phones that lost the server at the same time don't retry together
+        long delay = mBackoffMs / 2 + (long) (mRandom.nextDouble() * mBackoffMs / 2);
+        schedule(delay, false);
+    }
+
+    private static String toJson(List<EventJournal.Entry> entries) {
+        StringBuilder json = new StringBuilder(entries.size() * 128);
+        json.append("{\"events\":[");
+        for (int i = 0; i < entries.size(); i++) {
+            EventJournal.Entry entry = entries.get(i);
+            DispenserEvent event = entry.event;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"sequence\":").append(entry.sequence)
+                    .append(",\"type\":\"").append(DispenserEvent.nameOf(event.type))
+                    .append("\",\"dispenser\":");
+            appendString(json, event.dispenser);
+            json.append(",\"time\":").append(event.time);
+            if (event.sequence != DispenserEvent.NO_SEQUENCE) {
+                json.append(",\"dispenserSequence\":").append(event.sequence);
+            }
+            if (event.medication != null) {
+                json.append(",\"medication\":");
+                appendString(json, event.medication);
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private void loadState() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mStateFile)));
+            try {
+                if (in.readInt() == STATE_VERSION) {
+                    mInstallId = in.readUTF();
+                    mUploadedSequence = in.readLong();
+                    mInFlightFirst = in.readLong();
+                    mInFlightLast = in.readLong();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // First start, nothing uploaded yet
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the outbox state, uploading the whole journal", e);
+        }
+        if (mInstallId == null) {
+            mInstallId = UUID.randomUUID().toString();
+            mUploadedSequence = 0;
+            mInFlightFirst = 0;
+            mInFlightLast = 0;
+        }
+    }
+
+    private void saveState() {
+        File tmp = new File(mStateFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(STATE_VERSION);
+                out.writeUTF(mInstallId);
+                out.writeLong(mUploadedSequence);
+                out.writeLong(mInFlightFirst);
+                out.writeLong(mInFlightLast);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mStateFile)) {
+                throw new IOException("Could not replace " + mStateFile);
+            }
+        } catch (IOException e) {
+            // At worst some events are uploaded again after a restart
+            Log.w(TAG, "Could not save the outbox state", e);
+        }
+    }
+}
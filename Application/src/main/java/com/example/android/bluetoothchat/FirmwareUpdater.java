@@ -0,0 +1,582 @@
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a firmware image to a dispenser. The image is memory mapped and read a chunk at a
+ * time, so it is never held in memory as a whole. Several chunks are kept on their way, each
+ * with the CRC32 of its bytes, which the dispenser checks before it takes the chunk.
+ * <p>
+ * The app opens with {@code FW_BEGIN_DISPEZZZER█<size>█<crc>}, the size and CRC32 of the whole
+ * image. The dispenser answers {@code FW_ACK_DISPEZZZER█<offset>}: how much of that image it
+ * already has, 0 for a new one. Chunks follow as
+ * {@code FW_CHUNK_DISPEZZZER█<offset>█<crc>█<base64 bytes>}, and the dispenser answers every
+ * chunk it takes with {@code FW_ACK_DISPEZZZER} and its new offset. A chunk whose CRC doesn't
+ * match is answered with {@code FW_NAK_DISPEZZZER█<offset>}, and sent again along with those
+ * after it, which the dispenser dropped for not being at its offset. When the link is lost or
+ * the acknowledgements stop, the transfer begins again from where the dispenser left off.
+ * <p>
+ * Once the dispenser has all of the image, {@code FW_COMMIT_DISPEZZZER█<size>█<crc>} asks it
+ * to check the CRC of the whole image and install it. It answers
+ * {@code FW_RESULT_DISPEZZZER█OK}, or the reason it didn't.
+ */
+public class FirmwareUpdater {
+
+    private static final String TAG = "FirmwareUpdater";
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    // Base64 makes a chunk a third larger, the frame has to stay well within what decoders take
+    public static final int MAX_CHUNK_SIZE = 16 * 1024;
+    // Chunks on their way before one has to be acknowledged
+    public static final int DEFAULT_WINDOW = 4;
+
+    // The dispenser checks the whole image and writes it to flash before it answers
+    private static final long COMMIT_TIMEOUT_MS = 30 * 1000L;
+    // Times the transfer may begin again without the dispenser taking anything new
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final String RESULT_OK = "OK";
+    private static final String CANCELLED = "Cancelled";
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // How stream() ended
+    private static final int STREAM_DONE = 0;
+    private static final int STREAM_STALLED = 1;
+    private static final int STREAM_LINK_LOST = 2;
+
+    /**
+     * Writes to the dispenser being updated.
+     */
+    public interface Transport {
+        /**
+         * Writes a command to the dispenser right away.
+         *
+         * @return Whether the dispenser is connected and the command was written
+         */
+        boolean sendNow(String command);
+    }
+
+    /**
+     * Learns how the update goes, called on the updater's thread.
+     */
+    public interface Listener {
+        /**
+         * The dispenser has the image up to the given offset.
+         */
+        void onProgress(long offset, long size);
+
+        /**
+         * The update is over.
+         *
+         * @param installed Whether the dispenser verified and installed the image
+         * @param detail    What went wrong if it wasn't installed
+         */
+        void onFinished(boolean installed, String detail);
+    }
+
+    private final MappedByteBuffer mImage;
+    private final int mSize;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final Thread mThread;
+    // How long to wait for the answers to FW_BEGIN and chunks, and to FW_COMMIT
+    private long mReplyTimeoutMs = CommandTracker.DEFAULT_TIMEOUT_MS;
+    private long mCommitTimeoutMs = COMMIT_TIMEOUT_MS;
+
+    // Only used on the updater's thread, the same ones for every chunk
+    private final byte[] mChunk;
+    private final CRC32 mCrc = new CRC32();
+    private final StringBuilder mFrame;
+    // The offset of the next chunk to send
+    private int mSent;
+    // Computed on the updater's thread before the transfer begins
+    private long mImageCrc;
+
+    // Guarded by this
+    // Counts the connections, so that a failed write can tell whether a new one came up since
+    private int mConnection;
+    private boolean mLinkUp = true;
+    // The dispenser's offset, -1 until it answered the last FW_BEGIN
+    private long mAcked = -1;
+    // The offset the dispenser asked to be sent again, -1 for none
+    private long mNakAt = -1;
+    private String mResult;
+    private boolean mCancelled;
+    private boolean mFinished;
+    private long mBytesSent;
+    private int mNaks;
+    private int mResumes;
+    private long mStartedAt;
+    private long mFinishedAt;
+
+    /**
+     * @param image     The firmware image
+     * @param chunkSize The image bytes sent in a chunk, at most {@link #MAX_CHUNK_SIZE}
+     * @param window    The chunks on their way before one has to be acknowledged
+     * @throws IOException If the image can't be read
+     */
+    public FirmwareUpdater(File image, int chunkSize, int window, Transport transport,
+            Listener listener) throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize);
+        }
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Unusable firmware image of " + size + " bytes");
+            }
+            // The mapping stays valid once the file is closed
+            mImage = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mSize = (int) size;
+        } finally {
+            file.close();
+        }
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mTransport = transport;
+        mListener = listener;
+        mChunk = new byte[chunkSize];
+        mFrame = new StringBuilder(Constants.MESSAGE_FW_CHUNK.length() + 64
+                + (chunkSize + 2) / 3 * 4);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * Shortens the timeouts, for tests. Must be called before {@link #start()}.
+     */
+    void setTimeouts(long replyTimeoutMs, long commitTimeoutMs) {
+        mReplyTimeoutMs = replyTimeoutMs;
+        mCommitTimeoutMs = commitTimeoutMs;
+    }
+
+    /**
+     * Starts the update. The CRC of the image is computed on the updater's thread. If the dispenser isn't connected it waits for
+     * {@link #onConnected()}.
+     */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the update. The dispenser keeps what it has, a later update of the same image
+     * carries on from there.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Notes that a link to the dispenser came up, the transfer begins again from where the
+     * dispenser left off.
+     */
+    public synchronized void onConnected() {
+        mConnection++;
+        mLinkUp = true;
+        notifyAll();
+    }
+
+    /**
+     * Takes a message read from the dispenser if it is an answer to the update.
+     *
+     * @return Whether the message was an answer
+     */
+    public boolean onReply(String message) {
+        if (!message.startsWith("FW_")) {
+            return false;
+        }
+        String[] fields = message.split(Constants.MESSAGE_DELIMITER);
+        if (fields.length < 2) {
+            return false;
+        }
+        String type = fields[0];
+        try {
+            synchronized (this) {
+                if (Constants.MESSAGE_FW_ACK.equals(type)) {
+                    long offset = Long.parseLong(fields[1]);
+                    // The answer to FW_BEGIN is taken as it is, the dispenser may have lost
+                    // what it had
+                    mAcked = mAcked < 0 ? offset : Math.max(mAcked, offset);
+                } else if (Constants.MESSAGE_FW_NAK.equals(type)) {
+                    long offset = Long.parseLong(fields[1]);
+                    mNaks++;
+                    if (offset >= mAcked) {
+                        mNakAt = offset;
+                    }
+                } else if (Constants.MESSAGE_FW_RESULT.equals(type)) {
+                    mResult = fields[1];
+                } else {
+                    return false;
+                }
+                notifyAll();
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Malformed firmware reply {}", message);
+        }
+        return true;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the CRC32 of the whole image, 0 until the updater computed it.
+     */
+    public synchronized long getImageCrc() {
+        return mImageCrc;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Return the bytes of the image the dispenser has, as far as is known.
+     */
+    public synchronized long getAcknowledgedOffset() {
+        return Math.max(mAcked, 0);
+    }
+
+    /**
+     * Return the image bytes sent, including those sent again.
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized int getNakCount() {
+        return mNaks;
+    }
+
+    /**
+     * Return how often the transfer began again after the link was lost or stalled.
+     */
+    public synchronized int getResumeCount() {
+        return mResumes;
+    }
+
+    /**
+     * Return how long the update took so far, or took.
+     */
+    public synchronized long getElapsedMs() {
+        if (mStartedAt == 0) {
+            return 0;
+        }
+        return ((mFinished ? mFinishedAt : System.nanoTime()) - mStartedAt) / 1000000;
+    }
+
+    private void update() {
+        synchronized (this) {
+            mStartedAt = System.nanoTime();
+        }
+        // Reads all of the image, too slow for the thread that started the update
+        long crc = crcOfImage();
+        synchronized (this) {
+            mImageCrc = crc;
+        }
+        String result;
+        try {
+            result = transfer();
+        } catch (InterruptedException e) {
+            result = CANCELLED;
+        }
+        boolean installed = RESULT_OK.equals(result);
+        synchronized (this) {
+            mFinished = true;
+            mFinishedAt = System.nanoTime();
+        }
+        Log.at(installed ? Log.INFO : Log.WARN, TAG).with("bytes", mSize)
+                .with("crc", mImageCrc).with("ms", getElapsedMs())
+                .with("sent", getBytesSent()).with("naks", getNakCount())
+                .with("resumes", getResumeCount())
+                .log(installed ? "Firmware installed" : "Firmware update failed: " + result);
+        mListener.onFinished(installed, installed ? null : result);
+    }
+
+    /**
+     * Return {@link #RESULT_OK} once the dispenser installed the image, otherwise what went
+     * wrong.
+     */
+    private String transfer() throws InterruptedException {
+        int attempts = 0;
+        boolean first = true;
+        while (true) {
+            int connection;
+            synchronized (this) {
+                while (!mLinkUp && !mCancelled) {
+                    wait();
+                }
+                if (mCancelled) {
+                    return CANCELLED;
+                }
+                connection = mConnection;
+            }
+            if (attempts >= MAX_ATTEMPTS) {
+                return "No progress after " + attempts + " attempts";
+            }
+
+            // Where the dispenser stands, on the first connection and whenever the link is back
+            synchronized (this) {
+                mAcked = -1;
+                mNakAt = -1;
+                mResult = null;
+            }
+            if (!send(connection, beginFrame())) {
+                continue;
+            }
+            long offset = await(connection, mReplyTimeoutMs, false);
+            if (offset < 0) {
+                attempts++;
+                continue;
+            }
+            if (!first) {
+                synchronized (this) {
+                    mResumes++;
+                }
+                Log.at(Log.INFO, TAG).with("offset", offset).with("bytes", mSize)
+                        .log("Resuming firmware transfer");
+            }
+            first = false;
+            mSent = (int) offset;
+
+            int streamed = stream(connection);
+            if (getAcknowledgedOffset() > offset) {
+                attempts = 0;
+            }
+            if (streamed == STREAM_STALLED) {
+                attempts++;
+                continue;
+            } else if (streamed == STREAM_LINK_LOST) {
+                continue;
+            }
+
+            if (!send(connection, commitFrame())) {
+                continue;
+            }
+            if (await(connection, mCommitTimeoutMs, true) < 0) {
+                attempts++;
+                continue;
+            }
+            synchronized (this) {
+                return RESULT_OK.equals(mResult) ? RESULT_OK
+                        : "Dispenser rejected the image: " + mResult;
+            }
+        }
+    }
+
+    /**
+     * Sends chunks while the window has room, until the dispenser has the whole image.
+     */
+    private int stream(int connection) throws InterruptedException {
+        long acked = -1;
+        long progressAt = System.nanoTime();
+        while (true) {
+            long reached = getAcknowledgedOffset();
+            if (reached != acked) {
+                acked = reached;
+                progressAt = System.nanoTime();
+                mListener.onProgress(reached, mSize);
+            }
+
+            int offset;
+            synchronized (this) {
+                if (mCancelled) {
+                    throw new InterruptedException();
+                }
+                if (mConnection != connection) {
+                    return STREAM_LINK_LOST;
+                }
+                if (acked == mSize) {
+                    return STREAM_DONE;
+                }
+                if (mNakAt >= 0) {
+                    mSent = (int) mNakAt;
+                    mNakAt = -1;
+                }
+                mSent = (int) Math.max(mSent, acked);
+                if (mSent >= mSize || mSent - acked >= (long) mWindow * mChunkSize) {
+                    if (mAcked != acked) {
+                        // Acknowledged since, report it first
+                        continue;
+                    }
+                    long waitMs = mReplyTimeoutMs - (System.nanoTime() - progressAt) / 1000000;
+                    if (waitMs <= 0) {
+                        Log.at(Log.WARN, TAG).with("offset", acked).with("sent", mSent)
+                                .log("Firmware transfer stalled");
+                        return STREAM_STALLED;
+                    }
+                    wait(waitMs);
+                    continue;
+                }
+                offset = mSent;
+            }
+
+            int length = Math.min(mChunkSize, mSize - offset);
+            if (!send(connection, chunkFrame(offset, length))) {
+                return STREAM_LINK_LOST;
+            }
+            synchronized (this) {
+                mBytesSent += length;
+            }
+            mSent = offset + length;
+        }
+    }
+
+    /**
+     * Waits for the answer to FW_BEGIN or FW_COMMIT.
+     *
+     * @return The dispenser's offset, or -1 if it didn't answer in time or the link was lost
+     */
+    private synchronized long await(int connection, long timeoutMs, boolean result)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while (result ? mResult == null : mAcked < 0) {
+            if (mCancelled) {
+                throw new InterruptedException();
+            }
+            long waitMs = (deadline - System.nanoTime()) / 1000000;
+            if (mConnection != connection || waitMs <= 0) {
+                return -1;
+            }
+            wait(waitMs);
+        }
+        return Math.max(mAcked, 0);
+    }
+
+    /**
+     * Writes a command, noting that the link is down if it couldn't be.
+     */
+    private boolean send(int connection, String command) {
+        if (mTransport.sendNow(command)) {
+            return true;
+        }
+        synchronized (this) {
+            if (mConnection == connection) {
+                mLinkUp = false;
+            }
+        }
+        return false;
+    }
+
+    private String beginFrame() {
+        return Constants.MESSAGE_FW_BEGIN + Constants.MESSAGE_DELIMITER + mSize
+                + Constants.MESSAGE_DELIMITER + mImageCrc;
+    }
+
+    private String commitFrame() {
+        return Constants.MESSAGE_FW_COMMIT + Constants.MESSAGE_DELIMITER + mSize
+                + Constants.MESSAGE_DELIMITER + mImageCrc;
+    }
+
+    private String chunkFrame(int offset, int length) {
+        mImage.position(offset);
+        mImage.get(mChunk, 0, length);
+        mCrc.reset();
+        mCrc.update(mChunk, 0, length);
+        mFrame.setLength(0);
+        mFrame.append(Constants.MESSAGE_FW_CHUNK).append(Constants.MESSAGE_DELIMITER)
+                .append(offset).append(Constants.MESSAGE_DELIMITER)
+                .append(mCrc.getValue()).append(Constants.MESSAGE_DELIMITER);
+        appendBase64(mChunk, length, mFrame);
+        return mFrame.toString();
+    }
+
+    private long crcOfImage() {
+        mCrc.reset();
+        for (int offset = 0; offset < mSize; offset += mChunkSize) {
+            int length = Math.min(mChunkSize, mSize - offset);
+            mImage.position(offset);
+            mImage.get(mChunk, 0, length);
+            mCrc.update(mChunk, 0, length);
+        }
+        return mCrc.getValue();
+    }
+
+    /**
+     * Appends bytes in Base64, as frames are text that ends at a newline.
+     */
+    static void appendBase64(byte[] bytes, int length, StringBuilder out) {
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+            out.append(BASE64[b >>> 18]).append(BASE64[b >>> 12 & 0x3f])
+                    .append(BASE64[b >>> 6 & 0x3f]).append(BASE64[b & 0x3f]);
+        }
+        if (i < length) {
+            int b = (bytes[i] & 0xff) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xff) << 8 : 0);
+            out.append(BASE64[b >>> 18]).append(BASE64[b >>> 12 & 0x3f])
+                    .append(i + 1 < length ? BASE64[b >>> 6 & 0x3f] : '=').append('=');
+        }
+    }
+
+    /**
+     * Decodes Base64 text, for the dispenser side of a simulated link.
+     *
+     * @return The number of bytes decoded into out, or -1 if the text is not Base64 or doesn't
+     * fit
+     */
+    static int decodeBase64(String text, byte[] out) {
+        if (text.length() % 4 != 0) {
+            return -1;
+        }
+        int length = 0;
+        for (int i = 0; i < text.length(); i += 4) {
+            int b = 0;
+            int pad = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = text.charAt(i + j);
+                int value;
+                if (c == '=' && i + 4 == text.length() && j >= 2) {
+                    value = 0;
+                    pad++;
+                } else if (pad > 0) {
+                    return -1;
+                } else if (c >= 'A' && c <= 'Z') {
+                    value = c - 'A';
+                } else if (c >= 'a' && c <= 'z') {
+                    value = c - 'a' + 26;
+                } else if (c >= '0' && c <= '9') {
+                    value = c - '0' + 52;
+                } else if (c == '+') {
+                    value = 62;
+                } else if (c == '/') {
+                    value = 63;
+                } else {
+                    return -1;
+                }
+                b = b << 6 | value;
+            }
+            if (length + 3 - pad > out.length) {
+                return -1;
+            }
+            out[length++] = (byte) (b >>> 16);
+            if (pad < 2) {
+                out[length++] = (byte) (b >>> 8);
+            }
+            if (pad < 1) {
+                out[length++] = (byte) b;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * Splits the bytes read from a dispenser into messages. Messages end with
+ * {@link Constants#MESSAGE_TERMINATOR}, so one read can hold several of them or end in the
+ * middle of one.
+ * <p>
+ * Older dispensers don't terminate their messages but send each bare event name in a write of
+ * its own. Unterminated bytes that form exactly an event name are therefore taken as a complete
+ * message too. Not thread safe, each connection has its own decoder.
+ */
+public class FrameDecoder {
+
+    // A dispenser that never terminates a message doesn't get to use up the heap
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+
+    /**
+     * Decodes the messages completed by the given bytes.
+     *
+     * @param buffer The bytes read
+     * @param length The number of valid bytes in the buffer
+     * @param frames Receives the completed messages, without terminator
+     */
+    public void decode(byte[] buffer, int length, List<String> frames) {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                mPending.write(buffer, start, i - start);
+                emit(frames);
+                start = i + 1;
+            }
+        }
+        mPending.write(buffer, start, length - start);
+        if (mPending.size() == 0) {
+            return;
+        }
+        if (mPending.size() >= MAX_FRAME_SIZE || DispenserEvent.typeOf(pendingText()) != 0) {
+            emit(frames);
+        }
+    }
+
+    private void emit(List<String> frames) {
+        String frame = pendingText();
+        mPending.reset();
+        // Tolerate CRLF terminated messages
+        if (frame.endsWith("\r")) {
+            frame = frame.substring(0, frame.length() - 1);
+        }
+        if (frame.length() > 0) {
+            frames.add(frame);
+        }
+    }
+
+    private String pendingText() {
+        try {
+            return mPending.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
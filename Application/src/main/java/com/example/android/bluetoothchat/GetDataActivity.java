@@ -1,18 +1,13 @@
 package com.example.android.bluetoothchat;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.TextView;
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
+
+import java.io.IOException;
 
 public class GetDataActivity extends AppCompatActivity{
     private TextView txtShowTextResult;
@@ -24,29 +19,34 @@ public class GetDataActivity extends AppCompatActivity{
 
         txtShowTextResult = findViewById(R.id.txtDisplay);
 
-        RequestQueue requestQueue = Volley.newRequestQueue(this);
-        final String url = "https://pezzzapi.herokuapp.com/api/getcurrentmeds?id=959595";
-
-        JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.GET, url, null, new Response.Listener<JSONObject>() {
+        MedsApiClient.getInstance(this).fetchAsync(MedsApiClient.currentMedsPath("959595"),
+                new MedsApiClient.Callback() {
 
             @Override
-            public void onResponse(JSONObject response) {
-                try {
-
-                    txtShowTextResult.setText("Patient Data: \n" + response.get("message"));
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-                findViewById(R.id.progressBar).setVisibility(View.GONE);
+            public void onResponse(final MedsApiClient.Response meds) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            JSONObject response = new JSONObject(meds.body);
+                            txtShowTextResult.setText("Patient Data: \n" + response.get("message"));
+                        } catch (JSONException e) {
+                            e.printStackTrace();
+                        }
+                        findViewById(R.id.progressBar).setVisibility(View.GONE);
+                    }
+                });
             }
-        }, new Response.ErrorListener() {
+
             @Override
-            public void onErrorResponse(VolleyError error) {
-                txtShowTextResult.setText("An Error occured while making the request");
+            public void onError(IOException e) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        txtShowTextResult.setText("An Error occured while making the request");
+                    }
+                });
             }
         });
-        requestQueue.add(jsonObjectRequest);
     }
 }
-
-
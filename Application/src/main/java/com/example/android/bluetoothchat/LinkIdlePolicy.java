@@ -0,0 +1,243 @@
+package com.example.android.bluetoothchat;
+
+/**
+ * Decides when the link to a dispenser has been idle long enough to be suspended, and when a
+ * suspended link is brought back ahead of a dose. The link counts as idle when neither side
+ * sent anything but housekeeping, like acknowledgements, credit or time requests, for the idle
+ * timeout, and no command is waiting for its acknowledgement. From shortly before a dose until
+ * the end of its reminder window the link stays up regardless, so the dispenser's event for
+ * the dose arrives right away instead of through a backfill.
+ * <p>
+ * It also keeps the numbers that show what suspending trades: the time spent connected and
+ * suspended, how often the link was suspended and brought back, how long that took, and an
+ * estimate of the charge the radio used for both. Times are in
+ * {@link android.os.SystemClock#elapsedRealtime()} milliseconds, except the time until the next
+ * dose, which the caller works out from the wall clock. All methods can be called from any
+ * thread.
+ */
+public class LinkIdlePolicy {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000L;
+    // How long before a dose the link is brought back, so that the dispenser's event finds it up
+    public static final long DEFAULT_WAKE_LEAD_MS = 2 * 60 * 1000L;
+    // Passed for the time until the next dose when there is none
+    public static final long NO_DOSE = Long.MAX_VALUE;
+
+    // Rough figures for a Classic Bluetooth radio, only good for comparing settings: the current
+    // drawn while connected in sniff mode, and the charge of paging the dispenser and setting up
+    // RFCOMM again
+    static final double CONNECTED_MA = 1.5;
+    static final double RECONNECT_MAS = 25.0;
+
+    private final long mWakeLeadMs;
+    private long mIdleTimeoutMs;
+
+    private long mLastActivityAt;
+    // The link stays up until then for a dose
+    private long mHoldUntil;
+    // -1 while not in that state
+    private long mConnectedSince = -1;
+    private long mSuspendedSince = -1;
+    private long mResumeRequestedAt = -1;
+
+    private long mConnectedMs;
+    private long mSuspendedMs;
+    private int mSuspends;
+    private int mResumes;
+    private int mResumeFailures;
+    private long mReconnectMsTotal;
+    private long mReconnectMsMax;
+
+    public LinkIdlePolicy() {
+        this(DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_WAKE_LEAD_MS);
+    }
+
+    /**
+     * @param idleTimeoutMs How long the link has to be idle to be suspended, 0 to never suspend
+     * @param wakeLeadMs    How long before a dose the link is brought back
+     */
+    public LinkIdlePolicy(long idleTimeoutMs, long wakeLeadMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+        mWakeLeadMs = wakeLeadMs;
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return mIdleTimeoutMs;
+    }
+
+    /**
+     * Notes traffic on the link that isn't housekeeping.
+     */
+    public synchronized void onActivity(long now) {
+        mLastActivityAt = now;
+    }
+
+    /**
+     * Return how long to wait before the link can be suspended, 0 to suspend it now, or -1 if
+     * it is never suspended.
+     *
+     * @param busy        Whether commands are being written or waiting for acknowledgement
+     * @param untilDoseMs Time until the next dose, negative once it is due, {@link #NO_DOSE}
+     *                    if there is none
+     */
+    public synchronized long getSuspendDelay(long now, boolean busy, long untilDoseMs) {
+        if (mIdleTimeoutMs <= 0) {
+            return -1;
+        }
+        if (untilDoseMs <= mWakeLeadMs) {
+            // Remembered, as the dose is no longer the next one once it has been reminded about
+            mHoldUntil = Math.max(mHoldUntil, now + untilDoseMs + DoseScheduler.BATCH_WINDOW_MS);
+        }
+        if (now < mHoldUntil) {
+            return mHoldUntil - now;
+        }
+        // Otherwise look again once the next dose is close, so that it holds the link from then
+        long untilLead = untilDoseMs - mWakeLeadMs;
+        if (busy) {
+            return Math.min(mIdleTimeoutMs, untilLead);
+        }
+        long idle = now - mLastActivityAt;
+        if (idle >= mIdleTimeoutMs) {
+            return 0;
+        }
+        return Math.min(mIdleTimeoutMs - idle, untilLead);
+    }
+
+    /**
+     * Return how long a suspended link waits before it is brought back for the next dose, or -1
+     * if there is none.
+     */
+    public synchronized long getWakeDelay(long untilDoseMs) {
+        if (untilDoseMs == NO_DOSE) {
+            return -1;
+        }
+        return Math.max(untilDoseMs - mWakeLeadMs, 0);
+    }
+
+    /**
+     * Notes that a link came up.
+     *
+     * @return How long it took to bring a suspended link back, or -1 if it is a new link
+     */
+    public synchronized long onConnected(long now) {
+        mConnectedSince = now;
+        mLastActivityAt = now;
+        if (mResumeRequestedAt < 0) {
+            return -1;
+        }
+        long reconnectMs = now - mResumeRequestedAt;
+        mResumeRequestedAt = -1;
+        mResumes++;
+        mReconnectMsTotal += reconnectMs;
+        mReconnectMsMax = Math.max(mReconnectMsMax, reconnectMs);
+        return reconnectMs;
+    }
+
+    /**
+     * Notes that a link went down, for whatever reason. Does nothing if none was up.
+     */
+    public synchronized void onDisconnected(long now) {
+        if (mConnectedSince >= 0) {
+            mConnectedMs += now - mConnectedSince;
+            mConnectedSince = -1;
+        }
+    }
+
+    /**
+     * Notes that the link was suspended, after it was taken down.
+     */
+    public synchronized void onSuspended(long now) {
+        mSuspends++;
+        mSuspendedSince = now;
+    }
+
+    /**
+     * Notes that a suspended link is being brought back.
+     */
+    public synchronized void onResuming(long now) {
+        onSuspendEnded(now);
+        mResumeRequestedAt = now;
+    }
+
+    /**
+     * Notes that a connection attempt failed, which counts if it was to bring a suspended link
+     * back.
+     */
+    public synchronized void onConnectFailed() {
+        if (mResumeRequestedAt >= 0) {
+            mResumeRequestedAt = -1;
+            mResumeFailures++;
+        }
+    }
+
+    /**
+     * Notes that a suspended link couldn't be brought back, it stays suspended.
+     */
+    public synchronized void onResumeFailed(long now) {
+        onConnectFailed();
+        mSuspendedSince = now;
+    }
+
+    /**
+     * Notes that the link is no longer suspended, without it being brought back.
+     */
+    public synchronized void onSuspendEnded(long now) {
+        if (mSuspendedSince >= 0) {
+            mSuspendedMs += now - mSuspendedSince;
+            mSuspendedSince = -1;
+        }
+    }
+
+    public synchronized long getConnectedMs(long now) {
+        return mConnectedMs + (mConnectedSince >= 0 ? now - mConnectedSince : 0);
+    }
+
+    public synchronized long getSuspendedMs(long now) {
+        return mSuspendedMs + (mSuspendedSince >= 0 ? now - mSuspendedSince : 0);
+    }
+
+    public synchronized int getSuspendCount() {
+        return mSuspends;
+    }
+
+    public synchronized int getResumeCount() {
+        return mResumes;
+    }
+
+    public synchronized int getResumeFailureCount() {
+        return mResumeFailures;
+    }
+
+    /**
+     * Return the mean time it took to bring a suspended link back, 0 if it never was.
+     */
+    public synchronized long getMeanReconnectMs() {
+        return mResumes == 0 ? 0 : mReconnectMsTotal / mResumes;
+    }
+
+    public synchronized long getMaxReconnectMs() {
+        return mReconnectMsMax;
+    }
+
+    /**
+     * Return an estimate of the charge the radio used for the link, in mA·s: the time it was
+     * connected and the reconnects.
+     */
+    public synchronized double getEstimatedChargeMas(long now) {
+        return getConnectedMs(now) / 1000.0 * CONNECTED_MA
+                + (mResumes + mResumeFailures) * RECONNECT_MAS;
+    }
+
+    /**
+     * Return an estimate of the charge saved by suspending, in mA·s: what the link would have
+     * used had it stayed connected, less the reconnects.
+     */
+    public synchronized double getEstimatedSavingMas(long now) {
+        return getSuspendedMs(now) / 1000.0 * CONNECTED_MA
+                - (mResumes + mResumeFailures) * RECONNECT_MAS;
+    }
+}
@@ -0,0 +1,495 @@
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal embedded HTTP/1.1 server standing in for the pezzzapi backend, so that networking
+ * code can be exercised and benchmarked without internet access. It listens on the loopback
+ * interface and serves {@code GET /api/getcurrentmeds?id=...} with synthetic patients.
+ * <p>
+ * Responses carry an ETag and Last-Modified header, honour If-None-Match with a 304 and are
+ * gzip-compressed when the client accepts it. The number of medications per patient, the
+ * added latency and the rate of 500 errors are configurable, and patient data can be changed
+ * with {@link #touchPatient(String)} to simulate server side updates.
+ * <p>
+ * Optionally several patients can be requested at once with {@code ?ids=1,2,3}, answered with
+ * {@code {"status":"ok","message":{"patients":[...]}}} where each entry has the shape of a
+ * single patient's message.
+ * <p>
+ * Dispenser events can be uploaded with {@code POST /api/events}, a possibly gzip-compressed
+ * {@code {"events":[...]}} body. A batch whose Idempotency-Key was seen before is acknowledged
+ * without being counted again.
+ */
+public class LocalMedsServer {
+
+    private static final String TAG = "LocalMedsServer";
+
+    private static final String PATH_CURRENT_MEDS = "/api/getcurrentmeds";
+    private static final String PATH_EVENTS = "/api/events";
+
+    private static final String[] MED_NAMES = {
+            "Paracetamol", "Ibuprofen", "Amoxicillin", "Metformin", "Lisinopril",
+            "Atorvastatin", "Omeprazole", "Levothyroxine", "Amlodipine", "Simvastatin"
+    };
+
+    private final Map<String, Integer> mVersions = new ConcurrentHashMap<String, Integer>();
+    private final Random mRandom = new Random();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final Set<String> mIdempotencyKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong mEventsReceived = new AtomicLong();
+    private final AtomicLong mDuplicateBatches = new AtomicLong();
+
+    private volatile int mMedsPerPatient = 3;
+    private volatile int mLatencyMs = 0;
+    private volatile double mErrorRate = 0;
+    private volatile boolean mBatchSupported = true;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    /**
+     * Sets how many medications each synthetic patient has.
+     */
+    public void setMedsPerPatient(int medsPerPatient) {
+        mMedsPerPatient = medsPerPatient;
+    }
+
+    /**
+     * Sets a delay added before every response, to simulate network round trips.
+     */
+    public void setLatencyMs(int latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Sets the fraction of requests, between 0 and 1, answered with a 500 error.
+     */
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * Sets whether {@code ?ids=} batch requests are served. When disabled they get a 404, like
+     * a backend without the batch endpoint.
+     */
+    public void setBatchSupported(boolean batchSupported) {
+        mBatchSupported = batchSupported;
+    }
+
+    /**
+     * Changes the data of a patient, so that the next fetch returns a new body and ETag.
+     */
+    public void touchPatient(String patientId) {
+        mVersions.put(patientId, getVersion(patientId) + 1);
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     *
+     * @throws IOException If the server socket could not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ServerSocket serverSocket = mServerSocket;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        });
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing left to clean up
+        }
+        mExecutor.shutdownNow();
+        mServerSocket = null;
+        mExecutor = null;
+    }
+
+    /**
+     * Return the base URL to pass to {@link MedsApiClient}.
+     */
+    public synchronized String getBaseUrl() {
+        if (mServerSocket == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Return the number of requests handled.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Return the number of body bytes sent, after compression.
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Return the number of dispenser events received, not counting retried batches.
+     */
+    public long getEventsReceived() {
+        return mEventsReceived.get();
+    }
+
+    /**
+     * Return the number of event batches received again with a known Idempotency-Key.
+     */
+    public long getDuplicateBatches() {
+        return mDuplicateBatches.get();
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serveConnection(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Serves requests on a kept-alive connection until the client closes it.
+     */
+    private void serveConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                mRequestCount.incrementAndGet();
+                if (mLatencyMs > 0) {
+                    Thread.sleep(mLatencyMs);
+                }
+                handle(request, out);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException e) {
+            // Malformed request or client went away, drop the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private void handle(Request request, OutputStream out) throws IOException {
+        if (mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+            writeResponse(out, 500, "Internal Server Error", null, null, false);
+            return;
+        }
+        if ("POST".equals(request.method) && PATH_EVENTS.equals(request.path)) {
+            handleEvents(request, out);
+            return;
+        }
+        if (!"GET".equals(request.method) || !PATH_CURRENT_MEDS.equals(request.path)) {
+            writeResponse(out, 404, "Not Found", null, null, false);
+            return;
+        }
+        String[] patientIds;
+        String batch = request.query.get("ids");
+        if (batch != null && mBatchSupported) {
+            patientIds = batch.split(",");
+        } else if (batch != null) {
+            writeResponse(out, 404, "Not Found", null, null, false);
+            return;
+        } else if (request.query.get("id") != null) {
+            patientIds = new String[] {request.query.get("id")};
+        } else {
+            writeResponse(out, 400, "Bad Request", null, null, false);
+            return;
+        }
+
+        // The ETag changes whenever any of the requested patients changes
+        StringBuilder etag = new StringBuilder("\"");
+        int newest = 0;
+        for (String patientId : patientIds) {
+            int version = getVersion(patientId);
+            etag.append(patientId).append('-').append(version).append(';');
+            newest = Math.max(newest, version);
+        }
+        etag.setCharAt(etag.length() - 1, '"');
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("ETag", etag.toString());
+        headers.put("Last-Modified", httpDate(newest));
+        if (etag.toString().equals(request.headers.get("if-none-match"))) {
+            writeResponse(out, 304, "Not Modified", headers, null, false);
+            return;
+        }
+
+        String json;
+        if (batch == null) {
+            json = "{\"status\":\"ok\",\"message\":"
+                    + patientMessage(patientIds[0], getVersion(patientIds[0])) + "}";
+        } else {
+            StringBuilder patients = new StringBuilder();
+            patients.append("{\"status\":\"ok\",\"message\":{\"patients\":[");
+            for (int i = 0; i < patientIds.length; i++) {
+                if (i > 0) {
+                    patients.append(',');
+                }
+                patients.append(patientMessage(patientIds[i], getVersion(patientIds[i])));
+            }
+            json = patients.append("]}}").toString();
+        }
+        String acceptEncoding = request.headers.get("accept-encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        writeResponse(out, 200, "OK", headers, json.getBytes("UTF-8"), gzip);
+    }
+
+    private void handleEvents(Request request, OutputStream out) throws IOException {
+        if (request.body == null) {
+            writeResponse(out, 400, "Bad Request", null, null, false);
+            return;
+        }
+        byte[] body = request.body;
+        if ("gzip".equalsIgnoreCase(request.headers.get("content-encoding"))) {
+            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                decoded.write(buffer, 0, read);
+            }
+            body = decoded.toByteArray();
+        }
+        String key = request.headers.get("idempotency-key");
+        String json;
+        if (key != null && !mIdempotencyKeys.add(key)) {
+            mDuplicateBatches.incrementAndGet();
+            json = "{\"status\":\"ok\",\"duplicate\":true}";
+        } else {
+            // Every event has exactly one sequence field
+            int events = count(new String(body, "UTF-8"), "\"sequence\":");
+            mEventsReceived.addAndGet(events);
+            json = "{\"status\":\"ok\",\"received\":" + events + "}";
+        }
+        writeResponse(out, 200, "OK", null, json.getBytes("UTF-8"), false);
+    }
+
+    private static int count(String text, String needle) {
+        int count = 0;
+        int index = text.indexOf(needle);
+        while (index >= 0) {
+            count++;
+            index = text.indexOf(needle, index + needle.length());
+        }
+        return count;
+    }
+
+    private int getVersion(String patientId) {
+        Integer version = mVersions.get(patientId);
+        return version == null ? 1 : version;
+    }
+
+    /**
+     * Builds the message of a synthetic patient, in the same shape as the real backend.
+     */
+    private String patientMessage(String patientId, int version) {
+        Random random = new Random(patientId.hashCode() * 31L + version);
+        StringBuilder json = new StringBuilder();
+        json.append("{\"patientId\":\"").append(patientId)
+                .append("\",\"version\":").append(version).append(",\"meds\":[");
+        for (int i = 0; i < mMedsPerPatient; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(MED_NAMES[i % MED_NAMES.length]).append(' ')
+                    .append(100 + random.nextInt(400)).append("mg\",\"timeTable\":{")
+                    .append("\"timesPerDay\":").append(1 + random.nextInt(4))
+                    .append(",\"numberOfDays\":").append(1 + random.nextInt(30))
+                    .append("}}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private void writeResponse(OutputStream out, int status, String reason,
+            Map<String, String> headers, byte[] body, boolean gzip) throws IOException {
+        if (body != null && gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream zip = new GZIPOutputStream(compressed);
+            zip.write(body);
+            zip.close();
+            body = compressed.toByteArray();
+        }
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (body != null) {
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        // A 304 must not carry a body or a Content-Length for one
+        if (status != 304) {
+            head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (body != null) {
+            out.write(body);
+            mBytesSent.addAndGet(body.length);
+        }
+    }
+
+    private static String httpDate(int version) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        // Any stable instant per version will do
+        return format.format(new Date(1500000000000L + version * 1000L));
+    }
+
+    /**
+     * A parsed HTTP request. Header names are lower-cased.
+     */
+    static class Request {
+        String method;
+        String path;
+        final Map<String, String> query = new HashMap<String, String>();
+        final Map<String, String> headers = new HashMap<String, String>();
+        byte[] body;
+
+        /**
+         * Reads the next request from the stream, or returns null at end of stream.
+         */
+        static Request read(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Malformed request line: " + requestLine);
+            }
+            Request request = new Request();
+            request.method = parts[0];
+            String target = parts[1];
+            int queryStart = target.indexOf('?');
+            request.path = queryStart < 0 ? target : target.substring(0, queryStart);
+            if (queryStart >= 0) {
+                for (String pair : target.substring(queryStart + 1).split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) {
+                        request.query.put(pair.substring(0, eq), pair.substring(eq + 1));
+                    }
+                }
+            }
+
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            String contentLength = request.headers.get("content-length");
+            if (contentLength != null) {
+                byte[] body = new byte[Integer.parseInt(contentLength)];
+                int offset = 0;
+                while (offset < body.length) {
+                    int read = in.read(body, offset, body.length - offset);
+                    if (read < 0) {
+                        throw new IOException("Truncated request body");
+                    }
+                    offset += read;
+                }
+                request.body = body;
+            }
+            return request;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) b);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+}
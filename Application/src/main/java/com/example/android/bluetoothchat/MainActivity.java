@@ -37,14 +37,11 @@ import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.TextView;
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
 
 import android.content.Intent;
+
+import java.io.IOException;
+
 /**
  * A simple launcher activity containing a summary sample description, sample log and a custom
  * {@link android.support.v4.app.Fragment} which can display a view.
@@ -55,7 +52,9 @@ import android.content.Intent;
 public class MainActivity  extends SampleActivityBase{
 
     public static final String TAG = "MainActivity";
-    Bundle bundle = new Bundle();
+
+    // The patient whose dispenser this device configures
+    private static final String PATIENT_ID = "959595";
 
     // Whether the Log Fragment is currently shown
     private boolean mLogShown;
@@ -72,63 +71,112 @@ public class MainActivity  extends SampleActivityBase{
         txtShowTextResult3 = findViewById(R.id.txtDisplay3);
 
 
-        RequestQueue requestQueue = Volley.newRequestQueue(this);
-        final String url = "https://pezzzapi.herokuapp.com/api/getcurrentmeds?id=959595";
+        final PatientRegistry registry = new PatientRegistry(this);
+        registry.setCurrentPatientId(PATIENT_ID);
+        ScheduleSyncReceiver.schedule(this);
+        DoseAlarmReceiver.scheduleNextAlarm(this);
 
-        JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(Request.Method.GET, url, null, new Response.Listener<JSONObject>() {
+        // Start from what the background sync stored, the fetch below revalidates it
+        String storedData = registry.getPatientData(PATIENT_ID);
+        if (storedData != null) {
+            PatientDataSource.getInstance().publish(storedData);
+            showPatientData(storedData);
+        }
+
+        MedsApiClient.getInstance(this).fetchAsync(MedsApiClient.currentMedsPath(PATIENT_ID),
+                new MedsApiClient.Callback() {
 
             @Override
-            public void onResponse(JSONObject response) {
+            public void onResponse(final MedsApiClient.Response meds) {
+                Log.i(TAG, "Fetched meds in " + meds.latencyMs + "ms, " + meds.bytesTransferred
+                        + " bytes" + (meds.notModified ? " (not modified)" : ""));
+                // Publish the parsed document as the JSON request did, and nothing that isn't JSON
+                final String patientData;
                 try {
-                    RelativeLayout relativeLayout = (RelativeLayout) findViewById(R.id.patientData);
-                    StringBuilder formattedResult = new StringBuilder();
-                    JSONArray responseJSONArray = response.getJSONObject("message").getJSONArray("meds");
-                //    for (int i = 0; i < responseJSONArray.length(); i++) {
-                   //     formattedResult.append("\n" + responseJSONArray.getJSONObject(i).get("name"));
-                    //    TextView txt1 = new TextView(MainActivity.this)
-
-                    txtShowTextResult1.setText("\n" + responseJSONArray.getJSONObject(0).get("name")+
-                            "\nPills per day:" + responseJSONArray.getJSONObject(0).getJSONObject("timeTable").get("timesPerDay")
-                            + "\nPeriod:" + responseJSONArray.getJSONObject(0).getJSONObject("timeTable").get("numberOfDays"));
-                    txtShowTextResult2.setText("\n" + responseJSONArray.getJSONObject(1).get("name")+
-                            "\nPills per day:" + responseJSONArray.getJSONObject(1).getJSONObject("timeTable").get("timesPerDay")
-                            + "\nPeriod:" + responseJSONArray.getJSONObject(1).getJSONObject("timeTable").get("numberOfDays"));
-                    txtShowTextResult3.setText("\n" + responseJSONArray.getJSONObject(2).get("name")+
-                            "\nPills per day:" + responseJSONArray.getJSONObject(2).getJSONObject("timeTable").get("timesPerDay")
-                            + "\nPeriod:" + responseJSONArray.getJSONObject(2).getJSONObject("timeTable").get("numberOfDays"));
-
-                        //linearLayout.setBackgroundColor(Color.TRANSPARENT);
-//                        relativeLayout.addView(txt1);
-//                        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(RelativeLayout.LayoutParams.WRAP_CONTENT, RelativeLayout.LayoutParams.WRAP_CONTENT);
-//                        params.setMargins(100,100,100,100);
-//
-//                        txt1.setLayoutParams(params);
-                 //   }
-                 //   txtShowTextResult.setText("Patient Data: \n" + response.get("message"));
-
-                    bundle.putString("PATIENT_DATA", response.toString());
+                    patientData = new JSONObject(meds.body).toString();
                 } catch (JSONException e) {
-                    e.printStackTrace();
+                    Log.e(TAG, "Malformed meds response", e);
+                    return;
+                }
+                if (!registry.putPatientData(PATIENT_ID, meds.body)) {
+                    // Already published from the stored copy
+                    return;
                 }
-                findViewById(R.id.progressBar).setVisibility(View.GONE);
+                DoseAlarmReceiver.onPatientDataChanged(MainActivity.this, PATIENT_ID, meds.body);
+                // Hand the data to the dispenser link first, the text views can wait
+                PatientDataSource.getInstance().publish(patientData);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showPatientData(meds.body);
+                    }
+                });
             }
-        }, new Response.ErrorListener() {
+
             @Override
-            public void onErrorResponse(VolleyError error) {
-               txtShowTextResult1.setText("An Error occurred while making the request");
+            public void onError(IOException e) {
+                Log.e(TAG, "Fetching meds failed", e);
+                if (registry.getPatientData(PATIENT_ID) != null) {
+                    // Keep showing the stored copy
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        txtShowTextResult1.setText("An Error occurred while making the request");
+                    }
+                });
             }
         });
-        requestQueue.add(jsonObjectRequest);
 
         if (savedInstanceState == null) {
             FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
             BluetoothChatFragment fragment = new BluetoothChatFragment();
-            fragment.setArguments(bundle);
             transaction.replace(R.id.sample_content_fragment, fragment);
             transaction.commit();
         }
     }
 
+    /**
+     * Shows the first medications of the patient in the text views.
+     *
+     * @param patientData The patient JSON as returned by the server
+     */
+    private void showPatientData(String patientData) {
+        try {
+            JSONObject response = new JSONObject(patientData);
+            RelativeLayout relativeLayout = (RelativeLayout) findViewById(R.id.patientData);
+            StringBuilder formattedResult = new StringBuilder();
+            JSONArray responseJSONArray = response.getJSONObject("message").getJSONArray("meds");
+        //    for (int i = 0; i < responseJSONArray.length(); i++) {
+           //     formattedResult.append("\n" + responseJSONArray.getJSONObject(i).get("name"));
+            //    TextView txt1 = new TextView(MainActivity.this)
+
+            txtShowTextResult1.setText("\n" + responseJSONArray.getJSONObject(0).get("name")+
+                    "\nPills per day:" + responseJSONArray.getJSONObject(0).getJSONObject("timeTable").get("timesPerDay")
+                    + "\nPeriod:" + responseJSONArray.getJSONObject(0).getJSONObject("timeTable").get("numberOfDays"));
+            txtShowTextResult2.setText("\n" + responseJSONArray.getJSONObject(1).get("name")+
+                    "\nPills per day:" + responseJSONArray.getJSONObject(1).getJSONObject("timeTable").get("timesPerDay")
+                    + "\nPeriod:" + responseJSONArray.getJSONObject(1).getJSONObject("timeTable").get("numberOfDays"));
+            txtShowTextResult3.setText("\n" + responseJSONArray.getJSONObject(2).get("name")+
+                    "\nPills per day:" + responseJSONArray.getJSONObject(2).getJSONObject("timeTable").get("timesPerDay")
+                    + "\nPeriod:" + responseJSONArray.getJSONObject(2).getJSONObject("timeTable").get("numberOfDays"));
+
+                //linearLayout.setBackgroundColor(Color.TRANSPARENT);
+//                        relativeLayout.addView(txt1);
+//                        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(RelativeLayout.LayoutParams.WRAP_CONTENT, RelativeLayout.LayoutParams.WRAP_CONTENT);
+//                        params.setMargins(100,100,100,100);
+//
+//                        txt1.setLayoutParams(params);
+         //   }
+         //   txtShowTextResult.setText("Patient Data: \n" + response.get("message"));
+
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        findViewById(R.id.progressBar).setVisibility(View.GONE);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
@@ -0,0 +1,440 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Small HTTP client for the pezzzapi backend. Responses are cached together with their
+ * ETag/Last-Modified validators so that repeated fetches are sent as conditional requests, and
+ * bodies are requested gzip-compressed. A 304 reply is served from the cache without
+ * transferring the body again. Uploads with {@link #post(String, String, String)} are
+ * gzip-compressed and carry an idempotency key, so that they can be retried safely.
+ * <p>
+ * Apart from {@link #getInstance(Context)} the client only depends on {@link HttpURLConnection},
+ * so it runs the same on a device and on a plain JVM, where it can be pointed at a
+ * {@link LocalMedsServer}.
+ */
+public class MedsApiClient {
+
+    private static final String TAG = "MedsApiClient";
+
+    // Base URL value that starts an in-process LocalMedsServer instead of using the network
+    public static final String EMBEDDED_BASE_URL = "embedded";
+
+    private static final String DEFAULT_BASE_URL = "https://pezzzapi.herokuapp.com";
+    private static final String PATH_CURRENT_MEDS = "/api/getcurrentmeds?id=";
+    private static final String PATH_CURRENT_MEDS_BATCH = "/api/getcurrentmeds?ids=";
+
+    private static final int TIMEOUT_MS = 15000;
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    /**
+     * Callback for {@link #fetchAsync(String, Callback)}. Called on a background thread.
+     */
+    public interface Callback {
+        void onResponse(Response response);
+
+        void onError(IOException e);
+    }
+
+    /**
+     * Result of a fetch.
+     */
+    public static class Response {
+        /** The decoded response body */
+        public final String body;
+        /** Whether the server answered 304 and the body came from the cache */
+        public final boolean notModified;
+        /** Body bytes received on the wire, before decompression */
+        public final long bytesTransferred;
+        /** Time from opening the connection until the body was read */
+        public final long latencyMs;
+
+        Response(String body, boolean notModified, long bytesTransferred, long latencyMs) {
+            this.body = body;
+            this.notModified = notModified;
+            this.bytesTransferred = bytesTransferred;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    /**
+     * Thrown when the server answers with an error status.
+     */
+    public static class StatusException extends IOException {
+        public final int statusCode;
+
+        StatusException(int statusCode, String url) {
+            super("HTTP " + statusCode + " for " + url);
+            this.statusCode = statusCode;
+        }
+    }
+
+    /**
+     * A cached body together with the validators needed to revalidate it.
+     */
+    private static class CacheEntry {
+        final String body;
+        final String etag;
+        final String lastModified;
+        final long latencyMs;
+
+        CacheEntry(String body, String etag, String lastModified, long latencyMs) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    private static MedsApiClient sInstance;
+
+    private final String mBaseUrl;
+    private final Map<String, CacheEntry> mCache = new ConcurrentHashMap<String, CacheEntry>();
+    private final ExecutorService mExecutor;
+
+    // Counters for the lifetime of this client
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+    private final AtomicLong mBytesTransferred = new AtomicLong();
+    private final AtomicLong mBytesDecoded = new AtomicLong();
+    private final AtomicLong mBytesUploaded = new AtomicLong();
+    private final AtomicLong mLatencySavedMs = new AtomicLong();
+
+    /**
+     * Return the process-wide client, created for the base URL in the api_base_url resource.
+     * A value of {@link #EMBEDDED_BASE_URL} serves synthetic data from a {@link LocalMedsServer}
+     * running in the app, for working offline.
+     */
+    public static synchronized MedsApiClient getInstance(Context context) {
+        if (sInstance == null) {
+            String baseUrl = context.getString(R.string.api_base_url);
+            if (EMBEDDED_BASE_URL.equals(baseUrl)) {
+                LocalMedsServer server = new LocalMedsServer();
+                try {
+                    server.start();
+                    baseUrl = server.getBaseUrl();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not start the embedded server, using " + DEFAULT_BASE_URL, e);
+                    baseUrl = DEFAULT_BASE_URL;
+                }
+            }
+            Log.i(TAG, "Using " + baseUrl);
+            sInstance = new MedsApiClient(baseUrl);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a client with its own cache.
+     *
+     * @param baseUrl Scheme, host and port of the backend, without a trailing slash
+     */
+    public MedsApiClient(String baseUrl) {
+        mBaseUrl = baseUrl;
+        mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MedsApiClient-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Return the path of the current medication list for a patient.
+     */
+    public static String currentMedsPath(String patientId) {
+        return PATH_CURRENT_MEDS + patientId;
+    }
+
+    /**
+     * Return the path of the current medication lists for several patients in one request.
+     * Not every backend supports it, see {@link PatientBatchLoader}.
+     */
+    public static String currentMedsBatchPath(Collection<String> patientIds) {
+        StringBuilder path = new StringBuilder(PATH_CURRENT_MEDS_BATCH);
+        boolean first = true;
+        for (String patientId : patientIds) {
+            if (!first) {
+                path.append(',');
+            }
+            path.append(patientId);
+            first = false;
+        }
+        return path.toString();
+    }
+
+    /**
+     * Fetches a path relative to the base URL on a background thread.
+     */
+    public void fetchAsync(final String path, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Response response;
+                try {
+                    response = fetch(path);
+                } catch (IOException e) {
+                    callback.onError(e);
+                    return;
+                }
+                callback.onResponse(response);
+            }
+        });
+    }
+
+    /**
+     * Fetches a path relative to the base URL, revalidating any cached copy. Blocks the calling
+     * thread.
+     *
+     * @param path The path, including the query string
+     * @return The response, possibly served from the cache
+     * @throws IOException If the request failed or the server returned an error status
+     */
+    public Response fetch(String path) throws IOException {
+        String url = mBaseUrl + path;
+        CacheEntry cached = mCache.get(url);
+        long start = System.nanoTime();
+        mRequestCount.incrementAndGet();
+
+        // The connection is never disconnected, once its streams are drained the socket is kept
+        // alive for the next request
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        // Setting this explicitly disables transparent decompression, so the counted bytes
+        // are the compressed ones
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            long latencyMs = elapsedMs(start);
+            mNotModifiedCount.incrementAndGet();
+            mLatencySavedMs.addAndGet(Math.max(0, cached.latencyMs - latencyMs));
+            return new Response(cached.body, true, 0, latencyMs);
+        }
+        checkStatus(connection, status, url);
+
+        CountingInputStream wire = new CountingInputStream(connection.getInputStream());
+        String body = readBody(connection, wire);
+        long latencyMs = elapsedMs(start);
+
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag != null || lastModified != null) {
+            mCache.put(url, new CacheEntry(body, etag, lastModified, latencyMs));
+        } else {
+            mCache.remove(url);
+        }
+        return new Response(body, false, wire.getCount(), latencyMs);
+    }
+
+    /**
+     * Posts a JSON body to a path relative to the base URL, compressed with gzip. Blocks the
+     * calling thread.
+     *
+     * @param path           The path, including the query string
+     * @param json           The body
+     * @param idempotencyKey Sent as the Idempotency-Key header, so that the server applies a
+     *                       retried request only once. Null to leave it out.
+     * @return The response
+     * @throws IOException If the request failed or the server returned an error status
+     */
+    public Response post(String path, String json, String idempotencyKey) throws IOException {
+        String url = mBaseUrl + path;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream zip = new GZIPOutputStream(compressed);
+        try {
+            zip.write(json.getBytes("UTF-8"));
+        } finally {
+            zip.close();
+        }
+        byte[] bytes = compressed.toByteArray();
+        long start = System.nanoTime();
+        mRequestCount.incrementAndGet();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (idempotencyKey != null) {
+            connection.setRequestProperty("Idempotency-Key", idempotencyKey);
+        }
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        mBytesUploaded.addAndGet(bytes.length);
+
+        checkStatus(connection, connection.getResponseCode(), url);
+        CountingInputStream wire = new CountingInputStream(connection.getInputStream());
+        String body = readBody(connection, wire);
+        return new Response(body, false, wire.getCount(), elapsedMs(start));
+    }
+
+    /**
+     * Return the number of requests sent, including conditional ones.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Return the number of requests answered with 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * Return the number of body bytes received on the wire.
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred.get();
+    }
+
+    /**
+     * Return the number of body bytes after decompression.
+     */
+    public long getBytesDecoded() {
+        return mBytesDecoded.get();
+    }
+
+    /**
+     * Return the number of request body bytes sent, after compression.
+     */
+    public long getBytesUploaded() {
+        return mBytesUploaded.get();
+    }
+
+    /**
+     * Return the total time saved by 304 replies compared to the full fetch they revalidated.
+     */
+    public long getLatencySavedMs() {
+        return mLatencySavedMs.get();
+    }
+
+    /**
+     * Throws for an error status, after draining the error body so the connection can be
+     * reused.
+     */
+    private static void checkStatus(HttpURLConnection connection, int status, String url)
+            throws IOException {
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        InputStream error = connection.getErrorStream();
+        if (error != null) {
+            try {
+                readFully(error);
+            } finally {
+                error.close();
+            }
+        }
+        throw new StatusException(status, url);
+    }
+
+    /**
+     * Reads and decodes the response body, counting wire and decoded bytes.
+     */
+    private String readBody(HttpURLConnection connection, CountingInputStream wire)
+            throws IOException {
+        InputStream in = wire;
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(wire);
+        }
+        byte[] bytes;
+        try {
+            bytes = readFully(in);
+        } finally {
+            in.close();
+        }
+        mBytesTransferred.addAndGet(wire.getCount());
+        mBytesDecoded.addAndGet(bytes.length);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Counts the bytes read through it, used to measure the compressed body size.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
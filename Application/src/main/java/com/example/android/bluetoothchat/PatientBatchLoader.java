@@ -0,0 +1,230 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+
+import com.example.android.common.logger.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the medication data of many patients at once, for caretakers looking after a whole
+ * ward. Patients are requested in batches of up to {@link #MAX_BATCH_SIZE} per call and the
+ * batches run in parallel, so a ward loads in about one round trip. If the backend turns out not
+ * to support batch requests, every patient is fetched on its own with at most
+ * {@link #MAX_PARALLEL_REQUESTS} requests in flight.
+ * <p>
+ * All loads go through one {@link MedsApiClient}, so they share its conditional request cache,
+ * and the latest data of every patient is kept for {@link #getPatientData(String)}.
+ */
+public class PatientBatchLoader {
+
+    private static final String TAG = "PatientBatchLoader";
+
+    public static final int MAX_BATCH_SIZE = 25;
+    public static final int MAX_PARALLEL_REQUESTS = 8;
+
+    /**
+     * Receives results as they arrive. Called on a background thread.
+     */
+    public interface Listener {
+        /**
+         * @param patientId   The patient that was loaded
+         * @param patientData The patient JSON, in the same shape as a single patient fetch
+         */
+        void onPatientLoaded(String patientId, String patientData);
+
+        void onPatientFailed(String patientId, IOException e);
+
+        /**
+         * Called once after every patient has either loaded or failed.
+         */
+        void onLoadFinished(int loaded, int failed, long elapsedMs);
+    }
+
+    private static PatientBatchLoader sInstance;
+
+    private final MedsApiClient mClient;
+    private final ExecutorService mExecutor;
+    private final Map<String, String> mPatients = new ConcurrentHashMap<String, String>();
+
+    // Cleared once the backend rejects a batch request, after which patients go one by one
+    private volatile boolean mBatchSupported = true;
+
+    public static synchronized PatientBatchLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PatientBatchLoader(MedsApiClient.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    public PatientBatchLoader(MedsApiClient client) {
+        mClient = client;
+        mExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_REQUESTS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Return the latest data loaded for a patient, or null if it has not been loaded.
+     */
+    public String getPatientData(String patientId) {
+        return mPatients.get(patientId);
+    }
+
+    /**
+     * Loads all given patients in the background.
+     *
+     * @param patientIds The patients to load
+     * @param listener   Receives every patient as soon as it arrives
+     */
+    public void load(List<String> patientIds, Listener listener) {
+        if (patientIds.isEmpty()) {
+            listener.onLoadFinished(0, 0, 0);
+            return;
+        }
+        Load load = new Load(patientIds.size(), listener);
+        for (int start = 0; start < patientIds.size(); start += MAX_BATCH_SIZE) {
+            final List<String> batch = new ArrayList<String>(patientIds.subList(start,
+                    Math.min(start + MAX_BATCH_SIZE, patientIds.size())));
+            if (mBatchSupported && batch.size() > 1) {
+                submitBatch(batch, load);
+            } else {
+                for (String patientId : batch) {
+                    submitSingle(patientId, load);
+                }
+            }
+        }
+    }
+
+    private void submitBatch(final List<String> batch, final Load load) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MedsApiClient.Response response;
+                try {
+                    response = mClient.fetch(MedsApiClient.currentMedsBatchPath(batch));
+                    splitBatch(response.body, batch, load);
+                    return;
+                } catch (MedsApiClient.StatusException e) {
+                    if (e.statusCode == 400 || e.statusCode == 404 || e.statusCode == 501) {
+                        Log.i(TAG, "Backend has no batch requests, fetching one by one");
+                        mBatchSupported = false;
+                    } else {
+                        Log.w(TAG, "Batch request failed, fetching one by one", e);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Batch request failed, fetching one by one", e);
+                } catch (JSONException e) {
+                    Log.w(TAG, "Malformed batch response, fetching one by one", e);
+                }
+                for (String patientId : batch) {
+                    submitSingle(patientId, load);
+                }
+            }
+        });
+    }
+
+    private void submitSingle(final String patientId, final Load load) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MedsApiClient.Response response =
+                            mClient.fetch(MedsApiClient.currentMedsPath(patientId));
+                    deliver(patientId, response.body, load);
+                } catch (IOException e) {
+                    load.failed(patientId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Splits a batch response into single patient documents and delivers them. Patients missing
+     * from the response are fetched on their own.
+     */
+    private void splitBatch(String body, List<String> batch, Load load) throws JSONException {
+        JSONArray patients = new JSONObject(body).getJSONObject("message")
+                .getJSONArray("patients");
+        List<String> missing = new ArrayList<String>(batch);
+        List<String> ids = new ArrayList<String>(patients.length());
+        List<String> documents = new ArrayList<String>(patients.length());
+        for (int i = 0; i < patients.length(); i++) {
+            JSONObject message = patients.getJSONObject(i);
+            String patientId = message.getString("patientId");
+            JSONObject document = new JSONObject();
+            document.put("status", "ok");
+            document.put("message", message);
+            ids.add(patientId);
+            documents.add(document.toString());
+        }
+        // Parse everything before delivering, so a malformed response is retried as a whole
+        for (int i = 0; i < ids.size(); i++) {
+            if (missing.remove(ids.get(i))) {
+                deliver(ids.get(i), documents.get(i), load);
+            }
+        }
+        for (String patientId : missing) {
+            submitSingle(patientId, load);
+        }
+    }
+
+    private void deliver(String patientId, String patientData, Load load) {
+        mPatients.put(patientId, patientData);
+        load.loaded(patientId, patientData);
+    }
+
+    /**
+     * Book-keeping for one call to {@link #load(List, Listener)}.
+     */
+    private static class Load {
+        private final Listener mListener;
+        private final AtomicInteger mRemaining;
+        private final AtomicInteger mLoaded = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final long mStartNanos = System.nanoTime();
+
+        Load(int count, Listener listener) {
+            mListener = listener;
+            mRemaining = new AtomicInteger(count);
+        }
+
+        void loaded(String patientId, String patientData) {
+            mLoaded.incrementAndGet();
+            mListener.onPatientLoaded(patientId, patientData);
+            finishIfDone();
+        }
+
+        void failed(String patientId, IOException e) {
+            mFailed.incrementAndGet();
+            mListener.onPatientFailed(patientId, e);
+            finishIfDone();
+        }
+
+        private void finishIfDone() {
+            if (mRemaining.decrementAndGet() == 0) {
+                long elapsedMs = (System.nanoTime() - mStartNanos) / 1000000L;
+                mListener.onLoadFinished(mLoaded.get(), mFailed.get(), elapsedMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.bluetoothchat;
+
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide holder for the patient data loaded from the server. Consumers subscribe to it
+ * instead of reading a {@link android.os.Bundle} that may not have been filled in yet, and are
+ * notified as soon as the data is published.
+ */
+public class PatientDataSource {
+
+    /**
+     * Callback invoked when patient data becomes available.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that published the data. Subscribers that touch the UI should
+         * hand the call over to their own Handler.
+         *
+         * @param patientData The patient JSON as returned by the server
+         */
+        void onPatientData(String patientData);
+    }
+
+    private static PatientDataSource sInstance;
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private String mPatientData;
+    private long mPublishedAt;
+
+    public static synchronized PatientDataSource getInstance() {
+        if (sInstance == null) {
+            sInstance = new PatientDataSource();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Stores new patient data and notifies all subscribers.
+     *
+     * @param patientData The patient JSON as returned by the server
+     */
+    public void publish(String patientData) {
+        synchronized (this) {
+            mPatientData = patientData;
+            mPublishedAt = SystemClock.elapsedRealtime();
+        }
+        for (Listener listener : mListeners) {
+            listener.onPatientData(patientData);
+        }
+    }
+
+    /**
+     * Return the latest patient data, or null if nothing has been published yet.
+     */
+    public synchronized String getPatientData() {
+        return mPatientData;
+    }
+
+    /**
+     * Return the {@link SystemClock#elapsedRealtime()} at which the current data was published,
+     * or 0 if nothing has been published yet.
+     */
+    public synchronized long getPublishedAt() {
+        return mPublishedAt;
+    }
+
+    /**
+     * Registers a listener. If data is already available the listener is called right away.
+     */
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+        String patientData = getPatientData();
+        if (patientData != null) {
+            listener.onPatientData(patientData);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the patients this device looks after and the latest data stored for each of them,
+ * so that the schedules synced in the background are available before any network request is
+ * made.
+ */
+public class PatientRegistry {
+
+    private static final String PREFS_NAME = "patients";
+    private static final String KEY_PATIENT_IDS = "patient_ids";
+    private static final String KEY_CURRENT_PATIENT = "current_patient";
+    private static final String KEY_DATA_PREFIX = "data_";
+    private static final String KEY_STORED_AT_PREFIX = "stored_at_";
+
+    private final SharedPreferences mPrefs;
+
+    public PatientRegistry(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds a patient to the set that is kept in sync.
+     */
+    public synchronized void addPatient(String patientId) {
+        Set<String> ids = new HashSet<String>(
+                mPrefs.getStringSet(KEY_PATIENT_IDS, new HashSet<String>()));
+        if (ids.add(patientId)) {
+            mPrefs.edit().putStringSet(KEY_PATIENT_IDS, ids).apply();
+        }
+    }
+
+    /**
+     * Return all patients that are kept in sync.
+     */
+    public synchronized List<String> getPatientIds() {
+        return new ArrayList<String>(mPrefs.getStringSet(KEY_PATIENT_IDS, new HashSet<String>()));
+    }
+
+    /**
+     * Sets the patient whose dispenser this device is configuring, and adds it to the registry.
+     */
+    public synchronized void setCurrentPatientId(String patientId) {
+        addPatient(patientId);
+        mPrefs.edit().putString(KEY_CURRENT_PATIENT, patientId).apply();
+    }
+
+    /**
+     * Return the patient whose dispenser this device is configuring, or null.
+     */
+    public synchronized String getCurrentPatientId() {
+        return mPrefs.getString(KEY_CURRENT_PATIENT, null);
+    }
+
+    /**
+     * Return the last stored data of a patient, or null if none has been stored.
+     */
+    public synchronized String getPatientData(String patientId) {
+        return mPrefs.getString(KEY_DATA_PREFIX + patientId, null);
+    }
+
+    /**
+     * Return the time at which data of a patient was first stored, or 0. This is taken as the
+     * start of the patient's current course.
+     */
+    public synchronized long getDataStoredAt(String patientId) {
+        return mPrefs.getLong(KEY_STORED_AT_PREFIX + patientId, 0);
+    }
+
+    /**
+     * Stores the data of a patient. The time it was first stored is kept when it changes, a
+     * new version of the schedule doesn't restart the course.
+     *
+     * @return Whether the data differs from what was stored before
+     */
+    public synchronized boolean putPatientData(String patientId, String patientData) {
+        if (patientData.equals(getPatientData(patientId))) {
+            return false;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putString(KEY_DATA_PREFIX + patientId, patientData);
+        if (!mPrefs.contains(KEY_STORED_AT_PREFIX + patientId)) {
+            editor.putLong(KEY_STORED_AT_PREFIX + patientId, System.currentTimeMillis());
+        }
+        editor.apply();
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.android.bluetoothchat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Schedules the sync again after a reboot, which alarms don't survive. Kept apart from
+ * {@link ScheduleSyncReceiver} for the same reason as {@link DoseBootReceiver}: the boot
+ * broadcast needs an exported receiver, and any app could have an exported receiver sync.
+ */
+public class ScheduleSyncBootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            ScheduleSyncReceiver.schedule(context);
+        }
+    }
+}
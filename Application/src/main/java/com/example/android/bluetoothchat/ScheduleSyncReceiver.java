@@ -0,0 +1,186 @@
+package com.example.android.bluetoothchat;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Refreshes the schedules of all known patients in the background. The refresh runs off an
+ * inexact repeating alarm, which the system batches with the wakeups of other apps instead of
+ * waking the device just for us, and fetches every patient through one batched
+ * {@link PatientBatchLoader} load.
+ * <p>
+ * Dispenser events waiting in the {@link EventOutbox} are uploaded in the same wakeup, and the
+ * {@link EventJournal} is compacted.
+ * <p>
+ * Changed data is stored in the {@link PatientRegistry}, and the current patient's data is
+ * published to the {@link PatientDataSource} so that a connected dispenser is reconfigured.
+ * Duration and bytes transferred of the last sync are kept for {@link #getLastSyncDurationMs}
+ * and {@link #getLastSyncBytes}.
+ * <p>
+ * Only the app's own alarm reaches this receiver, {@link ScheduleSyncBootReceiver} sets the
+ * alarm again after a reboot.
+ */
+public class ScheduleSyncReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "ScheduleSyncReceiver";
+
+    private static final String ACTION_SYNC = "com.example.android.bluetoothchat.action.SYNC";
+
+    private static final long SYNC_INTERVAL_MS = AlarmManager.INTERVAL_HOUR;
+    // The system kills a broadcast that runs for 10 seconds, the sync lets go of it before
+    private static final long SYNC_TIMEOUT_MS = 9000;
+    // Journal segments are kept at least this long, even once nothing needs them
+    private static final long JOURNAL_RETENTION_MS = 7 * AlarmManager.INTERVAL_DAY;
+
+    private static final String PREFS_NAME = "schedule_sync";
+    private static final String KEY_LAST_SYNC_AT = "last_sync_at";
+    private static final String KEY_LAST_SYNC_DURATION = "last_sync_duration";
+    private static final String KEY_LAST_SYNC_BYTES = "last_sync_bytes";
+    private static final String KEY_LAST_SYNC_CHANGED = "last_sync_changed";
+
+    /**
+     * Schedules the periodic sync, unless it is already scheduled. Replacing the alarm would push
+     * the next sync back by a whole interval every time this is called.
+     */
+    public static void schedule(Context context) {
+        if (syncIntent(context, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + SYNC_INTERVAL_MS, SYNC_INTERVAL_MS,
+                syncIntent(context, PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * Return how long the last sync took, or -1 if none has run yet.
+     */
+    public static long getLastSyncDurationMs(Context context) {
+        return prefs(context).getLong(KEY_LAST_SYNC_DURATION, -1);
+    }
+
+    /**
+     * Return the compressed body bytes the last sync transferred, or -1 if none has run yet.
+     */
+    public static long getLastSyncBytes(Context context) {
+        return prefs(context).getLong(KEY_LAST_SYNC_BYTES, -1);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_SYNC.equals(intent.getAction())) {
+            sync(context.getApplicationContext(), goAsync());
+        }
+    }
+
+    /**
+     * Loads all known patients and keeps the broadcast, and with it the alarm's wake lock,
+     * alive until the load has finished, or for at most {@link #SYNC_TIMEOUT_MS}. A load that
+     * takes longer goes on without the wake lock, and stores what it gets when the device is
+     * awake again.
+     */
+    private void sync(final Context context, final PendingResult result) {
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    Log.w(TAG, "Sync still running after " + SYNC_TIMEOUT_MS + "ms, letting go");
+                    result.finish();
+                }
+            }
+        };
+        handler.postDelayed(timeout, SYNC_TIMEOUT_MS);
+
+        final PatientRegistry registry = new PatientRegistry(context);
+        List<String> patientIds = registry.getPatientIds();
+        final String currentPatientId = registry.getCurrentPatientId();
+        final MedsApiClient client = MedsApiClient.getInstance(context);
+        final long bytesBefore = client.getBytesTransferred();
+
+        // The radio is woken up for the sync anyway, upload pending events along with it
+        EventOutbox outbox = EventOutbox.getInstance(context);
+        outbox.flush();
+        compactJournal(context, outbox);
+
+        Log.d(TAG, "Syncing " + patientIds.size() + " patients");
+        PatientBatchLoader.getInstance(context).load(patientIds, new PatientBatchLoader.Listener() {
+            private int mChanged;
+
+            @Override
+            public void onPatientLoaded(String patientId, String patientData) {
+                if (!registry.putPatientData(patientId, patientData)) {
+                    return;
+                }
+                synchronized (this) {
+                    mChanged++;
+                }
+                DoseAlarmReceiver.onPatientDataChanged(context, patientId, patientData);
+                if (patientId.equals(currentPatientId)) {
+                    PatientDataSource.getInstance().publish(patientData);
+                }
+            }
+
+            @Override
+            public void onPatientFailed(String patientId, IOException e) {
+                Log.w(TAG, "Could not sync patient " + patientId, e);
+            }
+
+            @Override
+            public void onLoadFinished(int loaded, int failed, long elapsedMs) {
+                long bytes = client.getBytesTransferred() - bytesBefore;
+                int changed;
+                synchronized (this) {
+                    changed = mChanged;
+                }
+                prefs(context).edit()
+                        .putLong(KEY_LAST_SYNC_AT, System.currentTimeMillis())
+                        .putLong(KEY_LAST_SYNC_DURATION, elapsedMs)
+                        .putLong(KEY_LAST_SYNC_BYTES, bytes)
+                        .putInt(KEY_LAST_SYNC_CHANGED, changed)
+                        .apply();
+                Log.i(TAG, "Synced " + loaded + " patients in " + elapsedMs + "ms, "
+                        + bytes + " bytes, " + changed + " changed, " + failed + " failed");
+                handler.removeCallbacks(timeout);
+                if (finished.compareAndSet(false, true)) {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the journal segments that neither the upload nor the rollups need anymore: the
+     * events in them were uploaded and are included in the saved rollups.
+     */
+    private static void compactJournal(Context context, EventOutbox outbox) {
+        long needed = Math.min(outbox.getUploadedSequence(),
+                AdherenceRollups.getInstance(context).getSavedSequence());
+        EventJournal.getInstance(context).compact(needed + 1,
+                System.currentTimeMillis() - JOURNAL_RETENTION_MS);
+    }
+
+    private static PendingIntent syncIntent(Context context, int flags) {
+        Intent intent = new Intent(context, ScheduleSyncReceiver.class);
+        intent.setAction(ACTION_SYNC);
+        return PendingIntent.getBroadcast(context, 0, intent, flags);
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
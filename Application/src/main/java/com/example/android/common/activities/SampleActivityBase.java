@@ -16,11 +16,19 @@
 
 package com.example.android.common.activities;
 
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
+import com.example.android.common.logger.AsyncLogNode;
+import com.example.android.common.logger.BinaryFileLogNode;
+import com.example.android.common.logger.FanOutLogNode;
 import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogNode;
 import com.example.android.common.logger.LogWrapper;
+import com.example.android.common.logger.RateLimitingLogNode;
+
+import java.io.File;
 
 /**
  * Base launcher activity, to handle most of the common plumbing for samples.
@@ -29,6 +37,16 @@ public class SampleActivityBase extends FragmentActivity {
 
     public static final String TAG = "SampleActivityBase";
 
+    // Built once per process and shared by every activity, its files stay open for as long as
+    // the app runs. Guarded by the class.
+    private static BinaryFileLogNode sFileLog;
+    private static FanOutLogNode sLogTopology;
+    // The branch ending in the on-screen log of the started activity, if it has one
+    private static AsyncLogNode sUiLog;
+
+    // The on-screen log this activity attached, null for none
+    private LogNode mUiLogNode;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -40,13 +58,84 @@ public class SampleActivityBase extends FragmentActivity {
         initializeLogging();
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Unless the next activity attached its own already
+        if (mUiLogNode != null && sUiLog.getNext() == mUiLogNode) {
+            sUiLog.setNext(null);
+        }
+        mUiLogNode = null;
+    }
+
     /** Set up targets to receive log data */
     public void initializeLogging() {
-        // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
+        synchronized (SampleActivityBase.class) {
+            if (sLogTopology == null) {
+                sLogTopology = buildLogTopology();
+                Log.setLogNode(sLogTopology);
+                Log.i(TAG, "Ready");
+            }
+        }
+        // Only the on-screen log belongs to the activity
+        mUiLogNode = getUiLogNode();
+        sUiLog.setNext(mUiLogNode);
+    }
+
+    /**
+     * Return the node that shows the log in this activity while it is started, or null for
+     * none.
+     */
+    protected LogNode getUiLogNode() {
+        return null;
+    }
+
+    /**
+     * Builds the nodes the log goes through, once per process. Called locked.
+     */
+    private FanOutLogNode buildLogTopology() {
+        // Release builds skip debug and verbose messages without even formatting them
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        Log.setDefaultLevel(debuggable ? Log.VERBOSE : Log.INFO);
+
+        // Using Log, front-end to the logging topology, emulates android.util.log method
+        // signatures. Each branch gets the records on a thread of its own, so callers only
+        // queue them and a slow branch holds up no other.
+        FanOutLogNode fanOut = new FanOutLogNode();
+
         // Wraps Android's native log framework
         LogWrapper logWrapper = new LogWrapper();
-        Log.setLogNode(logWrapper);
+        fanOut.addBranch(rateLimited(logWrapper));
+
+        // Keeps the log on disk for diagnosing problems in the field. When the disk is slow
+        // it sheds debug and verbose records first.
+        fanOut.addBranch(rateLimited(getFileLog()), AsyncLogNode.DEFAULT_CAPACITY, Log.INFO);
+
+        // Ends nowhere until an activity attaches its on-screen log, which is the slowest
+        sUiLog = fanOut.addBranch(null, AsyncLogNode.DEFAULT_CAPACITY, Log.INFO);
+        return fanOut;
+    }
+
+    /**
+     * Return a node that keeps log storms from the given one.
+     */
+    protected static LogNode rateLimited(LogNode node) {
+        // A dispenser failing in a loop mustn't flood logcat and the files
+        RateLimitingLogNode rateLimiter = new RateLimitingLogNode();
+        rateLimiter.setSampling(Log.VERBOSE, 10);
+        rateLimiter.setNext(node);
+        return rateLimiter;
+    }
 
-        Log.i(TAG, "Ready");
+    /**
+     * Return the node that writes the log to files, creating it on first use.
+     */
+    protected BinaryFileLogNode getFileLog() {
+        synchronized (SampleActivityBase.class) {
+            if (sFileLog == null) {
+                sFileLog = new BinaryFileLogNode(new File(getFilesDir(), "logs"));
+            }
+            return sFileLog;
+        }
     }
 }
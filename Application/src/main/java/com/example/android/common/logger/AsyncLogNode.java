@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} that takes log data off the caller's thread. Each call copies its arguments
+ * into a slot of a fixed ring of {@link LogRecord}s and returns, without locking or allocating;
+ * a background thread hands whatever has piled up to the next node as one batch.
+ *
+ * <p>Set it as the head of the chain with {@link Log#setLogNode(LogNode)}. When the ring is
+ * full, because the nodes after this one can't keep up, records are dropped rather than
+ * holding up the caller, and the next batch starts with a warning saying how many. With
+ * {@link #setShedPriority(int)}, less important records are dropped earlier, to keep room for
+ * the others.</p>
+ */
+public class AsyncLogNode implements LogBatchNode {
+
+    private static final String TAG = "AsyncLogNode";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Fraction of the ring after which records below the shed priority are dropped
+    private static final double SHED_FILL = 0.75;
+
+    // Longest the drain thread sleeps. Callers don't fence when publishing a record, so now and
+    // then one slips in just as the thread goes to sleep and has to wait this long.
+    private static final long IDLE_PARK_NS = 100 * 1000 * 1000;
+
+    private final LogRecord[] mRecords;
+    // For each slot, the sequence number of the next record to claim it, plus one once that
+    // record is published. This is what lets producers and the drain thread share the ring
+    // without a lock.
+    private final AtomicLongArray mSlots;
+    private final int mMask;
+    // Next sequence number a producer claims
+    private final AtomicLong mTail = new AtomicLong();
+    // Next sequence number the drain thread takes, only written by it
+    private volatile long mHead;
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final ArrayList<LogRecord> mBatch;
+    private final LogRecord mDropWarning = new LogRecord();
+    private final Thread mThread;
+    private volatile boolean mParked;
+    private volatile boolean mClosed;
+    // Below this priority records are dropped once the ring is SHED_FILL full
+    private volatile int mShedPriority = Log.NONE;
+
+    // The next LogNode in the chain.
+    private volatile LogNode mNext;
+
+    public AsyncLogNode(LogNode next) {
+        this(next, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param next The next LogNode in the pipeline.
+     * @param capacity How many records can wait to be handed on, rounded up to a power of two.
+     */
+    public AsyncLogNode(LogNode next, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mRecords = new LogRecord[size];
+        mSlots = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mRecords[i] = new LogRecord();
+            mSlots.set(i, i);
+        }
+        mMask = size - 1;
+        mBatch = new ArrayList<LogRecord>(size + 1);
+        mNext = next;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Drops records below the given priority once the ring is three quarters full, so that a
+     * slow node loses its least important records first. {@link Log#NONE} turns this off.
+     */
+    public void setShedPriority(int priority) {
+        mShedPriority = priority;
+    }
+
+    /**
+     * Queues the log data for the next node and returns. Safe to call from any thread.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        print(priority, tag, msg, tr, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues the records, fields included, for the next node and returns.
+     */
+    @Override
+    public void printBatch(List<LogRecord> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            print(batch.get(i));
+        }
+    }
+
+    /**
+     * Queues log data that was logged at the given time.
+     */
+    void print(int priority, String tag, String msg, Throwable tr, long timeMillis) {
+        long sequence = claim(priority);
+        if (sequence >= 0) {
+            mRecords[(int) sequence & mMask].set(priority, tag, msg, tr, timeMillis);
+            publish(sequence);
+        }
+    }
+
+    /**
+     * Queues a copy of the record.
+     */
+    void print(LogRecord record) {
+        long sequence = claim(record.priority);
+        if (sequence >= 0) {
+            mRecords[(int) sequence & mMask].copyFrom(record);
+            publish(sequence);
+        }
+    }
+
+    /**
+     * Return the sequence number of a free slot for a record, or -1 if the record is dropped.
+     */
+    private long claim(int priority) {
+        if (mClosed) {
+            return -1;
+        }
+        if (priority < mShedPriority
+                && mTail.get() - mHead >= (long) (mRecords.length * SHED_FILL)) {
+            mDropped.incrementAndGet();
+            return -1;
+        }
+        while (true) {
+            long sequence = mTail.get();
+            long slot = mSlots.get((int) sequence & mMask);
+            if (slot == sequence) {
+                if (mTail.compareAndSet(sequence, sequence + 1)) {
+                    return sequence;
+                }
+            } else if (slot < sequence) {
+                // The drain thread hasn't taken the record a lap ahead of this one yet
+                mDropped.incrementAndGet();
+                return -1;
+            }
+            // Else another producer claimed it first, try the next one
+        }
+    }
+
+    private void publish(long sequence) {
+        mSlots.lazySet((int) sequence & mMask, sequence + 1);
+        if (mParked) {
+            mParked = false;
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Waits until everything logged before this call has been handed to the next node.
+     */
+    public void flush() {
+        long target = mTail.get();
+        while (mHead < target && mThread.isAlive()) {
+            LockSupport.unpark(mThread);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Hands on what is still queued and stops the background thread. Later calls are ignored.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return how many records were dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void drain() {
+        long dropped = 0;
+        while (true) {
+            // Read before taking the batch, so that what is logged after closing is still drained
+            boolean closed = mClosed;
+            long head = mHead;
+            mBatch.clear();
+            long total = mDropped.get();
+            if (total != dropped) {
+                mDropWarning.set(Log.WARN, TAG, "Dropped " + (total - dropped)
+                        + " log records, the log can't keep up", null,
+                        System.currentTimeMillis());
+                mBatch.add(mDropWarning);
+                dropped = total;
+            }
+            long end = head;
+            while (mSlots.get((int) end & mMask) == end + 1) {
+                mBatch.add(mRecords[(int) end & mMask]);
+                end++;
+            }
+
+            if (!mBatch.isEmpty()) {
+                try {
+                    LogRecord.deliver(mNext, mBatch);
+                } catch (RuntimeException e) {
+                    // A broken node mustn't stop the logging of the others
+                    android.util.Log.e(TAG, "Log node failed", e);
+                }
+            }
+            for (long sequence = head; sequence < end; sequence++) {
+                int index = (int) sequence & mMask;
+                mRecords[index].clear();
+                mSlots.lazySet(index, sequence + mRecords.length);
+            }
+            mHead = end;
+
+            if (end == head) {
+                if (closed) {
+                    return;
+                }
+                mParked = true;
+                // Catches most records published since the check above, callers only unpark
+                // the thread once they see it parked
+                if (mSlots.get((int) end & mMask) != end + 1 && !mClosed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+                mParked = false;
+            }
+        }
+    }
+}
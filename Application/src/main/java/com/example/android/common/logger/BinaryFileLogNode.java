@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link LogNode} that keeps the log in a few files of fixed size, so that it outlives the app
+ * for diagnosing problems in the field. Each file is memory mapped: writing a record is a copy
+ * into memory, and what was written is on its way to disk even if the app is killed the next
+ * moment. When a file is full the oldest one is overwritten.
+ *
+ * <p>Records are binary and compact: a timestamp relative to the previous one, the priority,
+ * an id for the tag, which is only written out the first time a file uses it, the message and
+ * stack trace as UTF-8, and the {@link LogFields} of the record, numbers as numbers and keys as
+ * ids like tags. {@link BinaryLogDecoder} turns the files back into text.</p>
+ *
+ * <p>The writing happens on the caller's thread, which is why this node is meant to sit behind
+ * an {@link AsyncLogNode}, where it takes whole batches at once.</p>
+ */
+public class BinaryFileLogNode implements LogBatchNode {
+
+    private static final String TAG = "BinaryFileLogNode";
+
+    static final int MAGIC = 0x444c4f47; // "DLOG"
+    static final int FILE_VERSION = 2;
+    // Files without fields, which can still be decoded
+    static final int FIRST_FILE_VERSION = 1;
+    // Magic, version, sequence number of the file and time of its first record
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    static final String FILE_PREFIX = "log.";
+
+    // Mapped files are all zeros past the last record
+    static final byte TYPE_END = 0;
+    static final byte TYPE_TAG = 1;
+    static final byte TYPE_RECORD = 2;
+    // Set on the priority of a record that has a stack trace
+    static final int FLAG_TRACE = 0x80;
+    // Set on the priority of a record that has fields
+    static final int FLAG_FIELDS = 0x40;
+    static final int PRIORITY_MASK = 0x3f;
+    // Types of field values
+    static final byte FIELD_NUMBER = 0;
+    static final byte FIELD_TEXT = 1;
+    static final byte FIELD_NULL = 2;
+
+    public static final int DEFAULT_FILE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_FILE_COUNT = 4;
+
+    // Longer texts are cut off, so a record always fits a file
+    private static final int MAX_TEXT_BYTES = 16 * 1024;
+    private static final int MAX_NAME_BYTES = 256;
+    private static final int MAX_FIELD_BYTES = 1024;
+    // A record with everything at its longest, with definitions of its tag and keys
+    private static final int MAX_RECORD_SIZE = 1 + 10 + 1 + 5 + 2 * (5 + MAX_TEXT_BYTES)
+            + 5 + LogFields.MAX_FIELDS * (5 + 1 + 5 + MAX_FIELD_BYTES)
+            + (1 + LogFields.MAX_FIELDS) * (1 + 5 + 5 + MAX_NAME_BYTES);
+
+    private final File mDirectory;
+    private final int mFileSize;
+    private final int mFileCount;
+
+    private MappedByteBuffer mBuffer;
+    private long mFileSequence;
+    private long mLastTime;
+    // Ids of the tags and field keys written to the current file
+    private final Map<String, Integer> mTagIds = new HashMap<String, Integer>();
+    // The record being written, which is only copied to the file once it is known to fit
+    private final ByteBuffer mRecord = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private final byte[] mText = new byte[MAX_TEXT_BYTES];
+
+    // The next LogNode in the chain.
+    private LogNode mNext;
+
+    public BinaryFileLogNode(File directory) {
+        this(directory, DEFAULT_FILE_SIZE, DEFAULT_FILE_COUNT);
+    }
+
+    /**
+     * @param directory Where the files go, it holds nothing else.
+     * @param fileSize How large each file is.
+     * @param fileCount How many files there are at most, the log holds about that many minus
+     *                  one times fileSize.
+     */
+    public BinaryFileLogNode(File directory, int fileSize, int fileCount) {
+        mDirectory = directory;
+        mFileSize = Math.max(fileSize, HEADER_SIZE + MAX_RECORD_SIZE + 1);
+        mFileCount = Math.max(2, fileCount);
+        mFileSequence = lastFileSequence(directory);
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        synchronized (this) {
+            write(priority, tag, msg, tr, null, System.currentTimeMillis());
+        }
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
+        }
+    }
+
+    @Override
+    public void printBatch(List<LogRecord> batch) {
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                LogRecord record = batch.get(i);
+                write(record.priority, record.tag, record.msg, record.tr, record.fields,
+                        record.timeMillis);
+            }
+        }
+        LogRecord.deliver(mNext, batch);
+    }
+
+    /**
+     * Has the data written so far put on disk. Not needed for it to survive the app, only the
+     * device shutting down.
+     */
+    public synchronized void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Return the file with the given sequence number.
+     */
+    public File getFile(long sequence) {
+        return new File(mDirectory, FILE_PREFIX + (sequence % mFileCount));
+    }
+
+    private void write(int priority, String tag, String msg, Throwable tr, LogFields fields,
+            long time) {
+        if (mBuffer == null && !roll(time)) {
+            return;
+        }
+        // The stack trace is only rendered here, on the thread of this node
+        String trace = tr != null ? android.util.Log.getStackTraceString(tr) : null;
+        encode(priority, tag, msg, trace, fields, time);
+        if (mBuffer.remaining() < mRecord.position() + 1) {
+            // Ids and the time are relative to the file, so the record is encoded again
+            if (!roll(time)) {
+                return;
+            }
+            encode(priority, tag, msg, trace, fields, time);
+        }
+        mRecord.flip();
+        mBuffer.put(mRecord);
+        mLastTime = time;
+    }
+
+    /**
+     * Encodes a record into mRecord, preceded by the definitions of the tag and keys it is the
+     * first in the file to use.
+     */
+    private void encode(int priority, String tag, String msg, String trace, LogFields fields,
+            long time) {
+        mRecord.clear();
+        int fieldCount = fields != null ? fields.size() : 0;
+        int tagId = tag != null ? id(tag) : 0;
+        for (int i = 0; i < fieldCount; i++) {
+            id(fields.getKey(i));
+        }
+
+        mRecord.put(TYPE_RECORD);
+        long delta = time - mLastTime;
+        // Zigzag, the clock can go back
+        putVarint((delta << 1) ^ (delta >> 63));
+        mRecord.put((byte) ((priority & PRIORITY_MASK) | (trace != null ? FLAG_TRACE : 0)
+                | (fieldCount > 0 ? FLAG_FIELDS : 0)));
+        putVarint(tagId);
+        putText(msg, MAX_TEXT_BYTES);
+        if (trace != null) {
+            putText(trace, MAX_TEXT_BYTES);
+        }
+        if (fieldCount > 0) {
+            putVarint(fieldCount);
+            for (int i = 0; i < fieldCount; i++) {
+                putVarint(mTagIds.get(fields.getKey(i)));
+                if (fields.isNumber(i)) {
+                    long value = fields.getNumber(i);
+                    mRecord.put(FIELD_NUMBER);
+                    putVarint((value << 1) ^ (value >> 63));
+                } else if (fields.getValue(i) == null) {
+                    mRecord.put(FIELD_NULL);
+                } else {
+                    mRecord.put(FIELD_TEXT);
+                    putText(String.valueOf(fields.getValue(i)), MAX_FIELD_BYTES);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the id of a tag or key in the current file, writing its definition into mRecord
+     * if it has none yet.
+     */
+    private int id(String name) {
+        Integer id = mTagIds.get(name);
+        if (id == null) {
+            id = mTagIds.size() + 1;
+            mTagIds.put(name, id);
+            mRecord.put(TYPE_TAG);
+            putVarint(id);
+            putText(name, MAX_NAME_BYTES);
+        }
+        return id;
+    }
+
+    /**
+     * Starts the next file, overwriting the oldest one.
+     *
+     * @return Whether there is a file to write to
+     */
+    private boolean roll(long time) {
+        mBuffer = null;
+        mTagIds.clear();
+        mFileSequence++;
+        File file = getFile(mFileSequence);
+        RandomAccessFile raf = null;
+        try {
+            mDirectory.mkdirs();
+            raf = new RandomAccessFile(file, "rw");
+            // Zeros past the last record mark the end of the data
+            raf.setLength(0);
+            raf.setLength(mFileSize);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } catch (IOException e) {
+            // Not through Log, that would come back here
+            android.util.Log.e(TAG, "Could not open " + file + ", not logging to it", e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+        mBuffer.putInt(MAGIC);
+        mBuffer.putInt(FILE_VERSION);
+        mBuffer.putLong(mFileSequence);
+        mBuffer.putLong(time);
+        mLastTime = time;
+        return true;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mRecord.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mRecord.put((byte) value);
+    }
+
+    /**
+     * Puts the length and UTF-8 of the text, or only a length of 0 for null.
+     */
+    private void putText(String text, int maxBytes) {
+        int length = text != null ? encode(text, maxBytes) : 0;
+        putVarint(length);
+        mRecord.put(mText, 0, length);
+    }
+
+    /**
+     * Encodes text as UTF-8 into mText without allocating, cutting it off at maxBytes.
+     *
+     * @return The number of bytes
+     */
+    private int encode(String text, int maxBytes) {
+        int capacity = Math.min(maxBytes, mText.length);
+        byte[] out = mText;
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (length + 1 > capacity) {
+                    break;
+                }
+                out[length++] = (byte) c;
+            } else if (c < 0x800) {
+                if (length + 2 > capacity) {
+                    break;
+                }
+                out[length++] = (byte) (0xc0 | (c >> 6));
+                out[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (length + 4 > capacity) {
+                    break;
+                }
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out[length++] = (byte) (0xf0 | (cp >> 18));
+                out[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                if (length + 3 > capacity) {
+                    break;
+                }
+                out[length++] = (byte) (0xe0 | (c >> 12));
+                out[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Return the highest sequence number of the files in the directory, 0 if there are none.
+     */
+    private static long lastFileSequence(File directory) {
+        long last = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return last;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX)) {
+                last = Math.max(last, readSequence(file));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Return the sequence number in the header of a file, or -1 if it has none.
+     */
+    static long readSequence(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC) {
+                return -1;
+            }
+            int version = in.readInt();
+            if (version < FIRST_FILE_VERSION || version > FILE_VERSION) {
+                return -1;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+}
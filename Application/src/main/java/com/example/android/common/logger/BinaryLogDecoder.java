@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the files of a {@link BinaryFileLogNode}, oldest record first. BinaryLogDump in the
+ * unit test sources prints them as text on a plain JVM.
+ */
+public class BinaryLogDecoder {
+
+    /**
+     * Receives the decoded records.
+     */
+    public interface Callback {
+        /**
+         * @param fields The fields of the record, only valid during the call.
+         */
+        void onRecord(long timeMillis, int priority, String tag, String msg, LogFields fields,
+                String trace);
+    }
+
+    /**
+     * Decodes the given files in the order they were written. Files that aren't logs are
+     * skipped, a damaged file is decoded up to the damage.
+     */
+    public static void decode(List<File> files, Callback callback) throws IOException {
+        final Map<File, Long> sequences = new HashMap<File, Long>();
+        List<File> logs = new ArrayList<File>();
+        for (File file : files) {
+            long sequence = BinaryFileLogNode.readSequence(file);
+            if (sequence >= 0) {
+                sequences.put(file, sequence);
+                logs.add(file);
+            }
+        }
+        Collections.sort(logs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long sa = sequences.get(a);
+                long sb = sequences.get(b);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+        for (File file : logs) {
+            decode(ByteBuffer.wrap(readFile(file)), callback);
+        }
+    }
+
+    private static void decode(ByteBuffer in, Callback callback)
+            throws UnsupportedEncodingException {
+        Map<Integer, String> tags = new HashMap<Integer, String>();
+        LogFields fields = new LogFields();
+        in.position(4);
+        // Version 1 has no fields, and the flag for them is part of the priority
+        boolean hasFields = in.getInt() > BinaryFileLogNode.FIRST_FILE_VERSION;
+        int priorityMask = hasFields ? BinaryFileLogNode.PRIORITY_MASK
+                : ~BinaryFileLogNode.FLAG_TRACE & 0xff;
+        in.position(BinaryFileLogNode.HEADER_SIZE - 8);
+        long time = in.getLong();
+        try {
+            while (in.hasRemaining()) {
+                byte type = in.get();
+                if (type == BinaryFileLogNode.TYPE_TAG) {
+                    int id = (int) getVarint(in);
+                    tags.put(id, getString(in));
+                } else if (type == BinaryFileLogNode.TYPE_RECORD) {
+                    long zigzag = getVarint(in);
+                    time += (zigzag >>> 1) ^ -(zigzag & 1);
+                    int priority = in.get() & 0xff;
+                    String tag = tags.get((int) getVarint(in));
+                    String msg = getString(in);
+                    String trace = null;
+                    if ((priority & BinaryFileLogNode.FLAG_TRACE) != 0) {
+                        trace = getString(in);
+                    }
+                    fields.clear();
+                    if (hasFields && (priority & BinaryFileLogNode.FLAG_FIELDS) != 0) {
+                        getFields(in, tags, fields);
+                    }
+                    callback.onRecord(time, priority & priorityMask, tag, msg, fields, trace);
+                } else {
+                    // TYPE_END, or the file was cut short
+                    return;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // A record the app was writing when it died
+        }
+    }
+
+    private static void getFields(ByteBuffer in, Map<Integer, String> keys, LogFields fields)
+            throws UnsupportedEncodingException {
+        int count = (int) getVarint(in);
+        for (int i = 0; i < count; i++) {
+            String key = keys.get((int) getVarint(in));
+            byte type = in.get();
+            if (type == BinaryFileLogNode.FIELD_NUMBER) {
+                long zigzag = getVarint(in);
+                fields.add(key, (zigzag >>> 1) ^ -(zigzag & 1));
+            } else if (type == BinaryFileLogNode.FIELD_TEXT) {
+                fields.add(key, getString(in));
+            } else if (type == BinaryFileLogNode.FIELD_NULL) {
+                fields.add(key, (Object) null);
+            } else {
+                throw new IllegalArgumentException("Bad field type " + type);
+            }
+        }
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static String getString(ByteBuffer in) throws UnsupportedEncodingException {
+        int length = (int) getVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad length " + length);
+        }
+        String text = new String(in.array(), in.position(), length, "UTF-8");
+        in.position(in.position() + length);
+        return text;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    static String priorityLetter(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return "V";
+            case Log.DEBUG:
+                return "D";
+            case Log.INFO:
+                return "I";
+            case Log.WARN:
+                return "W";
+            case Log.ERROR:
+                return "E";
+            case Log.ASSERT:
+                return "A";
+            default:
+                return "?";
+        }
+    }
+}
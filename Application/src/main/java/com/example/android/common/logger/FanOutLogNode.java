@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.List;
+
+/**
+ * {@link LogNode} that hands every record to several chains at once, where a plain chain
+ * passes it from one node to the next. Each chain is a branch with an {@link AsyncLogNode} of
+ * its own in front: its own ring, its own thread and its own limits for what to drop when it
+ * falls behind. A slow branch, like one ending in a {@link LogView}, then only loses its own
+ * records, without holding up the others or the caller.
+ *
+ * <p>Set it as the head of the topology with {@link Log#setLogNode(LogNode)}. The caller's
+ * cost is that of queueing the record once per branch.</p>
+ */
+public class FanOutLogNode implements LogBatchNode {
+
+    // Replaced rather than changed, so println() needs no lock
+    private volatile AsyncLogNode[] mBranches = new AsyncLogNode[0];
+
+    /**
+     * Adds a branch that drops the newest records when it falls behind.
+     *
+     * @param node The first LogNode of the branch.
+     * @return The queue in front of the branch
+     */
+    public AsyncLogNode addBranch(LogNode node) {
+        return addBranch(node, AsyncLogNode.DEFAULT_CAPACITY, Log.NONE);
+    }
+
+    /**
+     * Adds a branch.
+     *
+     * @param node The first LogNode of the branch.
+     * @param capacity How many records can wait for the branch.
+     * @param shedPriority Below this priority, records are dropped once the branch is three
+     *                     quarters behind, {@link Log#NONE} to only drop when it is full.
+     * @return The queue in front of the branch
+     */
+    public synchronized AsyncLogNode addBranch(LogNode node, int capacity, int shedPriority) {
+        AsyncLogNode branch = new AsyncLogNode(node, capacity);
+        branch.setShedPriority(shedPriority);
+        AsyncLogNode[] branches = new AsyncLogNode[mBranches.length + 1];
+        System.arraycopy(mBranches, 0, branches, 0, mBranches.length);
+        branches[mBranches.length] = branch;
+        mBranches = branches;
+        return branch;
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        AsyncLogNode[] branches = mBranches;
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < branches.length; i++) {
+            branches[i].print(priority, tag, msg, tr, time);
+        }
+    }
+
+    @Override
+    public void printBatch(List<LogRecord> batch) {
+        AsyncLogNode[] branches = mBranches;
+        for (int i = 0; i < batch.size(); i++) {
+            LogRecord record = batch.get(i);
+            for (int j = 0; j < branches.length; j++) {
+                branches[j].print(record);
+            }
+        }
+    }
+
+    /**
+     * Waits until everything logged before this call has been handed to every branch.
+     */
+    public void flush() {
+        for (AsyncLogNode branch : mBranches) {
+            branch.flush();
+        }
+    }
+
+    /**
+     * Hands on what is still queued and stops the threads of the branches. Later calls are
+     * ignored.
+     */
+    public synchronized void close() {
+        for (AsyncLogNode branch : mBranches) {
+            branch.close();
+        }
+    }
+
+    /**
+     * Return how many records the branches dropped, in the order they were added.
+     */
+    public long[] getDroppedCounts() {
+        AsyncLogNode[] branches = mBranches;
+        long[] dropped = new long[branches.length];
+        for (int i = 0; i < branches.length; i++) {
+            dropped[i] = branches[i].getDroppedCount();
+        }
+        return dropped;
+    }
+}
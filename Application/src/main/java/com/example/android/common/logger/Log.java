@@ -15,6 +15,11 @@
  */
 package com.example.android.common.logger;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Helper class for a list (or tree) of LoggerNodes.
  *
@@ -22,6 +27,16 @@ package com.example.android.common.logger;
  * an instance of it can function as a drop-in replacement for {@link android.util.Log}.
  * Most of the methods in this class server only to map a method call in Log to its equivalent
  * in LogNode.</p>
+ *
+ * <p>Each tag logs from a minimum priority up, set with {@link #setLevel(String, int)} or else
+ * {@link #setDefaultLevel(int)}. Data below it is dropped before it reaches the LogNodes. To
+ * not pay for building messages that are dropped anyway, pass the values that go in them as
+ * arguments, like {@code Log.d(TAG, "connect to: {}", device)}: each {@code {}} is replaced by
+ * the next argument, only once the message is known to be logged. When a message needs more
+ * than that, guard it with {@link #isLoggable(String, int)}.</p>
+ *
+ * <p>Values that are worth keeping apart from the message, to be read by tools, go in fields
+ * of a {@link LogEvent} started with {@link #at(int, String)}.</p>
  */
 public class Log {
     // Grabbing the native values from Android's native logging facilities,
@@ -33,9 +48,26 @@ public class Log {
     public static final int WARN = android.util.Log.WARN;
     public static final int ERROR = android.util.Log.ERROR;
     public static final int ASSERT = android.util.Log.ASSERT;
+    // As a level, logs nothing at all
+    public static final int SILENT = ASSERT + 1;
+
+    private static final String PLACEHOLDER = "{}";
 
     // Stores the beginning of the LogNode topology.
-    private static LogNode mLogNode;
+    private static volatile LogNode mLogNode;
+
+    // Minimum priorities by tag, replaced rather than changed so readers need no lock
+    private static volatile Map<String, Integer> sLevels = Collections.emptyMap();
+    private static volatile int sDefaultLevel = VERBOSE;
+    // The lowest of all the levels, which rejects most disabled calls with a single read
+    private static volatile int sMinLevel = VERBOSE;
+
+    private static final ThreadLocal<LogEvent> sEvents = new ThreadLocal<LogEvent>() {
+        @Override
+        protected LogEvent initialValue() {
+            return new LogEvent();
+        }
+    };
 
     /**
      * Returns the next LogNode in the linked list.
@@ -51,6 +83,50 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the minimum priority logged for tags without a level of their own.
+     */
+    public static synchronized void setDefaultLevel(int priority) {
+        sDefaultLevel = priority;
+        updateMinLevel();
+    }
+
+    /**
+     * Sets the minimum priority logged for a tag, {@link #SILENT} to log nothing of it, or
+     * {@link #NONE} to go back to the default level.
+     */
+    public static synchronized void setLevel(String tag, int priority) {
+        Map<String, Integer> levels = new HashMap<String, Integer>(sLevels);
+        if (priority == NONE) {
+            levels.remove(tag);
+        } else {
+            levels.put(tag, priority);
+        }
+        sLevels = levels.isEmpty() ? Collections.<String, Integer>emptyMap() : levels;
+        updateMinLevel();
+    }
+
+    private static void updateMinLevel() {
+        int min = sDefaultLevel;
+        for (Integer level : sLevels.values()) {
+            min = Math.min(min, level);
+        }
+        sMinLevel = min;
+    }
+
+    /**
+     * Return whether data of the given priority and tag would reach a LogNode. Doesn't
+     * allocate, so it can guard building a message that is costly.
+     */
+    public static boolean isLoggable(String tag, int priority) {
+        if (priority < sMinLevel || mLogNode == null) {
+            return false;
+        }
+        Map<String, Integer> levels = sLevels;
+        Integer level = levels.isEmpty() || tag == null ? null : levels.get(tag);
+        return priority >= (level != null ? level : sDefaultLevel);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,11 +138,67 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
-            mLogNode.println(priority, tag, msg, tr);
+        LogNode node = mLogNode;
+        if (node != null && isLoggable(tag, priority)) {
+            node.println(priority, tag, msg, tr);
         }
     }
 
+    /**
+     * Starts a record with fields, logged by {@link LogEvent#log(String, Throwable)}. Allocates
+     * nothing, and does nothing if the priority and tag aren't logged.
+     *
+     * @param priority Log level of the data being logged. Verbose, Error, etc.
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     */
+    public static LogEvent at(int priority, String tag) {
+        if (!isLoggable(tag, priority)) {
+            return LogEvent.DISABLED;
+        }
+        LogEvent event = sEvents.get();
+        if (event.mInUse) {
+            // Started while building another one on this thread, which keeps its own, or one
+            // that was never logged. The new one takes its place, so that an abandoned event
+            // costs one allocation rather than one for every later event
+            event = new LogEvent();
+            sEvents.set(event);
+        }
+        return event.start(priority, tag);
+    }
+
+    /**
+     * Hands records with fields to the LogNode, which gets them appended to the message if it
+     * doesn't take batches.
+     */
+    static void print(List<LogRecord> batch) {
+        LogRecord.deliver(mLogNode, batch);
+    }
+
+    /**
+     * Formats a message from its arguments and prints it, if the priority and tag are logged.
+     * A last argument left over by the format that is a Throwable is printed as such.
+     */
+    private static void printf(int priority, String tag, String format, int count,
+            Object arg1, Object arg2, Object arg3) {
+        if (!isLoggable(tag, priority)) {
+            return;
+        }
+        StringBuilder msg = new StringBuilder(format.length() + 32);
+        int used = 0;
+        int from = 0;
+        int at;
+        while (used < count && (at = format.indexOf(PLACEHOLDER, from)) >= 0) {
+            msg.append(format, from, at);
+            msg.append(used == 0 ? arg1 : used == 1 ? arg2 : arg3);
+            from = at + PLACEHOLDER.length();
+            used++;
+        }
+        msg.append(format, from, format.length());
+        Object last = count == 1 ? arg1 : count == 2 ? arg2 : arg3;
+        Throwable tr = used < count && last instanceof Throwable ? (Throwable) last : null;
+        println(priority, tag, msg.toString(), tr);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -101,6 +233,36 @@ public class Log {
         v(tag, msg, null);
     }
 
+    /**
+     * Prints a message at VERBOSE priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where the argument goes.
+     */
+    public static void v(String tag, String format, Object arg1) {
+        printf(VERBOSE, tag, format, 1, arg1, null, null);
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        printf(VERBOSE, tag, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        printf(VERBOSE, tag, format, 3, arg1, arg2, arg3);
+    }
+
 
     /**
      * Prints a message at DEBUG priority.
@@ -124,6 +286,36 @@ public class Log {
         d(tag, msg, null);
     }
 
+    /**
+     * Prints a message at DEBUG priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where the argument goes.
+     */
+    public static void d(String tag, String format, Object arg1) {
+        printf(DEBUG, tag, format, 1, arg1, null, null);
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        printf(DEBUG, tag, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        printf(DEBUG, tag, format, 3, arg1, arg2, arg3);
+    }
+
     /**
      * Prints a message at INFO priority.
      *
@@ -146,6 +338,36 @@ public class Log {
         i(tag, msg, null);
     }
 
+    /**
+     * Prints a message at INFO priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where the argument goes.
+     */
+    public static void i(String tag, String format, Object arg1) {
+        printf(INFO, tag, format, 1, arg1, null, null);
+    }
+
+    /**
+     * Prints a message at INFO priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        printf(INFO, tag, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * Prints a message at INFO priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        printf(INFO, tag, format, 3, arg1, arg2, arg3);
+    }
+
     /**
      * Prints a message at WARN priority.
      *
@@ -168,6 +390,36 @@ public class Log {
         w(tag, msg, null);
     }
 
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where the argument goes.
+     */
+    public static void w(String tag, String format, Object arg1) {
+        printf(WARN, tag, format, 1, arg1, null, null);
+    }
+
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        printf(WARN, tag, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * Prints a message at WARN priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        printf(WARN, tag, format, 3, arg1, arg2, arg3);
+    }
+
     /**
      * Prints a message at WARN priority.
      *
@@ -201,6 +453,36 @@ public class Log {
         e(tag, msg, null);
     }
 
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where the argument goes.
+     */
+    public static void e(String tag, String format, Object arg1) {
+        printf(ERROR, tag, format, 1, arg1, null, null);
+    }
+
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        printf(ERROR, tag, format, 2, arg1, arg2, null);
+    }
+
+    /**
+     * Prints a message at ERROR priority, formatted only if it will be logged.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with {} where each argument goes.
+     */
+    public static void e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        printf(ERROR, tag, format, 3, arg1, arg2, arg3);
+    }
+
     /**
      * Prints a message at ASSERT priority.
      *
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.List;
+
+/**
+ * A {@link LogNode} that can take several records at once, so that work it does per call,
+ * like posting to the UI thread, is done once per batch instead of once per line.
+ */
+public interface LogBatchNode extends LogNode {
+
+    /**
+     * Instructs the LogNode to print the records provided, in order.
+     * @param batch The records to print. They are only valid until this returns.
+     */
+    public void printBatch(List<LogRecord> batch);
+}
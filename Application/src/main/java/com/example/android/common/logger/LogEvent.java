@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A log record with fields, built by {@link Log#at(int, String)}:
+ * <pre>
+ * Log.at(Log.ERROR, TAG).with("socketType", mSocketType).with("bytes", n).log("write failed", e);
+ * </pre>
+ * Each thread reuses one event, and the values are kept as they are until a node shows them,
+ * so building one allocates nothing. When the priority and tag aren't logged, the calls do
+ * nothing at all.
+ */
+public class LogEvent {
+
+    // Returned for what isn't logged, never changes
+    static final LogEvent DISABLED = new LogEvent(false);
+
+    private final boolean mEnabled;
+    private final LogRecord mRecord = new LogRecord();
+    private final List<LogRecord> mBatch = Collections.singletonList(mRecord);
+    // Set from start() until log(), so a nested event on the same thread gets its own. An
+    // event that is never logged stays in use, Log.at() then pools another one instead
+    boolean mInUse;
+
+    LogEvent() {
+        this(true);
+    }
+
+    private LogEvent(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    LogEvent start(int priority, String tag) {
+        mInUse = true;
+        mRecord.set(priority, tag, null, null, 0);
+        return this;
+    }
+
+    /**
+     * Adds a number, like a byte count or a state.
+     */
+    public LogEvent with(String key, long value) {
+        if (mEnabled) {
+            mRecord.fields.add(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a value, like a device address. It is only turned into text by nodes that show it.
+     */
+    public LogEvent with(String key, Object value) {
+        if (mEnabled) {
+            mRecord.fields.add(key, value);
+        }
+        return this;
+    }
+
+    public void log(String msg) {
+        log(msg, null);
+    }
+
+    /**
+     * Logs the event, unless its priority and tag are no longer logged. Its stack trace is only
+     * rendered by the nodes that show it.
+     */
+    public void log(String msg, Throwable tr) {
+        if (!mEnabled) {
+            return;
+        }
+        try {
+            // The level may have been raised since the event was started
+            if (!Log.isLoggable(mRecord.tag, mRecord.priority)) {
+                return;
+            }
+            mRecord.msg = msg;
+            mRecord.tr = tr;
+            mRecord.timeMillis = System.currentTimeMillis();
+            Log.print(mBatch);
+        } finally {
+            mRecord.clear();
+            mInUse = false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+/**
+ * The named values that go with a {@link LogRecord}, like the address of a device or a number
+ * of bytes. Numbers are kept as they are, other values as the objects they are, so that
+ * nothing is formatted until a node that shows text asks for it with
+ * {@link #appendTo(StringBuilder)}. Holds up to {@link #MAX_FIELDS}, more are ignored.
+ */
+public class LogFields {
+
+    public static final int MAX_FIELDS = 8;
+
+    private final String[] mKeys = new String[MAX_FIELDS];
+    private final long[] mNumbers = new long[MAX_FIELDS];
+    // Null for numbers
+    private final Object[] mValues = new Object[MAX_FIELDS];
+    private final boolean[] mIsNumber = new boolean[MAX_FIELDS];
+    private int mSize;
+
+    public void add(String key, long value) {
+        if (mSize < MAX_FIELDS) {
+            mKeys[mSize] = key;
+            mNumbers[mSize] = value;
+            mValues[mSize] = null;
+            mIsNumber[mSize] = true;
+            mSize++;
+        }
+    }
+
+    public void add(String key, Object value) {
+        if (mSize < MAX_FIELDS) {
+            mKeys[mSize] = key;
+            mNumbers[mSize] = 0;
+            mValues[mSize] = value;
+            mIsNumber[mSize] = false;
+            mSize++;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getKey(int index) {
+        return mKeys[index];
+    }
+
+    public boolean isNumber(int index) {
+        return mIsNumber[index];
+    }
+
+    public long getNumber(int index) {
+        return mNumbers[index];
+    }
+
+    /**
+     * Return the value of a field that isn't a number, which may be null.
+     */
+    public Object getValue(int index) {
+        return mValues[index];
+    }
+
+    public void copyFrom(LogFields other) {
+        for (int i = 0; i < other.mSize; i++) {
+            mKeys[i] = other.mKeys[i];
+            mNumbers[i] = other.mNumbers[i];
+            mValues[i] = other.mValues[i];
+            mIsNumber[i] = other.mIsNumber[i];
+        }
+        for (int i = other.mSize; i < mSize; i++) {
+            mKeys[i] = null;
+            mValues[i] = null;
+        }
+        mSize = other.mSize;
+    }
+
+    /**
+     * Drops the fields, and the references to their values.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mValues[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Appends the fields as text, like {@code key=value key2=value2}, each preceded by a space.
+     */
+    public StringBuilder appendTo(StringBuilder out) {
+        for (int i = 0; i < mSize; i++) {
+            out.append(' ').append(mKeys[i]).append('=');
+            if (mIsNumber[i]) {
+                out.append(mNumbers[i]);
+            } else {
+                out.append(mValues[i]);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.List;
+
+/**
+ * One line of log data, as handed to a {@link LogBatchNode}.
+ *
+ * <p>Records are reused: the ones in a batch belong to whoever passed it on, and are only
+ * valid until {@link LogBatchNode#printBatch(List)} returns. A node that needs one for longer
+ * keeps a {@link #copyFrom(LogRecord) copy}.</p>
+ *
+ * <p>Besides the message a record can carry {@link LogFields}, which only nodes that take
+ * batches see as such. Other nodes get them appended to the message.</p>
+ */
+public class LogRecord {
+
+    public int priority;
+    public String tag;
+    public String msg;
+    public Throwable tr;
+    // System.currentTimeMillis() when the record was logged
+    public long timeMillis;
+    public final LogFields fields = new LogFields();
+
+    /**
+     * Sets the record to the given log data, without fields.
+     */
+    public void set(int priority, String tag, String msg, Throwable tr, long timeMillis) {
+        this.priority = priority;
+        this.tag = tag;
+        this.msg = msg;
+        this.tr = tr;
+        this.timeMillis = timeMillis;
+        fields.clear();
+    }
+
+    public void copyFrom(LogRecord other) {
+        set(other.priority, other.tag, other.msg, other.tr, other.timeMillis);
+        fields.copyFrom(other.fields);
+    }
+
+    /**
+     * Drops the references to the logged data, so a reused record doesn't keep it alive.
+     */
+    public void clear() {
+        tag = null;
+        msg = null;
+        tr = null;
+        fields.clear();
+    }
+
+    /**
+     * Return the message with the fields appended, for nodes that only show text.
+     */
+    public String getMessageWithFields() {
+        if (fields.size() == 0) {
+            return msg;
+        }
+        StringBuilder text = new StringBuilder();
+        if (msg != null) {
+            text.append(msg);
+        }
+        return fields.appendTo(text).toString();
+    }
+
+    /**
+     * Hands a batch to a node, as a batch if it takes them and one record at a time if not.
+     */
+    public static void deliver(LogNode node, List<LogRecord> batch) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof LogBatchNode) {
+            ((LogBatchNode) node).printBatch(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            LogRecord record = batch.get(i);
+            node.println(record.priority, record.tag, record.getMessageWithFields(), record.tr);
+        }
+    }
+}
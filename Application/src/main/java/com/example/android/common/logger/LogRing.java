@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+/**
+ * Fixed ring of {@link LogRecord}s, oldest first, for {@link LogView}. Adding to a full ring
+ * drops the oldest record. The records are reused, and each gets an id that stays the same
+ * while older ones are dropped. Not thread safe.
+ */
+class LogRing {
+
+    private final LogRecord[] mRecords;
+    private int mFirst;
+    private int mCount;
+    // The id of the oldest record
+    private long mFirstId;
+
+    /**
+     * @param capacity How many records are kept
+     * @param firstId  The id of the first record added
+     */
+    LogRing(int capacity, long firstId) {
+        mRecords = new LogRecord[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRecords[i] = new LogRecord();
+        }
+        mFirstId = firstId;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    boolean isFull() {
+        return mCount == mRecords.length;
+    }
+
+    /**
+     * Return the record at a position, 0 being the oldest.
+     */
+    LogRecord get(int position) {
+        return mRecords[(mFirst + position) % mRecords.length];
+    }
+
+    long getId(int position) {
+        return mFirstId + position;
+    }
+
+    /**
+     * Return the id the next record added gets.
+     */
+    long getNextId() {
+        return mFirstId + mCount;
+    }
+
+    /**
+     * Makes room for a record at the end, dropping the oldest if the ring is full.
+     *
+     * @return The record to set
+     */
+    LogRecord add() {
+        if (isFull()) {
+            mRecords[mFirst].clear();
+            mFirst = (mFirst + 1) % mRecords.length;
+            mFirstId++;
+            mCount--;
+        }
+        LogRecord record = mRecords[(mFirst + mCount) % mRecords.length];
+        mCount++;
+        return record;
+    }
+
+    /**
+     * Drops all records, the ids carry on from where they were.
+     */
+    void clear() {
+        for (int i = 0; i < mCount; i++) {
+            get(i).clear();
+        }
+        mFirstId += mCount;
+        mFirst = 0;
+        mCount = 0;
+    }
+}
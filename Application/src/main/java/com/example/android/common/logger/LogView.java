@@ -15,25 +15,93 @@
  */
 package com.example.android.common.logger;
 
-import android.app.Activity;
 import android.content.Context;
+import android.graphics.Typeface;
 import android.util.*;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-/** Simple TextView which is used to output log data received through the LogNode interface.
+import java.util.List;
+
+/** Simple list which is used to output log data received through the LogNode interface.
+ *
+ * <p>It keeps the last {@link #DEFAULT_CAPACITY} lines in a ring, and only the rows on screen
+ * are laid out, so it stays as fast after hours of logging as after a minute. Lines logged
+ * from any thread are collected and added once per frame.</p>
 */
-public class LogView extends TextView implements LogNode {
+public class LogView extends ListView implements LogBatchNode {
+
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    // The lines shown. Only touched on the UI thread.
+    private LogRing mLines;
+
+    // Lines waiting for the next frame, guarded by mFrameCallback. When more come than can be
+    // shown, the oldest are dropped right away.
+    private LogRing mPending;
+    private boolean mFrameScheduled;
+
+    private final Choreographer mChoreographer;
+    private final LineAdapter mAdapter = new LineAdapter();
+    private int mTextAppearance;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            showPending();
+        }
+    };
 
     public LogView(Context context) {
         super(context);
+        mChoreographer = Choreographer.getInstance();
+        init();
     }
 
     public LogView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mChoreographer = Choreographer.getInstance();
+        init();
     }
 
     public LogView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        mChoreographer = Choreographer.getInstance();
+        init();
+    }
+
+    private void init() {
+        setCapacity(DEFAULT_CAPACITY);
+        setAdapter(mAdapter);
+        setDivider(null);
+        setStackFromBottom(true);
+        // Follows new lines while scrolled to the bottom, stays put while reading older ones
+        setTranscriptMode(TRANSCRIPT_MODE_NORMAL);
+    }
+
+    /**
+     * Sets how many lines are kept, dropping those shown so far. Call on the UI thread.
+     */
+    public void setCapacity(int capacity) {
+        LogRing pending = new LogRing(capacity, 0);
+        synchronized (mFrameCallback) {
+            mPending = pending;
+        }
+        // Rows get ids that survive older lines going
+        mLines = new LogRing(capacity, mLines != null ? mLines.getNextId() : 0);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Sets the text appearance of the rows, as with {@link TextView#setTextAppearance}.
+     */
+    public void setTextAppearance(int resId) {
+        mTextAppearance = resId;
+        mAdapter.notifyDataSetChanged();
     }
 
     /**
@@ -46,63 +114,29 @@ public class LogView extends TextView implements LogNode {
      */
     @Override
     public void println(int priority, String tag, String msg, Throwable tr) {
-
-        
-        String priorityStr = null;
-
-        // For the purposes of this View, we want to print the priority as readable text.
-        switch(priority) {
-            case android.util.Log.VERBOSE:
-                priorityStr = "VERBOSE";
-                break;
-            case android.util.Log.DEBUG:
-                priorityStr = "DEBUG";
-                break;
-            case android.util.Log.INFO:
-                priorityStr = "INFO";
-                break;
-            case android.util.Log.WARN:
-                priorityStr = "WARN";
-                break;
-            case android.util.Log.ERROR:
-                priorityStr = "ERROR";
-                break;
-            case android.util.Log.ASSERT:
-                priorityStr = "ASSERT";
-                break;
-            default:
-                break;
+        synchronized (mFrameCallback) {
+            mPending.add().set(priority, tag, msg, tr, System.currentTimeMillis());
+            scheduleFrame();
         }
 
-        // Handily, the Log class has a facility for converting a stack trace into a usable string.
-        String exceptionStr = null;
-        if (tr != null) {
-            exceptionStr = android.util.Log.getStackTraceString(tr);
+        if (mNext != null) {
+            mNext.println(priority, tag, msg, tr);
         }
+    }
 
-        // Take the priority, tag, message, and exception, and concatenate as necessary
-        // into one usable line of text.
-        final StringBuilder outputBuilder = new StringBuilder();
-
-        String delimiter = "\t";
-        appendIfNotNull(outputBuilder, priorityStr, delimiter);
-        appendIfNotNull(outputBuilder, tag, delimiter);
-        appendIfNotNull(outputBuilder, msg, delimiter);
-        appendIfNotNull(outputBuilder, exceptionStr, delimiter);
-
-        // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
+    /**
+     * Prints the records out to the LogView, all in the same frame.
+     */
+    @Override
+    public void printBatch(List<LogRecord> batch) {
+        synchronized (mFrameCallback) {
+            for (int i = 0; i < batch.size(); i++) {
+                mPending.add().copyFrom(batch.get(i));
             }
-        })));
-
-        if (mNext != null) {
-            mNext.println(priority, tag, msg, tr);
+            scheduleFrame();
         }
+
+        LogRecord.deliver(mNext, batch);
     }
 
     public LogNode getNext() {
@@ -138,8 +172,136 @@ public class LogView extends TextView implements LogNode {
 
     /** Outputs the string as a new line of log data in the LogView. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        synchronized (mFrameCallback) {
+            mPending.add().set(Log.NONE, null, s, null, System.currentTimeMillis());
+            scheduleFrame();
+        }
     }
 
+    /**
+     * Has the pending lines shown on the next frame, unless that is already on its way. Called
+     * with mFrameCallback locked.
+     */
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            // Safe from any thread, the callback runs on the thread that owns the Choreographer
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Moves the pending lines into the ring, then updates the list once. On the UI thread.
+     */
+    private void showPending() {
+        int evicted = 0;
+        synchronized (mFrameCallback) {
+            mFrameScheduled = false;
+            for (int i = 0; i < mPending.size(); i++) {
+                if (mLines.isFull()) {
+                    evicted++;
+                }
+                mLines.add().copyFrom(mPending.get(i));
+            }
+            mPending.clear();
+        }
 
+        // Keep the rows being read in place while older ones go, unless following the bottom
+        boolean following = getLastVisiblePosition() >= mAdapter.getCount() - 1;
+        int first = getFirstVisiblePosition();
+        View top = getChildAt(0);
+        int offset = top != null ? top.getTop() : 0;
+        mAdapter.notifyDataSetChanged();
+        if (!following && evicted > 0) {
+            setSelectionFromTop(Math.max(0, first - evicted), offset);
+        }
+    }
+
+    /**
+     * Return the text of a line, the way it is shown.
+     */
+    private String format(LogRecord record) {
+        String priorityStr = null;
+
+        // For the purposes of this View, we want to print the priority as readable text.
+        switch(record.priority) {
+            case android.util.Log.VERBOSE:
+                priorityStr = "VERBOSE";
+                break;
+            case android.util.Log.DEBUG:
+                priorityStr = "DEBUG";
+                break;
+            case android.util.Log.INFO:
+                priorityStr = "INFO";
+                break;
+            case android.util.Log.WARN:
+                priorityStr = "WARN";
+                break;
+            case android.util.Log.ERROR:
+                priorityStr = "ERROR";
+                break;
+            case android.util.Log.ASSERT:
+                priorityStr = "ASSERT";
+                break;
+            default:
+                break;
+        }
+
+        // Handily, the Log class has a facility for converting a stack trace into a usable string.
+        // Only the rows on screen get this far, so it is only done for them.
+        String exceptionStr = null;
+        if (record.tr != null) {
+            exceptionStr = android.util.Log.getStackTraceString(record.tr);
+        }
+
+        // Take the priority, tag, message, and exception, and concatenate as necessary
+        // into one usable line of text.
+        StringBuilder outputBuilder = new StringBuilder();
+        String delimiter = "\t";
+        appendIfNotNull(outputBuilder, priorityStr, delimiter);
+        appendIfNotNull(outputBuilder, record.tag, delimiter);
+        appendIfNotNull(outputBuilder, record.getMessageWithFields(), delimiter);
+        appendIfNotNull(outputBuilder, exceptionStr, delimiter);
+        return outputBuilder.toString();
+    }
+
+    /**
+     * Shows the ring of lines, oldest first, reusing the row views that scroll out of sight.
+     */
+    private class LineAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return mLines.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mLines.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mLines.getId(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView row = (TextView) convertView;
+            if (row == null) {
+                row = new TextView(getContext());
+                row.setTypeface(Typeface.MONOSPACE);
+                if (mTextAppearance != 0) {
+                    row.setTextAppearance(getContext(), mTextAppearance);
+                }
+            }
+            row.setText(format((LogRecord) getItem(position)));
+            return row;
+        }
+    }
 }
@@ -17,11 +17,13 @@ package com.example.android.common.logger;
 
 import android.util.Log;
 
+import java.util.List;
+
 /**
  * Helper class which wraps Android's native Log utility in the Logger interface.  This way
  * normal DDMS output can be one of the many targets receiving and outputting logs simultaneously.
  */
-public class LogWrapper implements LogNode {
+public class LogWrapper implements LogBatchNode {
 
     // For piping:  The next node to receive Log data after this one has done its work.
     private LogNode mNext;
@@ -58,9 +60,9 @@ public class LogWrapper implements LogNode {
         }
 
         // If an exeption was provided, convert that exception to a usable string and attach
-        // it to the end of the msg method.
+        // it to the end of the msg method. The next node gets the exception as it is.
         if (tr != null) {
-            msg += "\n" + Log.getStackTraceString(tr);
+            useMsg += "\n" + Log.getStackTraceString(tr);
         }
 
         // This is functionally identical to Log.x(tag, useMsg);
@@ -72,4 +74,23 @@ public class LogWrapper implements LogNode {
             mNext.println(priority, tag, msg, tr);
         }
     }
+
+    /**
+     * Prints each record out to the console, then passes the whole batch along.
+     */
+    @Override
+    public void printBatch(List<LogRecord> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            LogRecord record = batch.get(i);
+            String useMsg = record.getMessageWithFields();
+            if (useMsg == null) {
+                useMsg = "";
+            }
+            if (record.tr != null) {
+                useMsg += "\n" + Log.getStackTraceString(record.tr);
+            }
+            Log.println(record.priority, record.tag, useMsg);
+        }
+        LogRecord.deliver(mNext, batch);
+    }
 }
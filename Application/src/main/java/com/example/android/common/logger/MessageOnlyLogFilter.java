@@ -15,15 +15,22 @@
  */
 package com.example.android.common.logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Simple {@link LogNode} filter, removes everything except the message.
  * Useful for situations like on-screen log output where you don't want a lot of metadata displayed,
  * just easy-to-read message updates as they're happening.
  */
-public class MessageOnlyLogFilter implements LogNode {
+public class MessageOnlyLogFilter implements LogBatchNode {
 
     LogNode mNext;
 
+    // Reused to pass batches on, so the records of the caller stay as they were
+    private final List<LogRecord> mRecords = new ArrayList<LogRecord>();
+    private final List<LogRecord> mBatch = new ArrayList<LogRecord>();
+
     /**
      * Takes the "next" LogNode as a parameter, to simplify chaining.
      *
@@ -43,6 +50,27 @@ public class MessageOnlyLogFilter implements LogNode {
         }
     }
 
+    @Override
+    public synchronized void printBatch(List<LogRecord> batch) {
+        if (mNext == null) {
+            return;
+        }
+        mBatch.clear();
+        for (int i = 0; i < batch.size(); i++) {
+            if (mRecords.size() == i) {
+                mRecords.add(new LogRecord());
+            }
+            LogRecord record = mRecords.get(i);
+            record.set(Log.NONE, null, batch.get(i).msg, null, batch.get(i).timeMillis);
+            record.fields.copyFrom(batch.get(i).fields);
+            mBatch.add(record);
+        }
+        LogRecord.deliver(mNext, mBatch);
+        for (int i = 0; i < mBatch.size(); i++) {
+            mBatch.get(i).clear();
+        }
+    }
+
     /**
      * Returns the next LogNode in the chain.
      */
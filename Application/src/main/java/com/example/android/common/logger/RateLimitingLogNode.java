@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LogNode} filter that keeps log storms, like a thread failing the same way in a loop,
+ * from reaching the nodes after it. It can sit anywhere in the chain.
+ *
+ * <p>For each tag:</p>
+ * <ul>
+ * <li>A message that repeats the last one passed on is held back, and replaced by a line
+ * saying how many times it repeated once another message comes or a few seconds pass,
+ * whichever is first.</li>
+ * <li>A token bucket lets through a burst and then a steady rate of messages. What goes over
+ * is dropped and counted, and the count is passed on every few seconds while that goes on,
+ * and once it is over.</li>
+ * <li>Messages up to a priority, VERBOSE by default, can be sampled: only one in so many is
+ * considered at all.</li>
+ * </ul>
+ */
+public class RateLimitingLogNode implements LogBatchNode {
+
+    public static final double DEFAULT_RATE_PER_SECOND = 20;
+    public static final int DEFAULT_BURST = 50;
+
+    private static final String TAG = "RateLimitingLogNode";
+
+    // How long repeats and drops are held back before they are reported anyway
+    private static final long SUMMARY_INTERVAL_MS = 5000;
+
+    // Reports what tags that went quiet held back, for every node. Created on first use.
+    private static ScheduledExecutorService sTimer;
+
+    /**
+     * What is known about the recent messages of a tag.
+     */
+    private static class TagState {
+        double tokens;
+        long refilledAt;
+        // The last message passed on, and how often it repeated since
+        String lastMsg;
+        int lastPriority;
+        int repeats;
+        long repeatsSince;
+        // Messages dropped for the rate, and the highest priority among them
+        int suppressed;
+        int suppressedPriority;
+        long suppressedSince;
+        int sampled;
+    }
+
+    private final double mRatePerMs;
+    private final int mBurst;
+    private int mSamplePriority = Log.VERBOSE;
+    private int mSampleOneIn = 1;
+
+    private long mSummaryIntervalMs = SUMMARY_INTERVAL_MS;
+
+    private final Map<String, TagState> mTags = new HashMap<String, TagState>();
+    private long mLastSweep;
+    // Whether the timer is to sweep, set while anything is held back
+    private boolean mSweepScheduled;
+    private long mSuppressedTotal;
+    private long mSampledTotal;
+
+    // What is passed on for a call, and records for the summaries in it, reused
+    private final List<LogRecord> mOut = new ArrayList<LogRecord>();
+    private final List<LogRecord> mSummaries = new ArrayList<LogRecord>();
+    private int mSummaryCount;
+    private final LogRecord mSingle = new LogRecord();
+
+    // The next LogNode in the chain.
+    private LogNode mNext;
+
+    public RateLimitingLogNode() {
+        this(DEFAULT_RATE_PER_SECOND, DEFAULT_BURST);
+    }
+
+    /**
+     * @param ratePerSecond How many messages of a tag are passed on per second, once its
+     *                      burst is used up.
+     * @param burst How many messages of a tag can be passed on at once.
+     */
+    public RateLimitingLogNode(double ratePerSecond, int burst) {
+        mRatePerMs = ratePerSecond / 1000;
+        mBurst = burst;
+    }
+
+    /**
+     * Returns the next LogNode in the chain.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /**
+     * Passes on only one in so many messages up to the given priority.
+     */
+    public synchronized void setSampling(int priority, int oneIn) {
+        mSamplePriority = priority;
+        mSampleOneIn = Math.max(1, oneIn);
+    }
+
+    /**
+     * Shortens how long repeats and drops are held back, for tests.
+     */
+    synchronized void setSummaryInterval(long intervalMs) {
+        mSummaryIntervalMs = intervalMs;
+    }
+
+    /**
+     * Passes on the repeats and drops held back so far, whatever their age. Call before the
+     * nodes after this one are closed.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, TagState> entry : mTags.entrySet()) {
+            reportRepeats(entry.getKey(), entry.getValue(), now);
+            reportSuppressed(entry.getKey(), entry.getValue(), now);
+        }
+        deliver();
+    }
+
+    /**
+     * Return how many messages were dropped for going over the rate.
+     */
+    public synchronized long getSuppressedCount() {
+        return mSuppressedTotal;
+    }
+
+    /**
+     * Return how many messages were dropped by sampling.
+     */
+    public synchronized long getSampledCount() {
+        return mSampledTotal;
+    }
+
+    @Override
+    public synchronized void println(int priority, String tag, String msg, Throwable tr) {
+        mSingle.set(priority, tag, msg, tr, System.currentTimeMillis());
+        filter(mSingle);
+        deliver();
+        mSingle.clear();
+    }
+
+    @Override
+    public synchronized void printBatch(List<LogRecord> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            filter(batch.get(i));
+        }
+        deliver();
+    }
+
+    private void deliver() {
+        if (!mOut.isEmpty()) {
+            LogRecord.deliver(mNext, mOut);
+        }
+        mOut.clear();
+        for (int i = 0; i < mSummaryCount; i++) {
+            mSummaries.get(i).clear();
+        }
+        mSummaryCount = 0;
+    }
+
+    /**
+     * Adds the record to mOut if it is to be passed on, after any summaries due.
+     */
+    private void filter(LogRecord record) {
+        long now = record.timeMillis;
+        if (now - mLastSweep >= mSummaryIntervalMs || now < mLastSweep) {
+            sweep(now);
+        }
+        TagState state = mTags.get(record.tag);
+        if (state == null) {
+            state = new TagState();
+            state.tokens = mBurst;
+            state.refilledAt = now;
+            mTags.put(record.tag, state);
+        }
+        // Clocks can go back, which mustn't cost tokens
+        long elapsed = Math.max(0, now - state.refilledAt);
+        state.tokens = Math.min(mBurst, state.tokens + elapsed * mRatePerMs);
+        state.refilledAt = now;
+
+        if (record.priority <= mSamplePriority && mSampleOneIn > 1
+                && state.sampled++ % mSampleOneIn != 0) {
+            mSampledTotal++;
+            return;
+        }
+
+        if (record.msg != null && record.msg.equals(state.lastMsg)
+                && record.priority == state.lastPriority) {
+            if (state.repeats++ == 0) {
+                state.repeatsSince = now;
+                scheduleSweep();
+            } else if (now - state.repeatsSince >= mSummaryIntervalMs) {
+                reportRepeats(record.tag, state, now);
+            }
+            return;
+        }
+
+        if (state.tokens < 1) {
+            if (state.suppressed++ == 0) {
+                state.suppressedSince = now;
+                state.suppressedPriority = record.priority;
+                scheduleSweep();
+            } else {
+                state.suppressedPriority = Math.max(state.suppressedPriority, record.priority);
+            }
+            mSuppressedTotal++;
+            return;
+        }
+        state.tokens--;
+        // The repeats belong before this message. Drops are only reported every so often
+        // while the storm goes on, not with every message the rate lets through.
+        reportRepeats(record.tag, state, now);
+        if (now - state.suppressedSince >= mSummaryIntervalMs) {
+            reportSuppressed(record.tag, state, now);
+        }
+        state.lastMsg = record.msg;
+        state.lastPriority = record.priority;
+        mOut.add(record);
+    }
+
+    /**
+     * Reports the repeats and drops that have been held back for long enough, of tags that
+     * have gone quiet since.
+     *
+     * @return Whether anything is still held back
+     */
+    private boolean sweep(long now) {
+        mLastSweep = now;
+        boolean pending = false;
+        for (Map.Entry<String, TagState> entry : mTags.entrySet()) {
+            TagState state = entry.getValue();
+            if (state.repeats > 0 && now - state.repeatsSince >= mSummaryIntervalMs) {
+                reportRepeats(entry.getKey(), state, now);
+            }
+            if (state.suppressed > 0 && now - state.suppressedSince >= mSummaryIntervalMs) {
+                reportSuppressed(entry.getKey(), state, now);
+            }
+            pending |= state.repeats > 0 || state.suppressed > 0;
+        }
+        return pending;
+    }
+
+    /**
+     * Has the timer sweep once the summary interval passed, so that what a tag held back is
+     * reported even if nothing is logged after it. Called locked.
+     */
+    private void scheduleSweep() {
+        if (mSweepScheduled) {
+            return;
+        }
+        mSweepScheduled = true;
+        timer().schedule(mTimedSweep, mSummaryIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable mTimedSweep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RateLimitingLogNode.this) {
+                mSweepScheduled = false;
+                boolean pending = sweep(System.currentTimeMillis());
+                deliver();
+                if (pending) {
+                    scheduleSweep();
+                }
+            }
+        }
+    };
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    private void reportRepeats(String tag, TagState state, long now) {
+        if (state.repeats == 0) {
+            return;
+        }
+        summary(state.lastPriority, tag, "Last message repeated " + state.repeats
+                + (state.repeats == 1 ? " time" : " times"), now);
+        state.repeats = 0;
+        state.repeatsSince = now;
+    }
+
+    private void reportSuppressed(String tag, TagState state, long now) {
+        if (state.suppressed == 0) {
+            return;
+        }
+        summary(state.suppressedPriority, tag, "Suppressed " + state.suppressed
+                + (state.suppressed == 1 ? " message" : " messages") + " over the rate limit",
+                now);
+        state.suppressed = 0;
+        state.suppressedSince = now;
+    }
+
+    private void summary(int priority, String tag, String msg, long now) {
+        if (mSummaryCount == mSummaries.size()) {
+            mSummaries.add(new LogRecord());
+        }
+        LogRecord record = mSummaries.get(mSummaryCount++);
+        record.set(priority, tag, msg, null, now);
+        mOut.add(record);
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures range queries on {@link AdherenceRollups} over a long history, against adding up the
+ * raw events. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.AdherenceRollupsBenchmark \
+ *         [dispensers] [days] [medsPerDispenser]
+ * </pre>
+ * Every medication is taken four times a day, and a random query range of up to three months
+ * is totalled for each dispenser and medication.
+ */
+public class AdherenceRollupsBenchmark {
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    private static final int QUERIES = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int dispensers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 365;
+        int meds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(42);
+        // Local midnights, so that query ranges are whole days like on the caretaker screens
+        long[] midnights = new long[days + 91];
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_YEAR, -days);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        for (int day = 0; day < midnights.length; day++) {
+            midnights[day] = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        List<DispenserEvent> events = new ArrayList<DispenserEvent>();
+        for (int day = 0; day < days; day++) {
+            for (int d = 0; d < dispensers; d++) {
+                for (int m = 0; m < meds; m++) {
+                    for (int dose = 0; dose < 4; dose++) {
+                        int type = random.nextInt(10) == 0 ? DispenserEvent.TYPE_FORGOTTEN
+                                : DispenserEvent.TYPE_TAKEN;
+                        events.add(new DispenserEvent(type, dispenser(d),
+                                midnights[day] + (8 + dose * 4) * HOUR_MS,
+                                events.size(), medication(m)));
+                    }
+                }
+            }
+        }
+
+        AdherenceRollups rollups = new AdherenceRollups();
+        long t = System.nanoTime();
+        for (int i = 0; i < events.size(); i++) {
+            rollups.onEventAppended(new EventJournal.Entry(i + 1, events.get(i)));
+        }
+        long updateNs = System.nanoTime() - t;
+        System.out.println("events=" + events.size() + " updateNsPerEvent="
+                + updateNs / events.size());
+
+        long[] from = new long[QUERIES];
+        long[] to = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int day = random.nextInt(days);
+            from[i] = midnights[day];
+            to[i] = midnights[day + 1 + random.nextInt(90)];
+        }
+
+        long checksum = 0;
+        t = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            checksum += rollups.getTotal(dispenser(i % dispensers), medication(i % meds),
+                    from[i], to[i]).taken;
+        }
+        long rollupNs = System.nanoTime() - t;
+
+        // Same totals by scanning the events, which is what every screen would do without
+        // rollups. Only a sample of the queries, the rest would take too long.
+        int scanned = Math.max(1, QUERIES / 100);
+        long scanChecksum = 0;
+        long rollupSample = 0;
+        t = System.nanoTime();
+        for (int i = 0; i < scanned; i++) {
+            String dispenser = dispenser(i % dispensers);
+            String medication = medication(i % meds);
+            AdherenceRollups.Bucket total = new AdherenceRollups.Bucket(from[i]);
+            for (DispenserEvent event : events) {
+                if (event.time >= from[i] && event.time < to[i]
+                        && event.type == DispenserEvent.TYPE_TAKEN
+                        && event.dispenser.equals(dispenser)
+                        && medication.equals(event.medication)) {
+                    total.taken++;
+                }
+            }
+            scanChecksum += total.taken;
+            rollupSample += rollups.getTotal(dispenser, medication, from[i], to[i]).taken;
+        }
+        long scanNs = System.nanoTime() - t;
+
+        System.out.println("queries=" + QUERIES + " rollupUsPerQuery="
+                + rollupNs / QUERIES / 1000 + " scanUsPerQuery=" + scanNs / scanned / 1000
+                + " checksum=" + checksum);
+        if (scanChecksum != rollupSample) {
+            throw new AssertionError("Rollups counted " + rollupSample + ", scan "
+                    + scanChecksum);
+        }
+
+        File file = File.createTempFile("rollups", null);
+        t = System.nanoTime();
+        rollups.save(file);
+        long saveMs = (System.nanoTime() - t) / 1000000;
+        AdherenceRollups loaded = new AdherenceRollups();
+        t = System.nanoTime();
+        loaded.load(file);
+        System.out.println("savedBytes=" + file.length() + " saveMs=" + saveMs + " loadMs="
+                + (System.nanoTime() - t) / 1000000);
+        file.delete();
+    }
+
+    private static String dispenser(int d) {
+        return String.format("00:11:22:33:44:%02X", d);
+    }
+
+    private static String medication(int m) {
+        return "Medication " + m;
+    }
+}
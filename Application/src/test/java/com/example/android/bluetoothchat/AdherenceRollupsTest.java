@@ -0,0 +1,119 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdherenceRollupsTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final AdherenceRollups mRollups = new AdherenceRollups();
+    private long mMonday;
+    private long mSequence;
+
+    @Before
+    public void setUp() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2024, Calendar.MARCH, 4);
+        mMonday = calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void countsEventsPerDayAndMedication() {
+        add(DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS, "Aspirin");
+        add(DispenserEvent.TYPE_TAKEN, mMonday + 20 * HOUR_MS, "Aspirin");
+        add(DispenserEvent.TYPE_FORGOTTEN, mMonday + 24 * HOUR_MS + 8 * HOUR_MS, "Aspirin");
+        add(DispenserEvent.TYPE_ABUSED, mMonday + 24 * HOUR_MS + 9 * HOUR_MS, "Ibuprofen");
+
+        List<AdherenceRollups.Bucket> days = mRollups.getDays(DISPENSER, "Aspirin", mMonday,
+                mMonday + 7 * 24 * HOUR_MS);
+        assertEquals(2, days.size());
+        assertEquals(mMonday, days.get(0).start);
+        assertEquals(2, days.get(0).taken);
+        assertEquals(1, days.get(1).forgotten);
+
+        AdherenceRollups.Bucket all = mRollups.getTotal(DISPENSER, null, mMonday,
+                mMonday + 14 * 24 * HOUR_MS);
+        assertEquals(2, all.taken);
+        assertEquals(1, all.abused);
+        assertEquals(1, all.forgotten);
+        assertEquals(1, mRollups.getTotal(DISPENSER, "Aspirin", mMonday + 24 * HOUR_MS,
+                mMonday + 2 * 24 * HOUR_MS).forgotten);
+        assertEquals(2, mRollups.getMedications(DISPENSER).size());
+    }
+
+    @Test
+    public void ignoresEventsItAlreadyHas() {
+        add(DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS, "Aspirin");
+        mRollups.onEventAppended(new EventJournal.Entry(mSequence, event(
+                DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS, "Aspirin")));
+        assertEquals(1, mRollups.getTotal(DISPENSER, null, mMonday,
+                mMonday + 24 * HOUR_MS).taken);
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        add(DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS, "Aspirin");
+        add(DispenserEvent.TYPE_ABUSED, mMonday + 9 * HOUR_MS, null);
+        File file = new File(mFolder.getRoot(), "rollups");
+        mRollups.save(file);
+        assertEquals(2, mRollups.getSavedSequence());
+
+        AdherenceRollups loaded = new AdherenceRollups();
+        loaded.load(file);
+        assertEquals(2, loaded.getLastSequence());
+        AdherenceRollups.Bucket total = loaded.getTotal(DISPENSER, null, mMonday,
+                mMonday + 24 * HOUR_MS);
+        assertEquals(1, total.taken);
+        assertEquals(1, total.abused);
+    }
+
+    @Test
+    public void countsTheEventsACompactedJournalNoLongerHas() throws IOException {
+        EventJournal journal = new EventJournal(mFolder.newFolder("journal"));
+        try {
+            while (journal.getSegmentCount() < 2) {
+                journal.append(event(DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS,
+                        "Aspirin"));
+            }
+            long last = journal.append(event(DispenserEvent.TYPE_TAKEN, mMonday + 8 * HOUR_MS,
+                    "Aspirin"));
+            assertEquals(1, journal.compact(last, Long.MAX_VALUE));
+            long first = journal.read(1, 1).get(0).sequence;
+            assertTrue(first > 1);
+
+            // Rebuilt from scratch, as after a damaged rollups file
+            mRollups.replay(journal);
+            assertEquals(first - 1, mRollups.getMissingEvents());
+            assertEquals(last, mRollups.getLastSequence());
+            assertEquals(last - first + 1, mRollups.getTotal(DISPENSER, null, mMonday,
+                    mMonday + 24 * HOUR_MS).taken);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void add(int type, long time, String medication) {
+        mRollups.onEventAppended(new EventJournal.Entry(++mSequence,
+                event(type, time, medication)));
+    }
+
+    private static DispenserEvent event(int type, long time, String medication) {
+        return new DispenserEvent(type, DISPENSER, time, DispenserEvent.NO_SEQUENCE, medication);
+    }
+}
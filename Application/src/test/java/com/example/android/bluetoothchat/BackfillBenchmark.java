@@ -0,0 +1,161 @@
+package com.example.android.bluetoothchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a dispenser's buffered history is taken in after a reconnect: frames are
+ * decoded, chunks handed to a {@link BackfillReceiver}, and the events journaled. Runs on a
+ * plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.BackfillBenchmark \
+ *         [days] [eventsPerDay] [chunkEvents] [linkBytesPerSecond] [directory]
+ * </pre>
+ * A live event follows every few chunks, like one the dispenser reports while it streams its
+ * history; the time from reading it to handing it to the listeners shows whether backfill holds
+ * it up. The link speed only serves to compare with, the stream is decoded as fast as it goes.
+ */
+public class BackfillBenchmark {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    // The largest read of an RFCOMM socket
+    private static final int READ_SIZE = 990;
+    private static final int CHUNKS_PER_LIVE_EVENT = 8;
+
+    public static void main(String[] args) throws Exception {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int eventsPerDay = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int chunkEvents = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long linkBytesPerSecond = args.length > 3 ? Long.parseLong(args[3]) : 125000;
+        File directory = args.length > 4 ? new File(args[4])
+                : new File(System.getProperty("java.io.tmpdir"), "backfill-benchmark");
+        deleteFiles(directory);
+        directory.mkdirs();
+
+        int total = days * eventsPerDay;
+        long now = System.currentTimeMillis();
+        byte[] stream = history(total, chunkEvents, TimeUnit.DAYS.toMillis(days));
+
+        final EventJournal journal = new EventJournal(new File(directory, "journal"));
+        File cursors = new File(directory, "backfill_cursors");
+        BackfillReceiver receiver = new BackfillReceiver(cursors);
+        final CountDownLatch backfilled = new CountDownLatch(total);
+        DispenserEvent.Listener listener = new DispenserEvent.Listener() {
+            @Override
+            public void onDispenserEvent(DispenserEvent event) {
+                journal.onDispenserEvent(event);
+                backfilled.countDown();
+            }
+        };
+        DispenserEvent.Listener live = new DispenserEvent.Listener() {
+            @Override
+            public void onDispenserEvent(DispenserEvent event) {
+                journal.onDispenserEvent(event);
+            }
+        };
+
+        receiver.getRequest(DISPENSER);
+        FrameDecoder decoder = new FrameDecoder();
+        List<String> frames = new ArrayList<String>();
+        List<Long> liveDelays = new ArrayList<Long>();
+        long start = System.nanoTime();
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            int length = Math.min(READ_SIZE, stream.length - offset);
+            byte[] buffer = new byte[length];
+            System.arraycopy(stream, offset, buffer, 0, length);
+            long readAt = System.nanoTime();
+            frames.clear();
+            decoder.decode(buffer, length, frames);
+            for (String frame : frames) {
+                // The same steps as BluetoothChatService.ConnectedThread.run()
+                if (receiver.offer(DISPENSER, frame, now, null, listener)) {
+                    continue;
+                }
+                DispenserEvent event = DispenserEvent.parse(DISPENSER, frame, now);
+                receiver.onEvent(event);
+                live.onDispenserEvent(event);
+                liveDelays.add(System.nanoTime() - readAt);
+            }
+        }
+        long decoded = System.nanoTime() - start;
+        backfilled.await();
+        receiver.sync();
+        long elapsed = System.nanoTime() - start;
+        journal.awaitDurable(journal.getNextSequence() - 1);
+        long durable = System.nanoTime() - start;
+
+        int liveEvents = liveDelays.size();
+        Collections.sort(liveDelays);
+        System.out.println("days=" + days + " events=" + total + " liveEvents=" + liveEvents
+                + " chunkEvents=" + chunkEvents + " streamBytes=" + stream.length);
+        System.out.println("eventsPerSecond=" + (long) (total / (elapsed / 1e9))
+                + " megabytesPerSecond="
+                + String.format("%.1f", stream.length / 1e6 / (elapsed / 1e9))
+                + " readLoopMs=" + decoded / 1000000
+                + " backfilledMs=" + elapsed / 1000000
+                + " durableMs=" + durable / 1000000
+                + " linkMs=" + stream.length * 1000L / linkBytesPerSecond
+                + " medianLiveDelayMicros=" + liveDelays.get(liveEvents / 2) / 1000
+                + " maxLiveDelayMicros=" + liveDelays.get(liveEvents - 1) / 1000);
+
+        long expected = total + liveEvents;
+        long journaled = journal.getNextSequence() - 1;
+        journal.close();
+        if (journaled != expected) {
+            throw new AssertionError("Journaled " + journaled + " of " + expected + " events");
+        }
+        // A reconnect resumes after the last event
+        long resumed = new BackfillReceiver(cursors).getLastSequence(DISPENSER);
+        if (resumed != expected) {
+            throw new AssertionError("Would resume after " + resumed + ", not " + expected);
+        }
+        System.out.println("resumeAfter=" + resumed);
+    }
+
+    /**
+     * Return the bytes a dispenser sends for its history, with live events in between.
+     */
+    private static byte[] history(int total, int chunkEvents, long spanMs) throws Exception {
+        String[] names = {
+                Constants.MESSAGE_TAKEN, Constants.MESSAGE_ABUSED, Constants.MESSAGE_FORGOTTEN
+        };
+        String d = Constants.MESSAGE_DELIMITER;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long liveSequence = total;
+        int chunks = 0;
+        for (int first = 1; first <= total; first += chunkEvents) {
+            int count = Math.min(chunkEvents, total - first + 1);
+            StringBuilder chunk = new StringBuilder(Constants.MESSAGE_EVENTS)
+                    .append(d).append(total - first + 1 - count).append(d).append(count);
+            for (int sequence = first; sequence < first + count; sequence++) {
+                chunk.append(d).append(names[sequence % 3])
+                        .append(d).append(sequence)
+                        .append(d).append(spanMs - spanMs * sequence / total)
+                        .append(d).append("Medication ").append(sequence % 10);
+            }
+            out.write((chunk + Constants.MESSAGE_TERMINATOR).getBytes("UTF-8"));
+            if (++chunks % CHUNKS_PER_LIVE_EVENT == 0) {
+                out.write((Constants.MESSAGE_TAKEN + d + ++liveSequence + d + "Live"
+                        + Constants.MESSAGE_TERMINATOR).getBytes("UTF-8"));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFiles(file);
+                }
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackfillReceiverTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final String D = Constants.MESSAGE_DELIMITER;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private BackfillReceiver mReceiver;
+    private final List<DispenserEvent> mEvents =
+            Collections.synchronizedList(new ArrayList<DispenserEvent>());
+    private final DispenserEvent.Listener mListener = new DispenserEvent.Listener() {
+        @Override
+        public void onDispenserEvent(DispenserEvent event) {
+            mEvents.add(event);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.newFolder("backfill"), "backfill_cursors");
+        mReceiver = new BackfillReceiver(mFile);
+    }
+
+    @Test
+    public void asksForTheEventsAfterTheLastOneAcrossRestarts() throws InterruptedException {
+        assertEquals(Constants.MESSAGE_BACKFILL + D + "-1", mReceiver.getRequest(DISPENSER));
+        for (long sequence = 0; sequence <= 2; sequence++) {
+            mReceiver.onEvent(live(sequence));
+        }
+        assertEquals(2, mReceiver.getLastSequence(DISPENSER));
+        mReceiver.sync();
+
+        BackfillReceiver reopened = new BackfillReceiver(mFile);
+        assertEquals(2, reopened.getLastSequence(DISPENSER));
+        assertEquals(Constants.MESSAGE_BACKFILL + D + "2", reopened.getRequest(DISPENSER));
+    }
+
+    @Test
+    public void waitsForTheEventsBeforeOnesOutOfOrder() {
+        mReceiver.onEvent(live(0));
+        mReceiver.onEvent(live(5));
+        assertEquals(0, mReceiver.getLastSequence(DISPENSER));
+        for (long sequence = 1; sequence <= 3; sequence++) {
+            mReceiver.onEvent(live(sequence));
+        }
+        assertEquals(3, mReceiver.getLastSequence(DISPENSER));
+        mReceiver.onEvent(live(4));
+        assertEquals(5, mReceiver.getLastSequence(DISPENSER));
+        // Events without a sequence number don't move it
+        mReceiver.onEvent(live(DispenserEvent.NO_SEQUENCE));
+        assertEquals(5, mReceiver.getLastSequence(DISPENSER));
+    }
+
+    @Test
+    public void handsOnChunksAndGivesUpOnGapsAtTheLastOne() throws InterruptedException {
+        assertTrue(mReceiver.offer(DISPENSER, chunk(1, 0, 1), 10000, null, mListener));
+        // The dispenser no longer has 2 to 4
+        assertTrue(mReceiver.offer(DISPENSER, chunk(0, 5, 6), 10000, null, mListener));
+        mReceiver.sync();
+
+        assertEquals(4, mEvents.size());
+        assertEquals(0, mEvents.get(0).sequence);
+        assertEquals(6, mEvents.get(3).sequence);
+        assertEquals(9000, mEvents.get(0).time);
+        assertEquals(6, mReceiver.getLastSequence(DISPENSER));
+    }
+
+    @Test
+    public void dropsWhatIsNotAGoodChunk() throws InterruptedException {
+        assertFalse(mReceiver.offer(DISPENSER, Constants.MESSAGE_TAKEN, 0, null, mListener));
+        assertTrue(mReceiver.offer(DISPENSER, Constants.MESSAGE_EVENTS + D + "0" + D + "2"
+                + D + Constants.MESSAGE_TAKEN + D + "1" + D + "0" + D, 0, null, mListener));
+        mReceiver.sync();
+        assertTrue(mEvents.isEmpty());
+        assertEquals(-1, mReceiver.getLastSequence(DISPENSER));
+    }
+
+    private static DispenserEvent live(long sequence) {
+        return new DispenserEvent(DispenserEvent.TYPE_TAKEN, DISPENSER, 1000, sequence,
+                "Aspirin");
+    }
+
+    /**
+     * Return a chunk of taken events a second old each, with the given sequence numbers.
+     */
+    private static String chunk(int remaining, long... sequences) {
+        StringBuilder chunk = new StringBuilder(Constants.MESSAGE_EVENTS).append(D)
+                .append(remaining).append(D).append(sequences.length);
+        for (long sequence : sequences) {
+            chunk.append(D).append(Constants.MESSAGE_TAKEN).append(D).append(sequence)
+                    .append(D).append(1000).append(D).append("Aspirin");
+        }
+        return chunk.toString();
+    }
+}
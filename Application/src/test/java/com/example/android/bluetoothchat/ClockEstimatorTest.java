@@ -0,0 +1,102 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockEstimatorTest {
+
+    private static final long START = 1000000;
+
+    private final ClockEstimator mEstimator = new ClockEstimator();
+
+    @Test
+    public void takesTheOffsetOfAnExchange() {
+        exchange(1000, 5000, 0, 10, 10);
+        assertTrue(mEstimator.endBurst());
+
+        assertTrue(mEstimator.isSynced());
+        assertEquals(5000, mEstimator.getOffset(1000), 0.5);
+        assertEquals(1000, mEstimator.toPhoneTime(6000));
+        assertEquals(-1, mEstimator.getLastErrorMs());
+    }
+
+    @Test
+    public void onlyTheShortestRoundTripOfABurstCounts() {
+        // Held up on the way there, which makes the offset look 95ms larger
+        exchange(1000, 5000, 0, 200, 10);
+        exchange(1250, 5000, 0, 10, 10);
+        // Negative round trips are impossible, and ignored
+        mEstimator.addExchange(1500, 0, 1000, 1501);
+        mEstimator.endBurst();
+
+        assertEquals(5000, mEstimator.getOffset(1250), 0.5);
+    }
+
+    @Test
+    public void aBurstWithoutExchangesChangesNothing() {
+        assertFalse(mEstimator.endBurst());
+        assertFalse(mEstimator.isSynced());
+        assertEquals(ClockEstimator.MIN_INTERVAL_MS, mEstimator.getIntervalMs());
+    }
+
+    @Test
+    public void estimatesTheDriftOverLongEnough() {
+        double drift = 50e-6;
+        // The last eight bursts, two minutes apart, span long enough
+        for (int i = 0; i < 8; i++) {
+            exchange(START + i * 2 * 60 * 1000L, 5000, drift, 10, 10);
+            mEstimator.endBurst();
+        }
+        assertEquals(50, mEstimator.getDriftPpm(), 2);
+        assertEquals(1000000, mEstimator.toPhoneDuration(1000050), 2);
+        long phoneTime = START + 30 * 60 * 1000L;
+        assertEquals(phoneTime, mEstimator.toPhoneTime(dispenserTime(phoneTime, 5000, drift)), 2);
+    }
+
+    @Test
+    public void waitsLongerWhileThePredictionsHold() {
+        long time = START;
+        for (int i = 0; i < 5; i++) {
+            exchange(time, 5000, 0, 10, 10);
+            mEstimator.endBurst();
+            time += mEstimator.getIntervalMs();
+        }
+        assertTrue(mEstimator.getIntervalMs() > ClockEstimator.MIN_INTERVAL_MS);
+        assertTrue(mEstimator.getLastErrorMs() <= 1);
+    }
+
+    @Test
+    public void startsOverWhenTheDispenserClockJumps() {
+        long time = START;
+        for (int i = 0; i < 5; i++) {
+            exchange(time, 5000, 0, 10, 10);
+            mEstimator.endBurst();
+            time += mEstimator.getIntervalMs();
+        }
+        // The dispenser restarted and counts from 0 again
+        exchange(time, -time, 0, 10, 10);
+        mEstimator.endBurst();
+
+        assertEquals(ClockEstimator.MIN_INTERVAL_MS, mEstimator.getIntervalMs());
+        assertEquals(5000 + time, mEstimator.getLastErrorMs(), 1);
+        assertEquals(-time, mEstimator.getOffset(time), 0.5);
+    }
+
+    /**
+     * Adds an exchange with a dispenser whose clock is ahead by the given offset at START and
+     * runs fast by the given drift.
+     */
+    private void exchange(long t1, long offset, double drift, long there, long back) {
+        long t2 = dispenserTime(t1 + there, offset, drift);
+        long t3 = t2 + 1;
+        long t4 = t1 + there + 1 + back;
+        mEstimator.addExchange(t1, t2, t3, t4);
+    }
+
+    private static long dispenserTime(long phoneTime, long offset, double drift) {
+        return Math.round(phoneTime + offset + (phoneTime - START) * drift);
+    }
+}
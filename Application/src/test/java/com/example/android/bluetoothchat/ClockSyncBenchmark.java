@@ -0,0 +1,109 @@
+package com.example.android.bluetoothchat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how accurately a {@link ClockEstimator} dates dispenser events, and how many round
+ * trips it takes, on a simulated link and clock. Runs on a plain JVM in simulated time:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.ClockSyncBenchmark \
+ *         [days] [driftPpm] [seed]
+ * </pre>
+ * The dispenser clock runs fast by the given drift, plus a daily swing of a few ppm as its
+ * crystal warms and cools. Each way the link takes a few milliseconds, now and then a few
+ * hundred. An event happens every half minute and is dated with the estimator's bursts at the
+ * intervals it asks for, with a burst every minute, and by when it arrived.
+ */
+public class ClockSyncBenchmark {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final double DAILY_SWING_PPM = 3;
+    private static final int BURST_SIZE = 4;
+    private static final long BURST_SPACING_MS = 250;
+    private static final long EVENT_INTERVAL_MS = 30 * 1000;
+    private static final long FIXED_INTERVAL_MS = 60 * 1000;
+
+    private final double mDrift;
+    private final double mDispenserStart;
+    private final Random mRandom;
+
+    private ClockSyncBenchmark(double driftPpm, long seed) {
+        mDrift = driftPpm * 1e-6;
+        mRandom = new Random(seed);
+        mDispenserStart = 1000 + mRandom.nextInt(1000000);
+    }
+
+    public static void main(String[] args) {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        double driftPpm = args.length > 1 ? Double.parseDouble(args[1]) : 40;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        long duration = days * DAY_MS;
+        System.out.println("days=" + days + " driftPpm=" + driftPpm);
+        new ClockSyncBenchmark(driftPpm, seed).run("adaptive", duration, true);
+        new ClockSyncBenchmark(driftPpm, seed).run("everyMinute", duration, false);
+    }
+
+    private void run(String name, long duration, boolean adaptive) {
+        ClockEstimator estimator = new ClockEstimator();
+        int events = (int) (duration / EVENT_INTERVAL_MS);
+        long[] errors = new long[events];
+        long[] arrivalErrors = new long[events];
+        int dated = 0;
+        long roundTrips = 0;
+        long nextBurst = 0;
+        for (int i = 0; i < events; i++) {
+            long eventAt = i * EVENT_INTERVAL_MS;
+            while (nextBurst <= eventAt) {
+                for (int j = 0; j < BURST_SIZE; j++) {
+                    long t1 = nextBurst + j * BURST_SPACING_MS;
+                    long there = delay();
+                    double t2 = dispenserTime(t1 + there);
+                    double t3 = t2 + 1;
+                    long t4 = t1 + there + 1 + delay();
+                    estimator.addExchange(t1, (long) t2, (long) t3, t4);
+                    roundTrips++;
+                }
+                estimator.endBurst();
+                nextBurst += adaptive ? estimator.getIntervalMs() : FIXED_INTERVAL_MS;
+            }
+            long stamp = (long) dispenserTime(eventAt);
+            errors[dated] = Math.abs(estimator.toPhoneTime(stamp) - eventAt);
+            arrivalErrors[dated] = delay();
+            dated++;
+        }
+        Arrays.sort(errors, 0, dated);
+        Arrays.sort(arrivalErrors, 0, dated);
+        System.out.println(name + ": roundTrips=" + roundTrips
+                + " roundTripsPerDay=" + roundTrips * DAY_MS / duration
+                + " events=" + dated
+                + " errorMs p50=" + errors[dated / 2]
+                + " p99=" + errors[dated * 99 / 100]
+                + " max=" + errors[dated - 1]
+                + " arrivalErrorMs p50=" + arrivalErrors[dated / 2]
+                + " p99=" + arrivalErrors[dated * 99 / 100]
+                + " driftPpm=" + String.format("%.1f", estimator.getDriftPpm())
+                + " intervalS=" + estimator.getIntervalMs() / 1000);
+    }
+
+    /**
+     * Return the dispenser's clock at the given phone time.
+     */
+    private double dispenserTime(double phoneTime) {
+        double swing = DAILY_SWING_PPM * 1e-6 * DAY_MS / (2 * Math.PI)
+                * (1 - Math.cos(2 * Math.PI * phoneTime / DAY_MS));
+        return mDispenserStart + phoneTime * (1 + mDrift) + swing;
+    }
+
+    /**
+     * Return a one way delay of the link.
+     */
+    private long delay() {
+        long delay = 8 + (long) (-10 * Math.log(1 - mRandom.nextDouble()));
+        if (mRandom.nextInt(20) == 0) {
+            // A retransmission
+            delay += 100 + mRandom.nextInt(400);
+        }
+        return delay;
+    }
+}
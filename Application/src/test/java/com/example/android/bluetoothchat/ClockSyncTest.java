@@ -0,0 +1,48 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockSyncTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final String TIME = Constants.MESSAGE_TIME + Constants.MESSAGE_DELIMITER;
+
+    private final ClockSync mClockSync = new ClockSync(new ClockSync.Transport() {
+        @Override
+        public boolean sendNow(String dispenser, String command) {
+            return false;
+        }
+    });
+
+    @After
+    public void tearDown() {
+        mClockSync.close();
+    }
+
+    @Test
+    public void leavesOtherMessagesAlone() {
+        assertFalse(mClockSync.onReply(DISPENSER, "TAKEN_DISPEZZZER", 0));
+        assertFalse(mClockSync.onReply(DISPENSER, Constants.MESSAGE_TIME, 0));
+    }
+
+    @Test
+    public void takesAnswersItDidNotAskFor() {
+        assertTrue(mClockSync.onReply(DISPENSER, TIME + "7" + Constants.MESSAGE_DELIMITER
+                + "1000" + Constants.MESSAGE_DELIMITER + "1001", 0));
+        assertTrue(mClockSync.onReply(DISPENSER, TIME + "x", 0));
+        assertTrue(mClockSync.onReply(DISPENSER, TIME + "7", 0));
+    }
+
+    @Test
+    public void leavesTimesAloneUntilSynced() {
+        assertEquals(-1, mClockSync.toPhoneTime(DISPENSER, 1000));
+        assertEquals(1000, mClockSync.toPhoneDuration(DISPENSER, 1000));
+        mClockSync.stop(DISPENSER);
+        assertEquals(-1, mClockSync.toPhoneTime(DISPENSER, 1000));
+    }
+}
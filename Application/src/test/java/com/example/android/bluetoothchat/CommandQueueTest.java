@@ -0,0 +1,107 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final String CONFIGURE = Constants.MESSAGE_CONFIGURE
+            + Constants.MESSAGE_DELIMITER;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private CommandQueue mQueue;
+    private final List<CommandQueue.Command> mDropped = new ArrayList<CommandQueue.Command>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = new File(mFolder.getRoot(), "commands");
+        mQueue = new CommandQueue(mDirectory);
+    }
+
+    @Test
+    public void keepsQueuedCommandsAcrossRestarts() throws InterruptedException {
+        mQueue.enqueue(DISPENSER, Constants.MESSAGE_RING, mDropped);
+        mQueue.enqueue(DISPENSER, CONFIGURE + "1", mDropped);
+        mQueue.sync();
+
+        CommandQueue reopened = new CommandQueue(mDirectory);
+        List<CommandQueue.Command> commands = reopened.peek(DISPENSER, mDropped);
+        assertEquals(2, commands.size());
+        assertEquals(Constants.MESSAGE_RING, commands.get(0).text);
+        assertEquals(CONFIGURE + "1", commands.get(1).text);
+    }
+
+    @Test
+    public void idsContinueFromTheSavedOnes() throws InterruptedException {
+        CommandQueue.Command first = mQueue.enqueue(DISPENSER, Constants.MESSAGE_RING,
+                mDropped);
+        CommandQueue.Command second = mQueue.enqueue(null, CONFIGURE + "1", mDropped);
+        assertTrue(second.id > first.id);
+        mQueue.sync();
+
+        CommandQueue reopened = new CommandQueue(mDirectory);
+        CommandQueue.Command third = reopened.enqueue(DISPENSER, CONFIGURE + "2", mDropped);
+        assertEquals(second.id + 1, third.id);
+    }
+
+    @Test
+    public void collapsesCommandsThatALaterOneMakesPointless() {
+        CommandQueue.Command configure = mQueue.enqueue(DISPENSER, CONFIGURE + "1", mDropped);
+        mQueue.enqueue(DISPENSER, Constants.MESSAGE_RING, mDropped);
+        assertNull(mQueue.enqueue(DISPENSER, Constants.MESSAGE_RING, mDropped));
+        mQueue.enqueue(DISPENSER, CONFIGURE + "2", mDropped);
+
+        assertEquals(1, mDropped.size());
+        assertEquals(configure.id, mDropped.get(0).id);
+        List<CommandQueue.Command> commands = mQueue.peek(DISPENSER, mDropped);
+        assertEquals(2, commands.size());
+        assertEquals(Constants.MESSAGE_RING, commands.get(0).text);
+        assertEquals(CONFIGURE + "2", commands.get(1).text);
+    }
+
+    @Test
+    public void holdsCommandsForTheNextDispenser() throws InterruptedException {
+        assertNull(mQueue.getLastDispenser());
+        mQueue.enqueue(null, CONFIGURE + "1", mDropped);
+        mQueue.enqueue(DISPENSER, CONFIGURE + "2", mDropped);
+
+        List<CommandQueue.Command> collapsed = new ArrayList<CommandQueue.Command>();
+        List<CommandQueue.Command> commands = mQueue.peek(DISPENSER, collapsed);
+        assertEquals(1, commands.size());
+        assertEquals(CONFIGURE + "1", commands.get(0).text);
+        assertEquals(1, collapsed.size());
+        assertEquals(DISPENSER, mQueue.getLastDispenser());
+        mQueue.sync();
+        assertEquals(DISPENSER, new CommandQueue(mDirectory).getLastDispenser());
+    }
+
+    @Test
+    public void removesWrittenCommands() throws InterruptedException {
+        mQueue.enqueue(DISPENSER, Constants.MESSAGE_RING, mDropped);
+        List<CommandQueue.Command> written = mQueue.peek(DISPENSER, mDropped);
+        mQueue.enqueue(DISPENSER, CONFIGURE + "1", mDropped);
+        mQueue.remove(DISPENSER, written);
+
+        List<CommandQueue.Command> commands = mQueue.peek(DISPENSER, mDropped);
+        assertEquals(1, commands.size());
+        assertEquals(CONFIGURE + "1", commands.get(0).text);
+        mQueue.remove(DISPENSER, commands);
+        mQueue.sync();
+        assertTrue(new CommandQueue(mDirectory).peek(DISPENSER, mDropped).isEmpty());
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandTrackerTest {
+
+    private final CommandTracker mTracker = new CommandTracker();
+
+    @After
+    public void tearDown() {
+        mTracker.close();
+    }
+
+    @Test
+    public void framesCommandsAndParsesAcknowledgements() {
+        assertEquals(Constants.MESSAGE_RING + Constants.MESSAGE_DELIMITER + "7"
+                + Constants.MESSAGE_TERMINATOR, CommandTracker.frame(Constants.MESSAGE_RING, 7));
+        assertEquals(7, CommandTracker.parseAck(
+                Constants.MESSAGE_ACK + Constants.MESSAGE_DELIMITER + "7"));
+        assertEquals(-1, CommandTracker.parseAck(Constants.MESSAGE_ACK
+                + Constants.MESSAGE_DELIMITER + "x"));
+        assertEquals(-1, CommandTracker.parseAck(Constants.MESSAGE_RING));
+    }
+
+    @Test
+    public void acknowledgesWhatWasWritten() {
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 60 * 1000L);
+        long sequence = mTracker.sent(future);
+        mTracker.written(future);
+        assertEquals(1, mTracker.getInFlightCount());
+
+        mTracker.onAck(sequence);
+        assertEquals(CommandFuture.STATE_ACKNOWLEDGED, future.getState());
+        assertEquals(1, mTracker.getAcknowledgedCount());
+        assertEquals(0, mTracker.getInFlightCount());
+        assertTrue(mTracker.getLatencyPercentileMicros(50) >= 0);
+    }
+
+    @Test
+    public void timesOutOnlyOnceWritten() throws InterruptedException {
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 20);
+        mTracker.sent(future);
+        // Waiting for the writer thread, or for credit
+        Thread.sleep(100);
+        assertEquals(CommandFuture.STATE_SENT, future.getState());
+
+        mTracker.written(future);
+        Thread.sleep(200);
+        assertEquals(CommandFuture.STATE_TIMED_OUT, future.getState());
+        assertEquals(1, mTracker.getTimedOutCount());
+        assertEquals(0, mTracker.getInFlightCount());
+    }
+
+    @Test
+    public void anAcknowledgementBeforeTheWriteReturnsStartsNoTimeout()
+            throws InterruptedException {
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 20);
+        mTracker.onAck(mTracker.sent(future));
+        mTracker.written(future);
+        Thread.sleep(100);
+        assertEquals(CommandFuture.STATE_ACKNOWLEDGED, future.getState());
+        assertEquals(0, mTracker.getTimedOutCount());
+    }
+
+    @Test
+    public void unsentCommandsAreQueuedAgain() {
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 60 * 1000L);
+        mTracker.sent(future);
+        mTracker.unsent(future);
+        assertEquals(CommandFuture.STATE_QUEUED, future.getState());
+        assertEquals(0, mTracker.getInFlightCount());
+    }
+
+    @Test
+    public void untrackedCommandsOnlyTakeASequenceNumber() {
+        long sequence = mTracker.nextSequence();
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 60 * 1000L);
+        assertEquals(sequence + 1, mTracker.sent(future));
+        assertEquals(1, mTracker.getInFlightCount());
+
+        mTracker.onAck(sequence);
+        assertEquals(CommandFuture.STATE_SENT, future.getState());
+        assertEquals(0, mTracker.getAcknowledgedCount());
+    }
+
+    @Test
+    public void commandsWrittenAfterClosingDoNotTimeOut() throws InterruptedException {
+        mTracker.close();
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 1);
+        long sequence = mTracker.sent(future);
+        mTracker.written(future);
+        Thread.sleep(50);
+        assertEquals(CommandFuture.STATE_SENT, future.getState());
+
+        mTracker.onAck(sequence);
+        assertEquals(CommandFuture.STATE_ACKNOWLEDGED, future.getState());
+        assertEquals(0, mTracker.getInFlightCount());
+        assertEquals(0, mTracker.getTimedOutCount());
+    }
+
+    @Test
+    public void closingStillFailsWhatIsInFlight() {
+        CommandFuture future = new CommandFuture(Constants.MESSAGE_RING, 60 * 1000L);
+        mTracker.sent(future);
+        mTracker.written(future);
+        mTracker.close();
+        mTracker.failAll();
+        assertEquals(CommandFuture.STATE_FAILED, future.getState());
+        assertEquals(1, mTracker.getFailedCount());
+        assertEquals(0, mTracker.getInFlightCount());
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CreditGateTest {
+
+    private static final String CREDIT = Constants.MESSAGE_CREDIT + Constants.MESSAGE_DELIMITER;
+
+    private final CreditGate mGate = new CreditGate();
+
+    @Test
+    public void parsesCreditMessages() {
+        assertEquals(512, CreditGate.parseCredit(CREDIT + "512"));
+        assertEquals(0, CreditGate.parseCredit(CREDIT + "0"));
+        assertEquals(-1, CreditGate.parseCredit(CREDIT + "-5"));
+        assertEquals(-1, CreditGate.parseCredit(CREDIT + "lots"));
+        assertEquals(-1, CreditGate.parseCredit(CREDIT));
+        assertEquals(-1, CreditGate.parseCredit(Constants.MESSAGE_ACK
+                + Constants.MESSAGE_DELIMITER + "512"));
+    }
+
+    @Test
+    public void limitsWritesToTheInitialCreditBeforeTheFirstGrant() throws Exception {
+        assertEquals(CreditGate.INITIAL_CREDIT, mGate.acquire(1000, 5000));
+        assertEquals(0, mGate.getAvailable());
+        assertEquals(0, mGate.getWaitCount());
+    }
+
+    @Test
+    public void firstGrantIsTheWholeBuffer() throws Exception {
+        assertEquals(40, mGate.acquire(40, 5000));
+        // The 40 bytes written are in the buffer the dispenser announces
+        mGate.grant(256);
+        assertEquals(256 - 40, mGate.getAvailable());
+        mGate.grant(10);
+        assertEquals(256 - 40 + 10, mGate.getAvailable());
+        assertEquals(100, mGate.acquire(100, 5000));
+        assertEquals(256 - 40 + 10 - 100, mGate.getAvailable());
+    }
+
+    @Test
+    public void waitsForCredit() throws Exception {
+        mGate.acquire(CreditGate.INITIAL_CREDIT, 5000);
+        grantLater(50, CreditGate.INITIAL_CREDIT + 30);
+        assertEquals(30, mGate.acquire(100, 5000));
+        assertEquals(1, mGate.getWaitCount());
+        assertFalse(mGate.isLegacy());
+    }
+
+    @Test
+    public void givesUpOnADispenserThatStopsGranting() throws Exception {
+        mGate.grant(CreditGate.INITIAL_CREDIT);
+        mGate.acquire(CreditGate.INITIAL_CREDIT, 5000);
+        long start = System.nanoTime();
+        assertEquals(0, mGate.acquire(1, 100));
+        assertTrue(System.nanoTime() - start >= 100 * 1000 * 1000L);
+        assertFalse(mGate.isLegacy());
+    }
+
+    @Test
+    public void writesWithoutLimitToADispenserThatNeverGrants() throws Exception {
+        mGate.acquire(CreditGate.INITIAL_CREDIT, 5000);
+        long start = System.nanoTime();
+        assertEquals(100000, mGate.acquire(100000, 5000));
+        assertTrue(System.nanoTime() - start >= CreditGate.LEGACY_TIMEOUT_MS * 1000 * 1000L);
+        assertTrue(mGate.isLegacy());
+        assertEquals(Integer.MAX_VALUE, mGate.getAvailable());
+    }
+
+    @Test
+    public void closingWakesWaitingWriters() throws Exception {
+        mGate.acquire(CreditGate.INITIAL_CREDIT, 5000);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(50);
+                mGate.close();
+            }
+        }).start();
+        assertEquals(0, mGate.acquire(1, 5000));
+        assertFalse(mGate.isLegacy());
+
+        // Even with credit left
+        mGate.grant(1000);
+        assertEquals(0, mGate.acquire(1, 5000));
+    }
+
+    private void grantLater(final long delayMs, final int bytes) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(delayMs);
+                mGate.grant(bytes);
+            }
+        }).start();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
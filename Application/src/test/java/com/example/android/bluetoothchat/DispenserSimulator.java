@@ -0,0 +1,464 @@
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A dispenser on the other end of a simulated link, for benchmarks on a plain JVM. Bytes
+ * written to {@link #getOutputStream()} pass a link of limited bandwidth into the dispenser's
+ * receive buffer, which its microcontroller empties at a slower rate. Bytes that arrive while
+ * the receive buffer is full are lost, like on a UART without hardware flow control. Writes
+ * block while the link's own buffer is full, like on an RFCOMM socket.
+ * <p>
+ * Every intact command is answered with an acknowledgement on {@link #getInputStream()}. A
+ * dispenser that grants credit also announces its free buffer space, see {@link CreditGate}.
+ * It takes firmware updates too, see {@link FirmwareUpdater}, and keeps what it received of an
+ * image when the link is lost.
+ */
+public class DispenserSimulator {
+
+    private static final String[] COMMANDS = {
+            Constants.MESSAGE_CONFIGURE, Constants.MESSAGE_RING, Constants.MESSAGE_FW_BEGIN,
+            Constants.MESSAGE_FW_CHUNK, Constants.MESSAGE_FW_COMMIT
+    };
+
+    // What the Bluetooth stack buffers before a write blocks
+    private static final int LINK_BUFFER_SIZE = 4096;
+
+    private final int mBufferSize;
+    private final int mLinkBytesPerMs;
+    private final int mConsumeBytesPerMs;
+    private final boolean mGrantsCredit;
+
+    private final Pipe mLink = new Pipe(LINK_BUFFER_SIZE);
+    private final Pipe mReplies = new Pipe(64 * 1024);
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    // Guarded by this
+    private FrameDecoder mDecoder = new FrameDecoder();
+    private final List<String> mReceived = new ArrayList<String>();
+    private int mBuffered;
+    private long mOverrunBytes;
+    private long mCorrupt;
+    // Set by reconnect(), the dispenser announces its free buffer space again
+    private boolean mRelinked;
+
+    // The firmware image being received: its size, -1 for none, and CRC, and how much of it
+    // arrived with the CRC of that
+    private long mFirmwareSize = -1;
+    private long mFirmwareCrc;
+    private long mFirmwareOffset;
+    private final CRC32 mFirmwareSoFar = new CRC32();
+    private final CRC32 mChunkCrc = new CRC32();
+    private final byte[] mChunk = new byte[FirmwareUpdater.MAX_CHUNK_SIZE];
+    private int mChunks;
+    // Every n-th chunk is damaged on its way, 0 for none
+    private int mDamageEvery;
+    private boolean mFirmwareInstalled;
+
+    /**
+     * @param bufferSize        The size of the dispenser's receive buffer
+     * @param linkBytesPerMs    The bandwidth of the link
+     * @param consumeBytesPerMs How fast the dispenser empties its receive buffer
+     * @param grantsCredit      Whether the dispenser announces its free buffer space
+     */
+    public DispenserSimulator(int bufferSize, int linkBytesPerMs, int consumeBytesPerMs,
+            boolean grantsCredit) {
+        mBufferSize = bufferSize;
+        mLinkBytesPerMs = linkBytesPerMs;
+        mConsumeBytesPerMs = consumeBytesPerMs;
+        mGrantsCredit = grantsCredit;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                simulate();
+            }
+        }, "DispenserSimulator");
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        if (mGrantsCredit) {
+            reply(Constants.MESSAGE_CREDIT + Constants.MESSAGE_DELIMITER + mBufferSize);
+        }
+        mThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        mRunning = false;
+        mThread.join();
+        mLink.close();
+        mReplies.close();
+    }
+
+    /**
+     * Drops the link and brings it back, as if the connection was lost: what was on its way in
+     * either direction is gone and a partly received command is discarded. What the dispenser
+     * took in is kept, and it announces its free buffer space again.
+     */
+    public void reconnect() {
+        synchronized (this) {
+            mLink.clear();
+            mReplies.clear();
+            mDecoder = new FrameDecoder();
+            mRelinked = true;
+        }
+    }
+
+    /**
+     * Damages every n-th firmware chunk on its way, like noise on the link would.
+     */
+    public synchronized void setDamageEvery(int chunks) {
+        mDamageEvery = chunks;
+    }
+
+    public synchronized boolean isFirmwareInstalled() {
+        return mFirmwareInstalled;
+    }
+
+    /**
+     * Return the stream the app writes commands to.
+     */
+    public OutputStream getOutputStream() {
+        return mLink.getOutputStream();
+    }
+
+    /**
+     * Return the stream the app reads acknowledgements and credit from.
+     */
+    public InputStream getInputStream() {
+        return mReplies.getInputStream();
+    }
+
+    /**
+     * Return whether everything written so far has been consumed.
+     */
+    public boolean isIdle() {
+        synchronized (this) {
+            return mLink.available() == 0 && mBuffered == 0;
+        }
+    }
+
+    public synchronized long getOverrunBytes() {
+        return mOverrunBytes;
+    }
+
+    /**
+     * Return the commands received in one piece, without sequence number.
+     */
+    public synchronized List<String> getReceived() {
+        return new ArrayList<String>(mReceived);
+    }
+
+    public synchronized long getCorruptFrames() {
+        return mCorrupt;
+    }
+
+    private void simulate() {
+        byte[] chunk = new byte[LINK_BUFFER_SIZE];
+        List<String> frames = new ArrayList<String>();
+        long last = System.nanoTime();
+        // Budgets carry fractions of a millisecond over to the next round
+        long linkBudget = 0;
+        long consumeBudget = 0;
+        int freed = 0;
+        while (mRunning) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean relinked;
+            synchronized (this) {
+                relinked = mRelinked;
+                mRelinked = false;
+            }
+            if (relinked) {
+                freed = 0;
+                if (mGrantsCredit) {
+                    reply(Constants.MESSAGE_CREDIT + Constants.MESSAGE_DELIMITER
+                            + (mBufferSize - mBuffered));
+                }
+            }
+
+            long now = System.nanoTime();
+            long elapsedMicros = (now - last) / 1000;
+            last = now;
+            linkBudget += elapsedMicros * mLinkBytesPerMs;
+            consumeBudget += elapsedMicros * mConsumeBytesPerMs;
+
+            // Consume first, what the link delivers in this round lands on the freed space
+            int consumed = (int) Math.min(consumeBudget / 1000, mBuffered);
+            consumeBudget -= consumed * 1000L;
+            if (mBuffered == 0) {
+                // An idle dispenser doesn't save up processing time
+                consumeBudget = 0;
+            }
+
+            int delivered = mLink.take(chunk, (int) Math.min(linkBudget / 1000, chunk.length));
+            linkBudget -= delivered * 1000L;
+            if (delivered == 0) {
+                linkBudget = 0;
+            }
+
+            synchronized (this) {
+                mBuffered -= consumed;
+                int accepted = Math.min(delivered, mBufferSize - mBuffered);
+                mOverrunBytes += delivered - accepted;
+                mBuffered += accepted;
+                frames.clear();
+                // Frames are complete once their last byte is consumed, close enough to
+                // decoding the accepted bytes right away
+                mDecoder.decode(chunk, accepted, frames);
+                for (String frame : frames) {
+                    long sequence = parseCommand(frame);
+                    if (sequence < 0) {
+                        mCorrupt++;
+                        continue;
+                    }
+                    String command = frame.substring(0,
+                            frame.lastIndexOf(Constants.MESSAGE_DELIMITER));
+                    if (!onFirmware(command)) {
+                        mReceived.add(command);
+                    }
+                    reply(Constants.MESSAGE_ACK + Constants.MESSAGE_DELIMITER + sequence);
+                }
+            }
+
+            if (mGrantsCredit) {
+                freed += consumed;
+                // Grant in batches, a credit message per consumed byte would flood the link
+                if (freed >= mBufferSize / 4 || (freed > 0 && isIdle())) {
+                    reply(Constants.MESSAGE_CREDIT + Constants.MESSAGE_DELIMITER + freed);
+                    freed = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays the dispenser's part of a firmware update. Called locked.
+     *
+     * @return Whether the command was part of one
+     */
+    private boolean onFirmware(String command) {
+        String[] fields = command.split(Constants.MESSAGE_DELIMITER);
+        String type = fields[0];
+        boolean begin = Constants.MESSAGE_FW_BEGIN.equals(type);
+        boolean chunk = Constants.MESSAGE_FW_CHUNK.equals(type);
+        boolean commit = Constants.MESSAGE_FW_COMMIT.equals(type);
+        if (!begin && !chunk && !commit) {
+            return false;
+        }
+        if (fields.length < (chunk ? 4 : 3)) {
+            mCorrupt++;
+            return true;
+        }
+        try {
+            long first = Long.parseLong(fields[1]);
+            long crc = Long.parseLong(fields[2]);
+            if (begin) {
+                if (first != mFirmwareSize || crc != mFirmwareCrc) {
+                    // Another image, what arrived of the last one is of no use
+                    mFirmwareSize = first;
+                    mFirmwareCrc = crc;
+                    mFirmwareOffset = 0;
+                    mFirmwareSoFar.reset();
+                }
+                mFirmwareInstalled = false;
+                reply(Constants.MESSAGE_FW_ACK + Constants.MESSAGE_DELIMITER + mFirmwareOffset);
+            } else if (chunk) {
+                if (mFirmwareSize < 0 || first != mFirmwareOffset) {
+                    // Follows a chunk that was lost or damaged, it comes again after that one
+                    return true;
+                }
+                int length = FirmwareUpdater.decodeBase64(fields[3], mChunk);
+                mChunks++;
+                if (length > 0 && mDamageEvery > 0 && mChunks % mDamageEvery == 0) {
+                    mChunk[length / 2] ^= 0x10;
+                }
+                mChunkCrc.reset();
+                if (length > 0) {
+                    mChunkCrc.update(mChunk, 0, length);
+                }
+                if (length <= 0 || mChunkCrc.getValue() != crc
+                        || first + length > mFirmwareSize) {
+                    reply(Constants.MESSAGE_FW_NAK + Constants.MESSAGE_DELIMITER + first);
+                    return true;
+                }
+                mFirmwareSoFar.update(mChunk, 0, length);
+                mFirmwareOffset += length;
+                reply(Constants.MESSAGE_FW_ACK + Constants.MESSAGE_DELIMITER + mFirmwareOffset);
+            } else {
+                boolean verified = first == mFirmwareSize && crc == mFirmwareCrc
+                        && mFirmwareOffset == mFirmwareSize
+                        && mFirmwareSoFar.getValue() == mFirmwareCrc;
+                // Kept, a commit whose answer was lost may come again
+                mFirmwareInstalled = verified;
+                reply(Constants.MESSAGE_FW_RESULT + Constants.MESSAGE_DELIMITER
+                        + (verified ? "OK" : "Image does not match"));
+            }
+        } catch (NumberFormatException e) {
+            mCorrupt++;
+        }
+        return true;
+    }
+
+    /**
+     * Return the sequence number of a command, or -1 if the frame is not one. A damaged
+     * command can still look like one, callers compare {@link #getReceived()} with what they
+     * sent.
+     */
+    private static long parseCommand(String frame) {
+        int end = frame.lastIndexOf(Constants.MESSAGE_DELIMITER);
+        if (end < 0) {
+            return -1;
+        }
+        String name = frame.substring(0, frame.indexOf(Constants.MESSAGE_DELIMITER));
+        boolean known = false;
+        for (String command : COMMANDS) {
+            known |= command.equals(name);
+        }
+        if (!known) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(frame.substring(end + Constants.MESSAGE_DELIMITER.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void reply(String message) {
+        try {
+            byte[] bytes = (message + Constants.MESSAGE_TERMINATOR).getBytes("UTF-8");
+            mReplies.getOutputStream().write(bytes);
+        } catch (IOException e) {
+            // Closed while stopping
+        }
+    }
+
+    /**
+     * A bounded byte queue whose writes block while it is full.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int available() {
+            return mCount;
+        }
+
+        synchronized void clear() {
+            mHead = 0;
+            mCount = 0;
+            notifyAll();
+        }
+
+        synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mClosed) {
+                    throw new IOException("Closed");
+                }
+                int n = Math.min(length, mBuffer.length - mCount);
+                for (int i = 0; i < n; i++) {
+                    mBuffer[(mHead + mCount + i) % mBuffer.length] = bytes[offset + i];
+                }
+                mCount += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Takes up to max bytes without waiting.
+         */
+        synchronized int take(byte[] bytes, int max) {
+            int n = Math.min(max, mCount);
+            for (int i = 0; i < n; i++) {
+                bytes[i] = mBuffer[(mHead + i) % mBuffer.length];
+            }
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            if (n > 0) {
+                notifyAll();
+            }
+            return n;
+        }
+
+        synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            while (mCount == 0 && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mCount == 0) {
+                return -1;
+            }
+            int n = Math.min(length, mCount);
+            for (int i = 0; i < n; i++) {
+                bytes[offset + i] = mBuffer[(mHead + i) % mBuffer.length];
+            }
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+            };
+        }
+
+        InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return Pipe.this.read(b, off, len);
+                }
+            };
+        }
+    }
+}
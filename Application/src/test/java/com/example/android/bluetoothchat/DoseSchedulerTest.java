@@ -0,0 +1,182 @@
+package com.example.android.bluetoothchat;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DoseSchedulerTest {
+
+    private final DoseScheduler mScheduler = new DoseScheduler();
+
+    @Test
+    public void spreadsDosesOverTheDay() throws JSONException {
+        long start = startOfDay(2018, Calendar.MARCH, 1);
+        mScheduler.setSchedule("p1", patientData(med("Aspirin", 3, 2)), start, start);
+
+        assertEquals(6, mScheduler.size());
+        assertEquals(at(start, 0, 8, 0), mScheduler.getNextDoseTime());
+        List<DoseScheduler.Dose> doses = mScheduler.pollDue(Long.MAX_VALUE);
+        long[] expected = {at(start, 0, 8, 0), at(start, 0, 15, 0), at(start, 0, 22, 0),
+                at(start, 1, 8, 0), at(start, 1, 15, 0), at(start, 1, 22, 0)};
+        assertEquals(expected.length, doses.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], doses.get(i).time);
+            assertEquals("p1", doses.get(i).patientId);
+            assertEquals("Aspirin", doses.get(i).medication);
+        }
+        assertEquals(0, mScheduler.size());
+        assertEquals(-1, mScheduler.getNextDoseTime());
+    }
+
+    @Test
+    public void leavesOutDosesUpToNotBefore() throws JSONException {
+        long start = startOfDay(2018, Calendar.MARCH, 1);
+        mScheduler.setSchedule("p1", patientData(med("Aspirin", 1, 3), med("Ibuprofen", 2, 1)),
+                start, at(start, 0, 8, 0));
+
+        // Both 8:00 doses of the first day are left out
+        assertEquals(3, mScheduler.size());
+        assertEquals(at(start, 0, 22, 0), mScheduler.getNextDoseTime());
+    }
+
+    @Test
+    public void pollsOnlyTheDueDoses() throws JSONException {
+        long start = startOfDay(2018, Calendar.MARCH, 1);
+        mScheduler.setSchedule("p1", patientData(med("Aspirin", 3, 1)), start, start);
+        mScheduler.setSchedule("p2", patientData(med("Ibuprofen", 2, 1)), start, start);
+
+        List<DoseScheduler.Dose> due = mScheduler.pollDue(at(start, 0, 8, 0));
+        assertEquals(2, due.size());
+        assertEquals(at(start, 0, 15, 0), mScheduler.getNextDoseTime());
+        due = mScheduler.pollDue(at(start, 0, 21, 59));
+        assertEquals(1, due.size());
+        assertEquals("p1", due.get(0).patientId);
+        assertEquals(2, mScheduler.size());
+    }
+
+    @Test
+    public void replacesAndRemovesOnlyOnePatientsDoses() throws JSONException {
+        long start = startOfDay(2018, Calendar.MARCH, 1);
+        mScheduler.setSchedule("p1", patientData(med("Aspirin", 3, 2)), start, start);
+        mScheduler.setSchedule("p2", patientData(med("Ibuprofen", 2, 2)), start, start);
+        assertEquals(10, mScheduler.size());
+
+        mScheduler.setSchedule("p1", patientData(med("Aspirin", 1, 1)), start, start);
+        assertEquals(5, mScheduler.size());
+        mScheduler.removePatient("p2");
+        assertEquals(1, mScheduler.size());
+        assertEquals("p1", mScheduler.pollDue(Long.MAX_VALUE).get(0).patientId);
+
+        // Removing doses that were already polled changes nothing
+        mScheduler.removePatient("p1");
+        mScheduler.removePatient("p3");
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void skipsMedicationsWithoutTimetable() throws JSONException {
+        long start = startOfDay(2018, Calendar.MARCH, 1);
+        String noTimetable = "{\"name\":\"Aspirin\"}";
+        mScheduler.setSchedule("p1", patientData(noTimetable, med("Ibuprofen", 1, 1)), start,
+                start);
+        assertEquals(1, mScheduler.size());
+    }
+
+    @Test
+    public void rejectsDataWithoutMedications() {
+        try {
+            mScheduler.setSchedule("p1", "{\"message\":{}}", 0, 0);
+            fail("Expected a JSONException");
+        } catch (JSONException e) {
+            assertEquals(0, mScheduler.size());
+        }
+    }
+
+    @Test
+    public void keepsTheHeapOrderedThroughChanges() throws JSONException {
+        Random random = new Random(42);
+        long base = startOfDay(2018, Calendar.MARCH, 1);
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (int round = 0; round < 200; round++) {
+            String patientId = "p" + random.nextInt(40);
+            if (random.nextInt(4) == 0) {
+                mScheduler.removePatient(patientId);
+                sizes.remove(patientId);
+                continue;
+            }
+            String[] meds = new String[1 + random.nextInt(4)];
+            for (int i = 0; i < meds.length; i++) {
+                meds[i] = med("m" + i, 1 + random.nextInt(6), 1 + random.nextInt(10));
+            }
+            String patientData = patientData(meds);
+            long courseStart = base + random.nextInt(5 * 24) * 60 * 60 * 1000L;
+
+            DoseScheduler alone = new DoseScheduler();
+            alone.setSchedule(patientId, patientData, courseStart, base);
+            sizes.put(patientId, alone.size());
+            mScheduler.setSchedule(patientId, patientData, courseStart, base);
+        }
+        int total = 0;
+        for (int size : sizes.values()) {
+            total += size;
+        }
+        assertEquals(total, mScheduler.size());
+
+        long until = base;
+        long last = Long.MIN_VALUE;
+        int polled = 0;
+        while (mScheduler.size() > 0) {
+            until += random.nextInt(24 * 60) * 60 * 1000L;
+            for (DoseScheduler.Dose dose : mScheduler.pollDue(until)) {
+                assertTrue(dose.time >= last);
+                assertTrue(dose.time <= until);
+                last = dose.time;
+                polled++;
+            }
+            long next = mScheduler.getNextDoseTime();
+            assertTrue(next == -1 || next > until);
+        }
+        assertEquals(total, polled);
+    }
+
+    private static String med(String name, int timesPerDay, int numberOfDays) {
+        return "{\"name\":\"" + name + "\",\"timeTable\":{\"timesPerDay\":" + timesPerDay
+                + ",\"numberOfDays\":" + numberOfDays + "}}";
+    }
+
+    private static String patientData(String... meds) {
+        StringBuilder data = new StringBuilder("{\"message\":{\"meds\":[");
+        for (int i = 0; i < meds.length; i++) {
+            if (i > 0) {
+                data.append(',');
+            }
+            data.append(meds[i]);
+        }
+        return data.append("]}}").toString();
+    }
+
+    private static long startOfDay(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long at(long startOfDay, int days, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(startOfDay);
+        calendar.add(Calendar.DAY_OF_YEAR, days);
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDeduplicatorTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final int W = EventDeduplicator.WINDOW_SIZE;
+
+    private final EventDeduplicator mDeduplicator = new EventDeduplicator();
+
+    @Test
+    public void dropsRepeatedEvents() {
+        assertTrue(accept(DISPENSER, 1));
+        assertTrue(accept(DISPENSER, 2));
+        assertFalse(accept(DISPENSER, 1));
+        assertFalse(accept(DISPENSER, 2));
+        assertEquals(2, mDeduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void acceptsEventsOutOfOrderWithinTheWindow() {
+        long highest = 10 * W;
+        assertTrue(accept(DISPENSER, highest));
+        assertTrue(accept(DISPENSER, highest - W + 1));
+        assertTrue(accept(DISPENSER, highest - 50));
+        assertFalse(accept(DISPENSER, highest - 50));
+        assertFalse(accept(DISPENSER, highest - W + 1));
+    }
+
+    @Test
+    public void keepsDispensersApart() {
+        assertTrue(accept(DISPENSER, 7));
+        assertTrue(accept("66:77:88:99:AA:BB", 7));
+        assertFalse(accept(DISPENSER, 7));
+    }
+
+    @Test
+    public void acceptsEventsWithoutSequenceNumber() {
+        assertTrue(accept(DISPENSER, DispenserEvent.NO_SEQUENCE));
+        assertTrue(accept(DISPENSER, DispenserEvent.NO_SEQUENCE));
+        assertEquals(0, mDeduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void forgetsEventsThatSlideOutOfTheWindow() {
+        assertTrue(accept(DISPENSER, 30));
+        // Same bit as 30, and 30 is no longer in the window
+        assertTrue(accept(DISPENSER, 30 + W + 100));
+        assertTrue(accept(DISPENSER, 30 + W));
+        assertFalse(accept(DISPENSER, 30 + W));
+    }
+
+    @Test
+    public void dropsEventsAtOrBelowTheFloor() {
+        mDeduplicator.advanceFloor(DISPENSER, 100);
+        assertFalse(accept(DISPENSER, 1));
+        assertFalse(accept(DISPENSER, 100));
+        assertTrue(accept(DISPENSER, 101));
+
+        // The floor never moves back
+        mDeduplicator.advanceFloor(DISPENSER, 50);
+        assertFalse(accept(DISPENSER, 75));
+    }
+
+    @Test
+    public void floorFollowsABackfillBelowTheWindow() {
+        long live = 10 * W;
+        mDeduplicator.advanceFloor(DISPENSER, 0);
+        assertTrue(accept(DISPENSER, live));
+        // The backfill starts above the saved position and continues the floor
+        assertTrue(backfill(DISPENSER, 1));
+        assertTrue(backfill(DISPENSER, 2));
+        assertTrue(backfill(DISPENSER, 3));
+        assertFalse(backfill(DISPENSER, 1));
+        assertFalse(backfill(DISPENSER, 3));
+
+        // An old event that doesn't continue the floor can't be checked
+        assertTrue(backfill(DISPENSER, 10));
+        assertTrue(backfill(DISPENSER, 10));
+    }
+
+    @Test
+    public void onlyTheSavedPositionStartsTheFloor() {
+        assertTrue(accept(DISPENSER, 10 * W));
+        // Without a saved position an old event could be anywhere in the backfill
+        assertTrue(backfill(DISPENSER, 5));
+        assertTrue(backfill(DISPENSER, 5));
+        assertTrue(backfill(DISPENSER, 6));
+        assertTrue(backfill(DISPENSER, 6));
+    }
+
+    @Test
+    public void startsOverWhenTheDispenserCountsAgain() {
+        long saved = 2 * W;
+        mDeduplicator.advanceFloor(DISPENSER, saved);
+        assertTrue(accept(DISPENSER, saved + 1));
+        assertFalse(accept(DISPENSER, saved - 10));
+        // Backfilled events that far back are only repeats
+        assertFalse(backfill(DISPENSER, 0));
+
+        // Reset, the dispenser numbers its events from 0 again
+        assertTrue(accept(DISPENSER, 0));
+        assertTrue(accept(DISPENSER, 1));
+        assertFalse(accept(DISPENSER, 0));
+        assertFalse(accept(DISPENSER, 1));
+
+        // The saved position is from before the reset
+        mDeduplicator.advanceFloor(DISPENSER, saved);
+        assertTrue(accept(DISPENSER, 2));
+        assertEquals(4, mDeduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void floorFollowsInOrderEvents() {
+        mDeduplicator.advanceFloor(DISPENSER, 0);
+        for (long sequence = 1; sequence <= 10; sequence++) {
+            assertTrue(accept(DISPENSER, sequence));
+        }
+        // Long after they left the window, the floor still knows them
+        assertTrue(accept(DISPENSER, 10 + 2 * W));
+        assertFalse(backfill(DISPENSER, 5));
+        assertFalse(backfill(DISPENSER, 10));
+        assertTrue(backfill(DISPENSER, 11));
+        assertFalse(backfill(DISPENSER, 11));
+    }
+
+    private boolean accept(String dispenser, long sequence) {
+        return mDeduplicator.accept(event(dispenser, sequence), true);
+    }
+
+    private boolean backfill(String dispenser, long sequence) {
+        return mDeduplicator.accept(event(dispenser, sequence), false);
+    }
+
+    private static DispenserEvent event(String dispenser, long sequence) {
+        return new DispenserEvent(DispenserEvent.TYPE_TAKEN, dispenser, 1000L * sequence,
+                sequence, "Aspirin");
+    }
+}
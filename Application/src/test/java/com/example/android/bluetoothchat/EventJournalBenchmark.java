@@ -0,0 +1,92 @@
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Measures how many events per second an {@link EventJournal} takes, and how long it takes for
+ * them to become durable. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.EventJournalBenchmark \
+ *         [events] [dispensers] [directory]
+ * </pre>
+ * Each dispenser appends from its own thread, like the connection threads do. The journal is
+ * then reopened and read back to check that nothing was lost.
+ */
+public class EventJournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int dispensers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        File directory = args.length > 2 ? new File(args[2])
+                : new File(System.getProperty("java.io.tmpdir"), "journal-benchmark");
+        deleteSegments(directory);
+
+        final EventJournal journal = new EventJournal(directory);
+        Thread[] threads = new Thread[dispensers];
+        final int perDispenser = events / dispensers;
+        long start = System.nanoTime();
+        for (int d = 0; d < dispensers; d++) {
+            final String address = String.format("00:11:22:33:44:%02X", d);
+            threads[d] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perDispenser; i++) {
+                            journal.append(new DispenserEvent(1 + i % 3, address,
+                                    System.currentTimeMillis(), i, "Medication " + (i % 10)));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[d].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long appended = System.nanoTime() - start;
+        long last = journal.getNextSequence() - 1;
+        journal.awaitDurable(last);
+        long durable = System.nanoTime() - start;
+
+        int total = perDispenser * dispensers;
+        System.out.println("events=" + total + " dispensers=" + dispensers);
+        System.out.println("appendsPerSecond=" + (long) (total / (appended / 1e9))
+                + " appendMs=" + appended / 1000000
+                + " durableMs=" + durable / 1000000
+                + " flushes=" + journal.getFlushCount()
+                + " segments=" + journal.getSegmentCount());
+        journal.close();
+
+        long readStart = System.nanoTime();
+        EventJournal reopened = new EventJournal(directory);
+        int read = 0;
+        long next = 1;
+        while (true) {
+            List<EventJournal.Entry> entries = reopened.read(next, 4096);
+            if (entries.isEmpty()) {
+                break;
+            }
+            read += entries.size();
+            next = entries.get(entries.size() - 1).sequence + 1;
+        }
+        System.out.println("readBack=" + read + " readMs="
+                + (System.nanoTime() - readStart) / 1000000
+                + " nextSequence=" + reopened.getNextSequence());
+        reopened.close();
+        if (read != total) {
+            throw new AssertionError("Read " + read + " of " + total + " events");
+        }
+    }
+
+    private static void deleteSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final String FIRST_SEGMENT = "journal-00000000000000000001.log";
+
+    // Segment header, record header, and the fixed part of a record body
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int FIXED_BODY_SIZE = 8 + 8 + 8 + 1;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private EventJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("journal");
+        mJournal = new EventJournal(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+    }
+
+    @Test
+    public void readsBackWhatWasAppendedAfterReopening() throws IOException {
+        assertEquals(1, mJournal.append(event(DispenserEvent.TYPE_TAKEN, 1, "Aspirin")));
+        assertEquals(2, mJournal.append(event(DispenserEvent.TYPE_ABUSED, 2, null)));
+        assertEquals(3, mJournal.append(event(DispenserEvent.TYPE_FORGOTTEN, 3, "Ibuprofen")));
+        reopen();
+
+        List<EventJournal.Entry> entries = mJournal.read(1, 10);
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(0), 1, DispenserEvent.TYPE_TAKEN, 1, "Aspirin");
+        assertEntry(entries.get(1), 2, DispenserEvent.TYPE_ABUSED, 2, null);
+        assertEntry(entries.get(2), 3, DispenserEvent.TYPE_FORGOTTEN, 3, "Ibuprofen");
+        assertEquals(4, mJournal.getNextSequence());
+        assertEquals(4, mJournal.append(event(DispenserEvent.TYPE_TAKEN, 4, "Aspirin")));
+    }
+
+    @Test
+    public void readsFromASequenceNumber() throws IOException {
+        for (int i = 1; i <= 5; i++) {
+            mJournal.append(event(DispenserEvent.TYPE_TAKEN, i, "Aspirin"));
+        }
+        List<EventJournal.Entry> entries = mJournal.read(3, 2);
+        assertEquals(2, entries.size());
+        assertEquals(3, entries.get(0).sequence);
+        assertEquals(4, entries.get(1).sequence);
+        assertTrue(mJournal.read(6, 10).isEmpty());
+    }
+
+    @Test
+    public void recoveryEndsTheJournalAtARecordWithABadChecksum() throws IOException {
+        mJournal.append(event(DispenserEvent.TYPE_TAKEN, 1, "Aspirin"));
+        mJournal.append(event(DispenserEvent.TYPE_TAKEN, 2, "Aspirin"));
+        mJournal.append(event(DispenserEvent.TYPE_TAKEN, 3, "Aspirin"));
+        mJournal.close();
+
+        // Flip a bit in the time of the third record
+        long third = HEADER_SIZE + 2 * recordSize("Aspirin");
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, FIRST_SEGMENT), "rw");
+        try {
+            long offset = third + RECORD_HEADER_SIZE + 8;
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        mJournal = new EventJournal(mDirectory);
+
+        assertEquals(2, mJournal.read(1, 10).size());
+        assertEquals(3, mJournal.getNextSequence());
+        // The new record takes the place of the bad one, and is read back after the next crash
+        assertEquals(3, mJournal.append(event(DispenserEvent.TYPE_FORGOTTEN, 30, "Ibuprofen")));
+        reopen();
+        List<EventJournal.Entry> entries = mJournal.read(1, 10);
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(2), 3, DispenserEvent.TYPE_FORGOTTEN, 30, "Ibuprofen");
+    }
+
+    @Test
+    public void recoveryClearsATornRecord() throws IOException {
+        mJournal.append(event(DispenserEvent.TYPE_TAKEN, 1, "Aspirin"));
+        mJournal.append(event(DispenserEvent.TYPE_TAKEN, 2, "Aspirin"));
+        mJournal.close();
+
+        // The header of a third record made it to disk, its body didn't
+        long end = HEADER_SIZE + 2 * recordSize("Aspirin");
+        RandomAccessFile file = new RandomAccessFile(new File(mDirectory, FIRST_SEGMENT), "rw");
+        try {
+            file.seek(end);
+            file.writeInt(FIXED_BODY_SIZE + 2 + "Aspirin".length() + DISPENSER.length());
+            file.writeInt(0x12345678);
+            file.writeLong(3);
+        } finally {
+            file.close();
+        }
+        mJournal = new EventJournal(mDirectory);
+
+        assertEquals(2, mJournal.read(1, 10).size());
+        assertEquals(3, mJournal.append(event(DispenserEvent.TYPE_TAKEN, 3, "A")));
+        assertEquals(4, mJournal.append(event(DispenserEvent.TYPE_TAKEN, 4, "A")));
+        reopen();
+        List<EventJournal.Entry> entries = mJournal.read(1, 10);
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(3), 4, DispenserEvent.TYPE_TAKEN, 4, "A");
+        assertEquals(5, mJournal.getNextSequence());
+    }
+
+    @Test
+    public void readsAcrossSegmentsAndCompactsTheFullOnes() throws IOException {
+        int perSegment = (EventJournal.SEGMENT_SIZE - HEADER_SIZE) / recordSize("Aspirin");
+        int count = perSegment + 10;
+        for (int i = 1; i <= count; i++) {
+            mJournal.append(event(DispenserEvent.TYPE_TAKEN, i, "Aspirin"));
+        }
+        assertEquals(2, mJournal.getSegmentCount());
+        List<EventJournal.Entry> entries = mJournal.read(perSegment - 1, 5);
+        assertEquals(5, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(perSegment - 1 + i, entries.get(i).sequence);
+        }
+
+        // Not while its records are still needed
+        assertEquals(0, mJournal.compact(perSegment, Long.MAX_VALUE));
+        assertEquals(1, mJournal.compact(perSegment + 1, Long.MAX_VALUE));
+        assertEquals(1, mJournal.getSegmentCount());
+        reopen();
+        assertEquals(count + 1, mJournal.getNextSequence());
+        assertEquals(perSegment + 1, mJournal.read(1, 1).get(0).sequence);
+    }
+
+    private void reopen() throws IOException {
+        mJournal.close();
+        mJournal = new EventJournal(mDirectory);
+    }
+
+    private static DispenserEvent event(int type, long sequence, String medication) {
+        return new DispenserEvent(type, DISPENSER, 1000L * sequence, sequence, medication);
+    }
+
+    private static int recordSize(String medication) {
+        return RECORD_HEADER_SIZE + FIXED_BODY_SIZE + 1 + DISPENSER.length() + 1
+                + medication.length();
+    }
+
+    private static void assertEntry(EventJournal.Entry entry, long sequence, int type,
+            long eventSequence, String medication) {
+        assertEquals(sequence, entry.sequence);
+        assertEquals(type, entry.event.type);
+        assertEquals(DISPENSER, entry.event.dispenser);
+        assertEquals(1000L * eventSequence, entry.event.time);
+        assertEquals(eventSequence, entry.event.sequence);
+        if (medication == null) {
+            assertNull(entry.event.medication);
+        } else {
+            assertEquals(medication, entry.event.medication);
+        }
+    }
+}
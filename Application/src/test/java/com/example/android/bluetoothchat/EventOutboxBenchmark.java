@@ -0,0 +1,87 @@
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+
+/**
+ * Measures how many requests an {@link EventOutbox} needs to upload a stream of dispenser
+ * events to a {@link LocalMedsServer}, and checks that every event arrives exactly once even
+ * when requests fail. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.EventOutboxBenchmark \
+ *         [events] [eventsPerSecond] [latencyMs] [errorRate]
+ * </pre>
+ */
+public class EventOutboxBenchmark {
+
+    private static final long TIMEOUT_MS = 5 * 60 * 1000L;
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int eventsPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+
+        File directory = new File(System.getProperty("java.io.tmpdir"), "outbox-benchmark");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.mkdirs();
+
+        LocalMedsServer server = new LocalMedsServer();
+        server.setLatencyMs(latencyMs);
+        server.setErrorRate(errorRate);
+        server.start();
+        try {
+            MedsApiClient client = new MedsApiClient(server.getBaseUrl());
+            EventJournal journal = new EventJournal(new File(directory, "journal"));
+            EventOutbox outbox = new EventOutbox(journal, client, new File(directory, "state"));
+
+            long start = System.currentTimeMillis();
+            long intervalNs = 1000000000L / eventsPerSecond;
+            long next = System.nanoTime();
+            long last = 0;
+            for (int i = 0; i < events; i++) {
+                last = journal.append(new DispenserEvent(DispenserEvent.TYPE_TAKEN,
+                        "00:11:22:33:44:55", System.currentTimeMillis(), i, "Medication"));
+                next += intervalNs;
+                long sleepNs = next - System.nanoTime();
+                if (sleepNs > 1000000) {
+                    Thread.sleep(sleepNs / 1000000);
+                }
+            }
+            long appended = System.currentTimeMillis() - start;
+
+            outbox.flush();
+            while (outbox.getUploadedSequence() < last) {
+                if (System.currentTimeMillis() - start > TIMEOUT_MS) {
+                    throw new AssertionError("Uploaded " + outbox.getUploadedSequence()
+                            + " of " + last);
+                }
+                Thread.sleep(10);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            System.out.println("events=" + events + " eventsPerSecond=" + eventsPerSecond
+                    + " latencyMs=" + latencyMs + " errorRate=" + errorRate);
+            System.out.println("appendMs=" + appended + " uploadedMs=" + elapsed
+                    + " batches=" + outbox.getBatchesSent()
+                    + " eventsPerBatch=" + outbox.getEventsSent() / outbox.getBatchesSent()
+                    + " failures=" + outbox.getFailures()
+                    + " requests=" + client.getRequestCount()
+                    + " uploadedBytes=" + client.getBytesUploaded()
+                    + " bytesPerEvent=" + client.getBytesUploaded() / events);
+            System.out.println("serverEvents=" + server.getEventsReceived()
+                    + " duplicateBatches=" + server.getDuplicateBatches());
+            if (server.getEventsReceived() != events) {
+                throw new AssertionError("Server received " + server.getEventsReceived()
+                        + " of " + events + " events");
+            }
+            journal.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
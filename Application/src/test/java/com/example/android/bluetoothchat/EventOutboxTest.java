@@ -0,0 +1,115 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventOutboxTest {
+
+    private static final String DISPENSER = "00:11:22:33:44:55";
+    private static final long TIMEOUT_MS = 20000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final LocalMedsServer mServer = new LocalMedsServer();
+    private MedsApiClient mClient;
+    private File mJournalDirectory;
+    private File mStateFile;
+    private EventJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.start();
+        mClient = new MedsApiClient(mServer.getBaseUrl());
+        mJournalDirectory = mFolder.newFolder("journal");
+        mStateFile = new File(mFolder.getRoot(), "event_outbox");
+        mJournal = new EventJournal(mJournalDirectory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void uploadsEveryEventOnce() throws Exception {
+        EventOutbox outbox = new EventOutbox(mJournal, mClient, mStateFile);
+        long last = append(100);
+        outbox.flush();
+        awaitUploaded(outbox, last);
+
+        assertEquals(100, mServer.getEventsReceived());
+        assertEquals(100, outbox.getEventsSent());
+        assertEquals(0, outbox.getFailures());
+    }
+
+    @Test
+    public void retriesAFailedBatch() throws Exception {
+        mServer.setErrorRate(1);
+        EventOutbox outbox = new EventOutbox(mJournal, mClient, mStateFile);
+        long last = append(10);
+        outbox.flush();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (outbox.getFailures() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The upload never failed");
+            }
+            Thread.sleep(10);
+        }
+
+        mServer.setErrorRate(0);
+        awaitUploaded(outbox, last);
+        assertEquals(10, mServer.getEventsReceived());
+        assertTrue(outbox.getFailures() >= 1);
+    }
+
+    @Test
+    public void picksUpWhereItLeftOffAfterARestart() throws Exception {
+        EventOutbox outbox = new EventOutbox(mJournal, mClient, mStateFile);
+        long last = append(10);
+        outbox.flush();
+        awaitUploaded(outbox, last);
+
+        // The process restarts
+        mJournal.close();
+        mJournal = new EventJournal(mJournalDirectory);
+        EventOutbox restarted = new EventOutbox(mJournal, mClient, mStateFile);
+        last = append(5);
+        restarted.flush();
+        awaitUploaded(restarted, last);
+
+        assertEquals(15, mServer.getEventsReceived());
+        assertEquals(5, restarted.getEventsSent());
+    }
+
+    private long append(int count) throws IOException {
+        long last = 0;
+        for (int i = 0; i < count; i++) {
+            last = mJournal.append(new DispenserEvent(DispenserEvent.TYPE_TAKEN, DISPENSER,
+                    System.currentTimeMillis(), i, "Aspirin"));
+        }
+        return last;
+    }
+
+    private static void awaitUploaded(EventOutbox outbox, long sequence)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (outbox.getUploadedSequence() < sequence) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Uploaded " + outbox.getUploadedSequence() + " of " + sequence);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
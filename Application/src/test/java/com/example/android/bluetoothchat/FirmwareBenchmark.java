@@ -0,0 +1,205 @@
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how fast a {@link FirmwareUpdater} gets an image into a {@link DispenserSimulator}
+ * for several chunk sizes, and what damaged chunks and a lost link cost. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.FirmwareBenchmark \
+ *         [imageKb] [bufferSize] [linkBytesPerMs] [consumeBytesPerMs]
+ * </pre>
+ * Reports whether the dispenser installed the image, the image bytes per second and how that
+ * compares to the rate the dispenser consumes bytes at, and the bytes sent again.
+ */
+public class FirmwareBenchmark {
+
+    private static final int[] CHUNK_SIZES = {256, 1024, 4096, 16384};
+    // How long the link stays down when it is lost
+    private static final long RECONNECT_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int imageKb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int bufferSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int linkBytesPerMs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int consumeBytesPerMs = args.length > 3 ? Integer.parseInt(args[3]) : 25;
+
+        File image = File.createTempFile("firmware", ".bin");
+        image.deleteOnExit();
+        byte[] bytes = new byte[imageKb * 1024];
+        new Random(42).nextBytes(bytes);
+        FileOutputStream out = new FileOutputStream(image);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        System.out.println("imageKb=" + imageKb + " bufferSize=" + bufferSize
+                + " linkBytesPerMs=" + linkBytesPerMs
+                + " consumeBytesPerMs=" + consumeBytesPerMs);
+        for (int chunkSize : CHUNK_SIZES) {
+            run("chunk" + chunkSize, image, chunkSize, 0, false, consumeBytesPerMs,
+                    new DispenserSimulator(bufferSize, linkBytesPerMs, consumeBytesPerMs, true));
+        }
+        int chunkSize = FirmwareUpdater.DEFAULT_CHUNK_SIZE;
+        run("damaged", image, chunkSize, 5, false, consumeBytesPerMs,
+                new DispenserSimulator(bufferSize, linkBytesPerMs, consumeBytesPerMs, true));
+        run("linkLost", image, chunkSize, 0, true, consumeBytesPerMs,
+                new DispenserSimulator(bufferSize, linkBytesPerMs, consumeBytesPerMs, true));
+    }
+
+    private static void run(String name, File image, int chunkSize, int damageEvery,
+            boolean loseLink, int consumeBytesPerMs, final DispenserSimulator simulator)
+            throws Exception {
+        simulator.setDamageEvery(damageEvery);
+        final Link link = new Link(simulator);
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] failure = new String[1];
+        final FirmwareUpdater updater = new FirmwareUpdater(image, chunkSize,
+                FirmwareUpdater.DEFAULT_WINDOW, link, new FirmwareUpdater.Listener() {
+            @Override
+            public void onProgress(long offset, long size) {
+            }
+
+            @Override
+            public void onFinished(boolean installed, String detail) {
+                failure[0] = detail;
+                done.countDown();
+            }
+        });
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies(simulator.getInputStream(), link, updater);
+            }
+        });
+        reader.setDaemon(true);
+        simulator.start();
+        reader.start();
+        updater.start();
+
+        if (loseLink) {
+            while (updater.getAcknowledgedOffset() < updater.getSize() / 2) {
+                Thread.sleep(1);
+            }
+            link.drop();
+            Thread.sleep(RECONNECT_MS);
+            link.restore();
+            updater.onConnected();
+        }
+        done.await();
+        simulator.stop();
+
+        long elapsedMs = Math.max(updater.getElapsedMs(), 1);
+        long imageBytesPerSecond = updater.getSize() * 1000L / elapsedMs;
+        System.out.println(String.format(Locale.US,
+                "%s: installed=%b%s ms=%d imageBytesPerSecond=%d ofConsumeRate=%.0f%%"
+                        + " wireBytes=%d resentBytes=%d naks=%d resumes=%d",
+                name, simulator.isFirmwareInstalled(),
+                failure[0] == null ? "" : " (" + failure[0] + ")", elapsedMs,
+                imageBytesPerSecond, 100.0 * imageBytesPerSecond / (consumeBytesPerMs * 1000L),
+                link.getWireBytes(),
+                updater.getBytesSent() - updater.getSize(), updater.getNakCount(),
+                updater.getResumeCount()));
+    }
+
+    private static void readReplies(InputStream in, Link link, FirmwareUpdater updater) {
+        FrameDecoder decoder = new FrameDecoder();
+        List<String> frames = new ArrayList<String>();
+        byte[] buffer = new byte[1024];
+        try {
+            int bytes;
+            while ((bytes = in.read(buffer)) >= 0) {
+                frames.clear();
+                decoder.decode(buffer, bytes, frames);
+                for (String frame : frames) {
+                    int credit = CreditGate.parseCredit(frame);
+                    if (credit >= 0) {
+                        link.grant(credit);
+                    } else if (CommandTracker.parseAck(frame) < 0) {
+                        updater.onReply(frame);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Writes the updater's commands to the simulator within credit, like
+     * BluetoothChatService.ConnectedThread.write(), and can be dropped and brought back.
+     */
+    private static class Link implements FirmwareUpdater.Transport {
+        private final DispenserSimulator mSimulator;
+        // A new one for each connection, like in the app
+        private volatile CreditGate mGate = new CreditGate();
+        private boolean mDown;
+        private long mSequence;
+        private long mWireBytes;
+
+        Link(DispenserSimulator simulator) {
+            mSimulator = simulator;
+        }
+
+        @Override
+        public synchronized boolean sendNow(String command) {
+            if (mDown) {
+                return false;
+            }
+            try {
+                byte[] frame = CommandTracker.frame(command, ++mSequence).getBytes("UTF-8");
+                int offset = 0;
+                while (offset < frame.length) {
+                    int allowed = mGate.acquire(frame.length - offset,
+                            CommandTracker.DEFAULT_TIMEOUT_MS);
+                    if (allowed == 0) {
+                        return false;
+                    }
+                    mSimulator.getOutputStream().write(frame, offset, allowed);
+                    offset += allowed;
+                }
+                mWireBytes += frame.length;
+                return true;
+            } catch (IOException | InterruptedException e) {
+                return false;
+            }
+        }
+
+        void grant(int credit) {
+            mGate.grant(credit);
+        }
+
+        /**
+         * Loses the link between two commands.
+         */
+        synchronized void drop() {
+            mDown = true;
+            mGate.close();
+        }
+
+        /**
+         * Brings the link back. What was still on its way is lost only now, but as the dispenser
+         * announces its buffer space on the new link the new gate has to be in place.
+         */
+        synchronized void restore() {
+            mGate = new CreditGate();
+            mSimulator.reconnect();
+            mDown = false;
+        }
+
+        synchronized long getWireBytes() {
+            return mWireBytes;
+        }
+    }
+}
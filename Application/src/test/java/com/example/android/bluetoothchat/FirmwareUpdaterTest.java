@@ -0,0 +1,260 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FirmwareUpdaterTest {
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int IMAGE_SIZE = 10 * CHUNK_SIZE;
+    private static final long REPLY_TIMEOUT_MS = 100;
+    private static final long COMMIT_TIMEOUT_MS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mBytes;
+    private File mImage;
+
+    @Before
+    public void setUp() throws IOException {
+        mBytes = new byte[IMAGE_SIZE];
+        new Random(42).nextBytes(mBytes);
+        mImage = mFolder.newFile("firmware.bin");
+        FileOutputStream out = new FileOutputStream(mImage);
+        try {
+            out.write(mBytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void resumesFromWhereTheDispenserLeftOff() throws Exception {
+        Dispenser dispenser = new Dispenser();
+        dispenser.mOffset = 4 * CHUNK_SIZE;
+        FirmwareUpdater updater = dispenser.update();
+
+        assertTrue(dispenser.mInstalled);
+        assertEquals(IMAGE_SIZE, dispenser.mOffset);
+        assertEquals(4 * CHUNK_SIZE, dispenser.mChunkOffsets.get(0).longValue());
+        assertEquals(IMAGE_SIZE - 4 * CHUNK_SIZE, updater.getBytesSent());
+        assertArrayEquals(Arrays.copyOfRange(mBytes, 4 * CHUNK_SIZE, IMAGE_SIZE),
+                Arrays.copyOfRange(dispenser.mReceived, 4 * CHUNK_SIZE, IMAGE_SIZE));
+        CRC32 crc = new CRC32();
+        crc.update(mBytes);
+        assertEquals(crc.getValue(), updater.getImageCrc());
+    }
+
+    @Test
+    public void sendsAgainFromANak() throws Exception {
+        Dispenser dispenser = new Dispenser();
+        dispenser.mDamagedOffset = 3 * CHUNK_SIZE;
+        FirmwareUpdater updater = dispenser.update();
+
+        assertTrue(dispenser.mInstalled);
+        assertArrayEquals(mBytes, dispenser.mReceived);
+        assertEquals(1, updater.getNakCount());
+        int sent = 0;
+        for (Long offset : dispenser.mChunkOffsets) {
+            if (offset == 3 * CHUNK_SIZE) {
+                sent++;
+            }
+        }
+        assertEquals(2, sent);
+        assertTrue(updater.getBytesSent() > IMAGE_SIZE);
+    }
+
+    @Test
+    public void givesUpAfterAttemptsWithoutProgress() throws Exception {
+        Dispenser dispenser = new Dispenser();
+        dispenser.mAnswersBegin = false;
+        FirmwareUpdater updater = dispenser.update();
+
+        assertFalse(dispenser.mInstalled);
+        assertTrue(dispenser.mDetail, dispenser.mDetail.startsWith("No progress"));
+        assertEquals(5, dispenser.mBegins);
+        assertEquals(0, updater.getBytesSent());
+    }
+
+    @Test
+    public void beginsAgainWhenTheCommitIsNotAnswered() throws Exception {
+        Dispenser dispenser = new Dispenser();
+        dispenser.mIgnoredCommits = 1;
+        FirmwareUpdater updater = dispenser.update();
+
+        assertTrue(dispenser.mInstalled);
+        assertEquals(2, dispenser.mCommits);
+        assertEquals(2, dispenser.mBegins);
+        assertEquals(1, updater.getResumeCount());
+        // The dispenser already had the image, it isn't sent again
+        assertEquals(IMAGE_SIZE, updater.getBytesSent());
+    }
+
+    @Test
+    public void encodesBase64() throws Exception {
+        // The test vectors of RFC 4648
+        String[][] vectors = {
+                {"", ""}, {"f", "Zg=="}, {"fo", "Zm8="}, {"foo", "Zm9v"}, {"foob", "Zm9vYg=="},
+                {"fooba", "Zm9vYmE="}, {"foobar", "Zm9vYmFy"}};
+        for (String[] vector : vectors) {
+            byte[] bytes = vector[0].getBytes("US-ASCII");
+            assertEquals(vector[1], encode(bytes, bytes.length));
+        }
+    }
+
+    @Test
+    public void encodesOnlyTheGivenLength() throws Exception {
+        byte[] bytes = "foobar".getBytes("US-ASCII");
+        assertEquals("Zm9vYg==", encode(bytes, 4));
+    }
+
+    @Test
+    public void decodesWhatItEncodes() {
+        Random random = new Random(42);
+        byte[] out = new byte[300];
+        for (int length = 0; length <= 300; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String text = encode(bytes, length);
+            assertEquals(length, FirmwareUpdater.decodeBase64(text, out));
+            assertArrayEquals(bytes, Arrays.copyOf(out, length));
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsNotBase64() {
+        byte[] out = new byte[16];
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Zm9", out));
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Zm9v!mFy", out));
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Zg==Zm9v", out));
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Z===", out));
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Zm=v", out));
+    }
+
+    @Test
+    public void rejectsWhatDoesNotFit() {
+        assertEquals(-1, FirmwareUpdater.decodeBase64("Zm9vYmFy", new byte[5]));
+        assertEquals(6, FirmwareUpdater.decodeBase64("Zm9vYmFy", new byte[6]));
+        assertEquals(4, FirmwareUpdater.decodeBase64("Zm9vYg==", new byte[4]));
+    }
+
+    /**
+     * The dispenser's side of an update, driven from the test's thread.
+     */
+    private class Dispenser implements FirmwareUpdater.Transport, FirmwareUpdater.Listener {
+        private final BlockingQueue<String> mCommands = new LinkedBlockingQueue<String>();
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private final byte[] mReceived = new byte[IMAGE_SIZE];
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private final List<Long> mChunkOffsets = new ArrayList<Long>();
+
+        long mOffset;
+        long mDamagedOffset = -1;
+        boolean mAnswersBegin = true;
+        int mIgnoredCommits;
+        int mBegins;
+        int mCommits;
+        volatile boolean mInstalled;
+        volatile String mDetail;
+
+        FirmwareUpdater update() throws Exception {
+            FirmwareUpdater updater = new FirmwareUpdater(mImage, CHUNK_SIZE, 4, this, this);
+            updater.setTimeouts(REPLY_TIMEOUT_MS, COMMIT_TIMEOUT_MS);
+            updater.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (mFinished.getCount() > 0) {
+                assertTrue("Update didn't finish", System.nanoTime() < deadline);
+                String command = mCommands.poll(10, TimeUnit.MILLISECONDS);
+                if (command != null) {
+                    answer(updater, command.split(Constants.MESSAGE_DELIMITER));
+                }
+            }
+            return updater;
+        }
+
+        private void answer(FirmwareUpdater updater, String[] fields) {
+            String type = fields[0];
+            if (Constants.MESSAGE_FW_BEGIN.equals(type)) {
+                mBegins++;
+                assertEquals(IMAGE_SIZE, Long.parseLong(fields[1]));
+                if (mAnswersBegin) {
+                    updater.onReply(Constants.MESSAGE_FW_ACK + Constants.MESSAGE_DELIMITER
+                            + mOffset);
+                }
+            } else if (Constants.MESSAGE_FW_CHUNK.equals(type)) {
+                long offset = Long.parseLong(fields[1]);
+                mChunkOffsets.add(offset);
+                if (offset != mOffset) {
+                    // Dropped, not where the dispenser is
+                    return;
+                }
+                int length = FirmwareUpdater.decodeBase64(fields[3], mChunk);
+                CRC32 crc = new CRC32();
+                crc.update(mChunk, 0, length);
+                assertEquals(crc.getValue(), Long.parseLong(fields[2]));
+                if (offset == mDamagedOffset) {
+                    mDamagedOffset = -1;
+                    updater.onReply(Constants.MESSAGE_FW_NAK + Constants.MESSAGE_DELIMITER
+                            + offset);
+                    return;
+                }
+                System.arraycopy(mChunk, 0, mReceived, (int) offset, length);
+                mOffset += length;
+                updater.onReply(Constants.MESSAGE_FW_ACK + Constants.MESSAGE_DELIMITER
+                        + mOffset);
+            } else if (Constants.MESSAGE_FW_COMMIT.equals(type)) {
+                mCommits++;
+                if (mIgnoredCommits > 0) {
+                    mIgnoredCommits--;
+                    return;
+                }
+                updater.onReply(Constants.MESSAGE_FW_RESULT + Constants.MESSAGE_DELIMITER
+                        + (mOffset == IMAGE_SIZE ? "OK" : "Incomplete"));
+            }
+        }
+
+        @Override
+        public boolean sendNow(String command) {
+            mCommands.add(command);
+            return true;
+        }
+
+        @Override
+        public void onProgress(long offset, long size) {
+        }
+
+        @Override
+        public void onFinished(boolean installed, String detail) {
+            mInstalled = installed;
+            mDetail = detail;
+            mFinished.countDown();
+        }
+    }
+
+    private static String encode(byte[] bytes, int length) {
+        StringBuilder out = new StringBuilder();
+        FirmwareUpdater.appendBase64(bytes, length, out);
+        return out.toString();
+    }
+}
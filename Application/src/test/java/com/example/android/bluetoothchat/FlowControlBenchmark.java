@@ -0,0 +1,133 @@
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares writing commands to a {@link DispenserSimulator} the way the app used to, relying on
+ * the socket blocking once its buffer is full, with writing them within the credit the
+ * dispenser grants through a {@link CreditGate}. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.FlowControlBenchmark \
+ *         [commands] [payloadBytes] [bufferSize] [linkBytesPerMs] [consumeBytesPerMs]
+ * </pre>
+ * Reports how many commands arrived intact and how fast, and how many bytes the dispenser lost
+ * to overruns.
+ */
+public class FlowControlBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int payloadBytes = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int linkBytesPerMs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int consumeBytesPerMs = args.length > 4 ? Integer.parseInt(args[4]) : 25;
+
+        List<String> texts = new ArrayList<String>();
+        for (int i = 0; i < commands; i++) {
+            StringBuilder payload = new StringBuilder("patient-" + i + "-");
+            while (payload.length() < payloadBytes) {
+                payload.append((char) ('a' + payload.length() % 26));
+            }
+            texts.add(Constants.MESSAGE_CONFIGURE + Constants.MESSAGE_DELIMITER + payload);
+        }
+        System.out.println("commands=" + commands + " payloadBytes=" + payloadBytes
+                + " bufferSize=" + bufferSize + " linkBytesPerMs=" + linkBytesPerMs
+                + " consumeBytesPerMs=" + consumeBytesPerMs);
+        run("blocking", texts, new DispenserSimulator(bufferSize, linkBytesPerMs,
+                consumeBytesPerMs, false), null);
+        run("credit", texts, new DispenserSimulator(bufferSize, linkBytesPerMs,
+                consumeBytesPerMs, true), new CreditGate());
+    }
+
+    private static void run(String name, List<String> texts, final DispenserSimulator simulator,
+            final CreditGate gate) throws Exception {
+        final AtomicLong acks = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies(simulator.getInputStream(), gate, acks);
+            }
+        });
+        reader.setDaemon(true);
+        simulator.start();
+        reader.start();
+
+        long start = System.nanoTime();
+        OutputStream out = simulator.getOutputStream();
+        long bytes = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            byte[] frame = CommandTracker.frame(texts.get(i), i + 1).getBytes("UTF-8");
+            bytes += frame.length;
+            if (gate == null) {
+                out.write(frame);
+                continue;
+            }
+            // The same loop as BluetoothChatService.ConnectedThread.write()
+            int offset = 0;
+            while (offset < frame.length) {
+                int allowed = gate.acquire(frame.length - offset,
+                        CommandTracker.DEFAULT_TIMEOUT_MS);
+                if (allowed == 0) {
+                    throw new IllegalStateException("The dispenser stopped granting credit");
+                }
+                out.write(frame, offset, allowed);
+                offset += allowed;
+            }
+        }
+        long written = System.nanoTime() - start;
+        while (!simulator.isIdle()) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        simulator.stop();
+
+        Set<String> sent = new HashSet<String>(texts);
+        int intact = 0;
+        for (String received : simulator.getReceived()) {
+            if (sent.remove(received)) {
+                intact++;
+            }
+        }
+        System.out.println(name + ": intact=" + intact + "/" + texts.size()
+                + " acks=" + acks.get()
+                + " corrupt=" + simulator.getCorruptFrames()
+                + " overrunBytes=" + simulator.getOverrunBytes() + "/" + bytes
+                + " writeMs=" + written / 1000000
+                + " totalMs=" + elapsed / 1000000
+                + " intactPerSecond=" + (long) (intact / (elapsed / 1e9))
+                + (gate == null ? "" : " creditWaits=" + gate.getWaitCount()
+                        + " creditWaitMs=" + gate.getWaitMs()));
+    }
+
+    private static void readReplies(InputStream in, CreditGate gate, AtomicLong acks) {
+        FrameDecoder decoder = new FrameDecoder();
+        List<String> frames = new ArrayList<String>();
+        byte[] buffer = new byte[1024];
+        try {
+            int bytes;
+            while ((bytes = in.read(buffer)) >= 0) {
+                frames.clear();
+                decoder.decode(buffer, bytes, frames);
+                for (String frame : frames) {
+                    int credit = CreditGate.parseCredit(frame);
+                    if (credit >= 0) {
+                        if (gate != null) {
+                            gate.grant(credit);
+                        }
+                    } else if (CommandTracker.parseAck(frame) >= 0) {
+                        acks.incrementAndGet();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Stopped
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+
+    private final FrameDecoder mDecoder = new FrameDecoder();
+
+    @Test
+    public void splitsOneReadIntoItsMessages() throws Exception {
+        assertEquals(Arrays.asList("CREDIT_DISPEZZZER█64", "ACK_DISPEZZZER█1", "TIME█2"),
+                decode("CREDIT_DISPEZZZER█64\nACK_DISPEZZZER█1\nTIME█2\n"));
+    }
+
+    @Test
+    public void joinsAMessageSplitOverReads() throws Exception {
+        assertTrue(decode("ACK_DISP").isEmpty());
+        assertTrue(decode("EZZZER").isEmpty());
+        assertEquals(Collections.singletonList("ACK_DISPEZZZER█7"), decode("█7\nACK_DISP"));
+        assertEquals(Collections.singletonList("ACK_DISPEZZZER█8"), decode("EZZZER█8\n"));
+    }
+
+    @Test
+    public void joinsACharacterSplitOverReads() throws Exception {
+        byte[] bytes = "ACK_DISPEZZZER█9\n".getBytes("UTF-8");
+        int split = "ACK_DISPEZZZER".length() + 1;
+        List<String> frames = new ArrayList<String>();
+        mDecoder.decode(bytes, split, frames);
+        assertTrue(frames.isEmpty());
+        byte[] rest = Arrays.copyOfRange(bytes, split, bytes.length);
+        mDecoder.decode(rest, rest.length, frames);
+        assertEquals(Collections.singletonList("ACK_DISPEZZZER█9"), frames);
+    }
+
+    @Test
+    public void dropsCarriageReturnsAndEmptyLines() throws Exception {
+        assertEquals(Arrays.asList("ACK_DISPEZZZER█1", "ACK_DISPEZZZER█2"),
+                decode("ACK_DISPEZZZER█1\r\n\n\r\nACK_DISPEZZZER█2\n"));
+    }
+
+    @Test
+    public void takesAnUnterminatedEventName() throws Exception {
+        assertEquals(Collections.singletonList(Constants.MESSAGE_TAKEN),
+                decode(Constants.MESSAGE_TAKEN));
+        assertEquals(Collections.singletonList(Constants.MESSAGE_ABUSED),
+                decode(Constants.MESSAGE_ABUSED));
+        // Unless more follows in the same read
+        assertTrue(decode(Constants.MESSAGE_TAKEN + "█12").isEmpty());
+        assertEquals(Collections.singletonList(Constants.MESSAGE_TAKEN + "█12"), decode("\n"));
+    }
+
+    @Test
+    public void endsAMessageThatGrowsTooLong() {
+        byte[] bytes = new byte[64 * 1024];
+        Arrays.fill(bytes, (byte) 'x');
+        List<String> frames = new ArrayList<String>();
+        mDecoder.decode(bytes, bytes.length - 1, frames);
+        assertTrue(frames.isEmpty());
+        mDecoder.decode(bytes, 1, frames);
+        assertEquals(1, frames.size());
+        assertEquals(bytes.length, frames.get(0).length());
+    }
+
+    @Test
+    public void onlyDecodesTheValidBytes() throws Exception {
+        byte[] bytes = "ACK_DISPEZZZER█1\nACK_DISPEZZZER█2\n".getBytes("UTF-8");
+        List<String> frames = new ArrayList<String>();
+        mDecoder.decode(bytes, "ACK_DISPEZZZER█1\n".getBytes("UTF-8").length, frames);
+        assertEquals(Collections.singletonList("ACK_DISPEZZZER█1"), frames);
+    }
+
+    private List<String> decode(String text) throws UnsupportedEncodingException {
+        byte[] bytes = text.getBytes("UTF-8");
+        List<String> frames = new ArrayList<String>();
+        mDecoder.decode(bytes, bytes.length, frames);
+        return frames;
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Shows what suspending an idle link trades, by running the same days of traffic through a
+ * {@link LinkIdlePolicy} for several idle timeouts on a simulated clock. Commands are sent at
+ * random times through the day, and the patient takes each of four daily doses within a
+ * quarter of an hour of its reminder. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.LinkIdleBenchmark \
+ *         [days] [commandsPerDay] [reconnectMs]
+ * </pre>
+ * Reports the time connected, the suspensions and reconnects, the estimated charge and what
+ * was saved, how many commands had to wait for a reconnect and how many dose events arrived
+ * while the link was down, to be backfilled later.
+ */
+public class LinkIdleBenchmark {
+
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    private static final int[] DOSE_HOURS = {8, 12, 17, 21};
+    private static final long TAKEN_WITHIN_MS = 15 * MINUTE_MS;
+
+    private static final long[] IDLE_TIMEOUTS_MS = {
+            0, 30 * 1000L, MINUTE_MS, 5 * MINUTE_MS, 30 * MINUTE_MS
+    };
+
+    public static void main(String[] args) {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        int commandsPerDay = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        long reconnectMs = args.length > 2 ? Long.parseLong(args[2]) : 1500;
+
+        Random random = new Random(42);
+        List<Long> doses = new ArrayList<Long>();
+        List<Long> commands = new ArrayList<Long>();
+        List<Long> events = new ArrayList<Long>();
+        for (int day = 0; day < days; day++) {
+            for (int hour : DOSE_HOURS) {
+                long dose = day * DAY_MS + hour * HOUR_MS;
+                doses.add(dose);
+                events.add(dose + (long) (random.nextDouble() * TAKEN_WITHIN_MS));
+            }
+            for (int i = 0; i < commandsPerDay; i++) {
+                long from = day * DAY_MS + DoseScheduler.DAY_START_HOUR * HOUR_MS;
+                long to = day * DAY_MS + DoseScheduler.DAY_END_HOUR * HOUR_MS;
+                commands.add(from + (long) (random.nextDouble() * (to - from)));
+            }
+        }
+        Collections.sort(commands);
+        Collections.sort(events);
+
+        System.out.println("days=" + days + " commandsPerDay=" + commandsPerDay
+                + " reconnectMs=" + reconnectMs);
+        for (long idleTimeoutMs : IDLE_TIMEOUTS_MS) {
+            run(idleTimeoutMs, days * DAY_MS, reconnectMs, doses, commands, events);
+        }
+    }
+
+    private static void run(long idleTimeoutMs, long end, long reconnectMs, List<Long> doses,
+            List<Long> commands, List<Long> events) {
+        LinkIdlePolicy policy = new LinkIdlePolicy(idleTimeoutMs,
+                LinkIdlePolicy.DEFAULT_WAKE_LEAD_MS);
+        policy.onConnected(0);
+        boolean connected = true;
+        // The idle check while connected, the wakeup for a dose while suspended, -1 for none
+        long timerAt = 0;
+        int nextDose = 0;
+        int nextCommand = 0;
+        int nextEvent = 0;
+        int delayedCommands = 0;
+        int eventsWhileDown = 0;
+
+        while (true) {
+            long command = nextCommand < commands.size() ? commands.get(nextCommand) : end;
+            long event = nextEvent < events.size() ? events.get(nextEvent) : end;
+            long dose = nextDose < doses.size() ? doses.get(nextDose) : end;
+            long timer = timerAt >= 0 ? timerAt : end;
+            long now = Math.min(Math.min(command, event), Math.min(dose, timer));
+            if (now >= end) {
+                break;
+            }
+
+            if (now == dose) {
+                // Reminded about, the next dose is the one the link looks ahead to
+                nextDose++;
+            } else if (now == timer) {
+                long untilDose = untilDose(doses, nextDose, now);
+                if (connected) {
+                    long delay = policy.getSuspendDelay(now, false, untilDose);
+                    if (delay > 0) {
+                        timerAt = now + delay;
+                    } else if (delay == 0) {
+                        policy.onDisconnected(now);
+                        policy.onSuspended(now);
+                        connected = false;
+                        long wakeDelay = policy.getWakeDelay(untilDose);
+                        timerAt = wakeDelay >= 0 ? now + wakeDelay : -1;
+                    } else {
+                        timerAt = -1;
+                    }
+                } else {
+                    timerAt = resume(policy, now, reconnectMs);
+                    connected = true;
+                }
+            } else if (now == command) {
+                nextCommand++;
+                long sentAt = now;
+                if (!connected) {
+                    timerAt = resume(policy, now, reconnectMs);
+                    connected = true;
+                    delayedCommands++;
+                    sentAt += reconnectMs;
+                }
+                policy.onActivity(sentAt);
+            } else {
+                nextEvent++;
+                if (connected) {
+                    policy.onActivity(now);
+                } else {
+                    eventsWhileDown++;
+                }
+            }
+        }
+
+        policy.onDisconnected(end);
+        policy.onSuspendEnded(end);
+        System.out.println(String.format(Locale.US,
+                "idleTimeout=%ds: connected=%.1fh suspended=%.1fh suspends=%d resumes=%d"
+                        + " meanReconnectMs=%d delayedCommands=%d eventsWhileDown=%d"
+                        + " chargeMas=%.0f savedMas=%.0f",
+                idleTimeoutMs / 1000, policy.getConnectedMs(end) / (double) HOUR_MS,
+                policy.getSuspendedMs(end) / (double) HOUR_MS, policy.getSuspendCount(),
+                policy.getResumeCount(), policy.getMeanReconnectMs(), delayedCommands,
+                eventsWhileDown, policy.getEstimatedChargeMas(end),
+                policy.getEstimatedSavingMas(end)));
+    }
+
+    /**
+     * Brings the link back, which takes reconnectMs.
+     *
+     * @return When the idle check is due, right away like in the app
+     */
+    private static long resume(LinkIdlePolicy policy, long now, long reconnectMs) {
+        policy.onResuming(now);
+        policy.onConnected(now + reconnectMs);
+        return now + reconnectMs;
+    }
+
+    private static long untilDose(List<Long> doses, int next, long now) {
+        return next < doses.size() ? doses.get(next) - now : LinkIdlePolicy.NO_DOSE;
+    }
+}
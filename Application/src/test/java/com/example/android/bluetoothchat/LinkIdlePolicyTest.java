@@ -0,0 +1,123 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LinkIdlePolicyTest {
+
+    private static final long IDLE_MS = 60 * 1000L;
+    private static final long LEAD_MS = 2 * 60 * 1000L;
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    private final LinkIdlePolicy mPolicy = new LinkIdlePolicy(IDLE_MS, LEAD_MS);
+
+    @Test
+    public void suspendsOnceIdleForTheTimeout() {
+        mPolicy.onConnected(0);
+        assertEquals(IDLE_MS, mPolicy.getSuspendDelay(0, false, HOUR_MS));
+        mPolicy.onActivity(10 * 1000L);
+        assertEquals(IDLE_MS - 20 * 1000L, mPolicy.getSuspendDelay(30 * 1000L, false, HOUR_MS));
+        assertEquals(0, mPolicy.getSuspendDelay(10 * 1000L + IDLE_MS, false, HOUR_MS));
+    }
+
+    @Test
+    public void neverSuspendsWithoutATimeout() {
+        mPolicy.setIdleTimeout(0);
+        mPolicy.onConnected(0);
+        assertEquals(-1, mPolicy.getSuspendDelay(HOUR_MS, false, LinkIdlePolicy.NO_DOSE));
+    }
+
+    @Test
+    public void aBusyLinkIsNotSuspended() {
+        mPolicy.onConnected(0);
+        assertEquals(IDLE_MS, mPolicy.getSuspendDelay(2 * IDLE_MS, true, HOUR_MS));
+    }
+
+    @Test
+    public void looksAgainOnceTheNextDoseIsClose() {
+        mPolicy.onConnected(0);
+        assertEquals(30 * 1000L, mPolicy.getSuspendDelay(0, false, LEAD_MS + 30 * 1000L));
+    }
+
+    @Test
+    public void holdsTheLinkUntilTheEndOfTheDoseWindow() {
+        mPolicy.onConnected(0);
+        long now = 10 * IDLE_MS;
+        long hold = LEAD_MS + DoseScheduler.BATCH_WINDOW_MS;
+        assertEquals(hold, mPolicy.getSuspendDelay(now, false, LEAD_MS));
+        // Once reminded, the dose is no longer the next one, the hold stays
+        assertEquals(hold - 1000, mPolicy.getSuspendDelay(now + 1000, false, HOUR_MS));
+        assertEquals(0, mPolicy.getSuspendDelay(now + hold, false, HOUR_MS));
+    }
+
+    @Test
+    public void wakesAheadOfTheNextDose() {
+        assertEquals(-1, mPolicy.getWakeDelay(LinkIdlePolicy.NO_DOSE));
+        assertEquals(HOUR_MS - LEAD_MS, mPolicy.getWakeDelay(HOUR_MS));
+        assertEquals(0, mPolicy.getWakeDelay(LEAD_MS / 2));
+    }
+
+    @Test
+    public void countsSuspendsAndResumes() {
+        assertEquals(-1, mPolicy.onConnected(0));
+        mPolicy.onDisconnected(1000);
+        mPolicy.onSuspended(1000);
+        mPolicy.onResuming(11 * 1000L);
+        assertEquals(300, mPolicy.onConnected(11 * 1000L + 300));
+        mPolicy.onDisconnected(12 * 1000L);
+        mPolicy.onSuspended(12 * 1000L);
+        mPolicy.onResuming(13 * 1000L);
+        assertEquals(500, mPolicy.onConnected(13 * 1000L + 500));
+
+        long now = 14 * 1000L;
+        assertEquals(2, mPolicy.getSuspendCount());
+        assertEquals(2, mPolicy.getResumeCount());
+        assertEquals(400, mPolicy.getMeanReconnectMs());
+        assertEquals(500, mPolicy.getMaxReconnectMs());
+        assertEquals(11 * 1000L, mPolicy.getSuspendedMs(now));
+        assertEquals(1000 + 700 + 500, mPolicy.getConnectedMs(now));
+    }
+
+    @Test
+    public void aFailedResumeStaysSuspendedAndCounts() {
+        mPolicy.onConnected(0);
+        mPolicy.onDisconnected(1000);
+        mPolicy.onSuspended(1000);
+        mPolicy.onResuming(2000);
+        mPolicy.onResumeFailed(3000);
+        assertEquals(1, mPolicy.getResumeFailureCount());
+        // The time spent on the failed attempt isn't suspended, the time after it is
+        assertEquals(1000 + 1000, mPolicy.getSuspendedMs(4000));
+
+        mPolicy.onResuming(4000);
+        assertEquals(100, mPolicy.onConnected(4100));
+        assertEquals(1, mPolicy.getResumeCount());
+        assertEquals(1, mPolicy.getResumeFailureCount());
+        assertEquals(2000, mPolicy.getSuspendedMs(5000));
+    }
+
+    @Test
+    public void aFailedConnectOnlyCountsWhenResuming() {
+        mPolicy.onConnectFailed();
+        assertEquals(0, mPolicy.getResumeFailureCount());
+    }
+
+    @Test
+    public void reconnectsCostCharge() {
+        mPolicy.onConnected(0);
+        mPolicy.onDisconnected(0);
+        mPolicy.onSuspended(0);
+        long now = 1000 * 1000L;
+        assertEquals(1000 * LinkIdlePolicy.CONNECTED_MA, mPolicy.getEstimatedSavingMas(now),
+                0.001);
+        mPolicy.onResuming(now);
+        mPolicy.onResumeFailed(now);
+        mPolicy.onResuming(now);
+        mPolicy.onConnected(now);
+        double saving = 1000 * LinkIdlePolicy.CONNECTED_MA - 2 * LinkIdlePolicy.RECONNECT_MAS;
+        assertEquals(saving, mPolicy.getEstimatedSavingMas(now), 0.001);
+        assertTrue(mPolicy.getEstimatedChargeMas(now) > 0);
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.android.bluetoothchat;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LocalMedsServerTest {
+
+    private static final String PATH = "/api/getcurrentmeds";
+
+    private final LocalMedsServer mServer = new LocalMedsServer();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void servesAPatient() throws Exception {
+        mServer.setMedsPerPatient(4);
+        HttpURLConnection connection = get(PATH + "?id=p1", null, null);
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getHeaderField("Content-Encoding"));
+
+        JSONObject document = new JSONObject(read(connection.getInputStream()));
+        assertEquals("ok", document.getString("status"));
+        JSONObject message = document.getJSONObject("message");
+        assertEquals("p1", message.getString("patientId"));
+        assertEquals(4, message.getJSONArray("meds").length());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void answersUnchangedDataWithNotModified() throws Exception {
+        HttpURLConnection first = get(PATH + "?id=p1", null, null);
+        String body = read(first.getInputStream());
+        String etag = first.getHeaderField("ETag");
+        assertNotNull(etag);
+        assertNotNull(first.getHeaderField("Last-Modified"));
+
+        assertEquals(304, get(PATH + "?id=p1", etag, null).getResponseCode());
+
+        mServer.touchPatient("p1");
+        HttpURLConnection changed = get(PATH + "?id=p1", etag, null);
+        assertEquals(200, changed.getResponseCode());
+        String newEtag = changed.getHeaderField("ETag");
+        assertNotNull(newEtag);
+        assertFalse(etag.equals(newEtag));
+        assertFalse(body.equals(read(changed.getInputStream())));
+    }
+
+    @Test
+    public void compressesWhenTheClientAccepts() throws Exception {
+        HttpURLConnection connection = get(PATH + "?id=p1", null, "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        String body = read(new GZIPInputStream(connection.getInputStream()));
+        assertEquals("p1", new JSONObject(body).getJSONObject("message").getString("patientId"));
+    }
+
+    @Test
+    public void servesBatchesOnlyWhenSupported() throws Exception {
+        HttpURLConnection connection = get(PATH + "?ids=p1,p2,p3", null, null);
+        assertEquals(200, connection.getResponseCode());
+        JSONArray patients = new JSONObject(read(connection.getInputStream()))
+                .getJSONObject("message").getJSONArray("patients");
+        assertEquals(3, patients.length());
+        assertEquals("p2", patients.getJSONObject(1).getString("patientId"));
+
+        mServer.setBatchSupported(false);
+        assertEquals(404, get(PATH + "?ids=p1,p2,p3", null, null).getResponseCode());
+        assertEquals(200, get(PATH + "?id=p1", null, null).getResponseCode());
+    }
+
+    @Test
+    public void rejectsUnknownRequests() throws Exception {
+        assertEquals(404, get("/api/other", null, null).getResponseCode());
+        assertEquals(400, get(PATH, null, null).getResponseCode());
+    }
+
+    @Test
+    public void failsAtTheErrorRate() throws Exception {
+        mServer.setErrorRate(1);
+        assertEquals(500, get(PATH + "?id=p1", null, null).getResponseCode());
+        mServer.setErrorRate(0);
+        assertEquals(200, get(PATH + "?id=p1", null, null).getResponseCode());
+    }
+
+    private HttpURLConnection get(String path, String etag, String acceptEncoding)
+            throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getBaseUrl() + path).openConnection();
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.AsyncLogNode;
+import com.example.android.common.logger.BinaryFileLogNode;
+import com.example.android.common.logger.BinaryLogDecoder;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogFields;
+import com.example.android.common.logger.LogNode;
+import com.example.android.common.logger.LogRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what a log call costs the thread making it, in time and in allocated bytes, when its
+ * level is disabled and when it goes to an {@link AsyncLogNode}. Runs on a plain JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothchat.LogBenchmark [calls] [rounds] [directory]
+ * </pre>
+ * The calls are like those of {@link BluetoothChatService}'s threads: a message built by
+ * concatenation as before, the same message with its values as arguments, and one guarded by
+ * {@link Log#isLoggable(String, int)}. Allocations are only reported on JVMs that count them
+ * per thread.
+ * <p>
+ * Last, the calls go through to a {@link BinaryFileLogNode} in the given directory, which is
+ * then decoded to check that the newest records are all there.
+ */
+public class LogBenchmark {
+
+    private static final String TAG = "LogBenchmark";
+    // Enabled rounds fit in the ring, so that the calls queue without ever waiting or dropping
+    private static final int RING_SIZE = 64 * 1024;
+
+    private interface Call {
+        void log(String socketType, Object thread, int i);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File directory = args.length > 2 ? new File(args[2])
+                : new File(System.getProperty("java.io.tmpdir"), "log-benchmark");
+        String socketType = "Secure";
+        Object thread = new Object() {
+            @Override
+            public String toString() {
+                return "AcceptThread[" + hashCode() + "]";
+            }
+        };
+
+        Call concat = new Call() {
+            @Override
+            public void log(String socketType, Object thread, int i) {
+                Log.d(TAG, "Socket Type: " + socketType + "BEGIN mAcceptThread" + thread);
+            }
+        };
+        Call format = new Call() {
+            @Override
+            public void log(String socketType, Object thread, int i) {
+                Log.d(TAG, "Socket Type: {}BEGIN mAcceptThread{}", socketType, thread);
+            }
+        };
+        Call guarded = new Call() {
+            @Override
+            public void log(String socketType, Object thread, int i) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Socket Type: " + socketType + "BEGIN mAcceptThread" + thread
+                            + " #" + i);
+                }
+            }
+        };
+        Call constant = new Call() {
+            @Override
+            public void log(String socketType, Object thread, int i) {
+                Log.d(TAG, "BEGIN mConnectedThread");
+            }
+        };
+
+        AsyncLogNode async = new AsyncLogNode(new LogNode() {
+            @Override
+            public void println(int priority, String tag, String msg, Throwable tr) {
+            }
+        }, RING_SIZE);
+        Log.setLogNode(async);
+
+        System.out.println("calls=" + calls + " rounds=" + rounds);
+        Log.setDefaultLevel(Log.INFO);
+        run("concatDisabled", concat, socketType, thread, calls, rounds, null);
+        run("formatDisabled", format, socketType, thread, calls, rounds, null);
+        run("guardedDisabled", guarded, socketType, thread, calls, rounds, null);
+        Log.setDefaultLevel(Log.VERBOSE);
+        Log.setLevel(TAG, Log.INFO);
+        run("formatTagDisabled", format, socketType, thread, calls, rounds, null);
+        Log.setLevel(TAG, Log.NONE);
+        int enabledCalls = Math.min(calls, RING_SIZE);
+        run("constantEnabled", constant, socketType, thread, enabledCalls, rounds, async);
+        run("concatEnabled", concat, socketType, thread, enabledCalls, rounds, async);
+        run("formatEnabled", format, socketType, thread, enabledCalls, rounds, async);
+        async.close();
+
+        runFile(directory, socketType, thread, calls);
+    }
+
+    /**
+     * Logs through an {@link AsyncLogNode} to a {@link BinaryFileLogNode} as fast as the file
+     * takes it, then decodes the files.
+     */
+    private static void runFile(File directory, String socketType, Object thread, int calls)
+            throws IOException {
+        File[] old = directory.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+        BinaryFileLogNode fileLog = new BinaryFileLogNode(directory);
+        AsyncLogNode async = new AsyncLogNode(fileLog, RING_SIZE);
+        Log.setLogNode(async);
+        long start = System.nanoTime();
+        long callNs = 0;
+        for (int i = 0; i < calls; i++) {
+            long before = System.nanoTime();
+            Log.d(TAG, "Socket Type: {}BEGIN mAcceptThread{} #{}", socketType, thread, i);
+            callNs += System.nanoTime() - before;
+            if ((i & 4095) == 4095) {
+                // As fast as the file takes them, not faster: more would only be dropped
+                async.flush();
+            }
+        }
+        async.close();
+        long elapsed = System.nanoTime() - start;
+        Log.setLogNode(null);
+
+        File[] files = directory.listFiles();
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        final long[] decoded = new long[2];
+        final String expectedLast = "#" + (calls - 1);
+        BinaryLogDecoder.decode(Arrays.asList(files), new BinaryLogDecoder.Callback() {
+            @Override
+            public void onRecord(long timeMillis, int priority, String tag, String msg,
+                    LogFields fields, String trace) {
+                decoded[0]++;
+                decoded[1] = msg.endsWith(expectedLast) ? 1 : 0;
+            }
+        });
+        System.out.println("file: calls=" + calls
+                + " recordsPerSecond=" + (long) (calls / (elapsed / 1e9))
+                + " nsPerCall=" + String.format("%.1f", (double) callNs / calls)
+                + " files=" + files.length + " megabytes=" + String.format("%.1f", bytes / 1e6)
+                + " decoded=" + decoded[0] + " lastIntact=" + (decoded[1] == 1)
+                + " dropped=" + async.getDroppedCount());
+        if (decoded[1] != 1) {
+            throw new AssertionError("The last record didn't decode");
+        }
+    }
+
+    private static void run(String name, Call call, String socketType, Object thread,
+            int calls, int rounds, AsyncLogNode async) {
+        long best = Long.MAX_VALUE;
+        long allocated = -1;
+        for (int round = 0; round < rounds; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                call.log(socketType, thread, i);
+            }
+            long elapsed = System.nanoTime() - start;
+            long after = allocatedBytes();
+            best = Math.min(best, elapsed);
+            if (bytes >= 0 && after >= 0) {
+                allocated = after - bytes;
+            }
+            if (async != null) {
+                async.flush();
+            }
+        }
+        System.out.println(name + ": calls=" + calls + " nsPerCall=" + String.format("%.1f", (double) best / calls)
+                + " bytesPerCall=" + (allocated < 0 ? "n/a"
+                : String.format("%.1f", (double) allocated / calls))
+                + (async != null ? " dropped=" + async.getDroppedCount() : ""));
+    }
+
+    /**
+     * Return the bytes the current thread allocated so far, or -1 if the JVM doesn't say.
+     * Goes by reflection, Android has no java.lang.management to compile against.
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
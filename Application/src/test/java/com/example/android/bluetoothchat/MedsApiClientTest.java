@@ -0,0 +1,97 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MedsApiClientTest {
+
+    private static final String PATIENT = "959595";
+
+    private final LocalMedsServer mServer = new LocalMedsServer();
+    private MedsApiClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.start();
+        mClient = new MedsApiClient(mServer.getBaseUrl());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void answersUnchangedDataFromTheCache() throws Exception {
+        MedsApiClient.Response first = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        assertFalse(first.notModified);
+        assertTrue(first.bytesTransferred > 0);
+
+        MedsApiClient.Response second = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        assertTrue(second.notModified);
+        assertEquals(first.body, second.body);
+        assertEquals(0, second.bytesTransferred);
+        assertEquals(2, mClient.getRequestCount());
+        assertEquals(1, mClient.getNotModifiedCount());
+        assertEquals(first.bytesTransferred, mClient.getBytesTransferred());
+    }
+
+    @Test
+    public void fetchesChangedDataInFull() throws Exception {
+        MedsApiClient.Response first = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        mServer.touchPatient(PATIENT);
+
+        MedsApiClient.Response changed = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        assertFalse(changed.notModified);
+        assertFalse(first.body.equals(changed.body));
+        // And the new copy is the one revalidated next
+        assertTrue(mClient.fetch(MedsApiClient.currentMedsPath(PATIENT)).notModified);
+    }
+
+    @Test
+    public void countsCompressedBytes() throws Exception {
+        mServer.setMedsPerPatient(50);
+        MedsApiClient.Response response = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        assertEquals(response.bytesTransferred, mClient.getBytesTransferred());
+        assertEquals(response.body.getBytes("UTF-8").length, mClient.getBytesDecoded());
+        assertTrue(mClient.getBytesTransferred() < mClient.getBytesDecoded());
+    }
+
+    @Test
+    public void mapsErrorStatuses() throws Exception {
+        assertStatus(404, "/api/unknown");
+        assertStatus(400, "/api/getcurrentmeds");
+        mServer.setErrorRate(1);
+        assertStatus(500, MedsApiClient.currentMedsPath(PATIENT));
+    }
+
+    @Test
+    public void revalidatesWhenRetriedAfterAnError() throws Exception {
+        MedsApiClient.Response first = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        mServer.setErrorRate(1);
+        assertStatus(500, MedsApiClient.currentMedsPath(PATIENT));
+
+        // The failed request neither dropped the cached copy nor broke the connection
+        mServer.setErrorRate(0);
+        MedsApiClient.Response retried = mClient.fetch(MedsApiClient.currentMedsPath(PATIENT));
+        assertTrue(retried.notModified);
+        assertEquals(first.body, retried.body);
+    }
+
+    private void assertStatus(int statusCode, String path) throws IOException {
+        try {
+            mClient.fetch(path);
+            fail("Expected HTTP " + statusCode + " for " + path);
+        } catch (MedsApiClient.StatusException e) {
+            assertEquals(statusCode, e.statusCode);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.bluetoothchat;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PatientBatchLoaderTest {
+
+    private static final long TIMEOUT_MS = 20000;
+
+    private final LocalMedsServer mServer = new LocalMedsServer();
+    private PatientBatchLoader mLoader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.start();
+        mLoader = new PatientBatchLoader(new MedsApiClient(mServer.getBaseUrl()));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void loadsEveryPatientInBatches() throws Exception {
+        List<String> patientIds = patients(2 * PatientBatchLoader.MAX_BATCH_SIZE + 10);
+        Collector collector = load(patientIds);
+
+        assertEquals(patientIds.size(), collector.mLoaded);
+        assertEquals(0, collector.mFailed);
+        assertEquals(3, mServer.getRequestCount());
+        for (String patientId : patientIds) {
+            // Split into the same shape as a single patient fetch
+            JSONObject message = new JSONObject(collector.mPatients.get(patientId))
+                    .getJSONObject("message");
+            assertEquals(patientId, message.getString("patientId"));
+            assertNotNull(mLoader.getPatientData(patientId));
+        }
+    }
+
+    @Test
+    public void fetchesOneByOneWithoutBatchRequests() throws Exception {
+        mServer.setBatchSupported(false);
+        List<String> patientIds = patients(10);
+        Collector collector = load(patientIds);
+        assertEquals(10, collector.mLoaded);
+        assertEquals(0, collector.mFailed);
+        // The rejected batch, then every patient on its own
+        assertEquals(1 + 10, mServer.getRequestCount());
+
+        // The loader remembers, and doesn't try a batch again
+        collector = load(patientIds);
+        assertEquals(10, collector.mLoaded);
+        assertEquals(1 + 2 * 10, mServer.getRequestCount());
+    }
+
+    @Test
+    public void reportsPatientsThatFail() throws Exception {
+        mServer.setErrorRate(1);
+        List<String> patientIds = patients(5);
+        Collector collector = load(patientIds);
+
+        assertEquals(0, collector.mLoaded);
+        assertEquals(5, collector.mFailed);
+        assertEquals(5, collector.mErrors.size());
+        for (IOException e : collector.mErrors.values()) {
+            assertTrue(e instanceof MedsApiClient.StatusException);
+            assertEquals(500, ((MedsApiClient.StatusException) e).statusCode);
+        }
+    }
+
+    @Test
+    public void finishesAnEmptyLoadRightAway() throws Exception {
+        Collector collector = load(Collections.<String>emptyList());
+        assertEquals(0, collector.mLoaded);
+        assertEquals(0, collector.mFailed);
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    private Collector load(List<String> patientIds) throws InterruptedException {
+        Collector collector = new Collector();
+        mLoader.load(patientIds, collector);
+        assertTrue("The load never finished",
+                collector.mFinished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return collector;
+    }
+
+    private static List<String> patients(int count) {
+        List<String> patientIds = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            patientIds.add("patient-" + i);
+        }
+        return patientIds;
+    }
+
+    private static class Collector implements PatientBatchLoader.Listener {
+        final Map<String, String> mPatients = new ConcurrentHashMap<String, String>();
+        final Map<String, IOException> mErrors = new ConcurrentHashMap<String, IOException>();
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        volatile int mLoaded;
+        volatile int mFailed;
+
+        @Override
+        public void onPatientLoaded(String patientId, String patientData) {
+            mPatients.put(patientId, patientData);
+        }
+
+        @Override
+        public void onPatientFailed(String patientId, IOException e) {
+            mErrors.put(patientId, e);
+        }
+
+        @Override
+        public void onLoadFinished(int loaded, int failed, long elapsedMs) {
+            mLoaded = loaded;
+            mFailed = failed;
+            mFinished.countDown();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PatientDataSourceTest {
+
+    private final PatientDataSource mSource = new PatientDataSource();
+
+    @Test
+    public void hasNothingBeforeThePublish() {
+        Recorder recorder = new Recorder();
+        mSource.subscribe(recorder);
+        assertNull(mSource.getPatientData());
+        assertEquals(Collections.<String>emptyList(), recorder.mReceived);
+    }
+
+    @Test
+    public void notifiesSubscribersOfEveryPublish() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        mSource.subscribe(first);
+        mSource.subscribe(second);
+        mSource.publish("{\"v\":1}");
+        mSource.publish("{\"v\":2}");
+
+        assertEquals(Arrays.asList("{\"v\":1}", "{\"v\":2}"), first.mReceived);
+        assertEquals(Arrays.asList("{\"v\":1}", "{\"v\":2}"), second.mReceived);
+        assertEquals("{\"v\":2}", mSource.getPatientData());
+    }
+
+    @Test
+    public void handsALateSubscriberTheLatestData() {
+        // The link can come up after the data arrived, it must not wait for the next publish
+        mSource.publish("{\"v\":1}");
+        mSource.publish("{\"v\":2}");
+        Recorder recorder = new Recorder();
+        mSource.subscribe(recorder);
+        assertEquals(Collections.singletonList("{\"v\":2}"), recorder.mReceived);
+    }
+
+    @Test
+    public void stopsNotifyingAfterUnsubscribe() {
+        Recorder recorder = new Recorder();
+        mSource.subscribe(recorder);
+        mSource.publish("{\"v\":1}");
+        mSource.unsubscribe(recorder);
+        mSource.publish("{\"v\":2}");
+        assertEquals(Collections.singletonList("{\"v\":1}"), recorder.mReceived);
+    }
+
+    private static class Recorder implements PatientDataSource.Listener {
+        final List<String> mReceived = new ArrayList<String>();
+
+        @Override
+        public void onPatientData(String patientData) {
+            mReceived.add(patientData);
+        }
+    }
+}
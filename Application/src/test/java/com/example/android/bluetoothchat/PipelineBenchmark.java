@@ -0,0 +1,164 @@
+package com.example.android.bluetoothchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmarks the fetch, parse and configure pipeline against a {@link LocalMedsServer}, without
+ * a device or network access. Runs on a plain JVM with org.json on the classpath:
+ * <pre>
+ * java -cp classes:json.jar com.example.android.bluetoothchat.PipelineBenchmark \
+ *         [patients] [medsPerPatient] [latencyMs] [errorRate]
+ * </pre>
+ * Each patient is fetched three times: cold, revalidated while unchanged (304) and after the
+ * server changed its data. The configuration frame is written to an in-memory link.
+ * <p>
+ * Afterwards the whole ward is loaded through a {@link PatientBatchLoader}, once with batch
+ * requests and once against a backend without them, to compare against the round trip time.
+ */
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int medsPerPatient = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        LocalMedsServer server = new LocalMedsServer();
+        server.setMedsPerPatient(medsPerPatient);
+        server.setLatencyMs(latencyMs);
+        server.setErrorRate(errorRate);
+        server.start();
+        try {
+            MedsApiClient client = new MedsApiClient(server.getBaseUrl());
+            System.out.println("patients=" + patients + " meds=" + medsPerPatient
+                    + " latencyMs=" + latencyMs + " errorRate=" + errorRate);
+
+            run("cold", client, patients);
+            run("unchanged", client, patients);
+            for (int i = 0; i < patients; i++) {
+                server.touchPatient(patientId(i));
+            }
+            run("changed", client, patients);
+
+            System.out.println("requests=" + client.getRequestCount()
+                    + " notModified=" + client.getNotModifiedCount()
+                    + " wireBytes=" + client.getBytesTransferred()
+                    + " decodedBytes=" + client.getBytesDecoded()
+                    + " latencySavedMs=" + client.getLatencySavedMs());
+
+            List<String> ward = new ArrayList<String>();
+            for (int i = 0; i < patients; i++) {
+                ward.add(patientId(i));
+            }
+            server.setBatchSupported(true);
+            loadWard("ward batched", new MedsApiClient(server.getBaseUrl()), ward, latencyMs);
+            server.setBatchSupported(false);
+            loadWard("ward parallel", new MedsApiClient(server.getBaseUrl()), ward, latencyMs);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(String label, MedsApiClient client, int patients)
+            throws JSONException {
+        ByteArrayOutputStream link = new ByteArrayOutputStream();
+        long fetchNanos = 0;
+        long parseNanos = 0;
+        long configureNanos = 0;
+        long wireBytes = 0;
+        int meds = 0;
+        int errors = 0;
+
+        for (int i = 0; i < patients; i++) {
+            long start = System.nanoTime();
+            MedsApiClient.Response response;
+            try {
+                response = client.fetch(MedsApiClient.currentMedsPath(patientId(i)));
+            } catch (IOException e) {
+                errors++;
+                continue;
+            }
+            long fetched = System.nanoTime();
+
+            JSONArray medsArray = new JSONObject(response.body).getJSONObject("message")
+                    .getJSONArray("meds");
+            meds += medsArray.length();
+            long parsed = System.nanoTime();
+
+            String frame = Constants.MESSAGE_CONFIGURE + Constants.MESSAGE_DELIMITER
+                    + response.body;
+            link.reset();
+            try {
+                link.write(frame.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            long configured = System.nanoTime();
+
+            fetchNanos += fetched - start;
+            parseNanos += parsed - fetched;
+            configureNanos += configured - parsed;
+            wireBytes += response.bytesTransferred;
+        }
+
+        int done = Math.max(1, patients - errors);
+        System.out.println(label + ": fetch=" + micros(fetchNanos / done) + "us"
+                + " parse=" + micros(parseNanos / done) + "us"
+                + " configure=" + micros(configureNanos / done) + "us"
+                + " total=" + (fetchNanos + parseNanos + configureNanos) / 1000000L + "ms"
+                + " wireBytes=" + wireBytes + " meds=" + meds + " errors=" + errors);
+    }
+
+    private static void loadWard(String label, MedsApiClient client, List<String> ward,
+            int latencyMs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] result = new long[3];
+        final long[] firstPatientNanos = new long[1];
+        final long start = System.nanoTime();
+        new PatientBatchLoader(client).load(ward, new PatientBatchLoader.Listener() {
+            @Override
+            public void onPatientLoaded(String patientId, String patientData) {
+                synchronized (firstPatientNanos) {
+                    if (firstPatientNanos[0] == 0) {
+                        firstPatientNanos[0] = System.nanoTime() - start;
+                    }
+                }
+            }
+
+            @Override
+            public void onPatientFailed(String patientId, IOException e) {
+            }
+
+            @Override
+            public void onLoadFinished(int loaded, int failed, long elapsedMs) {
+                result[0] = loaded;
+                result[1] = failed;
+                result[2] = elapsedMs;
+                done.countDown();
+            }
+        });
+        done.await();
+        System.out.println(label + ": loaded=" + result[0] + " failed=" + result[1]
+                + " firstPatient=" + firstPatientNanos[0] / 1000000L + "ms"
+                + " elapsed=" + result[2] + "ms"
+                + " roundTrips=" + (latencyMs > 0 ? result[2] / latencyMs : 0)
+                + " requests=" + client.getRequestCount()
+                + " wireBytes=" + client.getBytesTransferred());
+    }
+
+    private static String patientId(int index) {
+        return String.valueOf(959595 + index);
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000L;
+    }
+}
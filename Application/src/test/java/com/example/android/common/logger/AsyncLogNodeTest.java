@@ -0,0 +1,183 @@
+package com.example.android.common.logger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogNodeTest {
+
+    private static final String TAG = "AsyncLogNodeTest";
+
+    private final Collector mCollector = new Collector();
+    private AsyncLogNode mNode;
+
+    @After
+    public void tearDown() {
+        if (mNode != null) {
+            mNode.close();
+        }
+    }
+
+    @Test
+    public void handsOnTheRecordsWithTheirFields() {
+        mNode = new AsyncLogNode(mCollector);
+        LogRecord record = new LogRecord();
+        record.set(Log.INFO, TAG, "Sent", null, 1000);
+        record.fields.add("bytes", 42);
+        mNode.printBatch(Collections.singletonList(record));
+        // The caller's record can be reused right away
+        record.set(Log.DEBUG, TAG, "Changed", null, 2000);
+        mNode.println(Log.WARN, TAG, "Lost", null);
+        mNode.flush();
+
+        assertEquals(2, mCollector.size());
+        LogRecord first = mCollector.get(0);
+        assertEquals(Log.INFO, first.priority);
+        assertEquals("Sent", first.msg);
+        assertEquals(1000, first.timeMillis);
+        assertEquals(42, first.fields.getNumber(0));
+        assertEquals("Lost", mCollector.get(1).msg);
+    }
+
+    @Test
+    public void keepsTheOrderOfEachThread() throws InterruptedException {
+        mNode = new AsyncLogNode(mCollector);
+        final int threads = 4;
+        final int perThread = 200;
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final String tag = "Writer" + t;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        mNode.println(Log.INFO, tag, Integer.toString(i), null);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        mNode.flush();
+
+        assertEquals(0, mNode.getDroppedCount());
+        assertEquals(threads * perThread, mCollector.size());
+        int[] next = new int[threads];
+        for (int i = 0; i < mCollector.size(); i++) {
+            LogRecord record = mCollector.get(i);
+            int t = record.tag.charAt(record.tag.length() - 1) - '0';
+            assertEquals(next[t]++, Integer.parseInt(record.msg));
+        }
+    }
+
+    @Test
+    public void dropsWhatDoesNotFitAndSaysSo() throws InterruptedException {
+        Blocking blocking = new Blocking();
+        mNode = new AsyncLogNode(blocking, 8);
+        mNode.println(Log.INFO, TAG, "First", null);
+        blocking.mBlocked.await();
+        for (int i = 0; i < 20; i++) {
+            mNode.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        long dropped = mNode.getDroppedCount();
+        assertTrue(dropped > 0);
+
+        blocking.mRelease.countDown();
+        mNode.flush();
+        LogRecord warning = blocking.get(1);
+        assertEquals(Log.WARN, warning.priority);
+        assertEquals("Dropped " + dropped + " log records, the log can't keep up", warning.msg);
+        // The first record, the warning, and the records that fit
+        assertEquals(1 + 1 + 20 - dropped, blocking.size());
+    }
+
+    @Test
+    public void shedsTheLowPrioritiesFirst() throws InterruptedException {
+        Blocking blocking = new Blocking();
+        mNode = new AsyncLogNode(blocking, 8);
+        mNode.setShedPriority(Log.INFO);
+        mNode.println(Log.INFO, TAG, "First", null);
+        blocking.mBlocked.await();
+        for (int i = 0; i < 10; i++) {
+            mNode.println(Log.DEBUG, TAG, "Debug " + i, null);
+        }
+        mNode.println(Log.WARN, TAG, "Warning", null);
+
+        blocking.mRelease.countDown();
+        mNode.flush();
+        assertTrue(mNode.getDroppedCount() > 0);
+        assertEquals("Warning", blocking.get(blocking.size() - 1).msg);
+    }
+
+    @Test
+    public void closingHandsOnWhatIsQueuedAndIgnoresTheRest() {
+        mNode = new AsyncLogNode(mCollector);
+        for (int i = 0; i < 10; i++) {
+            mNode.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        mNode.close();
+        assertEquals(10, mCollector.size());
+        mNode.println(Log.INFO, TAG, "Late", null);
+        mNode.flush();
+        assertEquals(10, mCollector.size());
+    }
+
+    /**
+     * Keeps copies of the records it gets.
+     */
+    private static class Collector implements LogBatchNode {
+        private final List<LogRecord> mRecords =
+                Collections.synchronizedList(new ArrayList<LogRecord>());
+
+        @Override
+        public void printBatch(List<LogRecord> batch) {
+            for (LogRecord record : batch) {
+                LogRecord copy = new LogRecord();
+                copy.copyFrom(record);
+                mRecords.add(copy);
+            }
+        }
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            throw new AssertionError("Records come in batches");
+        }
+
+        int size() {
+            return mRecords.size();
+        }
+
+        LogRecord get(int index) {
+            return mRecords.get(index);
+        }
+    }
+
+    /**
+     * Blocks the first batch until released.
+     */
+    private static class Blocking extends Collector {
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void printBatch(List<LogRecord> batch) {
+            super.printBatch(batch);
+            mBlocked.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
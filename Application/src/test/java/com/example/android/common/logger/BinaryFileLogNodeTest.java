@@ -0,0 +1,133 @@
+package com.example.android.common.logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFileLogNodeTest {
+
+    private static final String TAG = "BinaryFileLogNodeTest";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("logs");
+    }
+
+    @Test
+    public void decodesWhatWasWritten() throws IOException {
+        BinaryFileLogNode node = new BinaryFileLogNode(mDirectory);
+        LogRecord record = new LogRecord();
+        record.set(Log.WARN, TAG, "Write failed", null, 1000);
+        record.fields.add("bytes", 42);
+        record.fields.add("device", "00:11:22:33:44:55");
+        record.fields.add("socket", null);
+        node.printBatch(Collections.singletonList(record));
+        record.set(Log.DEBUG, "Other", "Connected", null, 1500);
+        node.printBatch(Collections.singletonList(record));
+
+        List<Decoded> decoded = decode();
+        assertEquals(2, decoded.size());
+        Decoded first = decoded.get(0);
+        assertEquals(1000, first.time);
+        assertEquals(Log.WARN, first.priority);
+        assertEquals(TAG, first.tag);
+        assertEquals("Write failed bytes=42 device=00:11:22:33:44:55 socket=null",
+                first.text);
+        Decoded second = decoded.get(1);
+        assertEquals(1500, second.time);
+        assertEquals(Log.DEBUG, second.priority);
+        assertEquals("Other", second.tag);
+        assertEquals("Connected", second.text);
+        assertNull(second.trace);
+    }
+
+    @Test
+    public void keepsTheNewestRecordsWhenTheFilesRollOver() throws IOException {
+        // As small as the files get, so some thousands of records fill several
+        BinaryFileLogNode node = new BinaryFileLogNode(mDirectory, 0, 2);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            node.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        assertTrue(mDirectory.listFiles().length <= 2);
+
+        List<Decoded> decoded = decode();
+        assertTrue(decoded.size() < count);
+        int first = count - decoded.size();
+        for (int i = 0; i < decoded.size(); i++) {
+            assertEquals("Record " + (first + i), decoded.get(i).text);
+        }
+    }
+
+    @Test
+    public void carriesOnInTheFilesOfAnEarlierRun() throws IOException {
+        new BinaryFileLogNode(mDirectory).println(Log.INFO, TAG, "Before", null);
+        new BinaryFileLogNode(mDirectory).println(Log.INFO, TAG, "After", null);
+
+        List<Decoded> decoded = decode();
+        assertEquals(2, decoded.size());
+        assertEquals("Before", decoded.get(0).text);
+        assertEquals("After", decoded.get(1).text);
+    }
+
+    @Test
+    public void skipsFilesThatAreNotLogs() throws IOException {
+        new BinaryFileLogNode(mDirectory).println(Log.INFO, TAG, "Logged", null);
+        File other = new File(mDirectory, BinaryFileLogNode.FILE_PREFIX + "txt");
+        FileOutputStream out = new FileOutputStream(other);
+        try {
+            out.write("Not a log".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        List<Decoded> decoded = decode();
+        assertEquals(1, decoded.size());
+        assertEquals("Logged", decoded.get(0).text);
+    }
+
+    private List<Decoded> decode() throws IOException {
+        final List<Decoded> decoded = new ArrayList<Decoded>();
+        BinaryLogDecoder.decode(Arrays.asList(mDirectory.listFiles()),
+                new BinaryLogDecoder.Callback() {
+                    @Override
+                    public void onRecord(long timeMillis, int priority, String tag, String msg,
+                            LogFields fields, String trace) {
+                        Decoded record = new Decoded();
+                        record.time = timeMillis;
+                        record.priority = priority;
+                        record.tag = tag;
+                        record.text = fields.appendTo(new StringBuilder(msg)).toString();
+                        record.trace = trace;
+                        decoded.add(record);
+                    }
+                });
+        return decoded;
+    }
+
+    private static class Decoded {
+        long time;
+        int priority;
+        String tag;
+        String text;
+        String trace;
+    }
+}
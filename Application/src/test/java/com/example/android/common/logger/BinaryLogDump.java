@@ -0,0 +1,60 @@
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns the files of a {@link BinaryFileLogNode} back into text, oldest record first. Runs on
+ * a plain JVM, for instance on a log directory pulled from a device:
+ * <pre>
+ * java -cp classes com.example.android.common.logger.BinaryLogDump &lt;directory or files&gt;
+ * </pre>
+ * Lines look like logcat's: {@code 10-19 14:03:07.215 D/BluetoothChatService: connect to: ...},
+ * followed by the fields of the record as {@code key=value}.
+ */
+public class BinaryLogDump {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: BinaryLogDump <directory or files>");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            File file = new File(arg);
+            File[] children = file.listFiles();
+            if (children == null) {
+                files.add(file);
+                continue;
+            }
+            for (File child : children) {
+                if (child.getName().startsWith(BinaryFileLogNode.FILE_PREFIX)) {
+                    files.add(child);
+                }
+            }
+        }
+        final PrintStream out = new PrintStream(System.out, false, "UTF-8");
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        BinaryLogDecoder.decode(files, new BinaryLogDecoder.Callback() {
+            @Override
+            public void onRecord(long timeMillis, int priority, String tag, String msg,
+                    LogFields fields, String trace) {
+                StringBuilder line = new StringBuilder();
+                line.append(format.format(new Date(timeMillis))).append(' ')
+                        .append(BinaryLogDecoder.priorityLetter(priority)).append('/')
+                        .append(tag != null ? tag : "").append(": ").append(msg);
+                out.println(fields.appendTo(line));
+                if (trace != null) {
+                    out.println(trace);
+                }
+            }
+        });
+        out.flush();
+    }
+}
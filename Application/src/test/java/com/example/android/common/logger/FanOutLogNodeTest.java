@@ -0,0 +1,121 @@
+package com.example.android.common.logger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutLogNodeTest {
+
+    private static final String TAG = "FanOutLogNodeTest";
+
+    private final FanOutLogNode mFanOut = new FanOutLogNode();
+
+    @After
+    public void tearDown() {
+        mFanOut.close();
+    }
+
+    @Test
+    public void everyBranchGetsEveryRecordInOrder() {
+        Collector first = new Collector();
+        Collector second = new Collector();
+        mFanOut.addBranch(first);
+        // A branch that ends nowhere, like the on-screen log without an activity
+        mFanOut.addBranch(null);
+        mFanOut.addBranch(second);
+
+        for (int i = 0; i < 100; i++) {
+            mFanOut.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        mFanOut.flush();
+        assertEquals(100, first.size());
+        assertEquals(100, second.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Record " + i, first.get(i));
+            assertEquals("Record " + i, second.get(i));
+        }
+    }
+
+    @Test
+    public void aBlockedBranchHoldsUpNoOther() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Collector slow = new Collector() {
+            @Override
+            public void printBatch(List<LogRecord> batch) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.printBatch(batch);
+            }
+        };
+        Collector fast = new Collector();
+        mFanOut.addBranch(slow, 8, Log.NONE);
+        AsyncLogNode fastBranch = mFanOut.addBranch(fast);
+
+        mFanOut.println(Log.INFO, TAG, "First", null);
+        blocked.await();
+        for (int i = 0; i < 100; i++) {
+            mFanOut.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        fastBranch.flush();
+        assertEquals(101, fast.size());
+
+        release.countDown();
+        mFanOut.flush();
+        long[] dropped = mFanOut.getDroppedCounts();
+        assertTrue(dropped[0] > 0);
+        assertEquals(0, dropped[1]);
+        // Each record was either handed on or dropped, plus the warning of what was dropped
+        assertEquals(101, slow.size() - 1 + dropped[0]);
+    }
+
+    @Test
+    public void closingHandsOnWhatIsQueued() {
+        Collector collector = new Collector();
+        mFanOut.addBranch(collector);
+        for (int i = 0; i < 10; i++) {
+            mFanOut.println(Log.INFO, TAG, "Record " + i, null);
+        }
+        mFanOut.close();
+        assertEquals(10, collector.size());
+    }
+
+    /**
+     * Keeps the messages it gets.
+     */
+    private static class Collector implements LogBatchNode {
+        private final List<String> mMessages =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void printBatch(List<LogRecord> batch) {
+            for (LogRecord record : batch) {
+                mMessages.add(record.msg);
+            }
+        }
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            mMessages.add(msg);
+        }
+
+        int size() {
+            return mMessages.size();
+        }
+
+        String get(int index) {
+            return mMessages.get(index);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.common.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogEventTest {
+
+    private static final String TAG = "LogEventTest";
+
+    private final List<LogRecord> mRecords = new ArrayList<LogRecord>();
+
+    @Before
+    public void setUp() {
+        Log.setLogNode(new LogBatchNode() {
+            @Override
+            public void printBatch(List<LogRecord> batch) {
+                for (LogRecord record : batch) {
+                    LogRecord copy = new LogRecord();
+                    copy.copyFrom(record);
+                    mRecords.add(copy);
+                }
+            }
+
+            @Override
+            public void println(int priority, String tag, String msg, Throwable tr) {
+                throw new AssertionError("Records come in batches");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Log.setLogNode(null);
+        Log.setLevel(TAG, Log.NONE);
+    }
+
+    @Test
+    public void logsTheFields() {
+        Log.at(Log.INFO, TAG).with("bytes", 42).with("device", "00:11").log("Sent");
+        assertEquals(1, mRecords.size());
+        LogRecord record = mRecords.get(0);
+        assertEquals(Log.INFO, record.priority);
+        assertEquals(TAG, record.tag);
+        assertEquals("Sent", record.msg);
+        assertEquals(2, record.fields.size());
+        assertEquals("bytes", record.fields.getKey(0));
+        assertEquals(42, record.fields.getNumber(0));
+        assertEquals("00:11", record.fields.getValue(1));
+    }
+
+    @Test
+    public void reusesTheEventOfTheThread() {
+        LogEvent first = Log.at(Log.INFO, TAG);
+        first.log("One");
+        assertTrue(first == Log.at(Log.INFO, TAG));
+    }
+
+    @Test
+    public void doesNothingBelowTheLevel() {
+        Log.setLevel(TAG, Log.WARN);
+        LogEvent event = Log.at(Log.INFO, TAG);
+        assertTrue(event == LogEvent.DISABLED);
+        event.with("bytes", 1).log("Dropped");
+        assertEquals(0, mRecords.size());
+    }
+
+    @Test
+    public void anEventNotLoggedAfterTheLevelWasRaisedIsReleased() {
+        LogEvent event = Log.at(Log.INFO, TAG).with("bytes", 1);
+        Log.setLevel(TAG, Log.WARN);
+        event.log("Dropped");
+        assertEquals(0, mRecords.size());
+
+        Log.setLevel(TAG, Log.NONE);
+        assertTrue(event == Log.at(Log.INFO, TAG));
+    }
+
+    @Test
+    public void anAbandonedEventIsReplacedOnce() {
+        LogEvent abandoned = Log.at(Log.INFO, TAG).with("bytes", 1);
+        LogEvent next = Log.at(Log.INFO, TAG);
+        assertTrue(next != abandoned);
+        next.log("Logged");
+        // The replacement is reused from now on
+        assertTrue(next == Log.at(Log.INFO, TAG));
+        assertEquals(1, mRecords.size());
+        assertEquals(0, mRecords.get(0).fields.size());
+    }
+
+    @Test
+    public void aNestedEventKeepsItsOwnFields() {
+        LogEvent outer = Log.at(Log.INFO, TAG).with("outer", 1);
+        Log.at(Log.WARN, TAG).with("inner", 2).log("Inner");
+        outer.with("after", 3).log("Outer");
+
+        assertEquals(2, mRecords.size());
+        assertEquals("Inner", mRecords.get(0).msg);
+        assertEquals(1, mRecords.get(0).fields.size());
+        assertEquals("Outer", mRecords.get(1).msg);
+        assertEquals(2, mRecords.get(1).fields.size());
+        assertEquals("after", mRecords.get(1).fields.getKey(1));
+        assertNull(mRecords.get(1).tr);
+    }
+
+    @Test
+    public void aNodeThatOnlyShowsTextGetsTheFieldsAppended() {
+        final List<String> messages = new ArrayList<String>();
+        Log.setLogNode(new LogNode() {
+            @Override
+            public void println(int priority, String tag, String msg, Throwable tr) {
+                messages.add(msg);
+            }
+        });
+        Log.at(Log.INFO, TAG).with("bytes", 42).with("device", null).log("Sent");
+        assertEquals(1, messages.size());
+        assertEquals("Sent bytes=42 device=null", messages.get(0));
+    }
+
+    @Test
+    public void keepsAtMostTheMaximumOfFields() {
+        LogEvent event = Log.at(Log.INFO, TAG);
+        for (int i = 0; i < LogFields.MAX_FIELDS + 2; i++) {
+            event.with("field" + i, i);
+        }
+        event.log("Many");
+        assertEquals(LogFields.MAX_FIELDS, mRecords.get(0).fields.size());
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.android.common.logger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingTest {
+
+    @Test
+    public void keepsTheLinesOldestFirst() {
+        LogRing ring = new LogRing(4, 0);
+        add(ring, "a");
+        add(ring, "b");
+        assertEquals(2, ring.size());
+        assertFalse(ring.isFull());
+        assertEquals("a", ring.get(0).msg);
+        assertEquals("b", ring.get(1).msg);
+        assertEquals(0, ring.getId(0));
+        assertEquals(1, ring.getId(1));
+    }
+
+    @Test
+    public void dropsTheOldestWhenFullAndKeepsTheIds() {
+        LogRing ring = new LogRing(3, 0);
+        for (int i = 0; i < 5; i++) {
+            add(ring, "line" + i);
+        }
+        assertTrue(ring.isFull());
+        assertEquals(3, ring.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("line" + (i + 2), ring.get(i).msg);
+            // A row keeps its id while older ones go
+            assertEquals(i + 2, ring.getId(i));
+        }
+        assertEquals(5, ring.getNextId());
+    }
+
+    @Test
+    public void clearingReleasesTheLinesAndCarriesTheIdsOn() {
+        LogRing ring = new LogRing(3, 10);
+        LogRecord first = ring.add();
+        first.set(Log.INFO, "Tag", "a", new RuntimeException(), 1);
+        add(ring, "b");
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertNull(first.msg);
+        assertNull(first.tr);
+        assertEquals(12, ring.getNextId());
+        add(ring, "c");
+        assertEquals("c", ring.get(0).msg);
+        assertEquals(12, ring.getId(0));
+    }
+
+    private static void add(LogRing ring, String msg) {
+        ring.add().set(Log.INFO, "Tag", msg, null, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.common.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogTest {
+
+    private static final String TAG = "LogTest";
+    private static final String OTHER = "LogTestOther";
+
+    private final List<String> mMessages = new ArrayList<String>();
+    private final List<Throwable> mThrowables = new ArrayList<Throwable>();
+
+    @Before
+    public void setUp() {
+        Log.setLogNode(new LogNode() {
+            @Override
+            public void println(int priority, String tag, String msg, Throwable tr) {
+                mMessages.add(msg);
+                mThrowables.add(tr);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Log.setLogNode(null);
+        Log.setDefaultLevel(Log.VERBOSE);
+        Log.setLevel(TAG, Log.NONE);
+        Log.setLevel(OTHER, Log.NONE);
+    }
+
+    @Test
+    public void replacesThePlaceholdersInOrder() {
+        Log.d(TAG, "connect to: {} secure={}", "00:11", true);
+        Log.d(TAG, "{} {} {}", 1, 2, 3);
+        Log.d(TAG, "no placeholder", "left over");
+        Log.d(TAG, "{} and {}", "one");
+        assertEquals("connect to: 00:11 secure=true", mMessages.get(0));
+        assertEquals("1 2 3", mMessages.get(1));
+        assertEquals("no placeholder", mMessages.get(2));
+        assertEquals("one and {}", mMessages.get(3));
+    }
+
+    @Test
+    public void aLeftOverThrowableIsPrintedAsSuch() {
+        Exception e = new Exception("broken");
+        Log.w(TAG, "write failed on {}", "00:11", e);
+        assertEquals("write failed on 00:11", mMessages.get(0));
+        assertTrue(mThrowables.get(0) == e);
+
+        // Resolves to the signature of android.util.Log, the message isn't a format
+        Log.w(TAG, "failed: {}", e);
+        assertEquals("failed: {}", mMessages.get(1));
+        assertTrue(mThrowables.get(1) == e);
+
+        Log.w(TAG, "failed: {}", (Object) e);
+        assertEquals("failed: java.lang.Exception: broken", mMessages.get(2));
+        assertNull(mThrowables.get(2));
+    }
+
+    @Test
+    public void doesNotFormatWhatIsNotLogged() {
+        final int[] formatted = new int[1];
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "arg";
+            }
+        };
+        Log.setDefaultLevel(Log.INFO);
+        Log.d(TAG, "value {}", arg);
+        assertEquals(0, formatted[0]);
+        assertEquals(0, mMessages.size());
+
+        Log.i(TAG, "value {}", arg);
+        assertEquals(1, formatted[0]);
+        assertEquals("value arg", mMessages.get(0));
+    }
+
+    @Test
+    public void aTagLevelOverridesTheDefault() {
+        Log.setDefaultLevel(Log.WARN);
+        Log.setLevel(TAG, Log.DEBUG);
+        Log.setLevel(OTHER, Log.SILENT);
+        assertTrue(Log.isLoggable(TAG, Log.DEBUG));
+        assertFalse(Log.isLoggable(TAG, Log.VERBOSE));
+        assertFalse(Log.isLoggable("Unknown", Log.INFO));
+        assertTrue(Log.isLoggable("Unknown", Log.WARN));
+        assertFalse(Log.isLoggable(OTHER, Log.ASSERT));
+
+        Log.setLevel(OTHER, Log.NONE);
+        assertTrue(Log.isLoggable(OTHER, Log.ERROR));
+    }
+
+    @Test
+    public void nothingIsLoggableWithoutANode() {
+        Log.setLogNode(null);
+        assertFalse(Log.isLoggable(TAG, Log.ASSERT));
+        Log.e(TAG, "lost");
+        assertEquals(0, mMessages.size());
+    }
+}
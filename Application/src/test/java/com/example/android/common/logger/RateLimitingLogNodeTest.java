@@ -0,0 +1,98 @@
+package com.example.android.common.logger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitingLogNodeTest {
+
+    private static final String TAG = "RateLimitingLogNodeTest";
+
+    private final List<String> mMessages = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void passesABurstAndSummarisesTheRest() {
+        RateLimitingLogNode node = limiter(0.001, 3);
+        for (int i = 0; i < 10; i++) {
+            node.println(Log.INFO, TAG, "Message " + i, null);
+        }
+        assertEquals(3, mMessages.size());
+        assertEquals(7, node.getSuppressedCount());
+
+        node.flush();
+        assertEquals(4, mMessages.size());
+        assertEquals("Suppressed 7 messages over the rate limit", mMessages.get(3));
+    }
+
+    @Test
+    public void collapsesRepeatsIntoACount() {
+        RateLimitingLogNode node = limiter(RateLimitingLogNode.DEFAULT_RATE_PER_SECOND,
+                RateLimitingLogNode.DEFAULT_BURST);
+        for (int i = 0; i < 5; i++) {
+            node.println(Log.WARN, TAG, "Write failed", null);
+        }
+        node.println(Log.INFO, TAG, "Reconnected", null);
+        assertEquals(3, mMessages.size());
+        assertEquals("Write failed", mMessages.get(0));
+        assertEquals("Last message repeated 4 times", mMessages.get(1));
+        assertEquals("Reconnected", mMessages.get(2));
+    }
+
+    @Test
+    public void reportsWhatAQuietTagHeldBackOnATimer() throws InterruptedException {
+        RateLimitingLogNode node = limiter(RateLimitingLogNode.DEFAULT_RATE_PER_SECOND,
+                RateLimitingLogNode.DEFAULT_BURST);
+        node.setSummaryInterval(50);
+        for (int i = 0; i < 3; i++) {
+            node.println(Log.WARN, TAG, "Write failed", null);
+        }
+        assertEquals(1, mMessages.size());
+
+        // Nothing more is logged, the summary comes anyway
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mMessages.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mMessages.size());
+        assertEquals("Last message repeated 2 times", mMessages.get(1));
+    }
+
+    @Test
+    public void flushingWithNothingHeldBackPassesNothingOn() {
+        RateLimitingLogNode node = limiter(RateLimitingLogNode.DEFAULT_RATE_PER_SECOND,
+                RateLimitingLogNode.DEFAULT_BURST);
+        node.println(Log.INFO, TAG, "Connected", null);
+        node.flush();
+        assertEquals(1, mMessages.size());
+    }
+
+    @Test
+    public void samplesTheLowPriorities() {
+        RateLimitingLogNode node = limiter(RateLimitingLogNode.DEFAULT_RATE_PER_SECOND,
+                RateLimitingLogNode.DEFAULT_BURST);
+        node.setSampling(Log.VERBOSE, 10);
+        for (int i = 0; i < 40; i++) {
+            node.println(Log.VERBOSE, TAG, "Tick " + i, null);
+        }
+        node.println(Log.INFO, TAG, "Connected", null);
+        assertEquals(4 + 1, mMessages.size());
+        assertEquals(36, node.getSampledCount());
+        assertTrue(mMessages.contains("Connected"));
+    }
+
+    private RateLimitingLogNode limiter(double ratePerSecond, int burst) {
+        RateLimitingLogNode node = new RateLimitingLogNode(ratePerSecond, burst);
+        node.setNext(new LogNode() {
+            @Override
+            public void println(int priority, String tag, String msg, Throwable tr) {
+                mMessages.add(msg);
+            }
+        });
+        return node;
+    }
+}